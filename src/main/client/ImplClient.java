@@ -4,6 +4,7 @@ import java.net.Socket;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import main.client.gui.LanternaUI;
 import main.client.message.MessageDispatcher;
 import main.shared.log.Logger;
@@ -21,6 +22,8 @@ public class ImplClient implements Runnable {
 
     // State
     private String clientId;
+    // Ids for data requests, echoed back by the responses
+    private final AtomicLong nextRequestId = new AtomicLong();
     private String serverAddress;
     private boolean authenticated = false;
     private final AtomicInteger loginTries = new AtomicInteger(0);
@@ -80,6 +83,7 @@ public class ImplClient implements Runnable {
         networkManager.registerHandler(MessageType.DISCONNECT, this::routeMessage);
         networkManager.registerHandler(MessageType.SERVER_INFO, this::routeMessage);
         networkManager.registerHandler(MessageType.LOGOUT_RESPONSE, this::routeMessage);
+        networkManager.registerHandler(MessageType.CACHE_INFO_RESPONSE, this::routeMessage);
     }
 
     // Single method to route all messages through the dispatcher
@@ -196,8 +200,12 @@ public class ImplClient implements Runnable {
     }
 
     public void sendMessage(MessageType type, Object payload) {
+        sendMessage(type, payload, 0L);
+    }
+
+    private void sendMessage(MessageType type, Object payload, long correlationId) {
         if (networkManager.isConnected()) {
-            Message msg = new Message(type, clientId, "Server", payload);
+            Message msg = new Message(type, clientId, "Server", payload, correlationId);
             networkManager.sendMessage(msg);
         } else {
             logger.error("Cannot send message - connection is closed");
@@ -207,8 +215,26 @@ public class ImplClient implements Runnable {
         }
     }
 
-    public void sendDataRequest(String request) {
-        sendMessage(MessageType.DATA_REQUEST, request);
+    /**
+     * Send a data request without waiting for the previous ones to be answered
+     *
+     * @return id carried back by the matching DATA_RESPONSE
+     */
+    public long sendDataRequest(String request) {
+        long requestId = nextRequestId.incrementAndGet();
+        sendMessage(MessageType.DATA_REQUEST, request, requestId);
+        return requestId;
+    }
+
+    /**
+     * Ask the proxy for a page of its cache
+     *
+     * @return id carried back by the matching CACHE_INFO_RESPONSE
+     */
+    public long sendCacheInfoRequest(int offset, int limit) {
+        long requestId = nextRequestId.incrementAndGet();
+        sendMessage(MessageType.CACHE_INFO_REQUEST, offset + "|" + limit, requestId);
+        return requestId;
     }
 
     public void sendLogoutRequest() {
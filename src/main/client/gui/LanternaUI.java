@@ -413,10 +413,12 @@ public class LanternaUI implements Runnable {
                 Button searchButton = new Button("Search Work Order", () -> showSearchWorkOrderScreen());
                 Button showAllButton = new Button("Show All Work Orders", () -> client.sendDataRequest("SHOW"));
                 Button statsButton = new Button("Show Stats", () -> client.sendDataRequest("STATS"));
+                Button cacheButton = new Button("Show Cache", () -> client.sendCacheInfoRequest(0, 20));
 
                 buttonPanel2.addComponent(searchButton);
                 buttonPanel2.addComponent(showAllButton);
                 buttonPanel2.addComponent(statsButton);
+                buttonPanel2.addComponent(cacheButton);
                 mainPanel.addComponent(buttonPanel2);
 
                 // Add separator
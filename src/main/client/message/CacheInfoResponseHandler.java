@@ -0,0 +1,57 @@
+package main.client.message;
+
+import java.util.Map;
+import java.util.Optional;
+
+import main.client.ImplClient;
+import main.shared.messages.Message;
+import main.shared.utils.TypeUtil;
+
+/**
+ * Mostra a página da cache da proxy pedida com CACHE_INFO_REQUEST
+ */
+public class CacheInfoResponseHandler implements ServiceMessage {
+    @Override
+    public void handle(Message message, ImplClient client) {
+        if (!client.isMessageForThisClient(message))
+            return;
+
+        Optional<Map<String, String>> responseMapOpt = TypeUtil.safeCastToMap(
+                message.getPayload(), String.class, String.class);
+        if (!responseMapOpt.isPresent()) {
+            client.getLogger().error("Invalid cache info format");
+            if (client.getLanternaUI() != null) {
+                client.getLanternaUI().showError("Invalid cache info format");
+            }
+            return;
+        }
+
+        Map<String, String> info = responseMapOpt.get();
+        StringBuilder content = new StringBuilder();
+        content.append("Policy: ").append(info.get("policy"))
+                .append(" (").append(info.get("shards")).append(" shards)\n");
+        content.append("Size: ").append(info.get("size")).append("/").append(info.get("maxSize"))
+                .append(", version ").append(info.get("cacheVersion")).append("\n");
+        content.append("Hits: ").append(info.get("hits")).append(", misses: ").append(info.get("misses"))
+                .append(", evictions: ").append(info.get("evictions"))
+                .append(", expired: ").append(info.get("expirations"))
+                .append(", hit ratio: ").append(info.get("hitRatio")).append("\n");
+        content.append("Time to live: ").append(info.get("ttlSeconds")).append("s, not found: ")
+                .append(info.get("negativeSize")).append(" codes for ").append(info.get("negativeTtlSeconds"))
+                .append("s, ").append(info.get("negativeHits")).append(" hits\n");
+        content.append("Searches forwarded: ").append(info.get("forwardedSearches"))
+                .append(", coalesced: ").append(info.get("coalescedSearches"))
+                .append(", invalidations: ").append(info.get("invalidations")).append("\n");
+        content.append("Offset ").append(info.get("offset"))
+                .append(", limit ").append(info.get("limit"))
+                .append(" of ").append(info.get("total")).append(" entries\n\n");
+        content.append(info.getOrDefault("cacheInfo", ""));
+
+        if (client.getLanternaUI() != null) {
+            client.getLanternaUI().displayResponse("Proxy Cache", content.toString());
+            client.getLanternaUI().updateStatus("Cache info received");
+        } else {
+            client.getLogger().info("Cache info: {}", content.toString());
+        }
+    }
+}
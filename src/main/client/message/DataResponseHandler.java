@@ -77,6 +77,13 @@ public class DataResponseHandler implements ServiceMessage {
             responseContent.append(responseMap.get("database_content")).append("\n");
         }
 
+        // Paginated SHOW
+        if (responseMap.containsKey("total")) {
+            responseContent.append("Offset ").append(responseMap.get("offset"))
+                    .append(", limit ").append(responseMap.get("limit"))
+                    .append(" of ").append(responseMap.get("total")).append(" work orders\n");
+        }
+
         // Work order details
         if (responseMap.containsKey("code")) {
             responseContent.append("Work Order Details:\n");
@@ -86,10 +93,10 @@ public class DataResponseHandler implements ServiceMessage {
             responseContent.append("  Timestamp: ").append(responseMap.get("timestamp")).append("\n");
         }
 
-        // Display cache info if present
-        if (responseMap.containsKey("cacheInfo")) {
-            responseContent.append("\nCache Contents:\n");
-            responseContent.append(responseMap.get("cacheInfo")).append("\n");
+        // Whether the proxy answered from its cache
+        if ("true".equals(responseMap.get("cacheHit"))) {
+            responseContent.append("\n(from proxy cache, version ").append(responseMap.get("cacheVersion"))
+                    .append(")\n");
         }
 
         // Display work orders if present
@@ -99,8 +106,7 @@ public class DataResponseHandler implements ServiceMessage {
         }
 
         // If there's nothing specific, just show all fields
-        if (!responseMap.containsKey("code") && !responseMap.containsKey("cacheInfo") &&
-                !responseMap.containsKey("workOrders") && message == null) {
+        if (!responseMap.containsKey("code") && !responseMap.containsKey("workOrders") && message == null) {
 
             responseContent.append("Response Data:\n");
             for (Map.Entry<String, String> entry : responseMap.entrySet()) {
@@ -42,6 +42,7 @@ public class MessageDispatcher implements AutoCloseable {
         registerHandler(MessageType.START_RESPONSE, new StartResponseHandler());
         registerHandler(MessageType.AUTH_RESPONSE, new AuthResponseHandler());
         registerHandler(MessageType.DATA_RESPONSE, new DataResponseHandler());
+        registerHandler(MessageType.CACHE_INFO_RESPONSE, new CacheInfoResponseHandler());
         registerHandler(MessageType.ERROR, new ErrorHandler());
         registerHandler(MessageType.DISCONNECT, new DisconnectHandler());
         registerHandler(MessageType.SERVER_INFO, new ServerInfoHandler());
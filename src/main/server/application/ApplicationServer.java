@@ -1,10 +1,16 @@
 package main.server.application;
 
+import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import main.server.application.database.Database;
+import main.server.application.database.DatabaseHandler;
+import main.server.application.database.WriteAheadLog;
+import main.server.application.replication.ReplicationManager;
 import main.shared.log.Logger;
+import main.shared.messages.MessageTransports;
 
 public class ApplicationServer {
     private static ServerSocket serverSocket;
@@ -12,12 +18,36 @@ public class ApplicationServer {
     private static final AtomicInteger processConnections = new AtomicInteger(0);
     private static final AtomicInteger activeConnections = new AtomicInteger(0);
 
-    private static final int APPLICATION_PORT = 33330;
+    private static final int APPLICATION_PORT = Integer.getInteger("cfwos.app.port", 33330);
+    // Snapshot format, MAPPED loads large databases fastest
+    private static final String DATABASE_FORMAT_PROPERTY = "cfwos.db.format";
+    private static final String DEFAULT_DATABASE_FORMAT = "MAPPED";
+    // Background checkpoint of the changed segments, 0 turns it off
+    private static final String CHECKPOINT_INTERVAL_PROPERTY = "cfwos.checkpoint.intervalMillis";
+    private static final long DEFAULT_CHECKPOINT_INTERVAL_MS = 10000;
+    // primary or backup, unset runs without replication
+    private static final String REPLICATION_ROLE_PROPERTY = "cfwos.replication.role";
+    private static final String REPLICATION_HOST_PROPERTY = "cfwos.replication.host";
+    private static final String REPLICATION_RMI_PORT_PROPERTY = "cfwos.replication.rmiPort";
+    private static final int DEFAULT_REPLICATION_RMI_PORT = 1099;
+    // host:port of the primary's RMI registry, for a backup
+    private static final String REPLICATION_PRIMARY_PROPERTY = "cfwos.replication.primary";
+    // ASYNC, LEADER or QUORUM, see ReplicationManager.AckMode
+    private static final String REPLICATION_ACK_MODE_PROPERTY = "cfwos.replication.ackMode";
+    // A backup's last primary seq on disk, to catch up with only what it missed
+    private static final String REPLICATION_POSITION_FILE = "replication.pos";
     private static final Logger logger = Logger.getLogger();
 
+    // Singleton database instance - shared across all handlers
+    private static final Database database = new Database();
+    private static DatabaseHandler databaseHandler;
+    private static volatile WriteAheadLog writeAheadLog;
+    private static volatile CacheInvalidationPublisher cacheInvalidations;
+    private static volatile ReplicationManager replication;
+
     static {
         try {
-            serverSocket = new ServerSocket(APPLICATION_PORT);
+            serverSocket = MessageTransports.bind(APPLICATION_PORT);
             logger.info("Application Server started at: {}", serverSocket);
             running = true;
         } catch (Exception e) {
@@ -28,6 +58,7 @@ public class ApplicationServer {
     public ApplicationServer() {
         System.out.println("\033[2J\033[1;1H"); // Clear screen
         logger.info("Starting application server...");
+        openDatabase();
 
         // Add shutdown hook
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
@@ -38,6 +69,60 @@ public class ApplicationServer {
         run();
     }
 
+    /**
+     * Load the last snapshot or checkpoint, replay the write-ahead log on top
+     * of it and keep logging every change
+     */
+    private void openDatabase() {
+        databaseHandler = new DatabaseHandler(database, DatabaseHandler.FileFormat.valueOf(
+                System.getProperty(DATABASE_FORMAT_PROPERTY, DEFAULT_DATABASE_FORMAT).toUpperCase()));
+        try {
+            writeAheadLog = databaseHandler.openWriteAheadLog(
+                    Long.getLong(CHECKPOINT_INTERVAL_PROPERTY, DEFAULT_CHECKPOINT_INTERVAL_MS));
+            logger.info("Database recovered: {} work orders, seq {}", database.getSize(), database.getSequence());
+        } catch (IOException e) {
+            logger.error("Write-ahead log unavailable, changes will not be durable", e);
+        }
+
+        // Registered after recovery, the changes replayed from the log are not news to any proxy
+        cacheInvalidations = new CacheInvalidationPublisher(database, Logger.getLogger("CacheInvalidations"));
+        database.addListener(cacheInvalidations);
+
+        startReplication();
+    }
+
+    private void startReplication() {
+        String role = System.getProperty(REPLICATION_ROLE_PROPERTY);
+        if (role == null || role.isEmpty()) {
+            return;
+        }
+
+        String host = System.getProperty(REPLICATION_HOST_PROPERTY, "localhost");
+        int rmiPort = Integer.getInteger(REPLICATION_RMI_PORT_PROPERTY, DEFAULT_REPLICATION_RMI_PORT);
+        ReplicationManager manager = new ReplicationManager(host, APPLICATION_PORT, rmiPort, database,
+                ReplicationManager.AckMode.valueOf(System.getProperty(REPLICATION_ACK_MODE_PROPERTY,
+                        ReplicationManager.AckMode.LEADER.name()).toUpperCase()),
+                Logger.getLogger("Replication"));
+        try {
+            if ("backup".equalsIgnoreCase(role)) {
+                String primary = System.getProperty(REPLICATION_PRIMARY_PROPERTY,
+                        "localhost:" + DEFAULT_REPLICATION_RMI_PORT);
+                int colon = primary.lastIndexOf(':');
+                if (writeAheadLog != null) {
+                    manager.persistPosition(databaseHandler.getDirectory().resolve(REPLICATION_POSITION_FILE),
+                            writeAheadLog);
+                }
+                manager.initAsBackup(primary.substring(0, colon), Integer.parseInt(primary.substring(colon + 1)));
+            } else {
+                manager.initAsPrimary();
+            }
+            replication = manager;
+        } catch (Exception e) {
+            logger.error("Replication unavailable, running without it", e);
+            manager.shutdown();
+        }
+    }
+
     private void run() {
         logger.info("Application server is running...");
         try {
@@ -52,10 +137,15 @@ public class ApplicationServer {
                     logger.info("Process connections: {}, Active connections: {}",
                             processConnections.get(), activeConnections.get());
 
-                    // Handle client in a separate thread
                     ApplicationServerHandler handler = new ApplicationServerHandler(clientSocket, logger);
-                    Thread thread = new Thread(handler);
-                    thread.start();
+                    if (MessageTransports.isNioEnabled()) {
+                        // I/O runs on the shared event loops, no thread per client
+                        handler.start();
+                    } else {
+                        // Handle client in a separate thread
+                        Thread thread = new Thread(handler);
+                        thread.start();
+                    }
                 } catch (Exception e) {
                     logger.error("Error while accepting client connection: " + e.getMessage());
                 }
@@ -71,12 +161,50 @@ public class ApplicationServer {
             if (serverSocket != null && !serverSocket.isClosed()) {
                 serverSocket.close();
             }
+            if (replication != null) {
+                replication.shutdown();
+                replication = null;
+            }
+            if (cacheInvalidations != null) {
+                database.removeListener(cacheInvalidations);
+                cacheInvalidations.close();
+            }
+            if (databaseHandler != null) {
+                // Writes whatever is still waiting for the group commit
+                databaseHandler.close();
+                writeAheadLog = null;
+            }
             logger.info("Application server shut down successfully");
         } catch (Exception e) {
             logger.error("Error during server shutdown: " + e.getMessage());
         }
     }
 
+    public static Database getDatabase() {
+        return database;
+    }
+
+    /**
+     * @return null before the database is open
+     */
+    public static CacheInvalidationPublisher getCacheInvalidations() {
+        return cacheInvalidations;
+    }
+
+    /**
+     * @return null if changes are not being logged
+     */
+    public static WriteAheadLog getWriteAheadLog() {
+        return writeAheadLog;
+    }
+
+    /**
+     * @return null when running without replication
+     */
+    public static ReplicationManager getReplication() {
+        return replication;
+    }
+
     public static void decrementActiveConnections() {
         activeConnections.decrementAndGet();
     }
@@ -5,13 +5,18 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import main.server.application.database.Database;
+import main.server.application.database.WriteAheadLog;
+import main.server.application.replication.ReplicationManager;
 import main.shared.log.Logger;
 import main.shared.messages.Message;
 import main.shared.messages.MessageBus;
+import main.shared.messages.MessageTransport;
+import main.shared.messages.MessageTransports;
 import main.shared.messages.MessageType;
-import main.shared.messages.SocketMessageTransport;
 import main.shared.models.WorkOrder;
 
 public class ApplicationServerHandler implements Runnable {
@@ -22,18 +27,15 @@ public class ApplicationServerHandler implements Runnable {
     private final Socket clientSocket;
     private final Logger logger;
     private MessageBus messageBus;
-    private SocketMessageTransport transport;
+    private MessageTransport transport;
+    private final AtomicBoolean cleanedUp = new AtomicBoolean(false);
+    private final CountDownLatch closedLatch = new CountDownLatch(1);
 
-    // Singleton database instance - shared across all handlers
-    private static final Database database;
-    // Thread safety for database operations
-    private static final Object lock = new Object();
-    private static final Object databaseLock = new Object();
+    // Singleton database instance - shared across all handlers, it does its own locking
+    private static final Database database = ApplicationServer.getDatabase();
 
-    // Initialize database
-    static {
-        database = new Database();
-    }
+    // Códigos por SEARCHBATCH, a resposta inteira vai numa mensagem
+    private static final int MAX_SEARCH_BATCH = 500;
 
     public ApplicationServerHandler(Socket clientSocket, Logger logger) {
         this.clientSocket = clientSocket;
@@ -49,22 +51,28 @@ public class ApplicationServerHandler implements Runnable {
                 clientSocket.getPort());
     }
 
+    /**
+     * Set up the connection without holding a thread. Requests are served from
+     * the message bus and the handler cleans up when the transport closes.
+     */
+    public void start() {
+        setupMessageTransport();
+        transport.addCloseListener(this::cleanup);
+        logger.info("Application handler ready for client requests...");
+    }
+
     @Override
     public void run() {
         try {
-            setupMessageTransport();
-            logger.info("Application handler ready for client requests...");
+            start();
 
-            // Main message processing loop
-            while (connected && transport.isRunning() && !clientSocket.isClosed()) {
-                boolean messageProcessed = transport.readMessage();
-
-                if (!messageProcessed) {
-                    connected = false;
-                }
-            }
+            // Messages are delivered by the transport, just wait for the connection to end
+            closedLatch.await();
+            connected = false;
 
             logger.info("Client disconnected from application server");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } catch (Exception e) {
             logger.error("Error in application client handler", e);
         } finally {
@@ -79,108 +87,209 @@ public class ApplicationServerHandler implements Runnable {
                 + clientSocket.getLocalPort();
 
         messageBus = new MessageBus(serverComponent, logger);
-        transport = new SocketMessageTransport(clientSocket, messageBus, logger, true);
+        transport = MessageTransports.open(clientSocket, messageBus, logger, true);
 
         try {
-            // Subscribe only to DATA_REQUEST messages
             messageBus.subscribe(MessageType.DATA_REQUEST, this::handleDataRequest);
+            // Health checks from the proxy connection pool
+            messageBus.subscribe(MessageType.PING, this::handlePing);
+            messageBus.subscribe(MessageType.CACHE_SUBSCRIBE, this::handleCacheSubscribe);
         } catch (Exception e) {
             logger.error("Error in message transport setup", e);
         }
     }
 
     private void handleDataRequest(Message message) {
-        synchronized (lock) {
+        try {
+            logger.info("Handling DATA_REQUEST message from {}: {}", message.getSender(), message.getPayload());
+
+            Map<String, String> response = new HashMap<>();
+            String operation = null;
+
+            if (message.getPayload() == null) {
+                throw new IllegalArgumentException("Request payload cannot be null");
+            }
+
+            String[] requestParts = message.getPayload().toString().split("\\|");
+            operation = requestParts[0].toUpperCase();
+
+            ReplicationManager replication = ApplicationServer.getReplication();
+            if (isWriteOperation(operation) && replication != null && !replication.isWritable()) {
+                // A backup only changes through the primary's log
+                throw new IllegalStateException("This server is a read-only backup");
+            }
+
+            // Process the data request using the database
+            switch (operation) {
+                case "ADD":
+                    handleAddOperation(requestParts, response);
+                    break;
+                case "REMOVE":
+                    handleRemoveOperation(requestParts, response);
+                    break;
+                case "UPDATE":
+                    handleUpdateOperation(requestParts, response);
+                    break;
+                case "SEARCH":
+                    handleSearchOperation(requestParts, response);
+                    break;
+                case "SEARCHBATCH":
+                    handleSearchBatchOperation(requestParts, response);
+                    break;
+                case "STATS":
+                    handleStatsOperation(response);
+                    break;
+                case "SHOW":
+                    handleShowOperation(requestParts, response);
+                    break;
+                case "ADD60":
+                    add60toDatabase(response);
+                    break;
+                case "TESTE":
+                    // handleTesteOperation(response);
+                default:
+                    response.put("status", "error");
+                    response.put("message", "Unknown operation: " + operation);
+            }
+
+            // Covers this change, and maybe a few later ones, which only waits a bit longer
+            long writeSeq = 0;
+            if (isWriteOperation(operation)) {
+                writeSeq = database.getSequence();
+                // For the proxy to read its client's writes from a backup only once the backup has them
+                response.put("seq", String.valueOf(writeSeq));
+            }
+
+            // Create response message
+            Message responseMsg = new Message(
+                    MessageType.DATA_RESPONSE,
+                    message.getRecipient(),
+                    message.getSender(),
+                    response,
+                    message.getCorrelationId());
+
+            if (isWriteOperation(operation)) {
+                sendWhenDurable(message, responseMsg, writeSeq);
+            } else {
+                transport.sendMessage(responseMsg);
+            }
+            logger.info("Sent data response to client for operation: {}", operation);
+
+        } catch (Exception e) {
+            logger.error("Error handling DATA_REQUEST", e);
+
+            // Send error message back to client
             try {
-                logger.info("Handling DATA_REQUEST message from {}: {}", message.getSender(), message.getPayload());
-
-                Map<String, String> response = new HashMap<>();
-                String operation = null;
-
-                // Get the thread name/id for debugging
-                String threadInfo = Thread.currentThread().getName() + "-" + Thread.currentThread().getId();
-                logger.info("[{}] Requesting database lock", threadInfo);
-
-                // Log the time it takes to acquire the lock
-                long startLock = System.currentTimeMillis();
-
-                synchronized (databaseLock) {
-                    long lockTime = System.currentTimeMillis() - startLock;
-                    logger.info("[{}] Acquired database lock after {}ms", threadInfo, lockTime);
-
-                    if (message.getPayload() == null) {
-                        throw new IllegalArgumentException("Request payload cannot be null");
-                    }
-
-                    String[] requestParts = message.getPayload().toString().split("\\|");
-                    operation = requestParts[0].toUpperCase();
-
-                    // Process the data request using the database
-                    switch (operation) {
-                        case "ADD":
-                            handleAddOperation(requestParts, response);
-                            break;
-                        case "REMOVE":
-                            handleRemoveOperation(requestParts, response);
-                            break;
-                        case "UPDATE":
-                            handleUpdateOperation(requestParts, response);
-                            break;
-                        case "SEARCH":
-                            handleSearchOperation(requestParts, response);
-                            break;
-                        case "STATS":
-                            handleStatsOperation(response);
-                            break;
-                        case "SHOW":
-                            handleShowOperation(requestParts, response);
-                            break;
-                        case "ADD60":
-                            add60toDatabase(response);
-                            break;
-                        case "TESTE":
-                            // handleTesteOperation(response);
-                        default:
-                            response.put("status", "error");
-                            response.put("message", "Unknown operation: " + operation);
-                    }
-
-                    logger.info("[{}] Finished database operation", threadInfo);
-                }
+                Map<String, String> errorResponse = new HashMap<>();
+                errorResponse.put("status", "error");
+                errorResponse.put("message", e.getMessage());
 
-                // Create response message
-                Message responseMsg = new Message(
+                Message errorMsg = new Message(
                         MessageType.DATA_RESPONSE,
                         message.getRecipient(),
                         message.getSender(),
-                        response);
+                        errorResponse,
+                        message.getCorrelationId());
 
-                transport.sendMessage(responseMsg);
-                logger.info("Sent data response to client for operation: {}", operation);
-
-            } catch (Exception e) {
-                logger.error("Error handling DATA_REQUEST", e);
-
-                // Send error message back to client
-                try {
-                    Map<String, String> errorResponse = new HashMap<>();
-                    errorResponse.put("status", "error");
-                    errorResponse.put("message", e.getMessage());
-
-                    Message errorMsg = new Message(
-                            MessageType.DATA_RESPONSE,
-                            message.getRecipient(),
-                            message.getSender(),
-                            errorResponse);
-
-                    transport.sendMessage(errorMsg);
-                } catch (Exception ex) {
-                    logger.error("Failed to send error response", ex);
-                }
+                transport.sendMessage(errorMsg);
+            } catch (Exception ex) {
+                logger.error("Failed to send error response", ex);
             }
         }
     }
 
+    /**
+     * Seq of the primary the content read now is at least at. On a backup it
+     * is the primary's seq it has applied, not its own database's.
+     */
+    private static long readSeq() {
+        ReplicationManager replication = ApplicationServer.getReplication();
+        return replication != null ? replication.getReadSeq() : database.getSequence();
+    }
+
+    private static boolean isWriteOperation(String operation) {
+        return "ADD".equals(operation) || "REMOVE".equals(operation) || "UPDATE".equals(operation)
+                || "ADD60".equals(operation);
+    }
+
+    /**
+     * Answer a change only once the write-ahead log has it on disk, and with
+     * QUORUM replication once a majority of the backups has it too. The
+     * group commit and replication threads send the response, so this
+     * thread moves on to the next request instead of waiting for them.
+     */
+    private void sendWhenDurable(Message request, Message response, long seq) {
+        ReplicationManager replication = ApplicationServer.getReplication();
+        if (replication != null && replication.getAckMode() == ReplicationManager.AckMode.ASYNC) {
+            transport.sendMessage(response);
+            return;
+        }
+
+        WriteAheadLog wal = ApplicationServer.getWriteAheadLog();
+        if (wal == null) {
+            sendWhenReplicated(request, response, seq);
+            return;
+        }
+
+        wal.whenDurable(durable -> {
+            if (durable) {
+                sendWhenReplicated(request, response, seq);
+            } else {
+                sendError(request, "Change applied but could not be written to disk");
+            }
+        });
+    }
+
+    private void sendWhenReplicated(Message request, Message response, long seq) {
+        ReplicationManager replication = ApplicationServer.getReplication();
+        if (replication == null) {
+            transport.sendMessage(response);
+            return;
+        }
+
+        replication.whenReplicated(seq, replicated -> {
+            if (replicated) {
+                transport.sendMessage(response);
+            } else {
+                sendError(request, "Change applied but not confirmed by a quorum of backups");
+            }
+        });
+    }
+
+    private void sendError(Message request, String message) {
+        Map<String, String> errorResponse = new HashMap<>();
+        errorResponse.put("status", "error");
+        errorResponse.put("message", message);
+        transport.sendMessage(new Message(
+                MessageType.DATA_RESPONSE,
+                request.getRecipient(),
+                request.getSender(),
+                errorResponse,
+                request.getCorrelationId()));
+    }
+
+    /**
+     * The proxy wants the changed codes, to keep its cache fresh
+     */
+    private void handleCacheSubscribe(Message message) {
+        CacheInvalidationPublisher invalidations = ApplicationServer.getCacheInvalidations();
+        if (invalidations != null) {
+            logger.info("Cache invalidations requested by {}", message.getSender());
+            invalidations.subscribe(transport, message);
+        }
+    }
+
+    private void handlePing(Message message) {
+        // The seq tells the proxy how fresh this server is, for routing reads to backups
+        Message pong = new Message(
+                MessageType.PONG,
+                message.getRecipient(),
+                message.getSender(),
+                readSeq(),
+                message.getCorrelationId());
+        transport.sendMessage(pong);
+    }
+
     private void add60toDatabase(Map<String, String> response) {
         for (int i = 0; i < 60; i++) {
             database.addWorkOrder(i, "name" + i, "description" + i);
@@ -240,11 +349,19 @@ public class ApplicationServerHandler implements Runnable {
         String name = requestParts[2];
         String description = requestParts[3];
 
+        WorkOrder workOrder;
         if (requestParts.length == 5) {
             String timestamp = requestParts[4];
-            database.addWorkOrder(code, name, description, timestamp);
+            workOrder = new WorkOrder(code, name, description, timestamp);
         } else {
-            database.addWorkOrder(code, name, description);
+            workOrder = new WorkOrder(code, name, description);
+        }
+
+        // Another connection may have added the same code since the check above
+        if (!database.addWorkOrder(workOrder)) {
+            response.put("status", "error");
+            response.put("message", "1 errors found\nWork order with code " + code + " already exists");
+            return;
         }
 
         response.put("status", "success");
@@ -252,7 +369,7 @@ public class ApplicationServerHandler implements Runnable {
         response.put("code", String.valueOf(code));
         response.put("name", name);
         response.put("description", description);
-        response.put("timestamp", database.searchWorkOrder(code).getTimestamp());
+        response.put("timestamp", workOrder.getTimestamp());
     }
 
     private void handleRemoveOperation(String[] requestParts, Map<String, String> response) {
@@ -263,14 +380,12 @@ public class ApplicationServerHandler implements Runnable {
 
         int code = Integer.parseInt(requestParts[1]);
 
-        if (database.searchWorkOrder(code) == null) {
+        if (!database.removeWorkOrder(code)) {
             response.put("status", "error");
             response.put("message", "Work order with code " + code + " not found!");
             return;
         }
 
-        database.removeWorkOrder(code);
-
         response.put("status", "success");
         response.put("message", "Work order removed successfully");
         response.put("code", String.valueOf(code));
@@ -283,24 +398,16 @@ public class ApplicationServerHandler implements Runnable {
         }
 
         int code = Integer.parseInt(requestParts[1]);
-
-        if (database.searchWorkOrder(code) == null) {
-            response.put("status", "error");
-            response.put("message", "Work order with code " + code + " not found!");
-            return;
-
-        }
-
         String name = requestParts[2];
         String description = requestParts[3];
 
         String timestamp = requestParts[4];
 
         // TODO fix timestamp
-        if (timestamp == null) {
-            database.updateWorkOrder(code, name, description, timestamp);
-        } else {
-            database.updateWorkOrder(code, name, description, timestamp);
+        if (!database.updateWorkOrder(code, name, description, timestamp)) {
+            response.put("status", "error");
+            response.put("message", "Work order with code " + code + " not found!");
+            return;
         }
 
         response.put("status", "success");
@@ -315,7 +422,10 @@ public class ApplicationServerHandler implements Runnable {
         }
 
         int code = Integer.parseInt(requestParts[1]);
+        // Read before the search: a proxy must not cache this answer over an invalidation with a higher seq
+        long seq = readSeq();
         WorkOrder workOrder = database.searchWorkOrder(code);
+        response.put("seq", String.valueOf(seq));
 
         if (workOrder != null) {
             response.put("status", "success");
@@ -330,17 +440,83 @@ public class ApplicationServerHandler implements Runnable {
         }
     }
 
+    private void handleSearchBatchOperation(String[] requestParts, Map<String, String> response) {
+        // Format: SEARCHBATCH|code,code,...
+        if (requestParts.length < 2 || requestParts[1].isEmpty()) {
+            throw new IllegalArgumentException("SEARCHBATCH operation requires codes");
+        }
+
+        String[] codeList = requestParts[1].split(",");
+        if (codeList.length > MAX_SEARCH_BATCH) {
+            throw new IllegalArgumentException("SEARCHBATCH takes at most " + MAX_SEARCH_BATCH + " codes");
+        }
+        int[] codes = new int[codeList.length];
+        for (int i = 0; i < codes.length; i++) {
+            codes[i] = Integer.parseInt(codeList[i].trim());
+        }
+
+        // Same rule as SEARCH: the seq is read before the work orders
+        long seq = readSeq();
+        WorkOrder[] workOrders = database.searchWorkOrders(codes);
+        response.put("seq", String.valueOf(seq));
+
+        // Found work orders as code.N, name.N, description.N and timestamp.N, N from 0 to found - 1
+        int found = 0;
+        StringBuilder missing = new StringBuilder();
+        for (int i = 0; i < codes.length; i++) {
+            WorkOrder workOrder = workOrders[i];
+            if (workOrder == null) {
+                missing.append(missing.length() > 0 ? "," : "").append(codes[i]);
+                continue;
+            }
+            response.put("code." + found, String.valueOf(workOrder.getCode()));
+            response.put("name." + found, workOrder.getName());
+            response.put("description." + found, workOrder.getDescription());
+            response.put("timestamp." + found, workOrder.getTimestamp());
+            found++;
+        }
+        response.put("status", "success");
+        response.put("message", found + " of " + codes.length + " work orders found");
+        response.put("found", String.valueOf(found));
+        response.put("missing", missing.toString());
+    }
+
     private void handleStatsOperation(Map<String, String> response) {
         // Format: STATS
+        long seq = readSeq();
+        Database.Stats stats = database.getStats();
+        response.put("seq", String.valueOf(seq));
         response.put("status", "success");
-        response.put("size", String.valueOf(database.getSize()));
-        response.put("height", String.valueOf(database.getTreeHeight()));
-        response.put("balanceCounter", String.valueOf(database.getBalanceCounter()));
+        response.put("size", String.valueOf(stats.getSize()));
+        response.put("height", String.valueOf(stats.getHeight()));
+        response.put("balanceCounter", String.valueOf(stats.getBalanceCounter()));
     }
 
     private void handleShowOperation(String[] requestParts, Map<String, String> response) {
-        // Format: SHOW|[REVERSE]
+        // Format: SHOW|[REVERSE]|[offset|limit]
         boolean reverse = requestParts.length > 1 && "REVERSE".equalsIgnoreCase(requestParts[1]);
+        int pageStart = reverse ? 2 : 1;
+        response.put("seq", String.valueOf(readSeq()));
+
+        if (requestParts.length > pageStart) {
+            if (requestParts.length < pageStart + 2) {
+                throw new IllegalArgumentException("SHOW with paging requires offset and limit");
+            }
+            int offset = Integer.parseInt(requestParts[pageStart]);
+            int limit = Integer.parseInt(requestParts[pageStart + 1]);
+            if (offset < 0 || limit <= 0) {
+                throw new IllegalArgumentException("SHOW offset must be >= 0 and limit > 0");
+            }
+
+            Database.Page page = database.getDatabaseContent(offset, limit, reverse);
+            response.put("status", "success");
+            response.put("message", reverse ? "Database content in reverse order" : "Database content in order");
+            response.put("database_content", page.getContent());
+            response.put("offset", String.valueOf(offset));
+            response.put("limit", String.valueOf(limit));
+            response.put("total", String.valueOf(page.getTotal()));
+            return;
+        }
 
         // Obter representação em string do banco de dados
         String databaseContent;
@@ -365,15 +541,26 @@ public class ApplicationServerHandler implements Runnable {
     }
 
     private void cleanup() {
+        if (!cleanedUp.compareAndSet(false, true)) {
+            return;
+        }
+        closedLatch.countDown();
         try {
             // Unsubscribe to prevent more callbacks
             messageBus.unsubscribe(MessageType.DATA_REQUEST, this::handleDataRequest);
 
             // Close transport
             if (transport != null) {
+                CacheInvalidationPublisher invalidations = ApplicationServer.getCacheInvalidations();
+                if (invalidations != null) {
+                    invalidations.unsubscribe(transport);
+                }
                 transport.close();
             }
 
+            // Release the bus lane, queued requests still finish
+            messageBus.close();
+
             // Update connection count
             ApplicationServer.decrementActiveConnections();
 
@@ -0,0 +1,168 @@
+package main.server.application;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import main.server.application.database.Database;
+import main.server.application.database.DatabaseListener;
+import main.shared.log.Logger;
+import main.shared.messages.Message;
+import main.shared.messages.MessageTransport;
+import main.shared.messages.MessageType;
+import main.shared.models.WorkOrder;
+
+/**
+ * Avisa os proxies inscritos de cada código alterado no banco, para tirarem
+ * cópias antigas das suas caches.
+ *
+ * A proxy subscribes with CACHE_SUBSCRIBE on one of its connections. From
+ * then on it gets CACHE_INVALIDATE messages whose payload is a String[] of
+ * "code|seq" entries, seq being the database sequence number of the change;
+ * "*|seq" means everything up to seq may be stale. The first message after
+ * the subscription is always "*|seq" with the current sequence number, so
+ * the proxy drops what it cached before and knows which changes it did not
+ * hear about.
+ *
+ * Database callbacks run under its write lock, so they only queue the
+ * change. One thread sends the queue in batches, in order, which also
+ * keeps every subscriber's "*|seq" ahead of the changes after it.
+ */
+public class CacheInvalidationPublisher implements DatabaseListener, Closeable {
+    private static final int MAX_BATCH = 256;
+    private static final Object STOP = new Object();
+
+    private final Database database;
+    private final Logger logger;
+    private final List<MessageTransport> subscribers = new CopyOnWriteArrayList<>();
+    private final BlockingQueue<Object> events = new LinkedBlockingQueue<>();
+    private final Thread sender;
+
+    private static final class Subscription {
+        final MessageTransport transport;
+        final Message request;
+
+        Subscription(MessageTransport transport, Message request) {
+            this.transport = transport;
+            this.request = request;
+        }
+    }
+
+    public CacheInvalidationPublisher(Database database, Logger logger) {
+        this.database = database;
+        this.logger = logger;
+        this.sender = new Thread(this::sendLoop, "cache-invalidations");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    /**
+     * Start sending invalidations on a proxy connection
+     *
+     * @param request the CACHE_SUBSCRIBE, answered with "*|seq"
+     */
+    public void subscribe(MessageTransport transport, Message request) {
+        events.add(new Subscription(transport, request));
+    }
+
+    public void unsubscribe(MessageTransport transport) {
+        subscribers.remove(transport);
+    }
+
+    public int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    @Override
+    public void onAdd(long seq, WorkOrder workOrder) {
+        publish(workOrder.getCode() + "|" + seq);
+    }
+
+    @Override
+    public void onUpdate(long seq, WorkOrder workOrder) {
+        publish(workOrder.getCode() + "|" + seq);
+    }
+
+    @Override
+    public void onRemove(long seq, int code) {
+        publish(code + "|" + seq);
+    }
+
+    @Override
+    public void onClear(long seq) {
+        publish("*|" + seq);
+    }
+
+    @Override
+    public void close() {
+        events.add(STOP);
+    }
+
+    // Changes made with no proxy subscribed are covered by the "*|seq" a new subscription gets
+    private void publish(String invalidation) {
+        if (!subscribers.isEmpty()) {
+            events.add(invalidation);
+        }
+    }
+
+    private void sendLoop() {
+        List<Object> batch = new ArrayList<>(MAX_BATCH);
+        List<String> invalidations = new ArrayList<>(MAX_BATCH);
+        try {
+            while (true) {
+                batch.add(events.take());
+                events.drainTo(batch, MAX_BATCH - 1);
+
+                for (Object event : batch) {
+                    if (event == STOP) {
+                        send(invalidations);
+                        return;
+                    }
+                    if (event instanceof Subscription) {
+                        // Changes queued before it were applied before the sequence read here
+                        send(invalidations);
+                        invalidations.clear();
+                        Subscription subscription = (Subscription) event;
+                        subscribers.add(subscription.transport);
+                        subscription.transport.sendMessage(new Message(
+                                MessageType.CACHE_INVALIDATE,
+                                subscription.request.getRecipient(),
+                                subscription.request.getSender(),
+                                new String[] { "*|" + database.getSequence() },
+                                subscription.request.getCorrelationId()));
+                        logger.info("Proxy subscribed to cache invalidations, {} subscribers",
+                                subscribers.size());
+                    } else {
+                        invalidations.add((String) event);
+                    }
+                }
+                send(invalidations);
+                invalidations.clear();
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void send(List<String> invalidations) {
+        if (invalidations.isEmpty()) {
+            return;
+        }
+        String[] payload = invalidations.toArray(new String[0]);
+        for (MessageTransport subscriber : subscribers) {
+            if (!subscriber.isRunning()) {
+                subscribers.remove(subscriber);
+                continue;
+            }
+            try {
+                subscriber.sendMessage(new Message(MessageType.CACHE_INVALIDATE, "AppServer", "Proxy", payload));
+            } catch (Exception e) {
+                logger.error("Error sending cache invalidations: {}", e.getMessage());
+            }
+        }
+    }
+}
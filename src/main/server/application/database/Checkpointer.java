@@ -0,0 +1,403 @@
+package main.server.application.database;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import main.shared.log.Logger;
+import main.shared.models.WorkOrder;
+
+/**
+ * Checkpoints incrementais da base, feitos em segundo plano.
+ *
+ * The code space is split in segments of {@link #SEGMENT_CODES} consecutive
+ * codes, each one a {@link MappedSnapshot} file in the checkpoint directory.
+ * As a listener of the database the checkpointer only records, under the
+ * write lock, the last value of each code changed since the last checkpoint.
+ * A checkpoint swaps that set for an empty one, which is its point-in-time
+ * view, and rewrites on its own thread only the segments the changes fall
+ * in, merging them into the segment files. Requests never wait for it, and a
+ * checkpoint costs in proportion to the changed segments, not to the size of
+ * the database.
+ *
+ * The manifest holds the sequence number the segments are complete up to
+ * and is replaced after them. The write-ahead log is then cut at that
+ * sequence number. A crash between the two leaves some segments newer than
+ * the manifest, which is fine: replaying the log from the manifest takes every
+ * changed code to its last value again.
+ */
+public class Checkpointer implements DatabaseListener, Closeable {
+    private static final Logger logger = Logger.getLogger();
+    private static final int SEGMENT_SHIFT = 10;
+    public static final int SEGMENT_CODES = 1 << SEGMENT_SHIFT;
+    private static final String MANIFEST = "MANIFEST";
+    private static final String SEQ_HEADER = "#seq=";
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_EXTENSION = ".snap";
+
+    private final Database database;
+    private final Path directory;
+    private final long intervalMillis;
+    private ScheduledExecutorService scheduler;
+    private WriteAheadLog writeAheadLog;
+
+    // Changes since the last checkpoint, guarded by changesLock. A null value is a removed code
+    private final Object changesLock = new Object();
+    private Map<Integer, WorkOrder> changes = new HashMap<>();
+    // The segments on disk no longer count, rewrite them from the changes alone
+    private boolean cleared;
+    private long lastSeq;
+
+    // Guarded by this
+    private long checkpointSeq = -1;
+    private long checkpoints;
+    private long lastDurationMillis;
+
+    public Checkpointer(Database database, Path directory, long intervalMillis) throws IOException {
+        this.database = database;
+        this.directory = directory;
+        this.intervalMillis = intervalMillis;
+        Files.createDirectories(directory);
+        long manifestSeq = readCheckpointSeq(directory);
+        this.lastSeq = manifestSeq;
+        this.checkpointSeq = manifestSeq;
+    }
+
+    /**
+     * Sequence number in the manifest of a checkpoint directory
+     *
+     * @return -1 if there is no checkpoint
+     */
+    public static long readCheckpointSeq(Path directory) throws IOException {
+        Path manifest = directory.resolve(MANIFEST);
+        if (!Files.exists(manifest)) {
+            return -1;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(manifest, StandardCharsets.UTF_8)) {
+            String line = reader.readLine();
+            if (line == null || !line.startsWith(SEQ_HEADER)) {
+                throw new IOException("Invalid checkpoint manifest " + manifest);
+            }
+            return Long.parseLong(line.substring(SEQ_HEADER.length()).trim());
+        }
+    }
+
+    /**
+     * Carrega os segmentos de um checkpoint, um segmento por tarefa
+     *
+     * @return sequence number of the checkpoint
+     */
+    public static long load(Path directory, Database database, int threads) throws IOException {
+        long seq = readCheckpointSeq(directory);
+        if (seq < 0) {
+            throw new IOException("No checkpoint in " + directory);
+        }
+
+        TreeMap<Integer, Path> segments = listSegments(directory);
+        List<MappedSnapshot.Content> contents = new ArrayList<>();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            Thread t = new Thread(r, "checkpoint-loader");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Future<MappedSnapshot.Content>> futures = new ArrayList<>();
+            for (Path segment : segments.values()) {
+                futures.add(pool.submit(() -> MappedSnapshot.read(segment, 1)));
+            }
+            for (Future<MappedSnapshot.Content> future : futures) {
+                contents.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted loading checkpoint");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Error loading checkpoint", cause);
+        } finally {
+            pool.shutdownNow();
+        }
+
+        // Segments are listed in code order, so the records come out sorted
+        int count = 0;
+        for (MappedSnapshot.Content content : contents) {
+            count += content.size();
+        }
+        int[] codes = new int[count];
+        WorkOrder[] workOrders = new WorkOrder[count];
+        int position = 0;
+        for (MappedSnapshot.Content content : contents) {
+            System.arraycopy(content.getCodes(), 0, codes, position, content.size());
+            System.arraycopy(content.getWorkOrders(), 0, workOrders, position, content.size());
+            position += content.size();
+        }
+        database.loadSorted(codes, workOrders, count, seq);
+        return seq;
+    }
+
+    /**
+     * Take the whole database as changed, for when it was not loaded from
+     * this checkpoint. Must run before the checkpointer is added as a listener.
+     */
+    public void rebuildAll() {
+        Map<Integer, WorkOrder> content = new HashMap<>();
+        long seq = database.copyToMap(content);
+        synchronized (changesLock) {
+            changes = content;
+            cleared = true;
+            lastSeq = seq;
+        }
+    }
+
+    /**
+     * Start checkpointing every intervalMillis. The log is cut after each
+     * checkpoint.
+     */
+    public synchronized void start(WriteAheadLog writeAheadLog) {
+        this.writeAheadLog = writeAheadLog;
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "checkpointer");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                checkpoint();
+            } catch (Exception e) {
+                logger.error("Checkpoint failed, the changes stay in the write-ahead log", e);
+            }
+        }, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void onAdd(long seq, WorkOrder workOrder) {
+        changed(seq, workOrder.getCode(), workOrder);
+    }
+
+    @Override
+    public void onUpdate(long seq, WorkOrder workOrder) {
+        changed(seq, workOrder.getCode(), workOrder);
+    }
+
+    @Override
+    public void onRemove(long seq, int code) {
+        changed(seq, code, null);
+    }
+
+    @Override
+    public void onClear(long seq) {
+        synchronized (changesLock) {
+            changes = new HashMap<>();
+            cleared = true;
+            lastSeq = seq;
+        }
+    }
+
+    private void changed(long seq, int code, WorkOrder workOrder) {
+        synchronized (changesLock) {
+            changes.put(code, workOrder);
+            lastSeq = seq;
+        }
+    }
+
+    /**
+     * Write the segments changed since the last checkpoint
+     *
+     * @return false if nothing changed
+     */
+    public synchronized boolean checkpoint() throws IOException {
+        Map<Integer, WorkOrder> captured;
+        boolean wasCleared;
+        long seq;
+        synchronized (changesLock) {
+            if (changes.isEmpty() && !cleared && lastSeq == checkpointSeq) {
+                return false;
+            }
+            captured = changes;
+            wasCleared = cleared;
+            seq = lastSeq;
+            changes = new HashMap<>();
+            cleared = false;
+        }
+
+        long start = System.nanoTime();
+        int written;
+        try {
+            // A segment must never hold a change the log could still lose
+            if (writeAheadLog != null) {
+                writeAheadLog.sync();
+            }
+            written = writeSegments(captured, wasCleared, seq);
+            writeManifest(seq);
+        } catch (IOException | RuntimeException e) {
+            restore(captured, wasCleared);
+            throw e;
+        }
+        checkpointSeq = seq;
+        checkpoints++;
+        lastDurationMillis = (System.nanoTime() - start) / 1000000;
+
+        if (writeAheadLog != null) {
+            writeAheadLog.truncate(seq);
+        }
+        logger.info("Checkpoint at seq {}: {} changed codes, {} segments written in {} ms",
+                seq, captured.size(), written, lastDurationMillis);
+        return true;
+    }
+
+    public synchronized long getCheckpointSeq() {
+        return checkpointSeq;
+    }
+
+    public synchronized long getCheckpoints() {
+        return checkpoints;
+    }
+
+    public synchronized long getLastDurationMillis() {
+        return lastDurationMillis;
+    }
+
+    /**
+     * Stop the schedule and write a last checkpoint, so the next start has
+     * nothing to replay
+     */
+    @Override
+    public void close() throws IOException {
+        ScheduledExecutorService running;
+        synchronized (this) {
+            running = scheduler;
+            scheduler = null;
+        }
+        if (running != null) {
+            running.shutdown();
+            try {
+                running.awaitTermination(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        checkpoint();
+    }
+
+    // Put back the changes of a failed checkpoint, under the ones that came after them
+    private void restore(Map<Integer, WorkOrder> captured, boolean wasCleared) {
+        synchronized (changesLock) {
+            if (cleared) {
+                // Cleared again meanwhile, the captured changes no longer matter
+                return;
+            }
+            for (Map.Entry<Integer, WorkOrder> entry : captured.entrySet()) {
+                if (!changes.containsKey(entry.getKey())) {
+                    changes.put(entry.getKey(), entry.getValue());
+                }
+            }
+            cleared = wasCleared;
+        }
+    }
+
+    private int writeSegments(Map<Integer, WorkOrder> captured, boolean fromScratch, long seq)
+            throws IOException {
+        TreeMap<Integer, Map<Integer, WorkOrder>> bySegment = new TreeMap<>();
+        for (Map.Entry<Integer, WorkOrder> entry : captured.entrySet()) {
+            bySegment.computeIfAbsent(entry.getKey() >> SEGMENT_SHIFT, s -> new HashMap<>())
+                    .put(entry.getKey(), entry.getValue());
+        }
+
+        if (fromScratch) {
+            for (Map.Entry<Integer, Path> segment : listSegments(directory).entrySet()) {
+                if (!bySegment.containsKey(segment.getKey())) {
+                    Files.deleteIfExists(segment.getValue());
+                }
+            }
+        }
+
+        for (Map.Entry<Integer, Map<Integer, WorkOrder>> segment : bySegment.entrySet()) {
+            writeSegment(segment.getKey(), segment.getValue(), fromScratch, seq);
+        }
+        return bySegment.size();
+    }
+
+    private void writeSegment(int segment, Map<Integer, WorkOrder> segmentChanges, boolean fromScratch,
+            long seq) throws IOException {
+        Path file = directory.resolve(SEGMENT_PREFIX + segment + SEGMENT_EXTENSION);
+        TreeMap<Integer, WorkOrder> content = new TreeMap<>();
+        if (!fromScratch && Files.exists(file)) {
+            MappedSnapshot.Content old = MappedSnapshot.read(file, 1);
+            for (int i = 0; i < old.size(); i++) {
+                content.put(old.getCodes()[i], old.getWorkOrders()[i]);
+            }
+        }
+        for (Map.Entry<Integer, WorkOrder> change : segmentChanges.entrySet()) {
+            if (change.getValue() == null) {
+                content.remove(change.getKey());
+            } else {
+                content.put(change.getKey(), change.getValue());
+            }
+        }
+
+        if (content.isEmpty()) {
+            Files.deleteIfExists(file);
+            return;
+        }
+        Path temp = directory.resolve(file.getFileName() + ".tmp");
+        // Only the manifest says up to where the whole checkpoint is complete
+        MappedSnapshot.write(temp, new ArrayList<>(content.values()), seq);
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void writeManifest(long seq) throws IOException {
+        Path manifest = directory.resolve(MANIFEST);
+        Path temp = directory.resolve(MANIFEST + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            BufferedWriter writer = new BufferedWriter(
+                    new OutputStreamWriter(Channels.newOutputStream(channel), StandardCharsets.UTF_8));
+            writer.write(SEQ_HEADER + seq);
+            writer.newLine();
+            writer.flush();
+            channel.force(true);
+        }
+        Files.move(temp, manifest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static TreeMap<Integer, Path> listSegments(Path directory) throws IOException {
+        TreeMap<Integer, Path> segments = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory,
+                SEGMENT_PREFIX + "*" + SEGMENT_EXTENSION)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                String id = name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_EXTENSION.length());
+                try {
+                    segments.put(Integer.parseInt(id), file);
+                } catch (NumberFormatException e) {
+                    logger.warning("Ignoring unknown file {} in checkpoint", file);
+                }
+            }
+        }
+        return segments;
+    }
+}
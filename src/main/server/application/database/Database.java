@@ -2,82 +2,347 @@ package main.server.application.database;
 
 import main.shared.models.WorkOrder;
 import main.shared.utils.tree.ItemFormatter;
-import main.shared.utils.tree.TreeAVL;
+import main.shared.utils.tree.IntTreeAVL;
 
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.StampedLock;
 
+/**
+ * Banco de ordens de serviço em memória, compartilhado por todas as conexões
+ * do servidor de aplicação.
+ *
+ * Concurrency model: writes are serialized behind the write lock of a
+ * {@link StampedLock}. SEARCH, which is most of the traffic, first walks the
+ * tree with an optimistic read and only takes the read lock if a write
+ * happened meanwhile, so searches never block each other. SHOW, STATS and the
+ * snapshot copies run under the read lock and see a consistent snapshot; the
+ * copy sent to a backup is read in chunks, one read lock each.
+ *
+ * The tree is an {@link IntTreeAVL}, keyed by the plain int code.
+ *
+ * Stored work orders are never modified: an update stores a new WorkOrder, so
+ * a work order returned by a search never changes under the caller.
+ *
+ * Each change gets the next sequence number and is passed to the
+ * {@link DatabaseListener}s, in order, before the write lock is released.
+ */
 public class Database {
-    private static final Object lock = new Object();
-    private TreeAVL<Integer, WorkOrder> database;
+    // An AVL tree with 2^31 nodes is less than 46 levels high
+    private static final int OPTIMISTIC_MAX_STEPS = 64;
+
+    private final StampedLock lock = new StampedLock();
+    private final List<DatabaseListener> listeners = new CopyOnWriteArrayList<>();
+    private IntTreeAVL<WorkOrder> database;
+    // Sequence number of the last change
+    private long sequence;
     // Formatador para WorkOrders
     private final ItemFormatter<WorkOrder> workOrderFormatter;
 
+    /**
+     * Estatísticas da árvore lidas de uma só vez
+     */
+    public static final class Stats {
+        private final int size;
+        private final int height;
+        private final int balanceCounter;
+
+        Stats(int size, int height, int balanceCounter) {
+            this.size = size;
+            this.height = height;
+            this.balanceCounter = balanceCounter;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public int getBalanceCounter() {
+            return balanceCounter;
+        }
+    }
+
+    /**
+     * Uma página do conteúdo e o total de ordens de serviço no mesmo instante
+     */
+    public static final class Page {
+        private final String content;
+        private final int total;
+
+        Page(String content, int total) {
+            this.content = content;
+            this.total = total;
+        }
+
+        public String getContent() {
+            return content;
+        }
+
+        public int getTotal() {
+            return total;
+        }
+    }
+
+    /**
+     * Ordens de serviço consecutivas, em ordem de código, e o número de
+     * sequência da última alteração quando foram lidas
+     */
+    public static final class Chunk {
+        private final int[] codes;
+        private final WorkOrder[] workOrders;
+        private final long seq;
+
+        Chunk(int[] codes, WorkOrder[] workOrders, long seq) {
+            this.codes = codes;
+            this.workOrders = workOrders;
+            this.seq = seq;
+        }
+
+        public int[] getCodes() {
+            return codes;
+        }
+
+        public WorkOrder[] getWorkOrders() {
+            return workOrders;
+        }
+
+        public int size() {
+            return codes.length;
+        }
+
+        public long getSeq() {
+            return seq;
+        }
+    }
+
     public Database() {
-        this.database = new TreeAVL<>();
+        this.database = new IntTreeAVL<>();
         this.workOrderFormatter = this::formatWorkOrder;
     }
 
-    public void addWorkOrder(int code, String name, String description) {
-        synchronized (lock) {
-            WorkOrder workOrder = new WorkOrder(code, name, description);
-            database.Insert(code, workOrder);
-        }
+    public boolean addWorkOrder(int code, String name, String description) {
+        return addWorkOrder(new WorkOrder(code, name, description));
     }
 
-    public void addWorkOrder(int code, String name, String description, String timestamp) {
-        synchronized (lock) {
-            WorkOrder workOrder = new WorkOrder(code, name, description, timestamp);
-            database.Insert(code, workOrder);
+    public boolean addWorkOrder(int code, String name, String description, String timestamp) {
+        return addWorkOrder(new WorkOrder(code, name, description, timestamp));
+    }
+
+    /**
+     * Add a work order unless its code is already taken
+     *
+     * @return false if a work order with the same code already exists
+     */
+    public boolean addWorkOrder(WorkOrder workOrder) {
+        long stamp = lock.writeLock();
+        try {
+            if (database.Search(workOrder.getCode()) != null) {
+                return false;
+            }
+            database.Insert(workOrder.getCode(), workOrder);
+            long seq = ++sequence;
+            for (DatabaseListener listener : listeners) {
+                listener.onAdd(seq, workOrder);
+            }
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
         }
     }
 
-    public void removeWorkOrder(int code) {
-        synchronized (lock) {
+    /**
+     * @return false if there was no work order with this code
+     */
+    public boolean removeWorkOrder(int code) {
+        long stamp = lock.writeLock();
+        try {
+            if (database.Search(code) == null) {
+                return false;
+            }
             database.Remove(code);
+            long seq = ++sequence;
+            for (DatabaseListener listener : listeners) {
+                listener.onRemove(seq, code);
+            }
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
         }
     }
 
-    public void updateWorkOrder(int code, String name, String description, String timestamp) {
-        synchronized (lock) {
-            WorkOrder temp = database.Search(code);
-            temp.setName(name);
-            temp.setDescription(description);
-            temp.setTimestamp(timestamp);
+    /**
+     * Replace the work order stored under this code
+     *
+     * @return false if there was no work order with this code
+     */
+    public boolean updateWorkOrder(int code, String name, String description, String timestamp) {
+        WorkOrder updated = new WorkOrder(code, name, description, timestamp);
+        long stamp = lock.writeLock();
+        try {
+            if (!database.Replace(code, updated)) {
+                return false;
+            }
+            long seq = ++sequence;
+            for (DatabaseListener listener : listeners) {
+                listener.onUpdate(seq, updated);
+            }
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
         }
-        // database.Insert(code, workOrder);
     }
 
     public WorkOrder searchWorkOrder(int code) {
-        synchronized (lock) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0L) {
+            try {
+                WorkOrder found = database.Search(code, OPTIMISTIC_MAX_STEPS);
+                if (lock.validate(stamp)) {
+                    return found;
+                }
+            } catch (RuntimeException e) {
+                // Tree changed under the walk, retry under the read lock
+            }
+        }
+
+        stamp = lock.readLock();
+        try {
             return database.Search(code);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Busca vários códigos numa leitura só, todos na mesma versão do banco
+     *
+     * @return os work orders na ordem dos códigos, null nos que não existem
+     */
+    public WorkOrder[] searchWorkOrders(int[] codes) {
+        WorkOrder[] found = new WorkOrder[codes.length];
+        long stamp = lock.readLock();
+        try {
+            for (int i = 0; i < codes.length; i++) {
+                found[i] = database.Search(codes[i]);
+            }
+            return found;
+        } finally {
+            lock.unlockRead(stamp);
         }
     }
 
     public void showDatabase() {
-        database.Show();
+        long stamp = lock.readLock();
+        try {
+            database.Show();
+        } finally {
+            lock.unlockRead(stamp);
+        }
     }
 
     public void showDatabaseReverse() {
-        database.ShowReverse();
+        long stamp = lock.readLock();
+        try {
+            database.ShowReverse();
+        } finally {
+            lock.unlockRead(stamp);
+        }
     }
 
     public int getTreeHeight() {
-        return database.getTreeHeight();
+        long stamp = lock.readLock();
+        try {
+            return database.getTreeHeight();
+        } finally {
+            lock.unlockRead(stamp);
+        }
     }
 
     public int getSize() {
-        return database.getSize();
+        long stamp = lock.readLock();
+        try {
+            return database.getSize();
+        } finally {
+            lock.unlockRead(stamp);
+        }
     }
 
     public int getBalanceCounter() {
-        return database.getBalanceCounter();
+        long stamp = lock.readLock();
+        try {
+            return database.getBalanceCounter();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public void addListener(DatabaseListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(DatabaseListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Sequence number of the last change
+     */
+    public long getSequence() {
+        long stamp = lock.tryOptimisticRead();
+        long seq = sequence;
+        if (stamp != 0L && lock.validate(stamp)) {
+            return seq;
+        }
+
+        stamp = lock.readLock();
+        try {
+            return sequence;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Set the sequence number of the last change, when the content is
+     * restored from disk or from another server
+     */
+    public void restoreSequence(long seq) {
+        long stamp = lock.writeLock();
+        try {
+            sequence = seq;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Size, height and balance counter taken from the same state of the tree
+     */
+    public Stats getStats() {
+        long stamp = lock.readLock();
+        try {
+            return new Stats(database.getSize(), database.getTreeHeight(), database.getBalanceCounter());
+        } finally {
+            lock.unlockRead(stamp);
+        }
     }
 
     /**
      * Retorna o conteúdo do banco de dados como uma string formatada
      */
     public String getDatabaseContent() {
-        return database.getFormattedContent(workOrderFormatter);
+        long stamp = lock.readLock();
+        try {
+            return database.getFormattedContent(workOrderFormatter);
+        } finally {
+            lock.unlockRead(stamp);
+        }
     }
 
     /**
@@ -85,7 +350,31 @@ public class Database {
      * formatada
      */
     public String getDatabaseContentReverse() {
-        return database.getFormattedContentReverse(workOrderFormatter);
+        long stamp = lock.readLock();
+        try {
+            return database.getFormattedContentReverse(workOrderFormatter);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Retorna uma página do conteúdo do banco de dados, em ordem ou em ordem
+     * reversa. O custo é O(log n + limit) com o read lock.
+     *
+     * @param offset posição da primeira ordem de serviço da página
+     * @param limit  número máximo de ordens de serviço
+     */
+    public Page getDatabaseContent(int offset, int limit, boolean reverse) {
+        long stamp = lock.readLock();
+        try {
+            String content = reverse
+                    ? database.getFormattedContentReverse(workOrderFormatter, offset, limit)
+                    : database.getFormattedContent(workOrderFormatter, offset, limit);
+            return new Page(content, database.getSize());
+        } finally {
+            lock.unlockRead(stamp);
+        }
     }
 
     /**
@@ -100,31 +389,114 @@ public class Database {
      * Clear the database
      */
     public void clearDatabase() {
-        synchronized (lock) {
-            database = new TreeAVL<>();
+        long stamp = lock.writeLock();
+        try {
+            database = new IntTreeAVL<>();
+            long seq = ++sequence;
+            for (DatabaseListener listener : listeners) {
+                listener.onClear(seq);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
         }
     }
 
     /**
      * Copy database contents to a map (for replication)
+     *
+     * @return sequence number of the last change included in the copy
      */
-    public void copyToMap(Map<Integer, WorkOrder> targetMap) {
-        synchronized (lock) {
+    public long copyToMap(Map<Integer, WorkOrder> targetMap) {
+        long stamp = lock.readLock();
+        try {
             database.populateMap(targetMap);
+            return sequence;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Read up to max work orders with code >= fromCode, in order, under the
+     * read lock for just this chunk (for replication). The writes between
+     * two chunks are not held up, so consecutive chunks may come from
+     * different states.
+     */
+    public Chunk readChunk(int fromCode, int max) {
+        int[] codes = new int[max];
+        WorkOrder[] workOrders = new WorkOrder[max];
+        long seq;
+        int count;
+        long stamp = lock.readLock();
+        try {
+            count = database.copyFrom(fromCode, codes, workOrders);
+            seq = sequence;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        if (count < max) {
+            codes = Arrays.copyOf(codes, count);
+            workOrders = Arrays.copyOf(workOrders, count);
+        }
+        return new Chunk(codes, workOrders, seq);
+    }
+
+    /**
+     * Replace the content with work orders already sorted by code, received
+     * from the primary. The tree is built in O(n) before the write lock, so
+     * readers never see it half filled.
+     */
+    public void replaceSorted(int[] codes, WorkOrder[] workOrders, int count) {
+        replaceContent(IntTreeAVL.buildFromSorted(codes, workOrders, count), workOrders, count);
+    }
+
+    /**
+     * Replace the content with work orders already sorted by code, building
+     * the tree in O(n). Used to load a snapshot, before any listener is added.
+     *
+     * @param seq sequence number of the last change in the loaded content
+     */
+    public void loadSorted(int[] codes, WorkOrder[] workOrders, int count, long seq) {
+        IntTreeAVL<WorkOrder> loaded = IntTreeAVL.buildFromSorted(codes, workOrders, count);
+
+        long stamp = lock.writeLock();
+        try {
+            if (!listeners.isEmpty()) {
+                throw new IllegalStateException("Snapshot loaded after listeners were added");
+            }
+            database = loaded;
+            sequence = seq;
+        } finally {
+            lock.unlockWrite(stamp);
         }
     }
 
     /**
-     * Sync database from a map (for replication)
+     * @param workOrders the same work orders as the tree, in order, so the
+     *                   listeners hear of them without another copy
      */
-    public void syncFromMap(Map<Integer, WorkOrder> sourceMap) {
-        // Clear existing database
-        clearDatabase();
-        // Synchronize the database with the provided map
+    private void replaceContent(IntTreeAVL<WorkOrder> content, WorkOrder[] workOrders, int count) {
+        long stamp = lock.writeLock();
+        try {
+            database = content;
 
-        // Add all work orders from the map
-        for (WorkOrder order : sourceMap.values()) {
-            addWorkOrder(order.getCode(), order.getName(), order.getDescription(), order.getTimestamp());
+            // Replaced content is a clear followed by one add per work order
+            if (listeners.isEmpty()) {
+                sequence += 1 + count;
+                return;
+            }
+            long seq = ++sequence;
+            for (DatabaseListener listener : listeners) {
+                listener.onClear(seq);
+            }
+            for (int i = 0; i < count; i++) {
+                seq = ++sequence;
+                for (DatabaseListener listener : listeners) {
+                    listener.onAdd(seq, workOrders[i]);
+                }
+            }
+        } finally {
+            lock.unlockWrite(stamp);
         }
     }
-}
\ No newline at end of file
+}
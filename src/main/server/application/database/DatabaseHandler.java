@@ -3,11 +3,15 @@ package main.server.application.database;
 //
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import main.shared.log.Logger;
 import main.shared.models.WorkOrder;
@@ -15,15 +19,34 @@ import main.shared.models.WorkOrder;
 /**
  * Gerencia a persistência da base de dados de ordens de trabalho.
  * Responsável por salvar e carregar os dados da base em diversos formatos.
+ *
+ * A snapshot holds the whole database and the sequence number of the last
+ * change in it. With {@link #openWriteAheadLog()} every later change also goes
+ * to the write-ahead log, and at startup the log is replayed on top of the
+ * snapshot. With checkpoints on, the base is the checkpoint directory instead,
+ * kept up to date in the background by a {@link Checkpointer}. The load takes
+ * whichever of the two has the newer sequence number.
  */
 public class DatabaseHandler {
     private static final Logger logger = Logger.getLogger();
     private static final String DB_DIR = "database";
     private static final String DEFAULT_DB_FILE = "work_orders";
 
+    private static final String WAL_EXTENSION = ".wal";
+    private static final String CHECKPOINT_DIR = "checkpoint";
+    private static final String SEQ_HEADER = "#seq=";
+
     private final Database database;
-    private final String dbFilePath;
+    private String dbFilePath;
     private FileFormat fileFormat;
+    // Sequence number of the last change in the snapshot on disk
+    private long snapshotSeq;
+    // The content came from the checkpoint directory, not from a snapshot file
+    private boolean loadedFromCheckpoint;
+    // Nothing on disk may be replaced by what is in memory
+    private boolean loadFailed;
+    private WriteAheadLog writeAheadLog;
+    private Checkpointer checkpointer;
 
     /**
      * Formato do arquivo de base de dados
@@ -31,7 +54,9 @@ public class DatabaseHandler {
     public enum FileFormat {
         BINARY(".bin"),
         JSON(".json"),
-        TEXT(".txt");
+        TEXT(".txt"),
+        // Snapshot ordenado com índice, lido por memory-mapping (MappedSnapshot)
+        MAPPED(".snap");
 
         private final String extension;
 
@@ -76,7 +101,7 @@ public class DatabaseHandler {
             }
         }
 
-        this.dbFilePath = DB_DIR + "/" + DEFAULT_DB_FILE + fileFormat.getExtension();
+        this.dbFilePath = pathFor(fileFormat);
 
         // Carrega base de dados do arquivo se existir
         loadDatabase();
@@ -87,15 +112,8 @@ public class DatabaseHandler {
      */
     public synchronized void saveDatabase() {
         try {
-            switch (fileFormat) {
-                case BINARY:
-                    saveDatabaseBinary();
-                    break;
-                case TEXT:
-                    saveDatabaseText();
-                    break;
-            }
-            logger.info("Base de dados salva com sucesso em {}", dbFilePath);
+            writeSnapshot();
+            logger.info("Base de dados salva com sucesso em {} (seq {})", dbFilePath, snapshotSeq);
         } catch (Exception e) {
             logger.error("Erro ao salvar base de dados: {}", e.getMessage());
         }
@@ -105,70 +123,289 @@ public class DatabaseHandler {
      * Carrega a base de dados do arquivo
      */
     public synchronized void loadDatabase() {
+        loadedFromCheckpoint = false;
+        loadFailed = false;
+        FileFormat format = fileFormat;
         File dbFile = new File(dbFilePath);
         if (!dbFile.exists()) {
-            logger.info("Arquivo de banco de dados não encontrado. Iniciando com base vazia.");
-            return;
+            // Formato trocado: usa o snapshot mais recente de outro formato, o
+            // próximo snapshot já é gravado no formato novo
+            dbFile = null;
+            for (FileFormat other : FileFormat.values()) {
+                File candidate = new File(pathFor(other));
+                if (candidate.exists() && (dbFile == null || candidate.lastModified() > dbFile.lastModified())) {
+                    dbFile = candidate;
+                    format = other;
+                }
+            }
         }
 
         try {
-            switch (fileFormat) {
+            long start = System.nanoTime();
+            Path checkpointDir = Paths.get(DB_DIR, CHECKPOINT_DIR);
+            long checkpointSeq = Checkpointer.readCheckpointSeq(checkpointDir);
+            if (checkpointSeq >= 0 && (dbFile == null || checkpointSeq >= peekSeq(dbFile, format))) {
+                snapshotSeq = Checkpointer.load(checkpointDir, database, Runtime.getRuntime().availableProcessors());
+                loadedFromCheckpoint = true;
+                logger.info("Base de dados carregada do checkpoint {} (seq {}, {} registros, {} ms)", checkpointDir,
+                        snapshotSeq, database.getSize(), (System.nanoTime() - start) / 1000000);
+                return;
+            }
+            if (dbFile == null) {
+                logger.info("Arquivo de banco de dados não encontrado. Iniciando com base vazia.");
+                return;
+            }
+
+            switch (format) {
                 case BINARY:
-                    loadDatabaseBinary();
+                    loadDatabaseBinary(dbFile);
                     break;
                 case TEXT:
-                    loadDatabaseText();
+                    loadDatabaseText(dbFile);
+                    break;
+                case MAPPED:
+                    loadDatabaseMapped(dbFile);
                     break;
+                default:
+                    throw new IOException("Formato não suportado: " + format);
             }
-            logger.info("Base de dados carregada com sucesso de {}", dbFilePath);
+            logger.info("Base de dados carregada com sucesso de {} (seq {}, {} registros, {} ms)", dbFile,
+                    snapshotSeq, database.getSize(), (System.nanoTime() - start) / 1000000);
         } catch (Exception e) {
+            loadFailed = true;
             logger.error("Erro ao carregar base de dados: {}", e.getMessage());
         }
     }
 
     /**
-     * Salva a base de dados em formato binário
+     * Sequence number of a snapshot file, without loading it
      */
-    private void saveDatabaseBinary() throws IOException {
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(dbFilePath))) {
-            // Extrai todos os WorkOrders da árvore
-            List<WorkOrder> workOrders = extractAllWorkOrders();
+    private long peekSeq(File file, FileFormat format) throws IOException {
+        switch (format) {
+            case BINARY:
+                try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file))) {
+                    return ois.readLong();
+                }
+            case TEXT:
+                try (BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+                    String line = reader.readLine();
+                    return line != null && line.startsWith(SEQ_HEADER)
+                            ? Long.parseLong(line.substring(SEQ_HEADER.length()).trim())
+                            : 0;
+                }
+            case MAPPED:
+                return MappedSnapshot.readSeq(file.toPath());
+            default:
+                throw new IOException("Formato não suportado: " + format);
+        }
+    }
+
+    public synchronized WriteAheadLog openWriteAheadLog() throws IOException {
+        return openWriteAheadLog(0);
+    }
 
+    /**
+     * Replay the write-ahead log on top of the loaded base and log every
+     * change from now on.
+     *
+     * Without checkpoints, replayed changes are folded into a new snapshot so
+     * the log starts empty. With checkpoints, a checkpoint runs every
+     * checkpointIntervalMillis and cuts the log, starting right away with the
+     * replayed changes.
+     *
+     * @return the open log, requests wait on it before answering
+     */
+    public synchronized WriteAheadLog openWriteAheadLog(long checkpointIntervalMillis) throws IOException {
+        if (writeAheadLog != null) {
+            return writeAheadLog;
+        }
+        if (loadFailed) {
+            // Replaying on top of a partial base would then overwrite the files on disk
+            throw new IOException("Database was not loaded, not opening the write-ahead log");
+        }
+
+        Checkpointer checkpoints = null;
+        if (checkpointIntervalMillis > 0) {
+            checkpoints = new Checkpointer(database, Paths.get(DB_DIR, CHECKPOINT_DIR), checkpointIntervalMillis);
+            if (!loadedFromCheckpoint) {
+                // The checkpoint on disk is older than what was loaded, write it all again
+                checkpoints.rebuildAll();
+            }
+            // Added before the replay, so the replayed changes go to the first checkpoint
+            database.addListener(checkpoints);
+        }
+
+        WriteAheadLog wal = new WriteAheadLog(Paths.get(DB_DIR, DEFAULT_DB_FILE + WAL_EXTENSION));
+        long lastSeq = wal.recover(database, snapshotSeq);
+        if (checkpoints == null && lastSeq > snapshotSeq) {
+            try {
+                writeSnapshot();
+                wal.reset(snapshotSeq);
+            } catch (IOException e) {
+                // The log still has everything, it is replayed again next time
+                logger.error("Erro ao salvar base de dados recuperada: {}", e.getMessage());
+            }
+        }
+
+        database.addListener(wal);
+        wal.start();
+        writeAheadLog = wal;
+        if (checkpoints != null) {
+            checkpoints.start(wal);
+            checkpointer = checkpoints;
+        }
+        return wal;
+    }
+
+    /**
+     * @return null if checkpoints are off
+     */
+    public synchronized Checkpointer getCheckpointer() {
+        return checkpointer;
+    }
+
+    public synchronized WriteAheadLog getWriteAheadLog() {
+        return writeAheadLog;
+    }
+
+    /**
+     * Diretório dos arquivos do banco, para outros arquivos que acompanham o
+     * conteúdo dele
+     */
+    public Path getDirectory() {
+        return Paths.get(DB_DIR);
+    }
+
+    /**
+     * Faz um último checkpoint, grava o que estiver pendente no log e o fecha
+     */
+    public synchronized void close() {
+        if (checkpointer != null) {
+            try {
+                checkpointer.close();
+            } catch (IOException e) {
+                logger.error("Erro no último checkpoint: {}", e.getMessage());
+            }
+            database.removeListener(checkpointer);
+            checkpointer = null;
+        }
+        if (writeAheadLog == null) {
+            return;
+        }
+        database.removeListener(writeAheadLog);
+        try {
+            writeAheadLog.close();
+        } catch (IOException e) {
+            logger.error("Erro ao fechar o write-ahead log: {}", e.getMessage());
+        }
+        writeAheadLog = null;
+    }
+
+    /**
+     * Grava um snapshot consistente em um arquivo temporário e o troca pelo
+     * arquivo atual, para que uma falha no meio não deixe um snapshot parcial
+     */
+    private void writeSnapshot() throws IOException {
+        Map<Integer, WorkOrder> content = new LinkedHashMap<>();
+        long seq = database.copyToMap(content);
+        List<WorkOrder> workOrders = new ArrayList<>(content.values());
+
+        Path target = Paths.get(dbFilePath);
+        Path temp = Paths.get(dbFilePath + ".tmp");
+        switch (fileFormat) {
+            case BINARY:
+                saveDatabaseBinary(temp, workOrders, seq);
+                break;
+            case TEXT:
+                saveDatabaseText(temp, workOrders, seq);
+                break;
+            case MAPPED:
+                MappedSnapshot.write(temp, workOrders, seq);
+                break;
+            default:
+                throw new IOException("Formato não suportado: " + fileFormat);
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        snapshotSeq = seq;
+    }
+
+    /**
+     * Salva a base de dados em formato binário
+     */
+    private void saveDatabaseBinary(Path file, List<WorkOrder> workOrders, long seq) throws IOException {
+        try (FileOutputStream fos = new FileOutputStream(file.toFile());
+                ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(fos))) {
+            oos.writeLong(seq);
             // Salva a lista de WorkOrders
             oos.writeObject(workOrders.toArray(new WorkOrder[0]));
+            oos.flush();
+            fos.getFD().sync();
         }
     }
 
     /**
      * Carrega a base de dados do formato binário
      */
-    private void loadDatabaseBinary() throws IOException, ClassNotFoundException {
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(dbFilePath))) {
+    private void loadDatabaseBinary(File file) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            long seq = ois.readLong();
             WorkOrder[] workOrders = (WorkOrder[]) ois.readObject();
 
-            // Limpa a base de dados existente
-            clearDatabase();
-
-            // Adiciona os itens carregados
+            List<WorkOrder> loaded = new ArrayList<>(workOrders.length);
             for (WorkOrder workOrder : workOrders) {
                 if (workOrder != null) {
-                    database.addWorkOrder(
-                            workOrder.getCode(),
-                            workOrder.getName(),
-                            workOrder.getDescription(),
-                            workOrder.getTimestamp());
+                    loaded.add(workOrder);
                 }
             }
+            bulkLoad(loaded, seq);
+        }
+    }
+
+    /**
+     * Carrega o snapshot mapeado em memória, decodificado em paralelo
+     */
+    private void loadDatabaseMapped(File file) throws IOException {
+        MappedSnapshot.Content content = MappedSnapshot.read(file.toPath(),
+                Runtime.getRuntime().availableProcessors());
+        database.loadSorted(content.getCodes(), content.getWorkOrders(), content.size(), content.getSeq());
+        snapshotSeq = content.getSeq();
+    }
+
+    /**
+     * Ordena por código e monta a árvore de uma vez, em vez de inserir um
+     * registro por vez. Códigos repetidos ficam com o primeiro, como no
+     * addWorkOrder.
+     */
+    private void bulkLoad(List<WorkOrder> workOrders, long seq) {
+        // Stable sort keeps the first of repeated codes first
+        workOrders.sort((a, b) -> Integer.compare(a.getCode(), b.getCode()));
+
+        int[] codes = new int[workOrders.size()];
+        WorkOrder[] sorted = new WorkOrder[workOrders.size()];
+        int count = 0;
+        for (WorkOrder workOrder : workOrders) {
+            if (count > 0 && codes[count - 1] == workOrder.getCode()) {
+                continue;
+            }
+            codes[count] = workOrder.getCode();
+            sorted[count] = workOrder;
+            count++;
         }
+
+        database.loadSorted(codes, sorted, count, seq);
+        snapshotSeq = seq;
     }
 
     /**
-     * Salva a base de dados em formato de texto simples
+     * Salva a base de dados em formato de texto simples. A primeira linha
+     * guarda o seq do snapshot.
      */
-    private void saveDatabaseText() throws IOException {
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(dbFilePath))) {
-            // Extrai todos os WorkOrders da árvore
-            List<WorkOrder> workOrders = extractAllWorkOrders();
+    private void saveDatabaseText(Path file, List<WorkOrder> workOrders, long seq) throws IOException {
+        try (FileOutputStream fos = new FileOutputStream(file.toFile());
+                BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(fos, StandardCharsets.UTF_8))) {
+            writer.write(SEQ_HEADER + seq);
+            writer.newLine();
 
             for (WorkOrder workOrder : workOrders) {
                 writer.write(workOrder.getCode() + "|" +
@@ -177,19 +414,27 @@ public class DatabaseHandler {
                         (workOrder.getTimestamp() != null ? workOrder.getTimestamp() : ""));
                 writer.newLine();
             }
+            writer.flush();
+            fos.getFD().sync();
         }
     }
 
     /**
      * Carrega a base de dados do formato de texto simples
      */
-    private void loadDatabaseText() throws IOException {
-        try (BufferedReader reader = new BufferedReader(new FileReader(dbFilePath))) {
-            // Limpa a base de dados existente
-            clearDatabase();
+    private void loadDatabaseText(File file) throws IOException {
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            List<WorkOrder> loaded = new ArrayList<>();
+            long seq = 0;
 
             String line;
             while ((line = reader.readLine()) != null) {
+                // Arquivos antigos não têm o cabeçalho, seq fica 0
+                if (line.startsWith(SEQ_HEADER)) {
+                    seq = Long.parseLong(line.substring(SEQ_HEADER.length()).trim());
+                    continue;
+                }
                 String[] parts = line.split("\\|", 4);
                 if (parts.length >= 3) {
                     int code = Integer.parseInt(parts[0]);
@@ -197,65 +442,10 @@ public class DatabaseHandler {
                     String description = parts[2];
                     String timestamp = parts.length > 3 ? parts[3] : "";
 
-                    database.addWorkOrder(code, name, description, timestamp);
+                    loaded.add(new WorkOrder(code, name, description, timestamp));
                 }
             }
-        }
-    }
-
-    /**
-     * Extrai todos os WorkOrders da base de dados para uma lista
-     * 
-     * @return Lista com todos os WorkOrders da base de dados
-     */
-    private List<WorkOrder> extractAllWorkOrders() {
-        List<WorkOrder> workOrders = new ArrayList<>();
-
-        // Implementação de extração de todos os WorkOrders da árvore AVL
-        // Precisamos implementar uma forma de percorrer a árvore e extrair todos os
-        // objetos
-
-        // Uma abordagem é acrescentar um método na classe Database que retorne todos os
-        // WorkOrders
-        // Outra abordagem seria adicionar um visitor pattern na TreeAVL
-
-        // Implementação temporária usando os códigos e buscas individuais
-        // Isso não é eficiente para árvores grandes, mas funciona para o exemplo
-        int size = database.getSize();
-
-        // Aqui teríamos que percorrer a árvore
-        // Como não temos acesso direto à estrutura interna da árvore, precisaríamos
-        // adicionar um método na classe Database para listar todas as ordens de
-        // trabalho
-
-        // Exemplo de implementação para adicionar ao Database.java:
-        // public List<WorkOrder> getAllWorkOrders() {
-        // List<WorkOrder> result = new ArrayList<>();
-        // database.traverseInOrder((key, value) -> result.add(value));
-        // return result;
-        // }
-
-        // E então chamaríamos:
-        // return database.getAllWorkOrders();
-
-        return workOrders;
-    }
-
-    /**
-     * Limpa todos os dados da base de dados
-     */
-    private void clearDatabase() {
-        // Idealmente adicionaríamos um método no Database para limpar todos os dados
-        // Algo como database.clear();
-
-        // Como alternativa, poderíamos usar reflection para acessar o campo database
-        // e substituí-lo por uma nova árvore AVL vazia
-        try {
-            java.lang.reflect.Field field = Database.class.getDeclaredField("database");
-            field.setAccessible(true);
-            field.set(database, new main.shared.utils.tree.TreeAVL<>());
-        } catch (Exception e) {
-            logger.error("Erro ao limpar base de dados: {}", e.getMessage());
+            bulkLoad(loaded, seq);
         }
     }
 
@@ -264,7 +454,12 @@ public class DatabaseHandler {
      * 
      * @param format O formato desejado
      */
-    public void setFileFormat(FileFormat format) {
+    public synchronized void setFileFormat(FileFormat format) {
         this.fileFormat = format;
+        this.dbFilePath = pathFor(format);
+    }
+
+    private static String pathFor(FileFormat format) {
+        return DB_DIR + "/" + DEFAULT_DB_FILE + format.getExtension();
     }
 }
\ No newline at end of file
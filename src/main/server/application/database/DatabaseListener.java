@@ -0,0 +1,23 @@
+package main.server.application.database;
+
+import main.shared.models.WorkOrder;
+
+/**
+ * Recebe as alterações do {@link Database} na ordem em que foram aplicadas.
+ *
+ * Every change gets the next sequence number of the database. The callbacks
+ * run while the database write lock is held, so they must be quick and must
+ * not call back into the database.
+ */
+public interface DatabaseListener {
+    void onAdd(long seq, WorkOrder workOrder);
+
+    void onUpdate(long seq, WorkOrder workOrder);
+
+    void onRemove(long seq, int code);
+
+    /**
+     * The whole content was dropped, the adds that rebuild it follow
+     */
+    void onClear(long seq);
+}
@@ -0,0 +1,296 @@
+package main.server.application.database;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import main.shared.models.WorkOrder;
+
+/**
+ * Snapshot binário da base, lido com memory-mapping e decodificado em
+ * paralelo.
+ *
+ * Layout (big endian):
+ * <pre>
+ * header  magic "CFWS" | version | seq (long) | count | reserved | index offset (long)
+ * records code | name | description | timestamp   (strings: length + UTF-8, -1 is null)
+ * index   count x (code, record offset (long)), sorted by code
+ * </pre>
+ * Records are written in code order. The index lets the loader split the
+ * file in equal slices and decode them on all cores at once, each slice from
+ * its own mapping of the file. The sorted codes then build the tree in O(n).
+ */
+public final class MappedSnapshot {
+    private static final int MAGIC = 0x43465753; // "CFWS"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int INDEX_ENTRY_SIZE = 12;
+    // Slices per thread, so one slow slice does not hold up the load
+    private static final int SLICES_PER_THREAD = 4;
+
+    /**
+     * Conteúdo decodificado de um snapshot, ordenado por código
+     */
+    public static final class Content {
+        private final long seq;
+        private final int[] codes;
+        private final WorkOrder[] workOrders;
+
+        Content(long seq, int[] codes, WorkOrder[] workOrders) {
+            this.seq = seq;
+            this.codes = codes;
+            this.workOrders = workOrders;
+        }
+
+        public long getSeq() {
+            return seq;
+        }
+
+        public int[] getCodes() {
+            return codes;
+        }
+
+        public WorkOrder[] getWorkOrders() {
+            return workOrders;
+        }
+
+        public int size() {
+            return codes.length;
+        }
+    }
+
+    private MappedSnapshot() {
+    }
+
+    /**
+     * Write work orders sorted by code
+     */
+    public static void write(Path file, List<WorkOrder> workOrders, long seq) throws IOException {
+        int count = workOrders.size();
+        long[] offsets = new long[count];
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            channel.position(HEADER_SIZE);
+            // The channel is closed by the outer try, not by this stream
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+
+            long position = HEADER_SIZE;
+            int previous = Integer.MIN_VALUE;
+            for (int i = 0; i < count; i++) {
+                WorkOrder workOrder = workOrders.get(i);
+                if (i > 0 && workOrder.getCode() <= previous) {
+                    throw new IOException("Work orders not sorted by code at index " + i);
+                }
+                previous = workOrder.getCode();
+
+                offsets[i] = position;
+                out.writeInt(workOrder.getCode());
+                position += 4;
+                position += writeString(out, workOrder.getName());
+                position += writeString(out, workOrder.getDescription());
+                position += writeString(out, workOrder.getTimestamp());
+            }
+
+            long indexOffset = position;
+            for (int i = 0; i < count; i++) {
+                out.writeInt(workOrders.get(i).getCode());
+                out.writeLong(offsets[i]);
+            }
+            out.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putLong(seq).putInt(count).putInt(0).putLong(indexOffset);
+            header.flip();
+            channel.position(0);
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Map the snapshot and decode it with one task per slice of the index
+     */
+    public static Content read(Path file, int threads) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            if (fileSize < HEADER_SIZE) {
+                throw new IOException("Snapshot too small: " + fileSize + " bytes");
+            }
+
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE).order(ByteOrder.BIG_ENDIAN);
+            if (header.getInt() != MAGIC) {
+                throw new IOException("Not a work order snapshot: " + file);
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported snapshot version " + version);
+            }
+            long seq = header.getLong();
+            int count = header.getInt();
+            header.getInt();
+            long indexOffset = header.getLong();
+            if (count < 0 || indexOffset + (long) count * INDEX_ENTRY_SIZE > fileSize) {
+                throw new IOException("Corrupted snapshot header in " + file);
+            }
+
+            int[] codes = new int[count];
+            long[] offsets = new long[count + 1];
+            MappedByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, indexOffset,
+                    (long) count * INDEX_ENTRY_SIZE);
+            for (int i = 0; i < count; i++) {
+                codes[i] = index.getInt();
+                offsets[i] = index.getLong();
+            }
+            offsets[count] = indexOffset;
+
+            WorkOrder[] workOrders = new WorkOrder[count];
+            decode(channel, codes, offsets, workOrders, Math.max(1, threads));
+            return new Content(seq, codes, workOrders);
+        }
+    }
+
+    /**
+     * Sequence number in the header, without reading the records
+     */
+    public static long readSeq(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // read the whole header
+            }
+            header.flip();
+            if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC) {
+                throw new IOException("Not a work order snapshot: " + file);
+            }
+            header.getInt();
+            return header.getLong();
+        }
+    }
+
+    private static void decode(FileChannel channel, int[] codes, long[] offsets, WorkOrder[] workOrders,
+            int threads) throws IOException {
+        int count = codes.length;
+        if (count == 0) {
+            return;
+        }
+
+        int slices = Math.min(count, threads == 1 ? 1 : threads * SLICES_PER_THREAD);
+        List<int[]> ranges = new ArrayList<>();
+        for (int s = 0; s < slices; s++) {
+            int from = (int) ((long) count * s / slices);
+            int to = (int) ((long) count * (s + 1) / slices);
+            splitRange(offsets, from, to, ranges);
+        }
+
+        if (threads == 1) {
+            for (int[] range : ranges) {
+                decodeRange(channel, codes, offsets, workOrders, range[0], range[1]);
+            }
+            return;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "snapshot-decoder");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int[] range : ranges) {
+                futures.add(pool.submit(() -> {
+                    decodeRange(channel, codes, offsets, workOrders, range[0], range[1]);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted loading snapshot");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Error decoding snapshot", cause);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // A mapping is limited to 2GB, split slices that would be larger
+    private static void splitRange(long[] offsets, int from, int to, List<int[]> ranges) {
+        if (to - from > 1 && offsets[to] - offsets[from] > Integer.MAX_VALUE) {
+            int mid = (from + to) >>> 1;
+            splitRange(offsets, from, mid, ranges);
+            splitRange(offsets, mid, to, ranges);
+        } else if (to > from) {
+            ranges.add(new int[] { from, to });
+        }
+    }
+
+    private static void decodeRange(FileChannel channel, int[] codes, long[] offsets, WorkOrder[] workOrders,
+            int from, int to) throws IOException {
+        long start = offsets[from];
+        long length = offsets[to] - start;
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+        byte[] scratch = new byte[256];
+
+        for (int i = from; i < to; i++) {
+            int code = buffer.getInt();
+            if (code != codes[i] || (i > 0 && codes[i - 1] >= code)) {
+                throw new IOException("Snapshot index does not match record " + i);
+            }
+            String name = readString(buffer, scratch);
+            String description = readString(buffer, scratch);
+            String timestamp = readString(buffer, scratch);
+            workOrders[i] = new WorkOrder(code, name, description, timestamp);
+        }
+    }
+
+    /**
+     * @return bytes written
+     */
+    private static int writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return 4;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        return 4 + bytes.length;
+    }
+
+    private static String readString(ByteBuffer buffer, byte[] scratch) throws IOException {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > buffer.remaining()) {
+            throw new IOException("String of " + length + " bytes past the end of the record");
+        }
+        byte[] bytes = length <= scratch.length ? scratch : new byte[length];
+        buffer.get(bytes, 0, length);
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,557 @@
+package main.server.application.database;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import main.shared.log.Logger;
+import main.shared.models.WorkOrder;
+
+/**
+ * Log de escrita antecipada (write-ahead log) das alterações do Database.
+ *
+ * Every ADD, UPDATE, REMOVE and CLEAR is appended to the log as the database
+ * applies it, tagged with its sequence number. A single writer thread turns
+ * the appends into group commits: everything that arrived while the previous
+ * fsync ran is written with one write and made durable with one fsync.
+ * "cfwos.wal.groupCommitMillis" (default 0) is an extra latency budget to
+ * hold a batch open for more changes, which only pays off when fsync is
+ * cheap compared to the arrival rate. Requests that changed the database
+ * answer the client from {@link #whenDurable}, so a response means the change
+ * survives a crash, and concurrent writers share the fsyncs.
+ *
+ * Records are [length][crc32][seq][op][fields]. Recovery replays the valid
+ * records after the sequence number of the last snapshot and drops a torn
+ * record left at the end by a crash. Once a checkpoint holds the older
+ * records, {@link #truncate(long)} drops them from the start of the log.
+ */
+public class WriteAheadLog implements DatabaseListener, Closeable {
+    private static final Logger logger = Logger.getLogger();
+    private static final String GROUP_COMMIT_PROPERTY = "cfwos.wal.groupCommitMillis";
+    private static final long DEFAULT_GROUP_COMMIT_MS = 0;
+    // Write right away once this much is waiting, instead of waiting for the budget
+    private static final int MAX_BATCH_BYTES = 1 << 20;
+    private static final int MAX_RECORD_BYTES = 16 * 1024 * 1024;
+
+    private static final byte OP_ADD = 1;
+    private static final byte OP_UPDATE = 2;
+    private static final byte OP_REMOVE = 3;
+    private static final byte OP_CLEAR = 4;
+
+    /**
+     * Chamado quando as alterações aguardadas estão no disco, ou com
+     * durable=false se não foi possível gravá-las
+     */
+    public interface DurabilityCallback {
+        void onDurable(boolean durable);
+    }
+
+    private static final class Waiter {
+        final long seq;
+        final DurabilityCallback callback;
+
+        Waiter(long seq, DurabilityCallback callback) {
+            this.seq = seq;
+            this.callback = callback;
+        }
+    }
+
+    private final Path path;
+    private final long groupCommitMillis;
+    private final Thread writer;
+
+    // Guarded by fileLock, the group commit only waits for it while the log is truncated
+    private final Object fileLock = new Object();
+    private FileChannel channel;
+    // (last seq, end offset) of each batch written, to know where the log can be cut
+    private final ArrayDeque<long[]> batchEnds = new ArrayDeque<>();
+
+    // Guarded by this
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private ByteArrayOutputStream writing = new ByteArrayOutputStream();
+    private final List<Waiter> waiters = new ArrayList<>();
+    private long appendedSeq;
+    private long durableSeq;
+    private boolean closed;
+    private IOException failure;
+
+    // Per record scratch buffers, used under the database write lock
+    private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(256);
+    private final DataOutputStream record = new DataOutputStream(recordBytes);
+    private final CRC32 crc = new CRC32();
+
+    public WriteAheadLog(Path path) throws IOException {
+        this(path, Long.getLong(GROUP_COMMIT_PROPERTY, DEFAULT_GROUP_COMMIT_MS));
+    }
+
+    public WriteAheadLog(Path path, long groupCommitMillis) throws IOException {
+        this.path = path;
+        this.groupCommitMillis = Math.max(0, groupCommitMillis);
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        this.writer = new Thread(this::writeLoop, "wal-group-commit");
+        this.writer.setDaemon(true);
+    }
+
+    /**
+     * Replay the log on top of a snapshot and get ready to append after it.
+     * Must run before the log is added as a listener of the database.
+     *
+     * @param afterSeq sequence number of the snapshot, older records are skipped
+     * @return sequence number of the last change in the database
+     */
+    public synchronized long recover(Database database, long afterSeq) throws IOException {
+        long lastSeq = afterSeq;
+        long validEnd = 0;
+        int replayed = 0;
+
+        channel.position(0);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+        while (true) {
+            int length;
+            try {
+                length = in.readInt();
+            } catch (EOFException e) {
+                break;
+            }
+            if (length <= 0 || length > MAX_RECORD_BYTES) {
+                logger.warning("Invalid record length {} in {} at {}, ignoring the rest", length, path, validEnd);
+                break;
+            }
+
+            byte[] body = new byte[length];
+            int expectedCrc;
+            try {
+                expectedCrc = in.readInt();
+                in.readFully(body);
+            } catch (EOFException e) {
+                logger.warning("Torn record at the end of {} at {}, ignoring it", path, validEnd);
+                break;
+            }
+            crc.reset();
+            crc.update(body, 0, body.length);
+            if ((int) crc.getValue() != expectedCrc) {
+                logger.warning("Checksum mismatch in {} at {}, ignoring the rest", path, validEnd);
+                break;
+            }
+
+            long seq = apply(database, body, afterSeq);
+            if (seq > afterSeq) {
+                replayed++;
+            }
+            lastSeq = Math.max(lastSeq, seq);
+            validEnd += 8 + length;
+        }
+
+        // Drop whatever follows the last valid record, new records go after it
+        if (channel.size() > validEnd) {
+            channel.truncate(validEnd);
+            channel.force(false);
+        }
+        channel.position(validEnd);
+        batchEnds.clear();
+        batchEnds.add(new long[] { lastSeq, validEnd });
+
+        database.restoreSequence(lastSeq);
+        appendedSeq = lastSeq;
+        durableSeq = lastSeq;
+        logger.info("Write-ahead log {}: replayed {} changes after seq {}, last seq {}",
+                path, replayed, afterSeq, lastSeq);
+        return lastSeq;
+    }
+
+    private long apply(Database database, byte[] body, long afterSeq) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        long seq = in.readLong();
+        if (seq <= afterSeq) {
+            // Already in the snapshot
+            return seq;
+        }
+
+        // Changes get consecutive numbers, keep the database in step with the log
+        database.restoreSequence(seq - 1);
+        byte op = in.readByte();
+        switch (op) {
+            case OP_ADD: {
+                WorkOrder workOrder = readWorkOrder(in);
+                database.addWorkOrder(workOrder);
+                break;
+            }
+            case OP_UPDATE: {
+                WorkOrder workOrder = readWorkOrder(in);
+                database.updateWorkOrder(workOrder.getCode(), workOrder.getName(), workOrder.getDescription(),
+                        workOrder.getTimestamp());
+                break;
+            }
+            case OP_REMOVE:
+                database.removeWorkOrder(in.readInt());
+                break;
+            case OP_CLEAR:
+                database.clearDatabase();
+                break;
+            default:
+                throw new IOException("Unknown write-ahead log operation " + op);
+        }
+        database.restoreSequence(seq);
+        return seq;
+    }
+
+    /**
+     * Start the group commit thread
+     */
+    public void start() {
+        writer.start();
+    }
+
+    @Override
+    public void onAdd(long seq, WorkOrder workOrder) {
+        append(seq, OP_ADD, workOrder, 0);
+    }
+
+    @Override
+    public void onUpdate(long seq, WorkOrder workOrder) {
+        append(seq, OP_UPDATE, workOrder, 0);
+    }
+
+    @Override
+    public void onRemove(long seq, int code) {
+        append(seq, OP_REMOVE, null, code);
+    }
+
+    @Override
+    public void onClear(long seq) {
+        append(seq, OP_CLEAR, null, 0);
+    }
+
+    /**
+     * Call back once every change appended so far is on disk. The callback
+     * runs on the group commit thread, or right away if there is nothing to
+     * wait for.
+     */
+    public void whenDurable(DurabilityCallback callback) {
+        boolean ready;
+        boolean durable;
+        synchronized (this) {
+            ready = durableSeq >= appendedSeq || failure != null || closed;
+            durable = failure == null && durableSeq >= appendedSeq;
+            if (!ready) {
+                waiters.add(new Waiter(appendedSeq, callback));
+                notifyAll();
+            }
+        }
+        if (ready) {
+            callback.onDurable(durable);
+        }
+    }
+
+    /**
+     * Wait until every change appended so far is on disk
+     */
+    public void sync() throws IOException {
+        synchronized (this) {
+            long target = appendedSeq;
+            notifyAll();
+            while (durableSeq < target && failure == null && !closed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting for the write-ahead log");
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * Drop the records up to a snapshot that now holds them. Only safe when
+     * every record in the log is in the snapshot.
+     */
+    public synchronized void reset(long snapshotSeq) throws IOException {
+        if (appendedSeq > snapshotSeq) {
+            throw new IllegalStateException("Write-ahead log has changes after seq " + snapshotSeq);
+        }
+        while (pending.size() > 0 || durableSeq < appendedSeq) {
+            try {
+                notifyAll();
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for the write-ahead log");
+            }
+        }
+        synchronized (fileLock) {
+            channel.truncate(0);
+            channel.position(0);
+            channel.force(true);
+            batchEnds.clear();
+        }
+    }
+
+    /**
+     * Drop the records up to seq, once a checkpoint holds them. The records
+     * after the cut are copied to a new file that replaces the log. Appends go
+     * on meanwhile, only the group commit waits for the copy, which is short
+     * because the log is cut after every checkpoint.
+     *
+     * The log is cut at the end of a batch, so a few records up to seq may
+     * stay. Recovery skips them.
+     */
+    public void truncate(long seq) throws IOException {
+        synchronized (fileLock) {
+            if (!channel.isOpen()) {
+                throw new IOException("Write-ahead log " + path + " is closed");
+            }
+            long cut = 0;
+            while (!batchEnds.isEmpty() && batchEnds.peekFirst()[0] <= seq) {
+                cut = batchEnds.pollFirst()[1];
+            }
+            if (cut == 0) {
+                return;
+            }
+
+            long size = channel.size();
+            Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+            try (FileChannel copy = FileChannel.open(temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                long position = cut;
+                while (position < size) {
+                    position += channel.transferTo(position, size - position, copy);
+                }
+                copy.force(true);
+            }
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            channel.close();
+            channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            channel.position(channel.size());
+            for (long[] batchEnd : batchEnds) {
+                batchEnd[1] -= cut;
+            }
+        }
+    }
+
+    public synchronized long getDurableSeq() {
+        return durableSeq;
+    }
+
+    public synchronized long getAppendedSeq() {
+        return appendedSeq;
+    }
+
+    public long getSizeBytes() throws IOException {
+        synchronized (fileLock) {
+            return channel.size();
+        }
+    }
+
+    /**
+     * Write what is pending and stop the group commit thread
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+        }
+        try {
+            if (writer.isAlive()) {
+                writer.join(5000);
+            } else {
+                writeBatch();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            synchronized (fileLock) {
+                channel.close();
+            }
+        }
+    }
+
+    private void append(long seq, byte op, WorkOrder workOrder, int code) {
+        // Called under the database write lock, so records arrive in seq order
+        try {
+            recordBytes.reset();
+            record.writeLong(seq);
+            record.writeByte(op);
+            if (workOrder != null) {
+                writeWorkOrder(record, workOrder);
+            } else if (op == OP_REMOVE) {
+                record.writeInt(code);
+            }
+            record.flush();
+        } catch (IOException e) {
+            // Writes to a byte array do not fail
+            throw new IllegalStateException(e);
+        }
+
+        byte[] body = recordBytes.toByteArray();
+        crc.reset();
+        crc.update(body, 0, body.length);
+
+        synchronized (this) {
+            boolean wasEmpty = pending.size() == 0;
+            writeInt(pending, body.length);
+            writeInt(pending, (int) crc.getValue());
+            pending.write(body, 0, body.length);
+            appendedSeq = seq;
+            if (wasEmpty || pending.size() >= MAX_BATCH_BYTES) {
+                notifyAll();
+            }
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            synchronized (this) {
+                while (!closed && pending.size() == 0 && waiters.isEmpty()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed && pending.size() == 0 && waiters.isEmpty()) {
+                    return;
+                }
+
+                // Group commit: give concurrent writers the latency budget to join the batch
+                long deadline = System.currentTimeMillis() + groupCommitMillis;
+                long remaining = groupCommitMillis;
+                while (!closed && remaining > 0 && pending.size() < MAX_BATCH_BYTES) {
+                    try {
+                        wait(remaining);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    remaining = deadline - System.currentTimeMillis();
+                }
+            }
+
+            writeBatch();
+        }
+    }
+
+    private void writeBatch() {
+        long batchSeq;
+        List<Waiter> ready = new ArrayList<>();
+        synchronized (this) {
+            ByteArrayOutputStream batch = pending;
+            pending = writing;
+            writing = batch;
+            batchSeq = appendedSeq;
+        }
+
+        IOException error = null;
+        try {
+            if (writing.size() > 0) {
+                ByteBuffer buffer = ByteBuffer.wrap(writing.toByteArray());
+                synchronized (fileLock) {
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    channel.force(false);
+                    batchEnds.add(new long[] { batchSeq, channel.position() });
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Write-ahead log " + path + " failed, changes are no longer durable", e);
+            error = e;
+        } finally {
+            writing.reset();
+        }
+
+        synchronized (this) {
+            if (error != null && failure == null) {
+                failure = error;
+            }
+            if (failure == null) {
+                durableSeq = batchSeq;
+            }
+            for (Iterator<Waiter> it = waiters.iterator(); it.hasNext();) {
+                Waiter waiter = it.next();
+                if (waiter.seq <= durableSeq || failure != null) {
+                    ready.add(waiter);
+                    it.remove();
+                }
+            }
+            notifyAll();
+        }
+
+        boolean durable = error == null && failure == null;
+        for (Waiter waiter : ready) {
+            try {
+                waiter.callback.onDurable(durable);
+            } catch (Exception e) {
+                logger.error("Error in write-ahead log callback", e);
+            }
+        }
+    }
+
+    private static void writeWorkOrder(DataOutputStream out, WorkOrder workOrder) throws IOException {
+        out.writeInt(workOrder.getCode());
+        writeString(out, workOrder.getName());
+        writeString(out, workOrder.getDescription());
+        writeString(out, workOrder.getTimestamp());
+    }
+
+    private static WorkOrder readWorkOrder(DataInputStream in) throws IOException {
+        int code = in.readInt();
+        String name = readString(in);
+        String description = readString(in);
+        String timestamp = readString(in);
+        return new WorkOrder(code, name, description, timestamp);
+    }
+
+    // Length prefixed UTF-8, -1 for null. writeUTF would fail above 64KB
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+}
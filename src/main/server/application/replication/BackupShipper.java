@@ -0,0 +1,264 @@
+package main.server.application.replication;
+
+import java.rmi.RemoteException;
+import java.util.List;
+
+import main.server.application.database.Database;
+import main.shared.log.Logger;
+
+/**
+ * Envia o log de replicação para um backup, numa thread só dele.
+ *
+ * Everything the log got while the previous call was on the wire goes in the
+ * next call, up to {@code maxBatch} entries, so a busy primary makes fewer
+ * and larger calls instead of one per change. The backup answers with the
+ * last seq it has applied, which is this backup's position: the next batch
+ * starts after it, so a lost answer or a retry only sends entries the backup
+ * skips. A backup that comes back with a seq of this log that is still in it
+ * only gets the changes after it. A new backup, or one further behind than
+ * the log holds, first gets a full copy of the database. Failed calls are retried with a growing pause
+ * until the manager drops the backup.
+ *
+ * The full copy is streamed in chunks of {@code chunkSize} work orders in
+ * code order, each read under its own short read lock, so the primary keeps
+ * writing meanwhile and never holds a copy of its own. A failed chunk is sent
+ * again from the same code; the backup then continues the log from the seq
+ * the first chunk was read at, see {@link SnapshotChunk}.
+ *
+ * Every backup has its own shipper, so backups are served in parallel and a
+ * slow one only delays itself. While there is nothing to send the shipper
+ * checks the backup with a heartbeat, so its last contact tells the manager
+ * whether the backup is alive without the manager calling it.
+ */
+final class BackupShipper implements Runnable {
+    private static final long POLL_MS = 500;
+    private static final long MIN_RETRY_MS = 100;
+    private static final long MAX_RETRY_MS = 5000;
+    private static final long HEARTBEAT_MS = 5000;
+
+    private final String backupId;
+    private final DatabaseReplicator backup;
+    private final ReplicationLog log;
+    private final Database database;
+    private final int maxBatch;
+    private final int chunkSize;
+    private final Runnable onAck;
+    private final Logger logger;
+    private final Thread thread;
+
+    private volatile boolean running = true;
+    // Last primary seq the backup confirmed, -1 until its first full copy
+    private volatile long ackedSeq = -1;
+    private volatile long batches;
+    private volatile long entries;
+    // Last answer from the backup, to any call
+    private volatile long lastContact = System.currentTimeMillis();
+    // Whether QUORUM writes wait for this backup, decided by the manager from its lag
+    private volatile boolean inSync;
+
+    // Full copy in progress, 0 when there is none
+    private long transferId;
+    private long transferSeq;
+    // Last code sent in the copy, null before the first chunk
+    private Integer transferAfter;
+    private int transferSent;
+
+    /**
+     * @param resumeSeq seq deste log que o backup já tem, -1 se ele precisa da
+     *                  cópia completa
+     * @param onAck     chamado a cada confirmação do backup
+     */
+    BackupShipper(String backupId, DatabaseReplicator backup, ReplicationLog log, Database database, int maxBatch,
+            int chunkSize, long resumeSeq, Runnable onAck, Logger logger) {
+        this.backupId = backupId;
+        this.backup = backup;
+        this.log = log;
+        this.database = database;
+        this.maxBatch = maxBatch;
+        this.chunkSize = chunkSize;
+        this.onAck = onAck;
+        this.logger = logger;
+        this.ackedSeq = resumeSeq;
+        this.thread = new Thread(this, "replication-" + backupId);
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    void stop() {
+        running = false;
+        thread.interrupt();
+    }
+
+    String getBackupId() {
+        return backupId;
+    }
+
+    long getAckedSeq() {
+        return ackedSeq;
+    }
+
+    long getLastContact() {
+        return lastContact;
+    }
+
+    boolean isInSync() {
+        return inSync;
+    }
+
+    void setInSync(boolean inSync) {
+        this.inSync = inSync;
+    }
+
+    /**
+     * @return quantas alterações do log o backup ainda não confirmou
+     */
+    long getLagEntries() {
+        return Math.max(0, log.getLastSeq() - ackedSeq);
+    }
+
+    /**
+     * @return há quanto tempo está no log a alteração mais antiga que o backup
+     *         não confirmou, 0 se não falta nenhuma, Long.MAX_VALUE se ela já
+     *         saiu do log ou o backup ainda não recebeu a cópia completa
+     */
+    long getLagMillis(long now) {
+        long next = ackedSeq + 1;
+        if (ackedSeq >= 0 && next > log.getLastSeq()) {
+            return 0;
+        }
+        long appended = ackedSeq < 0 ? -1 : log.getAppendedAt(next);
+        return appended < 0 ? Long.MAX_VALUE : Math.max(0, now - appended);
+    }
+
+    long getBatches() {
+        return batches;
+    }
+
+    long getEntries() {
+        return entries;
+    }
+
+    @Override
+    public void run() {
+        long retryMillis = MIN_RETRY_MS;
+        boolean needsCopy = ackedSeq < 0;
+        while (running) {
+            try {
+                if (needsCopy) {
+                    sendFullCopy();
+                    needsCopy = false;
+                }
+
+                List<ReplicationEntry> batch = log.read(ackedSeq + 1, maxBatch, POLL_MS);
+                if (batch == null) {
+                    logger.warning("Backup {} fell behind the replication log, sending a full copy", backupId);
+                    needsCopy = true;
+                    transferId = 0;
+                    continue;
+                }
+                if (batch.isEmpty()) {
+                    if (System.currentTimeMillis() - lastContact >= HEARTBEAT_MS) {
+                        backup.heartbeat();
+                        lastContact = System.currentTimeMillis();
+                    }
+                    continue;
+                }
+
+                long applied = backup.replicate(log.getHistoryId(), batch);
+                lastContact = System.currentTimeMillis();
+                batches++;
+                entries += batch.size();
+                if (applied < 0) {
+                    // The backup lost everything, or has another primary's history
+                    logger.warning("Backup {} has no seq of this primary, sending a full copy", backupId);
+                    needsCopy = true;
+                    transferId = 0;
+                    continue;
+                }
+                if (applied < ackedSeq) {
+                    // The backup restarted from its disk, the log may still have what it lost
+                    logger.warning("Backup {} went back from seq {} to {}, resending from there", backupId,
+                            ackedSeq, applied);
+                }
+                ackedSeq = applied;
+                onAck.run();
+                retryMillis = MIN_RETRY_MS;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RemoteException e) {
+                logger.warning("Replication to backup {} failed, retrying in {}ms: {}", backupId, retryMillis,
+                        e.getMessage());
+                try {
+                    Thread.sleep(retryMillis);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                retryMillis = Math.min(MAX_RETRY_MS, retryMillis * 2);
+            } catch (RuntimeException e) {
+                logger.error("Replication to backup " + backupId + " stopped", e);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Send the full copy, or the rest of the one a failed call interrupted
+     */
+    private void sendFullCopy() throws RemoteException {
+        if (transferId == 0) {
+            startTransfer();
+        }
+        while (true) {
+            Database.Chunk chunk;
+            if (transferAfter == null) {
+                chunk = database.readChunk(Integer.MIN_VALUE, chunkSize);
+            } else if (transferAfter == Integer.MAX_VALUE) {
+                // Nothing can come after the largest code
+                chunk = database.readChunk(Integer.MAX_VALUE, 0);
+            } else {
+                chunk = database.readChunk(transferAfter + 1, chunkSize);
+            }
+            if (transferSeq < 0) {
+                transferSeq = chunk.getSeq();
+            }
+            boolean last = chunk.size() < chunkSize;
+
+            boolean accepted = backup.syncChunk(new SnapshotChunk(log.getHistoryId(), transferId, transferSeq,
+                    transferAfter, chunk.getCodes(), chunk.getWorkOrders(), last));
+            lastContact = System.currentTimeMillis();
+            if (!accepted) {
+                // The backup lost the copy so far (restarted), start it over
+                logger.warning("Backup {} lost the full copy after {} work orders, starting it over", backupId,
+                        transferSent);
+                startTransfer();
+                continue;
+            }
+            transferSent += chunk.size();
+            if (chunk.size() > 0) {
+                transferAfter = chunk.getCodes()[chunk.size() - 1];
+            }
+            if (last) {
+                break;
+            }
+        }
+
+        logger.info("Full copy sent to backup {}: {} work orders, continuing from seq {}", backupId, transferSent,
+                transferSeq);
+        transferId = 0;
+        ackedSeq = transferSeq;
+        onAck.run();
+    }
+
+    private void startTransfer() {
+        transferId = ReplicationLog.newId();
+        transferSeq = -1;
+        transferAfter = null;
+        transferSent = 0;
+        logger.info("Sending full copy to backup {} in chunks of {} work orders", backupId, chunkSize);
+    }
+}
@@ -2,22 +2,34 @@ package main.server.application.replication;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
-import java.util.Map;
-
-import main.shared.models.WorkOrder;
+import java.util.List;
 
 /**
  * Remote interface for database replication operations
  */
 public interface DatabaseReplicator extends Remote {
-    // Replicate individual operations
-    void replicateAddWorkOrder(int code, String name, String description, String timestamp) throws RemoteException;
-    void replicateRemoveWorkOrder(int code) throws RemoteException;
-    void replicateUpdateWorkOrder(int code, String name, String description, String timestamp) throws RemoteException;
-    
-    // Full database sync
-    void syncFullDatabase(Map<Integer, WorkOrder> database) throws RemoteException;
-    
+    /**
+     * Apply a batch of the primary's changes, in order. Entries the backup
+     * already has are skipped, and it stops at a gap.
+     *
+     * @param historyId the primary's replication history the seqs belong to
+     * @return the last primary seq the backup has applied, -1 if it has none
+     *         of this history and needs a full copy
+     */
+    long replicate(long historyId, List<ReplicationEntry> entries) throws RemoteException;
+
+    /**
+     * Receive a chunk of the primary's full copy. The first chunk starts a new
+     * copy, the others must continue after the last code received or repeat
+     * the previous chunk, as after a lost answer. The last one replaces the
+     * whole database, and the backup then applies the log after the copy's
+     * seq.
+     *
+     * @return false if the chunk does not continue the copy the backup has, so
+     *         the copy must start over
+     */
+    boolean syncChunk(SnapshotChunk chunk) throws RemoteException;
+
     // Health check
     boolean heartbeat() throws RemoteException;
-}
\ No newline at end of file
+}
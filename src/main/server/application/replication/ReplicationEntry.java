@@ -0,0 +1,53 @@
+package main.server.application.replication;
+
+import java.io.Serializable;
+
+import main.shared.models.WorkOrder;
+
+/**
+ * Uma alteração do banco do primário, na ordem em que foi aplicada.
+ *
+ * The seq is the primary's database sequence number, so a backup applies the
+ * entries in order, skips the ones it already has and notices a gap.
+ */
+public final class ReplicationEntry implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public enum Operation {
+        ADD, UPDATE, REMOVE, CLEAR
+    }
+
+    private final long seq;
+    private final Operation operation;
+    private final int code;
+    // null em REMOVE e CLEAR
+    private final WorkOrder workOrder;
+
+    ReplicationEntry(long seq, Operation operation, int code, WorkOrder workOrder) {
+        this.seq = seq;
+        this.operation = operation;
+        this.code = code;
+        this.workOrder = workOrder;
+    }
+
+    public long getSeq() {
+        return seq;
+    }
+
+    public Operation getOperation() {
+        return operation;
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    public WorkOrder getWorkOrder() {
+        return workOrder;
+    }
+
+    @Override
+    public String toString() {
+        return seq + ":" + operation + ":" + code;
+    }
+}
@@ -0,0 +1,133 @@
+package main.server.application.replication;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Últimas alterações do primário, em memória, para os backups lerem cada um
+ * no seu ritmo.
+ *
+ * A ring of the last {@code capacity} entries, by seq. The database appends
+ * under its write lock, so an append is a store and a signal, never a wait;
+ * each backup's shipper reads from its own position. A backup that falls
+ * further behind than the ring holds gets null from {@link #read} and must
+ * be resynchronized with a full copy.
+ *
+ * Each log is a new history, with its own random id: the seqs of a backup
+ * only mean something to the log it got them from.
+ */
+final class ReplicationLog {
+    private final long historyId;
+    private final ReplicationEntry[] entries;
+    // When each entry was appended, to measure how far behind a backup is in time
+    private final long[] appendedAt;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition appended = lock.newCondition();
+    // Guarded by lock. Seq of the oldest entry kept; the log is empty when lastSeq < firstSeq.
+    private long firstSeq;
+    private long lastSeq;
+
+    /**
+     * @param afterSeq seq da última alteração que não entra no log
+     */
+    ReplicationLog(int capacity, long afterSeq) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Replication log capacity must be positive: " + capacity);
+        }
+        this.historyId = newId();
+        this.entries = new ReplicationEntry[capacity];
+        this.appendedAt = new long[capacity];
+        this.firstSeq = afterSeq + 1;
+        this.lastSeq = afterSeq;
+    }
+
+    void append(ReplicationEntry entry) {
+        lock.lock();
+        try {
+            if (entry.getSeq() != lastSeq + 1) {
+                // The database sequence jumped (content restored), what came before cannot be continued
+                firstSeq = entry.getSeq();
+            }
+            lastSeq = entry.getSeq();
+            entries[(int) (lastSeq % entries.length)] = entry;
+            appendedAt[(int) (lastSeq % entries.length)] = System.currentTimeMillis();
+            if (lastSeq - firstSeq >= entries.length) {
+                firstSeq = lastSeq - entries.length + 1;
+            }
+            appended.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Lê as entradas a partir de fromSeq, esperando até waitMillis se ainda
+     * não há nenhuma
+     *
+     * @return até max entradas em ordem, vazia se nada chegou, null se fromSeq
+     *         já saiu do log
+     */
+    List<ReplicationEntry> read(long fromSeq, int max, long waitMillis) throws InterruptedException {
+        lock.lock();
+        try {
+            long remaining = TimeUnit.MILLISECONDS.toNanos(waitMillis);
+            while (fromSeq > lastSeq && remaining > 0) {
+                remaining = appended.awaitNanos(remaining);
+            }
+            if (fromSeq < firstSeq) {
+                return null;
+            }
+            long end = Math.min(lastSeq, fromSeq + max - 1);
+            List<ReplicationEntry> batch = new ArrayList<>((int) Math.max(0, end - fromSeq + 1));
+            for (long seq = fromSeq; seq <= end; seq++) {
+                batch.add(entries[(int) (seq % entries.length)]);
+            }
+            return batch;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return quando a entrada seq foi adicionada, -1 se ela não está no log
+     */
+    long getAppendedAt(long seq) {
+        lock.lock();
+        try {
+            if (seq < firstSeq || seq > lastSeq) {
+                return -1;
+            }
+            return appendedAt[(int) (seq % entries.length)];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getHistoryId() {
+        return historyId;
+    }
+
+    /**
+     * @return um id aleatório diferente de 0, que quer dizer nenhum
+     */
+    static long newId() {
+        long id;
+        do {
+            id = ThreadLocalRandom.current().nextLong();
+        } while (id == 0);
+        return id;
+    }
+
+    long getLastSeq() {
+        lock.lock();
+        try {
+            return lastSeq;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
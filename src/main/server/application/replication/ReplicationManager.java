@@ -1,79 +1,206 @@
 package main.server.application.replication;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import main.server.application.database.Database;
+import main.server.application.database.DatabaseListener;
+import main.server.application.database.WriteAheadLog;
 import main.shared.log.Logger;
 import main.shared.models.WorkOrder;
 
 /**
- * Manages replication between primary and backup servers
+ * Manages replication between primary and backup servers.
+ *
+ * On the primary, every database change goes into a {@link ReplicationLog}
+ * as the database applies it, which costs the writer an append whatever the
+ * number of backups. Each backup has a {@link BackupShipper} thread that
+ * sends the log in batches, one RMI call per batch, and tracks which seq the
+ * backup has confirmed. The {@link AckMode} says what a write waits for
+ * before its client is answered, see {@link #whenReplicated}.
+ *
+ * The shippers run side by side, and every replication call has a timeout
+ * (cfwos.replication.callTimeoutMillis), so a slow or dead backup never
+ * delays the others. A backup whose oldest unconfirmed change is older than
+ * cfwos.replication.maxLagMillis leaves the synchronous set, the backups
+ * QUORUM writes wait for, and rejoins once it is back under half of that.
+ * One that has not answered for cfwos.replication.deadAfterMillis is dropped.
+ *
+ * A backup applies the batches by primary seq, so retries and duplicates
+ * are harmless, and gets a full copy when it registers or falls behind the
+ * log, streamed in chunks of cfwos.replication.snapshotChunk work orders.
+ * The log keeps the last cfwos.replication.logEntries changes, so a backup
+ * that restarts or was dropped registers again with the last seq it has
+ * (saved next to its database, see {@link ReplicationPosition}) and only
+ * gets the changes after it, unless they have left the log.
  */
-public class ReplicationManager implements DatabaseReplicator, ServerCoordinator {
+public class ReplicationManager implements DatabaseReplicator, ServerCoordinator, DatabaseListener {
+    private static final String LOG_ENTRIES_PROPERTY = "cfwos.replication.logEntries";
+    private static final int DEFAULT_LOG_ENTRIES = 100_000;
+    private static final String MAX_BATCH_PROPERTY = "cfwos.replication.maxBatch";
+    private static final int DEFAULT_MAX_BATCH = 512;
+    private static final String SNAPSHOT_CHUNK_PROPERTY = "cfwos.replication.snapshotChunk";
+    private static final int DEFAULT_SNAPSHOT_CHUNK = 8192;
+    private static final String ACK_TIMEOUT_PROPERTY = "cfwos.replication.ackTimeoutMillis";
+    private static final long DEFAULT_ACK_TIMEOUT_MS = 5000;
+    // Backup acks a QUORUM write waits for, 0 for a majority
+    private static final String SYNC_ACKS_PROPERTY = "cfwos.replication.syncAcks";
+    private static final String MAX_LAG_PROPERTY = "cfwos.replication.maxLagMillis";
+    private static final long DEFAULT_MAX_LAG_MS = 1000;
+    private static final String CALL_TIMEOUT_PROPERTY = "cfwos.replication.callTimeoutMillis";
+    private static final int DEFAULT_CALL_TIMEOUT_MS = 10000;
+    private static final String DEAD_AFTER_PROPERTY = "cfwos.replication.deadAfterMillis";
+    private static final long DEFAULT_DEAD_AFTER_MS = 15000;
+
+    /**
+     * O que uma escrita espera antes de responder ao cliente
+     */
+    public enum AckMode {
+        // Nothing: answered as soon as the change is applied in memory
+        ASYNC,
+        // The primary's write-ahead log, backups catch up in the background
+        LEADER,
+        // The primary's write-ahead log and k backups of the synchronous set, a majority by default
+        QUORUM
+    }
+
+    /**
+     * Chamado quando a escrita aguardada foi confirmada pelo modo de ack, ou
+     * com replicated=false se o tempo acabou antes
+     */
+    public interface ReplicationCallback {
+        void onReplicated(boolean replicated);
+    }
+
+    private static final class Waiter {
+        final ReplicationCallback callback;
+        final long deadline;
+
+        Waiter(ReplicationCallback callback, long deadline) {
+            this.callback = callback;
+            this.deadline = deadline;
+        }
+    }
+
     private final Logger logger;
     private final Database database;
     private final String serverAddress;
     private final int serverPort;
     private final int rmiPort;
-    private boolean isPrimary = false;
+    private final AckMode ackMode;
+    private final int maxBatch;
+    private final int snapshotChunk;
+    private final long ackTimeoutMillis;
+    private final int syncAcks;
+    private final long maxLagMillis;
+    private final int callTimeoutMillis;
+    private final long deadAfterMillis;
+    private volatile boolean isPrimary = false;
 
     private Registry registry;
-    private final Map<String, DatabaseReplicator> backupServers = new ConcurrentHashMap<>();
-    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private DatabaseReplicator stub;
+    private final Map<String, BackupShipper> backupServers = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "replication-health-check");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // Primary only
+    private volatile ReplicationLog replicationLog;
+    // Writes waiting for a quorum, by seq; guarded by itself
+    private final TreeMap<Long, List<Waiter>> waiters = new TreeMap<>();
+
+    // Backup only: last primary seq applied and the history it belongs to,
+    // written under this; the seq is also read without it, for the proxies
+    private volatile long appliedSeq = -1;
+    private long historyId;
+    // Backup only: the primary has confirmed appliedSeq is of its history since we registered
+    private volatile boolean confirmed;
+    // Backup only: last time the primary called, a long silence means it dropped us
+    private volatile long lastPrimaryContact = System.currentTimeMillis();
+    // Backup only: where the position is saved, null to always start with a full copy
+    private Path positionFile;
+    private WriteAheadLog positionLog;
+    // Backup only: position the disk has reached, guarded by positionLock. A
+    // full copy moves to the next generation, so older callbacks are ignored.
+    private final Object positionLock = new Object();
+    private long positionGeneration;
+    private ReplicationPosition durablePosition;
+    private boolean positionDirty;
+    // Backup only: full copy being received, guarded by this. The buffers
+    // grow as chunks arrive and become the new tree with the last one.
+    private long syncTransferId;
+    private long syncCompletedId;
+    private int[] syncCodes;
+    private WorkOrder[] syncWorkOrders;
+    private int syncCount;
+    // Where the last chunk starts in the buffers, what it continued after and its last code
+    private int syncChunkStart;
+    private Integer syncChunkAfter;
+    private Integer syncLastCode;
 
     /**
      * Create a replication manager
-     * 
+     *
      * @param serverAddress Local server address
      * @param serverPort    Local server port
      * @param rmiPort       RMI registry port
      * @param database      Reference to the database to replicate
+     * @param ackMode       What a write waits for on the primary
      * @param logger        System logger
      */
-    public ReplicationManager(String serverAddress, int serverPort, int rmiPort, Database database, Logger logger) {
+    public ReplicationManager(String serverAddress, int serverPort, int rmiPort, Database database,
+            AckMode ackMode, Logger logger) {
         this.serverAddress = serverAddress;
         this.serverPort = serverPort;
         this.rmiPort = rmiPort;
         this.database = database;
+        this.ackMode = ackMode;
+        this.maxBatch = Math.max(1, Integer.getInteger(MAX_BATCH_PROPERTY, DEFAULT_MAX_BATCH));
+        this.snapshotChunk = Math.max(1, Integer.getInteger(SNAPSHOT_CHUNK_PROPERTY, DEFAULT_SNAPSHOT_CHUNK));
+        this.ackTimeoutMillis = Long.getLong(ACK_TIMEOUT_PROPERTY, DEFAULT_ACK_TIMEOUT_MS);
+        this.syncAcks = Math.max(0, Integer.getInteger(SYNC_ACKS_PROPERTY, 0));
+        this.maxLagMillis = Long.getLong(MAX_LAG_PROPERTY, DEFAULT_MAX_LAG_MS);
+        this.callTimeoutMillis = Integer.getInteger(CALL_TIMEOUT_PROPERTY, DEFAULT_CALL_TIMEOUT_MS);
+        this.deadAfterMillis = Long.getLong(DEAD_AFTER_PROPERTY, DEFAULT_DEAD_AFTER_MS);
         this.logger = logger;
     }
 
     /**
      * Initialize as primary server
      */
-    public void initAsPrimary() throws Exception {
-        logger.info("Initializing as PRIMARY application server at {}:{}", serverAddress, serverPort);
-        isPrimary = true;
+    public synchronized void initAsPrimary() throws Exception {
+        logger.info("Initializing as PRIMARY application server at {}:{} (ack mode {})", serverAddress,
+                serverPort, ackMode);
 
-        // Create and start RMI registry
         try {
-            registry = LocateRegistry.createRegistry(rmiPort);
-            logger.info("RMI Registry created at port {}", rmiPort);
-
-            // Export this object
+            exportServices();
 
-            DatabaseReplicator replicatorStub = (DatabaseReplicator) UnicastRemoteObject.exportObject(this, 0);
-            // ServerCoordinator coordinatorStub = (ServerCoordinator)
-            // UnicastRemoteObject.exportObject(this, 0);
-
-            // Bind to registry
-            registry.rebind("DatabaseReplicator", replicatorStub);
-            // registry.rebind("ServerCoordinator", coordinatorStub);
+            // Changes from now on are shipped, backups get everything older with their full copy
+            replicationLog = new ReplicationLog(Integer.getInteger(LOG_ENTRIES_PROPERTY, DEFAULT_LOG_ENTRIES),
+                    database.getSequence());
+            database.addListener(this);
+            isPrimary = true;
 
             logger.info("Replication services registered successfully");
 
-            // Start backup health check
+            // Start backup health check and the quorum timeouts
             startBackupHealthCheck();
-
         } catch (RemoteException e) {
             isPrimary = false;
             logger.error("Failed to initialize as primary", e);
@@ -81,6 +208,16 @@ public class ReplicationManager implements DatabaseReplicator, ServerCoordinator
         }
     }
 
+    /**
+     * Save the backup's position in file once the write-ahead log has the
+     * changes, and start from it. Must be called before
+     * {@link #initAsBackup}, after the database was recovered from disk.
+     */
+    public void persistPosition(Path file, WriteAheadLog wal) {
+        this.positionFile = file;
+        this.positionLog = wal;
+    }
+
     /**
      * Initialize as backup server
      */
@@ -89,25 +226,14 @@ public class ReplicationManager implements DatabaseReplicator, ServerCoordinator
         isPrimary = false;
 
         try {
-            // Lookup primary server
-            Registry primaryRegistry = LocateRegistry.getRegistry(primaryAddress, primaryRmiPort);
-            ServerCoordinator coordinator = (ServerCoordinator) primaryRegistry.lookup("ServerCoordinator");
-
-            // Register with primary
-            String backupId = coordinator.registerAsBackup(serverAddress, serverPort);
-            logger.info("Registered as backup with ID: {}", backupId);
-
-            // Export this object to receive updates
-            DatabaseReplicator stub = (DatabaseReplicator) UnicastRemoteObject.exportObject(this, 0);
+            loadPosition();
 
-            // Create local registry so primary can connect back
-            registry = LocateRegistry.createRegistry(rmiPort);
-            registry.rebind("DatabaseReplicator", stub);
+            // The primary connects back as soon as we register, so be reachable first
+            exportServices();
 
-            // Get initial database
-            DatabaseReplicator primaryReplicator = (DatabaseReplicator) primaryRegistry.lookup("DatabaseReplicator");
-            Map<Integer, WorkOrder> initialDb = new HashMap<>(); // Create a map to receive the database
-            primaryReplicator.syncFullDatabase(initialDb);
+            // Register with primary, it sends what we miss and then the changes
+            registerWith(primaryAddress, primaryRmiPort);
+            scheduler.scheduleWithFixedDelay(this::savePosition, 1, 1, TimeUnit.SECONDS);
 
             // Start primary health check
             startPrimaryHealthCheck(primaryAddress, primaryRmiPort);
@@ -118,11 +244,43 @@ public class ReplicationManager implements DatabaseReplicator, ServerCoordinator
         }
     }
 
+    private void registerWith(String primaryAddress, int primaryRmiPort) throws Exception {
+        long history;
+        long seq;
+        synchronized (this) {
+            history = historyId;
+            seq = appliedSeq;
+        }
+        confirmed = false;
+        Registry primaryRegistry = LocateRegistry.getRegistry(primaryAddress, primaryRmiPort);
+        ServerCoordinator coordinator = (ServerCoordinator) primaryRegistry.lookup("ServerCoordinator");
+        String backupId = coordinator.registerAsBackup(serverAddress, rmiPort, history, seq);
+        lastPrimaryContact = System.currentTimeMillis();
+        logger.info("Registered as backup with ID: {}, at seq {}", backupId, seq);
+    }
+
+    private void exportServices() throws RemoteException {
+        if (stub == null) {
+            // One export serves both remote interfaces, and bounds every call made through it
+            stub = (DatabaseReplicator) UnicastRemoteObject.exportObject(this, 0,
+                    new ReplicationSocketFactory(callTimeoutMillis), null);
+        }
+        if (registry == null) {
+            registry = LocateRegistry.createRegistry(rmiPort);
+            logger.info("RMI Registry created at port {}", rmiPort);
+        }
+        registry.rebind("DatabaseReplicator", stub);
+        registry.rebind("ServerCoordinator", stub);
+    }
+
     /**
      * Start primary server health check
      */
     private void startPrimaryHealthCheck(String primaryAddress, int primaryRmiPort) {
         scheduler.scheduleAtFixedRate(() -> {
+            if (isPrimary) {
+                return;
+            }
             try {
                 Registry primaryRegistry = LocateRegistry.getRegistry(primaryAddress, primaryRmiPort);
                 ServerCoordinator coordinator = (ServerCoordinator) primaryRegistry.lookup("ServerCoordinator");
@@ -131,6 +289,13 @@ public class ReplicationManager implements DatabaseReplicator, ServerCoordinator
                 coordinator.isPrimary();
 
                 logger.debug("Primary server health check: OK");
+
+                // Alive but silent, it dropped us
+                long silentMillis = System.currentTimeMillis() - lastPrimaryContact;
+                if (silentMillis > deadAfterMillis) {
+                    logger.warning("No replication from the primary for {}ms, registering again", silentMillis);
+                    registerWith(primaryAddress, primaryRmiPort);
+                }
             } catch (Exception e) {
                 logger.warning("Primary server health check failed: {}", e.getMessage());
 
@@ -141,31 +306,54 @@ public class ReplicationManager implements DatabaseReplicator, ServerCoordinator
     }
 
     /**
-     * Start backup servers health check
+     * Start backup servers health check. The shippers do the calls, this only
+     * looks at when each backup last answered, so it never waits on one.
      */
     private void startBackupHealthCheck() {
         scheduler.scheduleAtFixedRate(() -> {
-            // Copy to avoid ConcurrentModificationException
-            Map<String, DatabaseReplicator> backups = new HashMap<>(backupServers);
-
-            for (Map.Entry<String, DatabaseReplicator> entry : backups.entrySet()) {
-                String backupId = entry.getKey();
-                DatabaseReplicator backup = entry.getValue();
-
-                try {
-                    // Check if backup is alive
-                    backup.heartbeat();
-                } catch (Exception e) {
-                    logger.warning("Backup {} failed health check: {}", backupId, e.getMessage());
-
-                    // Remove dead backup
-                    backupServers.remove(backupId);
-                    logger.info("Removed inactive backup: {}", backupId);
+            long now = System.currentTimeMillis();
+            for (BackupShipper shipper : backupServers.values()) {
+                long silentMillis = now - shipper.getLastContact();
+                if (silentMillis > deadAfterMillis) {
+                    logger.warning("Backup {} has not answered for {}ms", shipper.getBackupId(), silentMillis);
+
+                    // Remove dead backup, the quorum is counted over the live ones
+                    removeBackup(shipper.getBackupId());
+                    continue;
                 }
+                logger.debug("Backup {}: {} changes behind, {}, {}", shipper.getBackupId(),
+                        shipper.getLagEntries(), formatLag(shipper.getLagMillis(now)),
+                        shipper.isInSync() ? "in sync" : "out of sync");
             }
 
             logger.debug("Active backup servers: {}", backupServers.size());
         }, 5, 5, TimeUnit.SECONDS);
+        scheduler.scheduleWithFixedDelay(() -> {
+            updateSyncSet();
+            expireWaiters();
+        }, 100, 100, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Move the backups in and out of the synchronous set by their lag
+     */
+    private void updateSyncSet() {
+        long now = System.currentTimeMillis();
+        for (BackupShipper shipper : backupServers.values()) {
+            long lagMillis = shipper.getLagMillis(now);
+            if (shipper.isInSync() && lagMillis > maxLagMillis) {
+                shipper.setInSync(false);
+                logger.warning("Backup {} left the synchronous set, {} changes behind, {}", shipper.getBackupId(),
+                        shipper.getLagEntries(), formatLag(lagMillis));
+            } else if (!shipper.isInSync() && lagMillis <= maxLagMillis / 2) {
+                shipper.setInSync(true);
+                logger.info("Backup {} joined the synchronous set", shipper.getBackupId());
+            }
+        }
+    }
+
+    private static String formatLag(long lagMillis) {
+        return lagMillis == Long.MAX_VALUE ? "needs a full copy" : lagMillis + "ms";
     }
 
     /**
@@ -184,92 +372,246 @@ public class ReplicationManager implements DatabaseReplicator, ServerCoordinator
         }
     }
 
+    // DatabaseListener methods, called under the database write lock on the primary
+
+    @Override
+    public void onAdd(long seq, WorkOrder workOrder) {
+        append(new ReplicationEntry(seq, ReplicationEntry.Operation.ADD, workOrder.getCode(), workOrder));
+    }
+
+    @Override
+    public void onUpdate(long seq, WorkOrder workOrder) {
+        append(new ReplicationEntry(seq, ReplicationEntry.Operation.UPDATE, workOrder.getCode(), workOrder));
+    }
+
+    @Override
+    public void onRemove(long seq, int code) {
+        append(new ReplicationEntry(seq, ReplicationEntry.Operation.REMOVE, code, null));
+    }
+
+    @Override
+    public void onClear(long seq) {
+        append(new ReplicationEntry(seq, ReplicationEntry.Operation.CLEAR, 0, null));
+    }
+
+    private void append(ReplicationEntry entry) {
+        ReplicationLog log = replicationLog;
+        if (isPrimary && log != null) {
+            log.append(entry);
+        }
+    }
+
     // DatabaseReplicator interface methods
 
     @Override
-    public void replicateAddWorkOrder(int code, String name, String description, String timestamp)
-            throws RemoteException {
+    public synchronized long replicate(long historyId, List<ReplicationEntry> entries) throws RemoteException {
         if (isPrimary) {
             logger.warning("Primary received replication request - ignoring");
-            return;
+            return appliedSeq;
+        }
+        lastPrimaryContact = System.currentTimeMillis();
+        if (historyId != this.historyId) {
+            return -1;
         }
+        confirmed = true;
 
         try {
-            logger.info("Replicating ADD operation: code={}", code);
-            database.addWorkOrder(code, name, description, timestamp);
+            for (ReplicationEntry entry : entries) {
+                if (entry.getSeq() <= appliedSeq) {
+                    continue;
+                }
+                if (entry.getSeq() != appliedSeq + 1) {
+                    logger.warning("Replication gap: at seq {}, got {}", appliedSeq, entry.getSeq());
+                    break;
+                }
+                apply(entry);
+                appliedSeq = entry.getSeq();
+            }
+            logger.debug("Replicated {} changes, at seq {}", entries.size(), appliedSeq);
+            savePositionWhenDurable();
+            return appliedSeq;
         } catch (Exception e) {
-            logger.error("Failed to replicate ADD operation", e);
+            logger.error("Failed to replicate changes", e);
             throw new RemoteException("Replication failed", e);
         }
     }
 
+    private void apply(ReplicationEntry entry) {
+        WorkOrder workOrder = entry.getWorkOrder();
+        switch (entry.getOperation()) {
+            case ADD:
+                database.addWorkOrder(workOrder.getCode(), workOrder.getName(), workOrder.getDescription(),
+                        workOrder.getTimestamp());
+                break;
+            case UPDATE:
+                database.updateWorkOrder(workOrder.getCode(), workOrder.getName(), workOrder.getDescription(),
+                        workOrder.getTimestamp());
+                break;
+            case REMOVE:
+                database.removeWorkOrder(entry.getCode());
+                break;
+            case CLEAR:
+                database.clearDatabase();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown replication operation " + entry.getOperation());
+        }
+    }
+
     @Override
-    public void replicateRemoveWorkOrder(int code) throws RemoteException {
+    public synchronized boolean syncChunk(SnapshotChunk chunk) throws RemoteException {
         if (isPrimary) {
-            logger.warning("Primary received replication request - ignoring");
-            return;
+            logger.warning("Primary received a full database sync - ignoring");
+            return false;
         }
+        lastPrimaryContact = System.currentTimeMillis();
 
         try {
-            logger.info("Replicating REMOVE operation: code={}", code);
-            database.removeWorkOrder(code);
+            if (chunk.getTransferId() == syncCompletedId) {
+                // The answer to the last chunk was lost, the copy is already in place
+                return true;
+            }
+            if (chunk.getAfter() == null) {
+                logger.info("Receiving full database sync from seq {}", chunk.getSeq());
+                syncTransferId = chunk.getTransferId();
+                syncCodes = new int[Math.max(16, chunk.size())];
+                syncWorkOrders = new WorkOrder[syncCodes.length];
+                syncCount = 0;
+            } else if (chunk.getTransferId() != syncTransferId) {
+                return false;
+            } else if (chunk.getAfter().equals(syncLastCode)) {
+                syncChunkStart = syncCount;
+            } else if (chunk.getAfter().equals(syncChunkAfter)) {
+                // The previous chunk again, read anew
+                syncCount = syncChunkStart;
+            } else {
+                return false;
+            }
+            appendChunk(chunk);
+
+            if (chunk.isLast()) {
+                // Until the new content is on disk, what is there matches no position
+                erasePosition();
+                database.replaceSorted(syncCodes, syncWorkOrders, syncCount);
+                historyId = chunk.getHistoryId();
+                appliedSeq = chunk.getSeq();
+                confirmed = true;
+                savePositionWhenDurable();
+                syncCompletedId = syncTransferId;
+                logger.info("Database sync complete, {} records, continuing from seq {}", syncCount,
+                        chunk.getSeq());
+                syncTransferId = 0;
+                syncCodes = null;
+                syncWorkOrders = null;
+            }
+            return true;
         } catch (Exception e) {
-            logger.error("Failed to replicate REMOVE operation", e);
-            throw new RemoteException("Replication failed", e);
+            logger.error("Failed to sync database", e);
+            syncTransferId = 0;
+            throw new RemoteException("Database sync failed", e);
+        }
+    }
+
+    private void appendChunk(SnapshotChunk chunk) {
+        int needed = syncCount + chunk.size();
+        if (needed > syncCodes.length) {
+            int capacity = Math.max(needed, syncCodes.length * 2);
+            syncCodes = Arrays.copyOf(syncCodes, capacity);
+            syncWorkOrders = Arrays.copyOf(syncWorkOrders, capacity);
         }
+        System.arraycopy(chunk.getCodes(), 0, syncCodes, syncCount, chunk.size());
+        System.arraycopy(chunk.getWorkOrders(), 0, syncWorkOrders, syncCount, chunk.size());
+        syncCount = needed;
+        syncChunkAfter = chunk.getAfter();
+        syncLastCode = chunk.size() > 0 ? Integer.valueOf(chunk.getCodes()[chunk.size() - 1]) : chunk.getAfter();
     }
 
     @Override
-    public void replicateUpdateWorkOrder(int code, String name, String description, String timestamp)
-            throws RemoteException {
-        if (isPrimary) {
-            logger.warning("Primary received replication request - ignoring");
+    public boolean heartbeat() throws RemoteException {
+        lastPrimaryContact = System.currentTimeMillis();
+        return true;
+    }
+
+    // Backup position on disk
+
+    private synchronized void loadPosition() {
+        if (positionFile == null) {
             return;
         }
-
         try {
-            logger.info("Replicating UPDATE operation: code={}", code);
-            database.updateWorkOrder(code, name, description, timestamp);
-        } catch (Exception e) {
-            logger.error("Failed to replicate UPDATE operation", e);
-            throw new RemoteException("Replication failed", e);
+            ReplicationPosition position = ReplicationPosition.read(positionFile);
+            if (position != null) {
+                historyId = position.getHistoryId();
+                appliedSeq = position.getSeq();
+                synchronized (positionLock) {
+                    durablePosition = position;
+                }
+                logger.info("Resuming replication from seq {}", appliedSeq);
+            }
+        } catch (IOException e) {
+            logger.warning("Could not read the replication position, a full copy will be needed: {}",
+                    e.getMessage());
         }
     }
 
-    @Override
-    public void syncFullDatabase(Map<Integer, WorkOrder> databaseCopy) throws RemoteException {
-        if (!isPrimary) {
-            // Backup receiving a full sync from primary
-            try {
-                logger.info("Receiving full database sync");
-                database.syncFromMap(databaseCopy);
-                logger.info("Database sync complete, {} records", databaseCopy.size());
-            } catch (Exception e) {
-                logger.error("Failed to sync database", e);
-                throw new RemoteException("Database sync failed", e);
+    /**
+     * Called under this after applying changes: the position is saved once
+     * the write-ahead log has them
+     */
+    private void savePositionWhenDurable() {
+        if (positionFile == null || positionLog == null) {
+            return;
+        }
+        ReplicationPosition position = new ReplicationPosition(historyId, appliedSeq);
+        long generation;
+        synchronized (positionLock) {
+            generation = positionGeneration;
+        }
+        positionLog.whenDurable(durable -> {
+            if (!durable) {
+                return;
             }
-        } else {
-            // Primary sending full database to a backup
-            try {
-                logger.info("Sending full database sync, {} records", database.getSize());
-                database.copyToMap(databaseCopy);
-            } catch (Exception e) {
-                logger.error("Failed to prepare database for sync", e);
-                throw new RemoteException("Database copy failed", e);
+            synchronized (positionLock) {
+                if (generation == positionGeneration && (durablePosition == null
+                        || position.getSeq() > durablePosition.getSeq())) {
+                    durablePosition = position;
+                    positionDirty = true;
+                }
             }
+        });
+    }
+
+    private void erasePosition() throws IOException {
+        if (positionFile == null) {
+            return;
+        }
+        synchronized (positionLock) {
+            positionGeneration++;
+            durablePosition = null;
+            positionDirty = false;
+            ReplicationPosition.erase(positionFile);
         }
     }
 
-    @Override
-    public boolean heartbeat() throws RemoteException {
-        // Simple heartbeat method
-        return true;
+    private void savePosition() {
+        synchronized (positionLock) {
+            if (!positionDirty) {
+                return;
+            }
+            try {
+                durablePosition.write(positionFile);
+                positionDirty = false;
+            } catch (IOException e) {
+                logger.warning("Could not save the replication position: {}", e.getMessage());
+            }
+        }
     }
 
     // ServerCoordinator interface methods
 
     @Override
-    public String registerAsBackup(String serverAddress, int port) throws RemoteException {
+    public String registerAsBackup(String serverAddress, int port, long historyId, long appliedSeq)
+            throws RemoteException {
         if (!isPrimary) {
             throw new RemoteException("Not primary server");
         }
@@ -283,11 +625,20 @@ public class ReplicationManager implements DatabaseReplicator, ServerCoordinator
             Registry backupRegistry = LocateRegistry.getRegistry(serverAddress, port);
             DatabaseReplicator backupReplicator = (DatabaseReplicator) backupRegistry.lookup("DatabaseReplicator");
 
-            // Store the remote reference
-            backupServers.put(backupId, backupReplicator);
-
-            // Send full database sync
-            backupReplicator.syncFullDatabase(new HashMap<>());
+            // Only what the backup misses, if it is from this log; the backup does not wait for it here
+            ReplicationLog log = replicationLog;
+            long resumeSeq = historyId == log.getHistoryId() && appliedSeq <= log.getLastSeq() ? appliedSeq : -1;
+            if (resumeSeq >= 0) {
+                logger.info("Backup {} resumes from seq {}, {} changes behind", backupId, resumeSeq,
+                        log.getLastSeq() - resumeSeq);
+            }
+            BackupShipper shipper = new BackupShipper(backupId, backupReplicator, log, database,
+                    maxBatch, snapshotChunk, resumeSeq, this::completeWaiters, logger);
+            BackupShipper previous = backupServers.put(backupId, shipper);
+            if (previous != null) {
+                previous.stop();
+            }
+            shipper.start();
 
             logger.info("Backup server registered: {}", backupId);
             return backupId;
@@ -307,64 +658,133 @@ public class ReplicationManager implements DatabaseReplicator, ServerCoordinator
         return backupServers.size();
     }
 
+    public AckMode getAckMode() {
+        return ackMode;
+    }
+
     /**
-     * Propagate a database change to all backup servers
+     * @return false on a backup, which only serves reads
      */
-    public void propagateAddWorkOrder(int code, String name, String description, String timestamp) {
-        if (!isPrimary)
-            return;
-
-        for (Map.Entry<String, DatabaseReplicator> entry : backupServers.entrySet()) {
-            String backupId = entry.getKey();
-            DatabaseReplicator backup = entry.getValue();
+    public boolean isWritable() {
+        return isPrimary;
+    }
 
-            try {
-                backup.replicateAddWorkOrder(code, name, description, timestamp);
-                logger.debug("Propagated ADD to backup: {}", backupId);
-            } catch (Exception e) {
-                logger.error("Failed to propagate ADD to backup: {}", backupId, e);
-            }
+    /**
+     * Seq of the primary the content read now is at least at, for the
+     * proxies to tell how stale a backup is. A backup answers -1 until the
+     * primary has confirmed its content since it registered.
+     */
+    public long getReadSeq() {
+        if (isPrimary) {
+            return database.getSequence();
         }
+        return confirmed ? appliedSeq : -1;
     }
 
     /**
-     * Propagate a remove operation to all backup servers
+     * Call back once the changes up to seq are confirmed as the ack mode
+     * asks. Only QUORUM waits here: for cfwos.replication.syncAcks backups of
+     * the synchronous set, or all of them if it has fewer. By default for the
+     * majority of the primary and its synchronous backups, so with one or two
+     * backups for one of them, with three or four for two. With no backup in
+     * sync nothing is waited for. The callback runs on a shipper thread, the
+     * timeout sweeper, or right away.
      */
-    public void propagateRemoveWorkOrder(int code) {
-        if (!isPrimary)
+    public void whenReplicated(long seq, ReplicationCallback callback) {
+        if (ackMode != AckMode.QUORUM || !isPrimary) {
+            callback.onReplicated(true);
             return;
-
-        for (Map.Entry<String, DatabaseReplicator> entry : backupServers.entrySet()) {
-            String backupId = entry.getKey();
-            DatabaseReplicator backup = entry.getValue();
-
-            try {
-                backup.replicateRemoveWorkOrder(code);
-                logger.debug("Propagated REMOVE to backup: {}", backupId);
-            } catch (Exception e) {
-                logger.error("Failed to propagate REMOVE to backup: {}", backupId, e);
+        }
+        synchronized (waiters) {
+            if (quorumSeq() < seq) {
+                waiters.computeIfAbsent(seq, key -> new ArrayList<>(1))
+                        .add(new Waiter(callback, System.currentTimeMillis() + ackTimeoutMillis));
+                return;
             }
         }
+        callback.onReplicated(true);
     }
 
     /**
-     * Propagate an update operation to all backup servers
+     * Seq confirmed by the quorum: the one the slowest of the fastest k
+     * synchronous backups has
      */
-    public void propagateUpdateWorkOrder(int code, String name, String description, String timestamp) {
-        if (!isPrimary)
-            return;
+    private long quorumSeq() {
+        List<BackupShipper> shippers = new ArrayList<>(backupServers.size());
+        for (BackupShipper shipper : backupServers.values()) {
+            if (shipper.isInSync()) {
+                shippers.add(shipper);
+            }
+        }
+        int needed = syncAcks > 0 ? Math.min(syncAcks, shippers.size()) : (shippers.size() + 1) / 2;
+        if (needed == 0) {
+            return Long.MAX_VALUE;
+        }
+        long[] acked = new long[shippers.size()];
+        for (int i = 0; i < acked.length; i++) {
+            acked[i] = shippers.get(i).getAckedSeq();
+        }
+        Arrays.sort(acked);
+        return acked[acked.length - needed];
+    }
 
-        for (Map.Entry<String, DatabaseReplicator> entry : backupServers.entrySet()) {
-            String backupId = entry.getKey();
-            DatabaseReplicator backup = entry.getValue();
+    private void completeWaiters() {
+        List<ReplicationCallback> ready = new ArrayList<>();
+        synchronized (waiters) {
+            if (waiters.isEmpty()) {
+                return;
+            }
+            Map<Long, List<Waiter>> confirmed = waiters.headMap(quorumSeq(), true);
+            for (List<Waiter> list : confirmed.values()) {
+                for (Waiter waiter : list) {
+                    ready.add(waiter.callback);
+                }
+            }
+            confirmed.clear();
+        }
+        for (ReplicationCallback callback : ready) {
+            callback.onReplicated(true);
+        }
+    }
 
-            try {
-                backup.replicateUpdateWorkOrder(code, name, description, timestamp);
-                logger.debug("Propagated UPDATE to backup: {}", backupId);
-            } catch (Exception e) {
-                logger.error("Failed to propagate UPDATE to backup: {}", backupId, e);
+    private void expireWaiters() {
+        // A backup that left or fell out of sync may have been the one missing
+        completeWaiters();
+
+        long now = System.currentTimeMillis();
+        List<ReplicationCallback> expired = new ArrayList<>();
+        synchronized (waiters) {
+            Iterator<List<Waiter>> lists = waiters.values().iterator();
+            while (lists.hasNext()) {
+                List<Waiter> list = lists.next();
+                list.removeIf(waiter -> {
+                    if (waiter.deadline > now) {
+                        return false;
+                    }
+                    expired.add(waiter.callback);
+                    return true;
+                });
+                if (list.isEmpty()) {
+                    lists.remove();
+                }
             }
         }
+        if (!expired.isEmpty()) {
+            logger.warning("{} writes not confirmed by a quorum of backups in {}ms", expired.size(),
+                    ackTimeoutMillis);
+        }
+        for (ReplicationCallback callback : expired) {
+            callback.onReplicated(false);
+        }
+    }
+
+    private void removeBackup(String backupId) {
+        BackupShipper shipper = backupServers.remove(backupId);
+        if (shipper != null) {
+            shipper.stop();
+            logger.info("Removed inactive backup: {}, {} batches with {} changes sent", backupId,
+                    shipper.getBatches(), shipper.getEntries());
+        }
     }
 
     /**
@@ -374,14 +794,20 @@ public class ReplicationManager implements DatabaseReplicator, ServerCoordinator
         logger.info("Shutting down replication manager");
 
         try {
-            scheduler.shutdown();
+            scheduler.shutdownNow();
+            savePosition();
+            database.removeListener(this);
+            for (String backupId : new ArrayList<>(backupServers.keySet())) {
+                removeBackup(backupId);
+            }
 
             // Unexport remote objects
-            if (isPrimary) {
+            if (stub != null) {
                 try {
-                    UnicastRemoteObject.unexportObject(this, true);
                     registry.unbind("DatabaseReplicator");
                     registry.unbind("ServerCoordinator");
+                    UnicastRemoteObject.unexportObject(this, true);
+                    UnicastRemoteObject.unexportObject(registry, true);
                 } catch (Exception e) {
                     logger.error("Error unexporting objects", e);
                 }
@@ -392,4 +818,4 @@ public class ReplicationManager implements DatabaseReplicator, ServerCoordinator
             logger.error("Error during replication manager shutdown", e);
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,89 @@
+package main.server.application.replication;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Até onde o banco de um backup, no disco, acompanha o log do primário.
+ *
+ * One line, "historyId seq": the primary's replication history (a new one
+ * each time a server becomes primary) and a seq of it whose changes are all
+ * on the backup's disk. A restarted backup sends it to the primary to get
+ * only the changes after it. It must never be ahead of the disk, so it is
+ * written only after the backup's write-ahead log has the changes, and
+ * erased before a full copy replaces the content.
+ */
+final class ReplicationPosition {
+    private final long historyId;
+    private final long seq;
+
+    ReplicationPosition(long historyId, long seq) {
+        this.historyId = historyId;
+        this.seq = seq;
+    }
+
+    long getHistoryId() {
+        return historyId;
+    }
+
+    long getSeq() {
+        return seq;
+    }
+
+    /**
+     * @return null se não há posição salva ou ela não pode ser lida
+     */
+    static ReplicationPosition read(Path file) throws IOException {
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if (lines.isEmpty()) {
+            return null;
+        }
+        String[] parts = lines.get(0).trim().split(" ");
+        if (parts.length != 2) {
+            return null;
+        }
+        try {
+            return new ReplicationPosition(Long.parseLong(parts[0]), Long.parseLong(parts[1]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    void write(Path file) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            BufferedWriter writer = new BufferedWriter(
+                    new OutputStreamWriter(Channels.newOutputStream(channel), StandardCharsets.UTF_8));
+            writer.write(historyId + " " + seq);
+            writer.newLine();
+            writer.flush();
+            channel.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static void erase(Path file) throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Override
+    public String toString() {
+        return historyId + ":" + seq;
+    }
+}
@@ -0,0 +1,53 @@
+package main.server.application.replication;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.rmi.server.RMIClientSocketFactory;
+
+/**
+ * Sockets com tempo limite para as chamadas RMI de replicação.
+ *
+ * The factory travels inside the stub the manager exports, so the other
+ * server's calls to it connect and wait for answers for at most
+ * {@code timeoutMillis}. A backup that hangs makes its own call fail with a
+ * RemoteException instead of holding the caller's thread for the default
+ * RMI timeout, which is unbounded.
+ */
+final class ReplicationSocketFactory implements RMIClientSocketFactory, Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final int timeoutMillis;
+
+    ReplicationSocketFactory(int timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), timeoutMillis);
+            socket.setSoTimeout(timeoutMillis);
+            socket.setTcpNoDelay(true);
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    // RMI reuses connections between stubs with equal factories
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof ReplicationSocketFactory
+                && ((ReplicationSocketFactory) other).timeoutMillis == timeoutMillis;
+    }
+
+    @Override
+    public int hashCode() {
+        return Integer.hashCode(timeoutMillis);
+    }
+}
@@ -7,8 +7,16 @@ import java.rmi.RemoteException;
  * Remote interface for server coordination
  */
 public interface ServerCoordinator extends Remote {
-    // Register as a backup server
-    String registerAsBackup(String serverAddress, int port) throws RemoteException;
+    /**
+     * Register as a backup server, or again after a restart or being dropped.
+     * The primary only sends the changes after appliedSeq if they are in its
+     * replication log, and a full copy otherwise.
+     *
+     * @param historyId  replication history appliedSeq belongs to, 0 for none
+     * @param appliedSeq last primary seq the backup has, -1 for none
+     */
+    String registerAsBackup(String serverAddress, int port, long historyId, long appliedSeq)
+            throws RemoteException;
     
     // Check primary status
     boolean isPrimary() throws RemoteException;
@@ -0,0 +1,80 @@
+package main.server.application.replication;
+
+import java.io.Serializable;
+
+import main.shared.models.WorkOrder;
+
+/**
+ * Um pedaço da cópia completa do banco do primário enviada a um backup.
+ *
+ * The copy is sent in key order, each chunk continuing after the last code of
+ * the previous one, which is also the token a transfer resumes from. The
+ * chunks are read at different moments, so the copy as a whole matches no
+ * single state; the backup applies the replication log from {@code seq} on
+ * top of it, which brings every work order to the primary's state.
+ */
+public final class SnapshotChunk implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final long historyId;
+    private final long transferId;
+    private final long seq;
+    // Code the chunk continues after, null for the first chunk
+    private final Integer after;
+    private final int[] codes;
+    private final WorkOrder[] workOrders;
+    private final boolean last;
+
+    /**
+     * @param historyId the primary's replication history the seq belongs to
+     * @param seq       primary seq when the first chunk was read, the log is
+     *                  applied from the change after it
+     */
+    SnapshotChunk(long historyId, long transferId, long seq, Integer after, int[] codes, WorkOrder[] workOrders,
+            boolean last) {
+        this.historyId = historyId;
+        this.transferId = transferId;
+        this.seq = seq;
+        this.after = after;
+        this.codes = codes;
+        this.workOrders = workOrders;
+        this.last = last;
+    }
+
+    public long getHistoryId() {
+        return historyId;
+    }
+
+    public long getTransferId() {
+        return transferId;
+    }
+
+    public long getSeq() {
+        return seq;
+    }
+
+    public Integer getAfter() {
+        return after;
+    }
+
+    public int[] getCodes() {
+        return codes;
+    }
+
+    public WorkOrder[] getWorkOrders() {
+        return workOrders;
+    }
+
+    public int size() {
+        return codes.length;
+    }
+
+    public boolean isLast() {
+        return last;
+    }
+
+    @Override
+    public String toString() {
+        return transferId + ":" + after + "+" + codes.length + (last ? ":last" : "");
+    }
+}
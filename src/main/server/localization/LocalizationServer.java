@@ -16,8 +16,10 @@ import java.util.ArrayList;
 import java.util.Set;
 
 import main.shared.log.Logger;
+import main.shared.messages.DispatchScheduler;
 import main.shared.messages.Message;
 import main.shared.messages.MessageBus;
+import main.shared.messages.MessageTransports;
 import main.shared.messages.MessageType;
 
 /**
@@ -290,7 +292,7 @@ public class LocalizationServer implements Runnable {
     public void run() {
         try {
             // Start the server socket
-            serverSocket = new ServerSocket(port);
+            serverSocket = MessageTransports.bind(port);
             logger.info("Localization server started on port {}", port);
 
             // Accept connections in a separate thread
@@ -302,6 +304,7 @@ public class LocalizationServer implements Runnable {
                     Thread.sleep(30000);
                     logger.debug("Active client connections: {}", connectedClients.size());
                     logger.debug("Active proxy servers: {}", activeProxies.size());
+                    logger.debug("Message dispatch: {}", DispatchScheduler.shared());
 
                     // Log active connections per proxy
                     for (ProxyInfo proxy : activeProxies.values()) {
@@ -335,7 +338,12 @@ public class LocalizationServer implements Runnable {
                 LocalizationServerHandler handler = new LocalizationServerHandler(clientSocket, clientId, this);
                 connectedClients.put(clientId, handler);
 
-                clientHandlerPool.submit(handler);
+                if (MessageTransports.isNioEnabled()) {
+                    // I/O runs on the shared event loops, no thread per client
+                    handler.start();
+                } else {
+                    clientHandlerPool.submit(handler);
+                }
             } catch (IOException e) {
                 if (running) {
                     logger.error("Error accepting client connection", e);
@@ -1,13 +1,15 @@
 package main.server.localization;
 
 import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
 import main.shared.log.Logger;
 import main.shared.messages.Message;
 import main.shared.messages.MessageBus;
+import main.shared.messages.MessageTransport;
+import main.shared.messages.MessageTransports;
 import main.shared.messages.MessageType;
-import main.shared.messages.SocketMessageTransport;
 
 /**
  * Handler for client connections to the localization server
@@ -18,9 +20,10 @@ public class LocalizationServerHandler implements Runnable {
     private final LocalizationServer server;
     private final Logger logger;
 
-    private SocketMessageTransport transport;
+    private MessageTransport transport;
     private MessageBus messageBus;
     private volatile boolean connected = true;
+    private final CountDownLatch closedLatch = new CountDownLatch(1);
     private volatile boolean messageProcessed = false;
     private static final long CONNECTION_TIMEOUT_MS = 30000; // 30 seconds timeout
 
@@ -44,7 +47,7 @@ public class LocalizationServerHandler implements Runnable {
     /**
      * Get the message transport
      */
-    public SocketMessageTransport getTransport() {
+    public MessageTransport getTransport() {
         return transport;
     }
 
@@ -68,14 +71,25 @@ public class LocalizationServerHandler implements Runnable {
         }
     }
 
+    /**
+     * Set up the connection without holding a thread. The handler closes
+     * itself when the transport does.
+     */
+    public void start() {
+        setupCommunication();
+        if (transport != null) {
+            transport.addCloseListener(this::close);
+        }
+    }
+
     @Override
     public void run() {
         try {
-            setupCommunication();
+            start();
 
             while (connected && !messageProcessed) {
                 try {
-                    Thread.sleep(1000);
+                    closedLatch.await(1, TimeUnit.SECONDS);
                 } catch (InterruptedException e) {
                     Thread.currentThread().interrupt();
                     break;
@@ -98,7 +112,7 @@ public class LocalizationServerHandler implements Runnable {
         try {
             // Create message bus for this handler
             messageBus = new MessageBus("LocalizationHandler-" + clientId, logger);
-            transport = new SocketMessageTransport(clientSocket, messageBus, logger, true);
+            transport = MessageTransports.open(clientSocket, messageBus, logger, true);
 
             // Subscribe to message types
             messageBus.subscribe(MessageType.START_REQUEST, this::handleStartRequest);
@@ -287,9 +301,10 @@ public class LocalizationServerHandler implements Runnable {
     /**
      * Close this client handler
      */
-    public void close() {
+    public synchronized void close() {
         if (connected) {
             connected = false;
+            closedLatch.countDown();
             try {
                 if (transport != null) {
                     transport.close();
@@ -297,6 +312,7 @@ public class LocalizationServerHandler implements Runnable {
 
                 if (messageBus != null) {
                     messageBus.unsubscribeAll();
+                    messageBus.close();
                 }
 
                 if (clientSocket != null && !clientSocket.isClosed()) {
@@ -0,0 +1,339 @@
+package main.server.proxy;
+
+import java.net.Socket;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import main.shared.log.Logger;
+import main.shared.messages.Message;
+import main.shared.messages.MessageBus;
+import main.shared.messages.MessageTransport;
+import main.shared.messages.MessageTransports;
+import main.shared.messages.MessageType;
+
+/**
+ * Pool de conexões de longa duração entre o proxy e o servidor de aplicação,
+ * compartilhado por todas as sessões de clientes.
+ *
+ * Client sessions are assigned round-robin to the connections and their
+ * responses are matched through {@link PendingRequests}, so any number of
+ * client sessions can share a connection. A session keeps using its
+ * connection while it is alive, which keeps the session's requests in order
+ * on the application server. Every connection is checked with
+ * PING/PONG and reopened when it drops or stops answering; requests that were
+ * in flight on a lost connection fail right away instead of waiting for the
+ * timeout.
+ *
+ * The first connection also subscribes to the cache invalidations of the
+ * application server, again every time it is reopened.
+ *
+ * The pool remembers the last seq the server reported, in PONGs and in the
+ * "seq" of its responses, which tells the {@link ReadRouter} how fresh a
+ * backup is. A backup may come back from a restart behind that seq, so a
+ * backup's pool forgets it when a connection closes or is reopened, and asks
+ * for it again with a PING right away.
+ *
+ * The pool size is set with "cfwos.proxy.appPoolSize" (default 4).
+ */
+public class ApplicationConnectionPool {
+    private static final String POOL_SIZE_PROPERTY = "cfwos.proxy.appPoolSize";
+    private static final int DEFAULT_POOL_SIZE = 4;
+    private static final long HEALTH_CHECK_INTERVAL_MS = 5000;
+    private static final long HEALTH_CHECK_TIMEOUT_MS = 15000;
+
+    private final String host;
+    private final int port;
+    private final PendingRequests pendingRequests;
+    private final CacheInvalidations invalidations;
+    private final Logger logger;
+    private final Connection[] connections;
+    // Pool of a backup, whose seq is not trusted across reconnections
+    private final boolean replica;
+    private final AtomicInteger next = new AtomicInteger();
+    private final AtomicBoolean started = new AtomicBoolean(false);
+    // Last seq reported by the server, -1 before any
+    private volatile long seq = -1;
+    private final ScheduledExecutorService healthChecker;
+
+    public ApplicationConnectionPool(String host, int port, PendingRequests pendingRequests,
+            CacheInvalidations invalidations, Logger logger) {
+        this(host, port, Integer.getInteger(POOL_SIZE_PROPERTY, DEFAULT_POOL_SIZE), pendingRequests, invalidations,
+                false, logger);
+    }
+
+    /**
+     * @param invalidations recebe as invalidações de cache, null para não
+     *                      se inscrever
+     * @param replica       pool de um backup
+     */
+    public ApplicationConnectionPool(String host, int port, int size, PendingRequests pendingRequests,
+            CacheInvalidations invalidations, boolean replica, Logger logger) {
+        this.host = host;
+        this.port = port;
+        this.pendingRequests = pendingRequests;
+        this.invalidations = invalidations;
+        this.replica = replica;
+        this.logger = logger;
+        this.connections = new Connection[Math.max(1, size)];
+        for (int i = 0; i < connections.length; i++) {
+            connections[i] = new Connection(i);
+        }
+        this.healthChecker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "app-pool-health-check");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Open the connections and start the health checks. Connections that
+     * cannot be opened now are retried by the health check.
+     */
+    public void start() {
+        if (!started.compareAndSet(false, true)) {
+            return;
+        }
+        for (Connection connection : connections) {
+            connection.connect();
+        }
+        healthChecker.scheduleWithFixedDelay(this::checkConnections,
+                HEALTH_CHECK_INTERVAL_MS, HEALTH_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        logger.info("Application server pool started: {}/{} connections to {}:{}",
+                getLiveConnections(), connections.length, host, port);
+    }
+
+    /**
+     * Connection slot for a new client session
+     */
+    public int assignSlot() {
+        return Math.floorMod(next.getAndIncrement(), connections.length);
+    }
+
+    /**
+     * Send a correlated request on the session's connection, or on the next
+     * live one if that connection is down
+     *
+     * @return false if no connection to the application server is available
+     */
+    public boolean send(Message request, int slot) {
+        start();
+
+        for (int attempt = 0; attempt < connections.length; attempt++) {
+            Connection connection = connections[Math.floorMod(slot + attempt, connections.length)];
+            if (connection.send(request)) {
+                return true;
+            }
+        }
+
+        // Every connection is down, try to reopen the session's one before giving up
+        Connection connection = connections[Math.floorMod(slot, connections.length)];
+        return connection.connect() && connection.send(request);
+    }
+
+    public int getLiveConnections() {
+        int live = 0;
+        for (Connection connection : connections) {
+            if (connection.isAlive()) {
+                live++;
+            }
+        }
+        return live;
+    }
+
+    public int getSize() {
+        return connections.length;
+    }
+
+    /**
+     * Seq of the primary the server last said its content is at, -1 if it
+     * has none yet
+     */
+    public long getSeq() {
+        return seq;
+    }
+
+    public String getAddress() {
+        return host + ":" + port;
+    }
+
+    public void shutdown() {
+        healthChecker.shutdownNow();
+        for (Connection connection : connections) {
+            connection.close();
+        }
+    }
+
+    private void checkConnections() {
+        for (Connection connection : connections) {
+            try {
+                connection.checkHealth();
+            } catch (Exception e) {
+                logger.error("Error checking application server connection", e);
+            }
+        }
+    }
+
+    /**
+     * One multiplexed connection to the application server
+     */
+    private final class Connection {
+        private final int index;
+        private volatile MessageTransport transport;
+        // Correlation ids sent on this connection and not answered yet
+        private final Set<Long> inFlight = ConcurrentHashMap.newKeySet();
+        private volatile long lastPingSent;
+        private volatile long lastPongReceived;
+
+        Connection(int index) {
+            this.index = index;
+        }
+
+        boolean isAlive() {
+            MessageTransport current = transport;
+            return current != null && current.isRunning();
+        }
+
+        synchronized boolean connect() {
+            if (isAlive()) {
+                return true;
+            }
+
+            try {
+                Socket socket = new Socket(host, port);
+
+                MessageBus bus = new MessageBus("ProxyToApp-" + index, logger);
+                bus.subscribe(MessageType.DATA_RESPONSE, this::handleDataResponse);
+                bus.subscribe(MessageType.PONG, this::handlePong);
+                if (carriesInvalidations()) {
+                    bus.subscribe(MessageType.CACHE_INVALIDATE, invalidations::handle);
+                }
+
+                MessageTransport opened = MessageTransports.open(socket, bus, logger, false);
+                opened.addCloseListener(() -> handleClosed(opened, bus));
+
+                lastPingSent = 0;
+                lastPongReceived = 0;
+                transport = opened;
+                logger.info("Application server connection {} opened", index);
+                if (replica) {
+                    // Not routed to until the backup says again where it is
+                    seq = -1;
+                    lastPingSent = System.currentTimeMillis();
+                    opened.sendMessage(new Message(MessageType.PING, "ProxyToApp-" + index, "AppServer",
+                            lastPingSent));
+                }
+                if (carriesInvalidations()) {
+                    opened.sendMessage(new Message(MessageType.CACHE_SUBSCRIBE, "ProxyToApp-" + index, "AppServer",
+                            null));
+                }
+                return true;
+            } catch (Exception e) {
+                logger.warning("Failed to open application server connection {}: {}", index, e.getMessage());
+                return false;
+            }
+        }
+
+        private boolean carriesInvalidations() {
+            return index == 0 && invalidations != null;
+        }
+
+        boolean send(Message request) {
+            MessageTransport current = transport;
+            if (current == null || !current.isRunning()) {
+                return false;
+            }
+
+            long id = request.getCorrelationId();
+            inFlight.add(id);
+            current.sendMessage(request);
+
+            // Closed meanwhile: the close listener may have missed this id
+            if (!current.isRunning() && inFlight.remove(id)) {
+                return false;
+            }
+            return true;
+        }
+
+        private void handlePong(Message message) {
+            lastPongReceived = System.currentTimeMillis();
+            if (message.getPayload() instanceof Long) {
+                seq = (Long) message.getPayload();
+            }
+        }
+
+        private void handleDataResponse(Message message) {
+            inFlight.remove(message.getCorrelationId());
+            if (message.getPayload() instanceof Map<?, ?>) {
+                Object reported = ((Map<?, ?>) message.getPayload()).get("seq");
+                if (reported != null) {
+                    try {
+                        seq = Long.parseLong(reported.toString());
+                    } catch (NumberFormatException e) {
+                        logger.warning("Invalid seq in DATA_RESPONSE: {}", reported);
+                    }
+                }
+            }
+            if (!pendingRequests.complete(message)) {
+                logger.warning("Dropping DATA_RESPONSE with unknown correlation id {}", message.getCorrelationId());
+            }
+        }
+
+        private void handleClosed(MessageTransport closed, MessageBus bus) {
+            synchronized (this) {
+                if (transport == closed) {
+                    transport = null;
+                }
+            }
+            bus.close();
+            if (replica) {
+                seq = -1;
+            }
+
+            logger.warning("Application server connection {} lost, {} requests in flight",
+                    index, inFlight.size());
+            if (carriesInvalidations()) {
+                invalidations.onSubscriptionLost();
+            }
+            for (Long id : inFlight) {
+                if (inFlight.remove(id)) {
+                    pendingRequests.fail(id, "Connection to application server lost");
+                }
+            }
+        }
+
+        void checkHealth() {
+            MessageTransport current = transport;
+            if (current == null || !current.isRunning()) {
+                if (connect()) {
+                    logger.info("Application server connection {} reconnected", index);
+                }
+                return;
+            }
+
+            long now = System.currentTimeMillis();
+            if (lastPingSent > lastPongReceived && now - lastPingSent > HEALTH_CHECK_TIMEOUT_MS) {
+                logger.warning("Application server connection {} stopped answering PING, reconnecting", index);
+                current.close();
+                return;
+            }
+
+            if (lastPingSent <= lastPongReceived) {
+                lastPingSent = now;
+                current.sendMessage(new Message(MessageType.PING, "ProxyToApp-" + index, "AppServer", now));
+            }
+        }
+
+        void close() {
+            MessageTransport current = transport;
+            if (current != null) {
+                current.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package main.server.proxy;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import main.server.proxy.cache.ShardedCache;
+import main.shared.log.Logger;
+import main.shared.messages.Message;
+import main.shared.models.WorkOrder;
+
+/**
+ * Aplica nas caches do proxy as invalidações publicadas pelo servidor de
+ * aplicação (CACHE_INVALIDATE).
+ *
+ * The pool subscribes on one of its connections. Each "code|seq" entry drops
+ * the code from the cache and keeps SEARCH results read before seq out of
+ * it; "*|seq" drops everything. The negative cache gets the same
+ * invalidations, so an ADD ends the "not found" answers for its code. While
+ * the subscribed connection is down the proxy cannot hear about changes, so
+ * the caches are emptied when it drops and again by the "*|seq" that answers
+ * the next subscription.
+ */
+public class CacheInvalidations {
+    private final ShardedCache<Integer, WorkOrder> cache;
+    private final ShardedCache<Integer, Integer> missingCodes;
+    private final Logger logger;
+    private final AtomicLong received = new AtomicLong();
+    private volatile long lastSeq;
+    private final CountDownLatch subscribed = new CountDownLatch(1);
+
+    public CacheInvalidations(ShardedCache<Integer, WorkOrder> cache, ShardedCache<Integer, Integer> missingCodes,
+            Logger logger) {
+        this.cache = cache;
+        this.missingCodes = missingCodes;
+        this.logger = logger;
+    }
+
+    public void handle(Message message) {
+        if (!(message.getPayload() instanceof String[])) {
+            logger.warning("Ignoring CACHE_INVALIDATE with payload {}", message.getPayload());
+            return;
+        }
+
+        for (String invalidation : (String[]) message.getPayload()) {
+            int separator = invalidation.indexOf('|');
+            if (separator < 0) {
+                logger.warning("Ignoring malformed cache invalidation {}", invalidation);
+                continue;
+            }
+            try {
+                long seq = Long.parseLong(invalidation.substring(separator + 1));
+                String code = invalidation.substring(0, separator);
+                if ("*".equals(code)) {
+                    cache.invalidateAll(seq);
+                    missingCodes.invalidateAll(seq);
+                    logger.info("Cache emptied by invalidation up to seq {}", seq);
+                    subscribed.countDown();
+                } else {
+                    int key = Integer.parseInt(code);
+                    cache.invalidate(key, seq);
+                    missingCodes.invalidate(key, seq);
+                }
+                lastSeq = Math.max(lastSeq, seq);
+                received.incrementAndGet();
+            } catch (NumberFormatException e) {
+                logger.warning("Ignoring malformed cache invalidation {}", invalidation);
+            }
+        }
+    }
+
+    /**
+     * The subscribed connection dropped, changes from now on are missed
+     */
+    public void onSubscriptionLost() {
+        cache.clear();
+        missingCodes.clear();
+        logger.warning("Cache invalidations lost, caches emptied until the subscription is back");
+    }
+
+    /**
+     * Espera a primeira inscrição ser aceita. Its "*|seq" empties the cache,
+     * so whatever is loaded before it is lost.
+     *
+     * @return false se o tempo acabou antes
+     */
+    public boolean awaitSubscription(long timeoutMillis) throws InterruptedException {
+        return subscribed.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public long getReceived() {
+        return received.get();
+    }
+
+    /**
+     * Seq of the newest change heard from the application server
+     */
+    public long getLastSeq() {
+        return lastSeq;
+    }
+}
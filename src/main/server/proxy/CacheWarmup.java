@@ -0,0 +1,264 @@
+package main.server.proxy;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import main.server.proxy.cache.ShardedCache;
+import main.shared.log.Logger;
+import main.shared.messages.Message;
+import main.shared.messages.MessageType;
+import main.shared.models.WorkOrder;
+import main.shared.utils.TypeUtil;
+
+/**
+ * Guarda as chaves mais quentes da cache do proxy e as recarrega quando o
+ * proxy reinicia.
+ *
+ * The hottest keys, as many as the cache holds, are saved with their hit
+ * counts to "cfwos.cache.hotKeysFile" ("code hits" per line, hottest first)
+ * every "cfwos.cache.hotKeysSaveSeconds" seconds and on shutdown; an empty
+ * file name turns it off. On startup, before the proxy registers with the
+ * localization server, the saved keys are read from the application server
+ * with SEARCHBATCH, {@value #BATCH_SIZE} codes per request, and preloaded
+ * with their counts, so a restarted proxy does not send the whole read load
+ * to the application server while its cache refills.
+ */
+public class CacheWarmup implements Closeable {
+    private static final String FILE_PROPERTY = "cfwos.cache.hotKeysFile";
+    private static final String SAVE_INTERVAL_PROPERTY = "cfwos.cache.hotKeysSaveSeconds";
+    private static final long DEFAULT_SAVE_INTERVAL_SECONDS = 60;
+    private static final int BATCH_SIZE = 100;
+    // Startup waits at most this long for the application server
+    private static final long WARMUP_TIMEOUT_MS = 10000;
+
+    private final ShardedCache<Integer, WorkOrder> cache;
+    private final ApplicationConnectionPool applicationPool;
+    private final PendingRequests pendingRequests;
+    private final CacheInvalidations invalidations;
+    private final Path file;
+    private final Logger logger;
+    private ScheduledExecutorService saver;
+
+    /**
+     * @param defaultFile arquivo usado se "cfwos.cache.hotKeysFile" não foi
+     *                    definido
+     */
+    public CacheWarmup(ShardedCache<Integer, WorkOrder> cache, ApplicationConnectionPool applicationPool,
+            PendingRequests pendingRequests, CacheInvalidations invalidations, String defaultFile, Logger logger) {
+        this.cache = cache;
+        this.applicationPool = applicationPool;
+        this.pendingRequests = pendingRequests;
+        this.invalidations = invalidations;
+        String fileName = System.getProperty(FILE_PROPERTY, defaultFile);
+        this.file = fileName == null || fileName.isEmpty() ? null : Paths.get(fileName);
+        this.logger = logger;
+    }
+
+    /**
+     * Recarrega na cache as chaves salvas, lendo-as do servidor de aplicação
+     *
+     * @return número de work orders carregados
+     */
+    public int warmUp() {
+        Map<Integer, Integer> saved = load();
+        if (saved.isEmpty()) {
+            return 0;
+        }
+        long start = System.currentTimeMillis();
+
+        try {
+            // The "*|seq" answering the subscription empties the cache, it has to come first
+            if (!invalidations.awaitSubscription(WARMUP_TIMEOUT_MS)) {
+                logger.warning("No cache invalidation subscription, starting with an empty cache");
+                return 0;
+            }
+
+            List<Integer> codes = new ArrayList<>(saved.keySet());
+            int batches = (codes.size() + BATCH_SIZE - 1) / BATCH_SIZE;
+            CountDownLatch done = new CountDownLatch(batches);
+            List<Message> responses = Collections.synchronizedList(new ArrayList<>(batches));
+            for (int batch = 0; batch < batches; batch++) {
+                List<Integer> chunk = codes.subList(batch * BATCH_SIZE,
+                        Math.min(codes.size(), (batch + 1) * BATCH_SIZE));
+                StringBuilder request = new StringBuilder("SEARCHBATCH|");
+                for (int i = 0; i < chunk.size(); i++) {
+                    request.append(i > 0 ? "," : "").append(chunk.get(i));
+                }
+
+                long id = pendingRequests.register(new PendingRequests.ResponseHandler() {
+                    @Override
+                    public void onResponse(Message response) {
+                        responses.add(response);
+                        done.countDown();
+                    }
+
+                    @Override
+                    public void onFailure(String reason) {
+                        logger.warning("Cache warm-up batch failed: {}", reason);
+                        done.countDown();
+                    }
+                });
+                Message message = new Message(MessageType.DATA_REQUEST, "CacheWarmup", "AppServer",
+                        request.toString(), id);
+                if (!applicationPool.send(message, batch)) {
+                    pendingRequests.fail(id, "Application server unavailable");
+                }
+            }
+            if (!done.await(WARMUP_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                logger.warning("Cache warm-up timed out, loading the batches already answered");
+            }
+
+            int loaded = preload(responses, saved);
+            logger.info("Cache warmed up with {} of {} saved work orders in {}ms", loaded, saved.size(),
+                    System.currentTimeMillis() - start);
+            return loaded;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 0;
+        }
+    }
+
+    /**
+     * Começa a salvar as chaves quentes periodicamente
+     */
+    public synchronized void start() {
+        long interval = Long.getLong(SAVE_INTERVAL_PROPERTY, DEFAULT_SAVE_INTERVAL_SECONDS);
+        if (file == null || interval <= 0 || saver != null) {
+            return;
+        }
+        saver = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "cache-hot-keys");
+            t.setDaemon(true);
+            return t;
+        });
+        saver.scheduleWithFixedDelay(this::save, interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Grava as chaves quentes, substituindo o arquivo de uma vez
+     */
+    public synchronized void save() {
+        if (file == null) {
+            return;
+        }
+        Map<Integer, Integer> hotKeys = cache.getHotKeys(cache.getMaxEntries());
+        // An emptied cache (lost subscription, shutdown right after start) would only erase the last good set
+        if (hotKeys.isEmpty()) {
+            return;
+        }
+
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                for (Map.Entry<Integer, Integer> hotKey : hotKeys.entrySet()) {
+                    writer.write(hotKey.getKey() + " " + hotKey.getValue());
+                    writer.newLine();
+                }
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            logger.debug("Saved {} hot cache keys to {}", hotKeys.size(), file);
+        } catch (IOException e) {
+            logger.error("Could not save hot cache keys to {}: {}", file, e.getMessage());
+        }
+    }
+
+    /**
+     * Para o salvamento periódico e salva uma última vez
+     */
+    @Override
+    public void close() {
+        ScheduledExecutorService running;
+        synchronized (this) {
+            running = saver;
+            saver = null;
+        }
+        if (running != null) {
+            running.shutdownNow();
+        }
+        save();
+    }
+
+    /**
+     * @return código e acertos, do mais quente para o mais frio
+     */
+    private Map<Integer, Integer> load() {
+        Map<Integer, Integer> saved = new LinkedHashMap<>();
+        if (file == null) {
+            return saved;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null && saved.size() < cache.getMaxEntries()) {
+                String[] parts = line.trim().split("\\s+");
+                try {
+                    saved.put(Integer.parseInt(parts[0]), parts.length > 1 ? Integer.parseInt(parts[1]) : 0);
+                } catch (NumberFormatException e) {
+                    logger.warning("Ignoring malformed hot key line: {}", line);
+                }
+            }
+        } catch (NoSuchFileException e) {
+            logger.info("No hot cache keys saved in {}, starting with an empty cache", file);
+        } catch (IOException e) {
+            logger.error("Could not read hot cache keys from {}: {}", file, e.getMessage());
+        }
+        return saved;
+    }
+
+    private int preload(List<Message> responses, Map<Integer, Integer> saved) {
+        List<WorkOrder> workOrders = new ArrayList<>();
+        Map<Integer, Long> readSeqs = new LinkedHashMap<>();
+        synchronized (responses) {
+            for (Message response : responses) {
+                Optional<Map<String, String>> responseMap = TypeUtil.safeCastToMap(response.getPayload(),
+                        String.class, String.class);
+                if (!responseMap.isPresent() || !"success".equals(responseMap.get().get("status"))) {
+                    logger.warning("Cache warm-up batch rejected: {}", response.getPayload());
+                    continue;
+                }
+                Map<String, String> batch = responseMap.get();
+                try {
+                    long seq = Long.parseLong(batch.get("seq"));
+                    int found = Integer.parseInt(batch.get("found"));
+                    for (int i = 0; i < found; i++) {
+                        WorkOrder workOrder = new WorkOrder(Integer.parseInt(batch.get("code." + i)),
+                                batch.get("name." + i), batch.get("description." + i), batch.get("timestamp." + i));
+                        workOrders.add(workOrder);
+                        readSeqs.put(workOrder.getCode(), seq);
+                    }
+                } catch (RuntimeException e) {
+                    logger.warning("Cache warm-up batch malformed: {}", e.getMessage());
+                }
+            }
+        }
+
+        // Coldest first, so policies that keep the newest entries keep the hottest
+        workOrders.sort((a, b) -> Integer.compare(saved.getOrDefault(a.getCode(), 0),
+                saved.getOrDefault(b.getCode(), 0)));
+        int loaded = 0;
+        for (WorkOrder workOrder : workOrders) {
+            if (cache.preload(workOrder, readSeqs.get(workOrder.getCode()),
+                    saved.getOrDefault(workOrder.getCode(), 0))) {
+                loaded++;
+            }
+        }
+        return loaded;
+    }
+}
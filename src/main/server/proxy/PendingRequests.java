@@ -0,0 +1,122 @@
+package main.server.proxy;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import main.shared.log.Logger;
+import main.shared.messages.Message;
+
+/**
+ * Tabela de requisições encaminhadas ao servidor de aplicação que ainda
+ * aguardam resposta, compartilhada por todos os handlers do proxy.
+ *
+ * Cada requisição encaminhada recebe um correlation id único no proxy. O
+ * servidor de aplicação devolve esse id no DATA_RESPONSE, então as respostas
+ * podem chegar fora de ordem e várias requisições podem estar em andamento
+ * na mesma conexão. Requisições sem resposta dentro do timeout
+ * ("cfwos.proxy.requestTimeoutMillis", padrão 10s) falham.
+ */
+public class PendingRequests {
+    private static final String TIMEOUT_PROPERTY = "cfwos.proxy.requestTimeoutMillis";
+    private static final long DEFAULT_TIMEOUT_MS = 10000;
+
+    /**
+     * Receives the outcome of a forwarded request, exactly once
+     */
+    public interface ResponseHandler {
+        void onResponse(Message response);
+
+        void onFailure(String reason);
+    }
+
+    private static final class PendingRequest {
+        final ResponseHandler handler;
+        final long deadline;
+
+        PendingRequest(ResponseHandler handler, long deadline) {
+            this.handler = handler;
+            this.deadline = deadline;
+        }
+    }
+
+    private final Map<Long, PendingRequest> pending = new ConcurrentHashMap<>();
+    private final AtomicLong nextId = new AtomicLong();
+    private final long timeoutMillis;
+    private final Logger logger;
+    private final ScheduledExecutorService sweeper;
+
+    public PendingRequests(Logger logger) {
+        this(Long.getLong(TIMEOUT_PROPERTY, DEFAULT_TIMEOUT_MS), logger);
+    }
+
+    public PendingRequests(long timeoutMillis, Logger logger) {
+        this.timeoutMillis = timeoutMillis;
+        this.logger = logger;
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "pending-requests-sweeper");
+            t.setDaemon(true);
+            return t;
+        });
+        sweeper.scheduleWithFixedDelay(this::expire, 1, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Register a request about to be forwarded
+     *
+     * @return correlation id the forwarded request must carry
+     */
+    public long register(ResponseHandler handler) {
+        long id = nextId.incrementAndGet();
+        pending.put(id, new PendingRequest(handler, System.currentTimeMillis() + timeoutMillis));
+        return id;
+    }
+
+    /**
+     * Route a response to the handler waiting for it
+     *
+     * @return false if no request is waiting for this correlation id
+     */
+    public boolean complete(Message response) {
+        PendingRequest request = pending.remove(response.getCorrelationId());
+        if (request == null) {
+            return false;
+        }
+        request.handler.onResponse(response);
+        return true;
+    }
+
+    /**
+     * Fail a request that could not be forwarded
+     */
+    public void fail(long id, String reason) {
+        PendingRequest request = pending.remove(id);
+        if (request != null) {
+            request.handler.onFailure(reason);
+        }
+    }
+
+    /**
+     * Requests still waiting for a response
+     */
+    public int size() {
+        return pending.size();
+    }
+
+    private void expire() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<Long, PendingRequest> entry : pending.entrySet()) {
+            if (entry.getValue().deadline <= now && pending.remove(entry.getKey(), entry.getValue())) {
+                logger.warning("Request {} timed out waiting for the application server", entry.getKey());
+                try {
+                    entry.getValue().handler.onFailure("Timed out waiting for the application server");
+                } catch (Exception e) {
+                    logger.error("Error failing timed out request", e);
+                }
+            }
+        }
+    }
+}
@@ -10,10 +10,11 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 import main.server.localization.LocalizationServerHandler;
 import main.server.proxy.auth.AuthService;
-import main.server.proxy.cache.CacheFIFO;
+import main.server.proxy.cache.ShardedCache;
 import main.shared.log.Logger;
 import main.shared.messages.Message;
 import main.shared.messages.MessageBus;
+import main.shared.messages.MessageTransports;
 import main.shared.messages.MessageType;
 import main.shared.messages.SocketMessageTransport;
 import main.shared.models.WorkOrder;
@@ -34,15 +35,42 @@ public class ProxyServer {
     private SocketMessageTransport localizationTransport;
     private Thread heartbeatThread;
 
+    // Chaves quentes da cache salvas entre reinícios
+    private final CacheWarmup cacheWarmup;
+
     // Registration synchronization
     private final Object registrationLock = new Object();
     private volatile boolean registrationComplete = false;
 
     // Cache compartilhada entre todos os handlers
-    public static final CacheFIFO<WorkOrder> cache = new CacheFIFO<WorkOrder>();
+    public static final ShardedCache<Integer, WorkOrder> cache = new ShardedCache<>(WorkOrder::getCode);
+
+    // Códigos que o servidor de aplicação respondeu não existirem (cache negativa)
+    public static final ShardedCache<Integer, Integer> missingCodes = ShardedCache.negative();
+
+    // Requisições encaminhadas ao servidor de aplicação aguardando resposta
+    public static final PendingRequests pendingRequests = new PendingRequests(Logger.getLogger("PendingRequests"));
+
+    // SEARCHes encaminhadas por código, para buscas simultâneas do mesmo código irem uma vez só
+    public static final SearchFlights searchFlights = new SearchFlights();
+
+    // Invalidações da cache publicadas pelo servidor de aplicação
+    public static final CacheInvalidations cacheInvalidations = new CacheInvalidations(cache,
+            missingCodes, Logger.getLogger("CacheInvalidations"));
+
+    // Conexões com o servidor de aplicação compartilhadas por todos os handlers
+    private static final String APP_SERVER_HOST = "localhost";
+    private static final int APP_SERVER_PORT = 33330;
+    public static final ApplicationConnectionPool applicationPool = new ApplicationConnectionPool(
+            APP_SERVER_HOST, APP_SERVER_PORT, pendingRequests, cacheInvalidations,
+            Logger.getLogger("ApplicationConnectionPool"));
+
+    // Leituras divididas entre o servidor de aplicação e os backups atualizados
+    public static final ReadRouter readRouter = new ReadRouter(applicationPool, pendingRequests,
+            cacheInvalidations, Logger.getLogger("ReadRouter"));
 
-    public static int connectionCount = 0;
-    public static int activeConnections = 0;
+    public static final AtomicInteger connectionCount = new AtomicInteger(0);
+    public static final AtomicInteger activeConnections = new AtomicInteger(0);
 
     private final Map<String, LocalizationServerHandler> connectedClients = new ConcurrentHashMap<>();
     private final AtomicInteger nextClientId = new AtomicInteger(1);
@@ -52,6 +80,8 @@ public class ProxyServer {
         this.logger = Logger.getLogger(serverId);
         this.authService = AuthService.getInstance();
         SERVER_PORT = port;
+        this.cacheWarmup = new CacheWarmup(cache, applicationPool, pendingRequests, cacheInvalidations,
+                "proxy-" + port + "-hotkeys.txt", Logger.getLogger("CacheWarmup"));
 
         // Initialize message bus
         this.messageBus = new MessageBus("ProxyServer-" + SERVER_PORT, logger);
@@ -61,7 +91,8 @@ public class ProxyServer {
         messageBus.subscribe(MessageType.PING, this::handlePing);
 
         // Inicializa o sistema de cache
-        logger.info("Sistema de cache inicializado com política FIFO");
+        logger.info("Sistema de cache inicializado com política {} em {} segmentos", cache.getPolicyName(),
+                cache.getShardCount());
 
         // Add shutdown hook for cleanup
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
@@ -75,12 +106,19 @@ public class ProxyServer {
 
         logger.info("Proxy Server initialized");
 
+        // Open the shared connections to the application server and refill the cache before clients are sent here
+        applicationPool.start();
+        readRouter.start();
+        cacheWarmup.warmUp();
+
         // Register with localization server before starting
         sendStartSignal();
 
         // Wait for registration to complete
         waitForRegistration();
 
+        cacheWarmup.start();
+
         // Monitor localization connection
         // startLocalizationConnectionMonitor();
 
@@ -89,7 +127,7 @@ public class ProxyServer {
 
     private void run() {
         try {
-            serverSocket = new ServerSocket(SERVER_PORT);
+            serverSocket = MessageTransports.bind(SERVER_PORT);
             logger.info("Proxy Server listening on port {}", SERVER_PORT);
 
             // Main server loop
@@ -102,13 +140,18 @@ public class ProxyServer {
                         clientSocket.getPort());
 
                 // Update connection counters
-                connectionCount++;
-                activeConnections++;
+                connectionCount.incrementAndGet();
+                activeConnections.incrementAndGet();
 
                 // Create handler for this client
                 ProxyServerHandler handler = new ProxyServerHandler(clientSocket, authService, logger, cache);
-                Thread thread = new Thread(handler);
-                thread.start();
+                if (MessageTransports.isNioEnabled()) {
+                    // I/O runs on the shared event loops, no thread per client
+                    handler.start();
+                } else {
+                    Thread thread = new Thread(handler);
+                    thread.start();
+                }
             }
         } catch (Exception e) {
             if (running) {
@@ -222,8 +265,8 @@ public class ProxyServer {
             logger.info("Sent registration request to localization server: {}", registrationMsg.getPayload());
             localizationTransport.sendMessage(registrationMsg);
 
-            // Wait again for the new registration response
-            waitForRegistration();
+            // The response arrives on this same bus lane, so it must not be
+            // awaited here. The constructor is still waiting for it.
 
         } catch (Exception e) {
             logger.error("Error handling registration conflict", e);
@@ -249,7 +292,7 @@ public class ProxyServer {
                                 serverId,
                                 SERVER_IP,
                                 String.valueOf(SERVER_PORT),
-                                String.valueOf(activeConnections)
+                                String.valueOf(activeConnections.get())
                         });
 
                 // Use the existing localizationTransport
@@ -275,6 +318,16 @@ public class ProxyServer {
                 localizationTransport.close();
             }
 
+            // Salva as chaves quentes para o próximo início, antes que a queda da inscrição esvazie a cache
+            cacheWarmup.close();
+
+            // Close application server connections
+            applicationPool.shutdown();
+            readRouter.shutdown();
+
+            // Grava o que falta do trace da cache
+            cache.close();
+
             // Shutdown message bus
             if (messageBus != null) {
                 messageBus.unsubscribeAll();
@@ -298,8 +351,6 @@ public class ProxyServer {
 
     // Method to handle client disconnection, update active connections
     public static void clientDisconnected() {
-        if (activeConnections > 0) {
-            activeConnections--;
-        }
+        activeConnections.updateAndGet(count -> count > 0 ? count - 1 : 0);
     }
 }
\ No newline at end of file
@@ -1,11 +1,16 @@
 package main.server.proxy;
 
 import java.net.Socket;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import main.server.proxy.auth.AuthService;
-import main.server.proxy.cache.CacheFIFO;
+import main.server.proxy.cache.ShardedCache;
 import main.shared.log.Logger;
 import main.shared.messages.*;
 import main.shared.models.WorkOrder;
@@ -14,90 +19,85 @@ import main.shared.utils.TypeUtil;
 
 import java.util.HashMap;
 
+/**
+ * Sessão de um cliente no proxy.
+ *
+ * The session state below belongs to this client only. Its messages are
+ * handled one at a time on the session's bus lane, so the state needs no
+ * locking; the only shared structures (cache, pending requests, application
+ * server pool) are thread-safe on their own. Sessions never wait for each
+ * other. The exception is what the session knows of its own writes, which is
+ * updated when their responses arrive.
+ *
+ * Reads (SEARCH, SEARCHBATCH, SHOW, STATS) may be served by a backup through
+ * the {@link ReadRouter}, as long as it has the session's last write. While a
+ * write is still unanswered the session reads from the primary, on the same
+ * connection as the write, so the read comes after it.
+ */
 public class ProxyServerHandler implements Runnable {
+    private static final int DEFAULT_CACHE_PAGE = 20;
+    private static final int MAX_CACHE_PAGE = 100;
+    // Resposta do servidor de aplicação a um SEARCH de código que não existe
+    private static final String NOT_FOUND = "Work order not found";
 
     // Detalhes do Proxy
-    private static final Object lock = new Object();
     private int loginTries = 0;
     private Socket clientSocket;
     private AuthService authService;
     private Logger logger;
-    private CacheFIFO<WorkOrder> cache;
+    private ShardedCache<Integer, WorkOrder> cache;
+    private final ShardedCache<Integer, Integer> missingCodes = ProxyServer.missingCodes;
+    private final PendingRequests pendingRequests = ProxyServer.pendingRequests;
+    private final SearchFlights searchFlights = ProxyServer.searchFlights;
 
     // Detalhes do cliente
     private MessageBus clientMessageBus;
-    private SocketMessageTransport clientTransport;
-    private boolean connected = true;
-    private boolean authenticated = true;
-
-    // Detalhes do servidor de aplicação
-    private static final String APP_SERVER_HOST = "localhost";
-    private static final int APP_SERVER_PORT = 33330;
-    private Socket applicationSocket;
-    private MessageBus applicationMessageBus;
-    private SocketMessageTransport applicationTransport;
+    private MessageTransport clientTransport;
+    private volatile boolean connected = true;
+    private volatile boolean authenticated = false;
+    private final AtomicBoolean cleanedUp = new AtomicBoolean(false);
+    private final CountDownLatch closedLatch = new CountDownLatch(1);
+
+    // Detalhes do servidor de aplicação (conexões compartilhadas pelo proxy)
+    private final ApplicationConnectionPool applicationPool = ProxyServer.applicationPool;
+    private final int applicationSlot = applicationPool.assignSlot();
+    private final ReadRouter readRouter = ProxyServer.readRouter;
+    // Writes forwarded and not answered yet, and the seq of the last one answered
+    private final AtomicInteger writesInFlight = new AtomicInteger();
+    private final AtomicLong lastWriteSeq = new AtomicLong(-1);
 
     public ProxyServerHandler(Socket client, AuthService authService, Logger logger,
-            CacheFIFO<WorkOrder> workOrderCache) {
+            ShardedCache<Integer, WorkOrder> workOrderCache) {
         this.clientSocket = client;
         this.authService = authService;
         this.logger = logger;
         this.cache = workOrderCache;
 
         logger.info("New client handler created. ConnectionCount: {}, ActiveConnections: {}",
-                ProxyServer.connectionCount, ProxyServer.activeConnections);
+                ProxyServer.connectionCount.get(), ProxyServer.activeConnections.get());
 
         // Setup client message bus and transport
-        synchronized (lock) {
-            // connectToApplicationServer();
-            setupClientMessageTransport();
-        }
+        setupClientMessageTransport();
+    }
+
+    /**
+     * Wire the connection lifecycle without holding a thread. Messages are
+     * handled from the message buses and the handler cleans up when the
+     * client connection closes.
+     */
+    public void start() {
+        clientTransport.addCloseListener(this::cleanup);
     }
 
     @Override
     public void run() {
         try {
-            while (!Thread.currentThread().isInterrupted() && clientSocket != null) {
-                // Check if the socket is closed
-                if (clientSocket.isClosed()) {
-                    logger.info("Client socket is closed, exiting handler thread.");
-                    break;
-                }
-                // Wait for client authentication
-                boolean messagedProcessed = clientTransport.readMessage();
-                if (!messagedProcessed) {
-                    logger.error("Failed to process authentication message");
-                    throw new Exception("Failed to process authentication message");
-                }
-
-                // If authenticated, keep handler alive as long as the client is connected
-                if (authenticated) {
-                    if (applicationTransport == null) {
-                        connectToApplicationServer();
+            start();
 
-                    }
-                    while (connected && !clientSocket.isClosed()) {
-                        // Process messages between client and application server
-                        boolean clientMessageProcessed = clientTransport.readMessage();
-
-                        if (!clientMessageProcessed) {
-                            connected = false;
-                            break;
-                        }
-
-                        if (applicationSocket != null && !applicationSocket.isClosed()) {
-                            boolean appMessageProcessed = applicationTransport.readMessage();
-                            if (!appMessageProcessed) {
-                                logger.warning("Lost connection to application server");
-                                // Try to reconnect or handle gracefully
-                            }
-                        }
-
-                        // Small pause to prevent CPU hogging
-                        // Thread.sleep(20);
-                    }
-                }
-            }
+            // Keep handler alive as long as the client is connected
+            closedLatch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } catch (Exception e) {
             logger.error("Error in client handler", e);
         } finally {
@@ -106,25 +106,24 @@ public class ProxyServerHandler implements Runnable {
     }
 
     private void setupClientMessageTransport() {
-        synchronized (lock) {
-            try {
-                String componentName = "Server-"
-                        + clientSocket.getInetAddress().getHostAddress()
-                        + ":"
-                        + clientSocket.getLocalPort();
+        try {
+            String componentName = "Server-"
+                    + clientSocket.getInetAddress().getHostAddress()
+                    + ":"
+                    + clientSocket.getLocalPort();
 
-                clientMessageBus = new MessageBus(componentName, logger);
-                clientTransport = new SocketMessageTransport(clientSocket, clientMessageBus, logger, true);
+            clientMessageBus = new MessageBus(componentName, logger);
+            clientTransport = MessageTransports.open(clientSocket, clientMessageBus, logger, true);
 
-                clientMessageBus.subscribe(MessageType.AUTH_REQUEST, this::handleAuthRequest);
-                clientMessageBus.subscribe(MessageType.DATA_REQUEST, this::handleDataRequest);
-                clientMessageBus.subscribe(MessageType.DISCONNECT, this::handleDisconnect);
-                clientMessageBus.subscribe(MessageType.LOGOUT_REQUEST, this::handleLogoutRequest);
+            clientMessageBus.subscribe(MessageType.AUTH_REQUEST, this::handleAuthRequest);
+            clientMessageBus.subscribe(MessageType.DATA_REQUEST, this::handleDataRequest);
+            clientMessageBus.subscribe(MessageType.CACHE_INFO_REQUEST, this::handleCacheInfoRequest);
+            clientMessageBus.subscribe(MessageType.DISCONNECT, this::handleDisconnect);
+            clientMessageBus.subscribe(MessageType.LOGOUT_REQUEST, this::handleLogoutRequest);
 
-            } catch (Exception e) {
-                logger.error("Error setting up client message bus", e);
-                connected = false;
-            }
+        } catch (Exception e) {
+            logger.error("Error setting up client message bus", e);
+            connected = false;
         }
     }
 
@@ -152,425 +151,737 @@ public class ProxyServerHandler implements Runnable {
         connected = false;
     }
 
-    private boolean connectToApplicationServer() {
-        synchronized (lock) {
-            try {
-                applicationSocket = new Socket(APP_SERVER_HOST, APP_SERVER_PORT);
+    private void handleAuthRequest(Message message) {
+        // Only process if this seems to be intended for our server
+        Message response = null;
+        if (loginTries > 3) {
+            logger.warning("Too many login attempts. Disconnecting client {}", message.getSender());
+            response = new Message(
+                    MessageType.DISCONNECT,
+                    message.getRecipient(),
+                    message.getSender(),
+                    "Too many login attempts. Disconnecting client");
+            clientTransport.sendMessage(message);
+            connected = false;
 
-                String componentName = "ProxyToApp-" + Thread.currentThread().getName();
-                applicationMessageBus = new MessageBus(componentName, logger);
-                applicationTransport = new SocketMessageTransport(applicationSocket, applicationMessageBus, logger);
+            return;
+        }
 
-                // Subscribe to application server responses
-                applicationMessageBus.subscribe(MessageType.DATA_RESPONSE, this::handleDataResponse);
+        try {
+            logger.info("Processing authentication request from {}", message.getSender());
 
-                logger.info("Connected to application server for client: {}", Thread.currentThread().getName());
-                return true;
-            } catch (Exception e) {
-                logger.error("Failed to connect to application server: {}", e.getMessage());
-                return false;
-            }
-        }
-    }
+            String[] credentials = (String[]) message.getPayload();
+            if (credentials.length >= 2) {
+                String username = credentials[0];
+                String password = credentials[1];
 
-    private void handleAuthRequest(Message message) {
-        synchronized (lock) {
-            // Only process if this seems to be intended for our server
-            Message response = null;
-            if (loginTries > 3) {
-                logger.warning("Too many login attempts. Disconnecting client {}", message.getSender());
+                // Authenticate
+                boolean success = authService.authenticate(username, password);
+
+                // Send a welcome message to the client
                 response = new Message(
-                        MessageType.DISCONNECT,
-                        message.getRecipient(),
+                        MessageType.AUTH_RESPONSE,
+                        clientMessageBus.getComponentName(),
                         message.getSender(),
-                        "Too many login attempts. Disconnecting client");
-                clientTransport.sendMessage(message);
-                connected = false;
+                        success ? "success" : "failed");
+                clientTransport.sendMessage(response);
 
-                return;
+                clientTransport.sendMessage(response);
+
+                if (success) {
+                    logger.info("Client {} authenticated successfully", message.getSender());
+                    authenticated = true;
+                    loginTries = 0;
+                } else {
+                    loginTries++;
+                }
+
+            } else {
+                logger.warning("Invalid authentication request format");
+                Message errorMsg = new Message(
+                        MessageType.ERROR,
+                        clientMessageBus.getComponentName(),
+                        message.getSender(),
+                        "Invalid authentication format");
+                clientMessageBus.send(errorMsg);
+                connected = false;
             }
+        } catch (Exception e) {
+            logger.error("Error processing authentication", e);
+            connected = false;
+        }
+    }
 
-            try {
-                logger.info("Processing authentication request from {}", message.getSender());
+    private void handleDataRequest(Message message) {
+        // Only authenticated clients can make data requests
+        if (!authenticated) {
+            logger.warning("Unauthenticated data request rejected");
+            sendErrorToClient(message, "Not authenticated");
+            return;
+        }
 
-                String[] credentials = (String[]) message.getPayload();
-                if (credentials.length >= 2) {
-                    String username = credentials[0];
-                    String password = credentials[1];
+        logger.info("Handling DATA_REQUEST from client {}: {}", message.getSender(), message.getPayload());
+        // TODO MOSTRAR A CACHE A CADA OPERAÇÃO
+        // CORRIGIR ESCRITA DA CACHE NO ARQUIVO
 
-                    // Authenticate
-                    boolean success = authService.authenticate(username, password);
+        try {
+            if (message.getPayload() == null) {
+                logger.warning("Invalid data request payload in DATA_REQUEST");
+                sendErrorToClient(message, "Invalid data request payload in DATA_REQUEST");
+                return;
+            }
 
-                    // Send a welcome message to the client
-                    response = new Message(
-                            MessageType.AUTH_RESPONSE,
-                            clientMessageBus.getComponentName(),
-                            message.getSender(),
-                            success ? "success" : "failed");
-                    clientTransport.sendMessage(response);
+            String requestStr = message.getPayload().toString();
+            String[] requestParts = requestStr.split("\\|");
+            String operation = requestParts[0].toUpperCase();
 
-                    clientTransport.sendMessage(response);
+            logger.info("Received DATA REQUEST operation: {}", operation);
 
-                    if (success) {
-                        logger.info("Client {} authenticated successfully", message.getSender());
-                        authenticated = true;
-                        loginTries = 0;
+            if (operation.equals("ADD20")) {
+                // Adiciona 20 work orders na cache
+                for (int i = 0; i < 20; i++) {
+                    cache.add(new WorkOrder(i, "WorkOrder " + i, "Description " + i));
+                }
+                logCacheMetrics();
+                clientTransport.sendMessage(new Message(
+                        MessageType.DATA_RESPONSE,
+                        message.getRecipient(),
+                        message.getSender(),
+                        "Added 20 work orders to cache",
+                        message.getCorrelationId()));
+                return;
+            }
+
+            if (operation.equals("ADD") && requestParts.length > 1 && requestParts[1].matches("\\d+")) {
+                // The code may exist from now on; other proxies hear it from the invalidation of the ADD
+                missingCodes.removeByKey(Integer.parseInt(requestParts[1]));
+            }
 
-                        if (applicationTransport == null) {
-                            connectToApplicationServer();
-                        }
-                    } else {
-                        loginTries++;
+            // An UPDATE without name and description only gets the server's error
+            if (operation.equals("SEARCH")
+                    || (operation.equals("UPDATE") && requestParts.length >= 4)
+                    || operation.equals("REMOVE")) {
+                // Check cache first, only SEARCH counts as a read for the eviction policy
+                int code = Integer.parseInt(requestParts[1]);
+                if (operation.equals("SEARCH") && writesInFlight.get() > 0) {
+                    // The cache and another session's SEARCH may hold what was read before this session's write
+                    forwardToApplicationServer(message, new ClientRequest(message));
+                    return;
+                }
+                WorkOrder workOrder = operation.equals("SEARCH") ? cache.getByKey(code) : cache.peekByKey(code);
+
+                if (workOrder != null) {
+                    logger.info("Cache HIT for work order: {}", workOrder);
+                    switch (operation) {
+                        case "SEARCH":
+                            // Cache HIT em uma busca
+                            // Responde direto da cache no formato do servidor
+                            Map<String, String> workOrderMap = MapUtil.of(
+                                    "status", "success",
+                                    "source", message.getRecipient(),
+                                    "code", String.valueOf(workOrder.getCode()),
+                                    "name", workOrder.getName(),
+                                    "description", workOrder.getDescription(),
+                                    "timestamp", workOrder.getTimestamp().toString(),
+                                    "cacheHit", "true",
+                                    "cacheVersion", String.valueOf(cache.getVersion()));
+
+                            clientTransport.sendMessage(new Message(
+                                    MessageType.DATA_RESPONSE,
+                                    message.getRecipient(),
+                                    message.getSender(),
+                                    workOrderMap,
+                                    message.getCorrelationId()));
+                            return;
+                        case "REMOVE":
+                            // Envia a requisição para o servidor
+                            // e em seguida remove da cache
+                            forwardToApplicationServer(message, new ClientRequest(message));
+                            cache.remove(workOrder);
+                            logger.info("Removed WorkOrder with code {} from cache", workOrder.getCode());
+                            logCacheMetrics();
+                            return;
+                        case "UPDATE":
+                            // Envia a requisição para o servidor e tira o workOrder da cache;
+                            // o valor novo entra pelo próximo SEARCH, só se o servidor aplicou
+                            forwardToApplicationServer(message, new ClientRequest(message));
+                            cache.removeByKey(code);
+                            logger.info("Removed WorkOrder with code {} from cache", workOrder.getCode());
+                            logCacheMetrics();
+                            return;
+                        default:
+                            break;
                     }
+                }
 
-                } else {
-                    logger.warning("Invalid authentication request format");
-                    Message errorMsg = new Message(
-                            MessageType.ERROR,
-                            clientMessageBus.getComponentName(),
+                if (operation.equals("SEARCH") && missingCodes.getByKey(code) != null) {
+                    logger.info("Negative cache HIT for work order: {}", code);
+                    // Responde como o servidor responde a um código que não existe
+                    clientTransport.sendMessage(new Message(
+                            MessageType.DATA_RESPONSE,
+                            message.getRecipient(),
                             message.getSender(),
-                            "Invalid authentication format");
-                    clientMessageBus.send(errorMsg);
-                    connected = false;
+                            MapUtil.of(
+                                    "status", "error",
+                                    "message", NOT_FOUND,
+                                    "source", message.getRecipient(),
+                                    "cacheHit", "true",
+                                    "cacheVersion", String.valueOf(cache.getVersion())),
+                            message.getCorrelationId()));
+                    return;
+                }
+
+                logger.info("Cache MISS for work order: {}", requestParts[1]);
+                if (operation.equals("SEARCH")) {
+                    forwardSearch(message, code);
+                    return;
                 }
-            } catch (Exception e) {
-                logger.error("Error processing authentication", e);
-                connected = false;
             }
+        } catch (Exception e) {
+            logger.error("Error processing DATA_REQUEST", e);
         }
+
+        forwardToApplicationServer(message, new ClientRequest(message));
     }
 
-    private void handleDataRequest(Message message) {
-        // Only authenticated clients can make data requests
-        synchronized (lock) {
-            if (!authenticated) {
-                logger.warning("Unauthenticated data request rejected");
-                return;
+    /**
+     * Forward a SEARCH that missed the cache, unless another client's SEARCH
+     * for the same code is already on its way; then just wait for its
+     * response. Only for sessions without a write unanswered, the flight may
+     * have been read before it.
+     */
+    private void forwardSearch(Message message, int code) {
+        if (searchFlights.join(code, new FlightRequest(message))) {
+            forwardToApplicationServer(message, new SearchFlight(code));
+        } else {
+            logger.info("SEARCH {} joined the one already forwarded", code);
+        }
+    }
+
+    /**
+     * Página do conteúdo da cache, pedida pelo cliente com CACHE_INFO_REQUEST.
+     *
+     * Payload "offset|limit", both optional (first page of
+     * {@value #DEFAULT_CACHE_PAGE} items by default, at most
+     * {@value #MAX_CACHE_PAGE}). The response carries the page in "cacheInfo"
+     * with the cache metrics, so only clients that ask pay for formatting it.
+     */
+    private void handleCacheInfoRequest(Message message) {
+        if (!authenticated) {
+            logger.warning("Unauthenticated cache info request rejected");
+            sendErrorToClient(message, "Not authenticated");
+            return;
+        }
+
+        int offset = 0;
+        int limit = DEFAULT_CACHE_PAGE;
+        try {
+            Object payload = message.getPayload();
+            if (payload != null && !payload.toString().isEmpty()) {
+                String[] parts = payload.toString().split("\\|");
+                offset = Integer.parseInt(parts[0].trim());
+                if (parts.length > 1) {
+                    limit = Integer.parseInt(parts[1].trim());
+                }
             }
+        } catch (NumberFormatException e) {
+            sendErrorToClient(message, "Cache info request must be offset|limit");
+            return;
+        }
+        if (offset < 0 || limit <= 0) {
+            sendErrorToClient(message, "Cache info offset must be >= 0 and limit > 0");
+            return;
+        }
+        limit = Math.min(limit, MAX_CACHE_PAGE);
 
-            logger.info("Handling DATA_REQUEST from client {}: {}", message.getSender(), message.getPayload());
-            // TODO MOSTRAR A CACHE A CADA OPERAÇÃO
-            // CORRIGIR ESCRITA DA CACHE NO ARQUIVO
+        Map<String, Object> metrics = cache.getMetrics();
+        ShardedCache.Page page = cache.getContents(offset, limit);
+        Map<String, String> response = new HashMap<>();
+        response.put("status", "success");
+        response.put("message", "Cache content");
+        for (String metric : new String[] { "policy", "shards", "size", "maxSize", "hits", "misses",
+                "evictions", "expirations", "hitRatio" }) {
+            response.put(metric, String.valueOf(metrics.get(metric)));
+        }
+        response.put("ttlSeconds", String.valueOf(cache.getTtlMillis() / 1000));
+        Map<String, Object> negativeMetrics = missingCodes.getMetrics();
+        response.put("negativeSize", String.valueOf(negativeMetrics.get("size")));
+        response.put("negativeHits", String.valueOf(negativeMetrics.get("hits")));
+        response.put("negativeTtlSeconds", String.valueOf(missingCodes.getTtlMillis() / 1000));
+        response.put("cacheVersion", String.valueOf(metrics.get("version")));
+        response.put("forwardedSearches", String.valueOf(searchFlights.getStarted()));
+        response.put("coalescedSearches", String.valueOf(searchFlights.getCoalesced()));
+        response.put("invalidations", String.valueOf(ProxyServer.cacheInvalidations.getReceived()));
+        response.put("primaryReads", String.valueOf(readRouter.getPrimaryReads()));
+        response.put("replicaReads", String.valueOf(readRouter.getReplicaReads()));
+        response.put("cacheInfo", page.getContent());
+        response.put("offset", String.valueOf(offset));
+        response.put("limit", String.valueOf(limit));
+        response.put("total", String.valueOf(page.getTotal()));
+
+        clientTransport.sendMessage(new Message(
+                MessageType.CACHE_INFO_RESPONSE,
+                message.getRecipient(),
+                message.getSender(),
+                response,
+                message.getCorrelationId()));
+    }
 
-            logger.info("Forwarding DATA_REQUEST from client {} to application server", message.getSender());
-            try {
-                try {
-                    if (message.getPayload() == null) {
-                        logger.warning("Invalid data request payload in DATA_REQUEST");
-                        Message errorMsg = new Message(
-                                MessageType.ERROR,
-                                message.getRecipient(),
-                                message.getSender(),
-                                "Invalid data request payload in DATA_REQUEST");
-
-                        clientTransport.sendMessage(errorMsg);
-                        return;
-                    }
+    /**
+     * Forward a client request to the application server. The request gets a
+     * proxy-wide correlation id so its response can come back in any order.
+     */
+    private void forwardToApplicationServer(Message message, PendingRequests.ResponseHandler handler) {
+        logger.info("Forwarding DATA_REQUEST from client {} to application server: {}", message.getSender(),
+                message.getPayload());
+
+        String operation = message.getPayload().toString().split("\\|", 2)[0].toUpperCase();
+        boolean write = isWriteOperation(operation);
+        if (write) {
+            writesInFlight.incrementAndGet();
+            String[] requestParts = message.getPayload().toString().split("\\|");
+            boolean hasCode = requestParts.length > 1 && requestParts[1].matches("\\d+");
+            handler = new WriteRequest(handler, hasCode ? Integer.parseInt(requestParts[1]) : -1);
+        }
 
-                    String requestStr = message.getPayload().toString();
-                    String[] requestParts = requestStr.split("\\|");
-                    String operation = requestParts[0].toUpperCase();
-
-                    logger.info("Received DATA REQUEST operation: {}", operation);
-
-                    if (operation.equals("ADD20")) {
-                        // Adiciona 20 work orders na cache
-                        for (int i = 0; i < 20; i++) {
-                            cache.add(new WorkOrder(i, "WorkOrder " + i, "Description " + i));
-                        }
-                        logCacheMetrics();
-                        clientTransport.sendMessage(new Message(
-                                MessageType.DATA_RESPONSE,
-                                message.getRecipient(),
-                                message.getSender(),
-                                "Added 20 work orders to cache"));
-                        return;
+        boolean routed = !write && isReadOperation(operation) && writesInFlight.get() == 0;
+        // A SEARCH may answer other sessions waiting on the same code, so it needs every write seen here
+        long minSeq = operation.equals("SEARCH") ? readRouter.getLastWriteSeq() : lastWriteSeq.get();
+        if (routed) {
+            handler = new ReadRequest(message, handler, minSeq);
+        }
 
-                    }
+        long upstreamId = pendingRequests.register(handler);
+        try {
+            Message forwardedRequest = new Message(
+                    MessageType.DATA_REQUEST,
+                    message.getSender(),
+                    message.getRecipient(),
+                    message.getPayload(),
+                    upstreamId);
+
+            boolean sent;
+            if (routed) {
+                sent = readRouter.sendRead(forwardedRequest, applicationSlot, minSeq);
+            } else {
+                sent = applicationPool.send(forwardedRequest, applicationSlot);
+            }
+            if (!sent) {
+                logger.error("Cannot forward request - no connection to the application server");
+                pendingRequests.fail(upstreamId, "Application server unavailable");
+            }
+        } catch (Exception e) {
+            logger.error("Error forwarding data request to application server: {}", e.getMessage());
+            pendingRequests.fail(upstreamId, "Error processing request: " + e.getMessage());
+        }
+    }
 
-                    if (operation.equals("SEARCH")
-                            || operation.equals("UPDATE")
-                            || operation.equals("REMOVE")) {
-                        // Check cache first
-                        WorkOrder workOrder = cache
-                                .searchByCode(new WorkOrder(Integer.parseInt(requestParts[1]), null, null));
-
-                        if (workOrder != null) {
-                            logger.info("Cache HIT for work order: {}", workOrder);
-                            Message forwardedRequest = new Message(
-                                    MessageType.DATA_REQUEST,
-                                    message.getSender(),
-                                    message.getRecipient(),
-                                    message.getPayload());
+    /**
+     * Send a read again, to the primary only
+     */
+    private void forwardToPrimary(Message message, PendingRequests.ResponseHandler handler) {
+        long upstreamId = pendingRequests.register(handler);
+        try {
+            Message forwardedRequest = new Message(
+                    MessageType.DATA_REQUEST,
+                    message.getSender(),
+                    message.getRecipient(),
+                    message.getPayload(),
+                    upstreamId);
+            if (!applicationPool.send(forwardedRequest, applicationSlot)) {
+                logger.error("Cannot forward request - no connection to the application server");
+                pendingRequests.fail(upstreamId, "Application server unavailable");
+            }
+        } catch (Exception e) {
+            logger.error("Error forwarding data request to application server: {}", e.getMessage());
+            pendingRequests.fail(upstreamId, "Error processing request: " + e.getMessage());
+        }
+    }
 
-                            Message response = new Message(
-                                    MessageType.DATA_REQUEST,
-                                    message.getSender(),
-                                    message.getRecipient(),
-                                    message.getPayload());
-                            switch (operation) {
-                                case "SEARCH":
-                                    // Cache HIT em uma busca
-                                    // Pega o formato de envio do servidor
-                                    // e envia para o cliente
-
-                                    // Passo 1
-                                    Map<String, String> workOrderMap = MapUtil.of(
-                                            "status", "success",
-                                            "source", message.getRecipient(),
-                                            "code", String.valueOf(workOrder.getCode()),
-                                            "name", workOrder.getName(),
-                                            "description", workOrder.getDescription(),
-                                            "timestamp", workOrder.getTimestamp().toString());
-
-                                    // Passo 2
-                                    Message cacheResponse = new Message(
-                                            MessageType.DATA_RESPONSE,
-                                            message.getRecipient(),
-                                            message.getSender(),
-                                            workOrderMap);
-
-                                    clientTransport.sendMessage(cacheResponse);
-                                case "REMOVE":
-                                    // Envia a requisição para o servidor
-                                    // e em seguida remove da cache
-
-                                    // Passo 1
-                                    forwardedRequest = new Message(
-                                            MessageType.DATA_REQUEST,
-                                            message.getSender(),
-                                            message.getRecipient(),
-                                            message.getPayload());
-                                    applicationTransport.sendMessage(forwardedRequest);
-                                    // Passo 2
-                                    cache.remove(workOrder);
-                                    logger.info("Removed WorkOrder with code {} from cache", workOrder.getCode());
-                                    logCacheMetrics();
-
-                                    return;
-                                case "UPDATE":
-                                    // Atualiza o workOrder na cache
-                                    // e envia a requisição para o servidor
-
-                                    // Passo 1
-                                    forwardedRequest = new Message(
-                                            MessageType.DATA_REQUEST,
-                                            message.getSender(),
-                                            message.getRecipient(),
-                                            message.getPayload());
-                                    applicationTransport.sendMessage(forwardedRequest);
-
-                                    // Passo 2
-                                    cache.remove(workOrder);
-                                    cache.add(new WorkOrder(workOrder.getCode(), requestParts[2], requestParts[3]));
-                                    logger.info("Updated WorkOrder with code {} in cache", workOrder.getCode());
-                                    logCacheMetrics();
-                                    return;
-                                default:
-                                    break;
-                            }
-                        }
-
-                        logger.info("Cache MISS for work order: {}", requestParts[1]);
-                    }
+    /**
+     * Seq the application server was at when it answered, -1 if the response
+     * has none
+     */
+    private long seqOf(Message response) {
+        String seq = TypeUtil.safeCastToMap(response.getPayload(), String.class, String.class)
+                .map(map -> map.get("seq")).orElse(null);
+        if (seq == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(seq);
+        } catch (NumberFormatException e) {
+            logger.error("Invalid seq in response: {}", seq);
+            return -1;
+        }
+    }
 
-                } catch (Exception e) {
-                    logger.error("Error processing DATA_REQUEST " + e.getStackTrace());
-                }
+    private static boolean hasSeq(Message response) {
+        return TypeUtil.safeCastToMap(response.getPayload(), String.class, String.class)
+                .map(map -> map.containsKey("seq")).orElse(false);
+    }
 
-                try {
-                    logger.info("Forwarding DATA_REQUEST from client {} to application server: {}", message.getSender(),
-                            message.getPayload());
+    private static boolean isWriteOperation(String operation) {
+        return operation.equals("ADD") || operation.equals("REMOVE") || operation.equals("UPDATE")
+                || operation.equals("ADD60");
+    }
 
-                    // Check if application transport is available
-                    if (applicationTransport == null) {
-                        logger.error("Cannot forward request - application server connection not established");
+    private static boolean isReadOperation(String operation) {
+        return operation.equals("SEARCH") || operation.equals("SEARCHBATCH") || operation.equals("SHOW")
+                || operation.equals("STATS");
+    }
 
-                        // Try to reconnect
-                        connectToApplicationServer();
+    private void deliverDataResponse(Message request, Message message) {
+        try {
+            logger.info("Received DATA_RESPONSE from application server for client {}: {}", message.getSender(),
+                    message.getPayload());
 
-                        // Check again after reconnection attempt
-                        if (applicationTransport == null) {
-                            throw new Exception("Failed to establish connection to application server");
-                        }
-                    }
+            Object payload = message.getPayload();
+
+            if (payload instanceof Map<?, ?>) {
+                Optional<Map<String, String>> responseMapOpt = TypeUtil.safeCastToMap(payload,
+                        String.class,
+                        String.class);
 
-                    // Forward the client request to application server
-                    Message forwardedRequest = new Message(
-                            MessageType.DATA_REQUEST,
+                responseMapOpt.ifPresent(responseMap -> {
+                    // Only a flag and the cache version, the contents come with CACHE_INFO_REQUEST
+                    Map<String, String> enrichedResponse = new HashMap<>(responseMap);
+                    enrichedResponse.put("cacheHit", "false");
+                    enrichedResponse.put("cacheVersion", String.valueOf(cache.getVersion()));
+
+                    // Send the enriched response to the client, with the client's own request id
+                    Message forwardedResponse = new Message(
+                            MessageType.DATA_RESPONSE,
                             message.getSender(),
                             message.getRecipient(),
-                            message.getPayload());
+                            enrichedResponse,
+                            request.getCorrelationId());
+                    clientTransport.sendMessage(forwardedResponse);
+                });
+            } else {
+
+                // Handle non-map payloads
+                Map<String, Object> enrichedPayload = new HashMap<>();
+                enrichedPayload.put("originalResponse", payload);
+                enrichedPayload.put("cacheHit", "false");
+                enrichedPayload.put("cacheVersion", String.valueOf(cache.getVersion()));
+
+                // Forward the enriched response to client
+                Message forwardedResponse = new Message(
+                        MessageType.DATA_RESPONSE,
+                        message.getRecipient(),
+                        message.getSender(),
+                        enrichedPayload,
+                        request.getCorrelationId());
 
-                    applicationTransport.sendMessage(forwardedRequest);
+                clientTransport.sendMessage(forwardedResponse);
+            }
+        } catch (Exception e) {
+            logger.error("Error forwarding data response to client", e);
+        }
+    }
 
-                } catch (Exception e) {
-                    logger.error("Error forwarding data request to application server: {}", e.getMessage());
-                    // Rest of the error handling...
+    /**
+     * Cache the work order of a successful SEARCH response, or that the code
+     * does not exist
+     */
+    private void cacheSearchResult(int code, Message response) {
+        Optional<Map<String, String>> responseMapOpt = TypeUtil.safeCastToMap(response.getPayload(),
+                String.class, String.class);
+        if (!responseMapOpt.isPresent()) {
+            return;
+        }
+        Map<String, String> responseMap = responseMapOpt.get();
+        // Without a seq (older application server) the result is cached as before
+        String seq = responseMap.get("seq");
+        long readSeq;
+        try {
+            readSeq = seq != null ? Long.parseLong(seq) : Long.MAX_VALUE;
+        } catch (NumberFormatException e) {
+            logger.error("Invalid seq in SEARCH response: {}", seq);
+            return;
+        }
+
+        if ("error".equals(responseMap.get("status")) && NOT_FOUND.equals(responseMap.get("message"))) {
+            if (missingCodes.add(code, readSeq)) {
+                logger.info("Code {} not found, cached as missing", code);
+            }
+            return;
+        }
+        if ("success".equals(responseMap.get("status")) &&
+                "Work order found".equals(responseMap.get("message")) &&
+                responseMap.containsKey("code") &&
+                responseMap.containsKey("name") &&
+                responseMap.containsKey("description")) {
+            try {
+                String name = responseMap.get("name");
+                String description = responseMap.get("description");
+                String timestamp = responseMap.get("timestamp");
+
+                WorkOrder workOrder = new WorkOrder(Integer.parseInt(responseMap.get("code")), name, description,
+                        timestamp);
+                if (!cache.add(workOrder, readSeq)) {
+                    logger.info("WorkOrder {} changed while it was read, not cached", code);
+                    return;
                 }
+                logCacheMetrics();
 
+                logger.info("Added WorkOrder with code {} to cache", code);
             } catch (Exception e) {
-                logger.error("Error forwarding data request to application server", e);
+                logger.error("Failed to add search result to cache: {}", e.getMessage());
+            }
+        }
+    }
 
-                // Send error back to client
-                Message errorMsg = new Message(
-                        MessageType.ERROR,
-                        message.getRecipient(),
-                        message.getSender(),
-                        "Error processing request: " + e.getMessage());
-                clientTransport.sendMessage(errorMsg);
+    private void sendErrorToClient(Message request, String error) {
+        Message errorMsg = new Message(
+                MessageType.ERROR,
+                request.getRecipient(),
+                request.getSender(),
+                error,
+                request.getCorrelationId());
+        clientTransport.sendMessage(errorMsg);
+    }
+
+    /**
+     * SEARCH forwarded for every client waiting on its code. The result is
+     * cached before the flight closes, so a SEARCH arriving meanwhile either
+     * joins the flight or hits the cache, never goes upstream again.
+     */
+    private final class SearchFlight implements PendingRequests.ResponseHandler {
+        private final int code;
+
+        SearchFlight(int code) {
+            this.code = code;
+        }
+
+        @Override
+        public void onResponse(Message response) {
+            cacheSearchResult(code, response);
+            List<PendingRequests.ResponseHandler> waiters = searchFlights.close(code);
+            if (waiters.size() > 1) {
+                logger.info("SEARCH {} answered {} clients", code, waiters.size());
+            }
+            for (PendingRequests.ResponseHandler waiter : waiters) {
+                try {
+                    waiter.onResponse(response);
+                } catch (Exception e) {
+                    logger.error("Error answering a client waiting for SEARCH " + code, e);
+                }
+            }
+        }
+
+        @Override
+        public void onFailure(String reason) {
+            for (PendingRequests.ResponseHandler waiter : searchFlights.close(code)) {
+                try {
+                    waiter.onFailure(reason);
+                } catch (Exception e) {
+                    logger.error("Error failing a client waiting for SEARCH " + code, e);
+                }
             }
         }
     }
 
-    private void handleDataResponse(Message message) {
-        synchronized (lock) {
-            try {
-                logger.info("Received DATA_RESPONSE from application server for client {}: {}", message.getSender(),
-                        message.getPayload());
-
-                Object payload = message.getPayload();
-
-                if (payload instanceof Map<?, ?>) {
-                    // Process the response and update the cache as before...
-                    Optional<Map<String, String>> responseMapOpt = TypeUtil.safeCastToMap(payload,
-                            String.class,
-                            String.class);
-
-                    responseMapOpt.ifPresent(responseMap -> {
-                        // Existing cache update logic...
-                        if ("success".equals(responseMap.get("status")) &&
-                                "Work order found".equals(responseMap.get("message")) &&
-                                responseMap.containsKey("code") &&
-                                responseMap.containsKey("name") &&
-                                responseMap.containsKey("description")) {
-                            // Update cache logic remains the same...
-                            try {
-                                int code = Integer.parseInt(responseMap.get("code"));
-                                String name = responseMap.get("name");
-                                String description = responseMap.get("description");
-                                String timestamp = responseMap.get("timestamp");
-
-                                WorkOrder workOrder = new WorkOrder(code, name, description, timestamp);
-                                cache.add(workOrder);
-                                logCacheMetrics();
-
-                                logger.info("Added WorkOrder with code {} to cache", code);
-                            } catch (Exception e) {
-                                logger.error("Failed to add search result to cache: {}", e.getMessage());
-                            }
-                        }
-
-                        // Create a new HashMap with both the original response and cache info
-                        Map<String, String> enrichedResponse = new HashMap<>(responseMap);
-
-                        // Add cache information to the response
-                        enrichedResponse.put("cacheInfo", cache.getCacheContentsAsString());
-
-                        // Send the enriched response to the client
-                        Message forwardedResponse = new Message(
-                                MessageType.DATA_RESPONSE,
-                                message.getSender(),
-                                message.getRecipient(),
-                                enrichedResponse);
-                        clientTransport.sendMessage(forwardedResponse);
-                    });
-                    // TODO check all the cases
-                    // The original forwardedResponse should be removed to avoid duplicate messages
-                } else {
+    /**
+     * Client SEARCH waiting on a flight, which may have been opened by
+     * another session before this one's last write was applied. Such a stale
+     * response is not passed on, the SEARCH is forwarded again on its own.
+     */
+    private final class FlightRequest implements PendingRequests.ResponseHandler {
+        private final Message request;
 
-                    // Handle non-map payloads
-                    Map<String, Object> enrichedPayload = new HashMap<>();
-                    enrichedPayload.put("originalResponse", payload);
-                    enrichedPayload.put("cacheInfo", cache.getCacheContentsAsString());
+        FlightRequest(Message request) {
+            this.request = request;
+        }
 
-                    // Forward the enriched response to client
-                    Message forwardedResponse = new Message(
-                            MessageType.DATA_RESPONSE,
-                            message.getRecipient(),
-                            message.getSender(),
-                            enrichedPayload);
+        @Override
+        public void onResponse(Message response) {
+            long readSeq = seqOf(response);
+            if (readSeq >= 0 && readSeq < lastWriteSeq.get()) {
+                logger.info("SEARCH flight read at seq {}, before the session's write at {}, forwarding again",
+                        readSeq, lastWriteSeq.get());
+                forwardToApplicationServer(request, new ClientRequest(request));
+                return;
+            }
+            new ClientRequest(request).onResponse(response);
+        }
 
-                    clientTransport.sendMessage(forwardedResponse);
+        @Override
+        public void onFailure(String reason) {
+            new ClientRequest(request).onFailure(reason);
+        }
+    }
+
+    /**
+     * Read the {@link ReadRouter} may have sent to a backup. A backup answers
+     * with the primary's seq it has applied, or -1 while it cannot confirm its
+     * content, and it may be behind the seq the read was routed with if it
+     * restarted since it last reported one. Such a response is not passed on,
+     * the read goes again to the primary. The primary always answers reads at
+     * or above minSeq; responses without a seq are errors and pass as they
+     * are.
+     */
+    private final class ReadRequest implements PendingRequests.ResponseHandler {
+        private final Message request;
+        private final PendingRequests.ResponseHandler handler;
+        private final long minSeq;
+
+        ReadRequest(Message request, PendingRequests.ResponseHandler handler, long minSeq) {
+            this.request = request;
+            this.handler = handler;
+            this.minSeq = minSeq;
+        }
+
+        @Override
+        public void onResponse(Message response) {
+            long readSeq = seqOf(response);
+            if (hasSeq(response) && (readSeq < 0 || readSeq < minSeq)) {
+                logger.info("Read answered at seq {}, expected at least {}, forwarding again to the primary",
+                        readSeq, minSeq);
+                forwardToPrimary(request, handler);
+                return;
+            }
+            handler.onResponse(response);
+        }
+
+        @Override
+        public void onFailure(String reason) {
+            handler.onFailure(reason);
+        }
+    }
+
+    /**
+     * Write waiting for the application server: its seq is recorded before
+     * the session's next read can go to a backup, and SEARCH results read
+     * before it are kept out of the caches right away, without waiting for
+     * the invalidation to come back
+     */
+    private final class WriteRequest implements PendingRequests.ResponseHandler {
+        private final PendingRequests.ResponseHandler handler;
+        // Code the write changes, -1 if it has none
+        private final int code;
+
+        WriteRequest(PendingRequests.ResponseHandler handler, int code) {
+            this.handler = handler;
+            this.code = code;
+        }
+
+        @Override
+        public void onResponse(Message response) {
+            long seq = seqOf(response);
+            if (seq >= 0) {
+                written(seq);
+                if (code >= 0) {
+                    cache.invalidate(code, seq);
+                    missingCodes.invalidate(code, seq);
                 }
-            } catch (Exception e) {
-                logger.error("Error forwarding data response to client", e);
             }
+            writesInFlight.decrementAndGet();
+            handler.onResponse(response);
+        }
+
+        @Override
+        public void onFailure(String reason) {
+            // The write may have been applied all the same, at least wait for what the primary is known to have
+            written(readRouter.getPrimarySeq());
+            writesInFlight.decrementAndGet();
+            handler.onFailure(reason);
+        }
+
+        private void written(long seq) {
+            lastWriteSeq.accumulateAndGet(seq, Math::max);
+            readRouter.onWrite(seq);
+        }
+    }
+
+    /**
+     * Client request waiting for the application server
+     */
+    private final class ClientRequest implements PendingRequests.ResponseHandler {
+        private final Message request;
+
+        ClientRequest(Message request) {
+            this.request = request;
+        }
+
+        @Override
+        public void onResponse(Message response) {
+            deliverDataResponse(request, response);
+        }
+
+        @Override
+        public void onFailure(String reason) {
+            sendErrorToClient(request, reason);
         }
     }
 
     private void logCacheMetrics() {
         Map<String, Object> metrics = cache.getMetrics();
-        logger.info("Cache metrics - Size: {}/{} ({}% full)",
+        logger.info("Cache metrics - {} Size: {}/{} ({}% full), hit ratio {}",
+                metrics.get("policy"),
                 metrics.get("size"),
                 metrics.get("maxSize"),
-                metrics.get("usagePercent"));
+                metrics.get("usagePercent"),
+                metrics.get("hitRatio"));
     }
 
     private void handleDisconnect(Message message) {
-        synchronized (lock) {
-            logger.info("Client {} requested disconnect", message.getSender());
-
-            Message response = new Message(
-                    MessageType.DISCONNECT,
-                    message.getRecipient(),
-                    message.getSender(),
-                    "Disconnecting client");
+        logger.info("Client {} requested disconnect", message.getSender());
 
-            try {
-                clientTransport.sendMessage(response);
-                logger.info("Sent disconnect confirmation to client {}",
-                        message.getSender());
-            } catch (Exception e) {
-                logger.error("Error sending disconnect response", e);
-            }
+        Message response = new Message(
+                MessageType.DISCONNECT,
+                message.getRecipient(),
+                message.getSender(),
+                "Disconnecting client");
 
-            connected = false;
+        try {
+            clientTransport.sendMessage(response);
+            logger.info("Sent disconnect confirmation to client {}",
+                    message.getSender());
+        } catch (Exception e) {
+            logger.error("Error sending disconnect response", e);
         }
+
+        connected = false;
     }
 
     private void cleanup() {
-        synchronized (lock) {
-            try {
-                // Unsubscribe from message handlers to avoid memory leaks
-                if (clientMessageBus != null) {
-                    clientMessageBus.unsubscribe(MessageType.AUTH_REQUEST, this::handleAuthRequest);
-                    clientMessageBus.unsubscribe(MessageType.DATA_REQUEST, this::handleDataRequest);
-                    clientMessageBus.unsubscribe(MessageType.DISCONNECT, this::handleDisconnect);
-                    clientMessageBus.unsubscribe(MessageType.LOGOUT_REQUEST, this::handleLogoutRequest);
-                }
-
-                if (applicationMessageBus != null) {
-                    applicationMessageBus.unsubscribe(MessageType.DATA_RESPONSE, this::handleDataResponse);
-                }
-
-                // Close client transport and socket
-                if (clientTransport != null) {
-                    clientTransport.close();
-                }
+        if (!cleanedUp.compareAndSet(false, true)) {
+            return;
+        }
+        closedLatch.countDown();
+        try {
+            // Unsubscribe from message handlers to avoid memory leaks
+            if (clientMessageBus != null) {
+                clientMessageBus.unsubscribe(MessageType.AUTH_REQUEST, this::handleAuthRequest);
+                clientMessageBus.unsubscribe(MessageType.DATA_REQUEST, this::handleDataRequest);
+                clientMessageBus.unsubscribe(MessageType.DISCONNECT, this::handleDisconnect);
+                clientMessageBus.unsubscribe(MessageType.LOGOUT_REQUEST, this::handleLogoutRequest);
+            }
 
-                // Close application transport and socket
-                if (applicationTransport != null) {
-                    applicationTransport.close();
-                }
+            // Close client transport and socket
+            if (clientTransport != null) {
+                clientTransport.close();
+            }
 
-                if (clientSocket != null && !clientSocket.isClosed()) {
-                    clientSocket.close();
-                }
+            if (clientSocket != null && !clientSocket.isClosed()) {
+                clientSocket.close();
+            }
 
-                if (applicationSocket != null && !applicationSocket.isClosed()) {
-                    applicationSocket.close();
-                }
+            // Release the bus lane
+            if (clientMessageBus != null) {
+                clientMessageBus.close();
+            }
 
-                // Notify the ProxyServer that a client has disconnected
-                ProxyServer.clientDisconnected();
+            // Notify the ProxyServer that a client has disconnected
+            ProxyServer.clientDisconnected();
 
-                logger.info("Client disconnected: {}. Active connections: {}",
-                        Thread.currentThread().getName(), ProxyServer.activeConnections);
+            logger.info("Client disconnected: {}. Active connections: {}",
+                    Thread.currentThread().getName(), ProxyServer.activeConnections.get());
 
-            } catch (Exception e) {
-                logger.error("Error during cleanup", e);
-            }
+        } catch (Exception e) {
+            logger.error("Error during cleanup", e);
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,149 @@
+package main.server.proxy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import main.shared.log.Logger;
+import main.shared.messages.Message;
+
+/**
+ * Distribui as leituras do proxy entre o servidor de aplicação primário e os
+ * backups.
+ *
+ * The backups are listed in "cfwos.proxy.replicas" ("host:port,..."), each
+ * with its own pool of "cfwos.proxy.replicaPoolSize" connections (default
+ * 2). Reads take turns between the primary and the backups that are fresh
+ * enough: a backup is used only while the seq it last reported is at most
+ * "cfwos.proxy.replicaMaxLag" changes (default 100) behind the newest seq the
+ * proxy knows of the primary, and at least the seq the read asks for, so a
+ * client reads its own writes. Writes and everything else always go to the
+ * primary, as does a read no backup can serve.
+ */
+public class ReadRouter {
+    private static final String REPLICAS_PROPERTY = "cfwos.proxy.replicas";
+    private static final String REPLICA_POOL_SIZE_PROPERTY = "cfwos.proxy.replicaPoolSize";
+    private static final int DEFAULT_REPLICA_POOL_SIZE = 2;
+    private static final String MAX_LAG_PROPERTY = "cfwos.proxy.replicaMaxLag";
+    private static final long DEFAULT_MAX_LAG = 100;
+
+    private final ApplicationConnectionPool primary;
+    private final ApplicationConnectionPool[] replicas;
+    private final CacheInvalidations invalidations;
+    private final Logger logger;
+    private final long maxLag;
+    private final AtomicInteger next = new AtomicInteger();
+    // Newest seq of a write answered through this proxy
+    private final AtomicLong lastWriteSeq = new AtomicLong(-1);
+    private final AtomicLong primaryReads = new AtomicLong();
+    private final AtomicLong replicaReads = new AtomicLong();
+
+    public ReadRouter(ApplicationConnectionPool primary, PendingRequests pendingRequests,
+            CacheInvalidations invalidations, Logger logger) {
+        this.primary = primary;
+        this.invalidations = invalidations;
+        this.logger = logger;
+        this.maxLag = Long.getLong(MAX_LAG_PROPERTY, DEFAULT_MAX_LAG);
+
+        List<ApplicationConnectionPool> pools = new ArrayList<>();
+        int poolSize = Integer.getInteger(REPLICA_POOL_SIZE_PROPERTY, DEFAULT_REPLICA_POOL_SIZE);
+        for (String address : System.getProperty(REPLICAS_PROPERTY, "").split(",")) {
+            address = address.trim();
+            if (address.isEmpty()) {
+                continue;
+            }
+            int colon = address.lastIndexOf(':');
+            if (colon < 0) {
+                logger.warning("Ignoring replica {}, expected host:port", address);
+                continue;
+            }
+            try {
+                pools.add(new ApplicationConnectionPool(address.substring(0, colon),
+                        Integer.parseInt(address.substring(colon + 1)), poolSize, pendingRequests, null, true,
+                        Logger.getLogger("ReplicaPool-" + address)));
+            } catch (NumberFormatException e) {
+                logger.warning("Ignoring replica {}, invalid port", address);
+            }
+        }
+        this.replicas = pools.toArray(new ApplicationConnectionPool[0]);
+    }
+
+    /**
+     * Open the connections to the backups, the primary pool is started on
+     * its own
+     */
+    public void start() {
+        for (ApplicationConnectionPool replica : replicas) {
+            replica.start();
+        }
+        if (replicas.length > 0) {
+            logger.info("Reads shared with {} backups, at most {} changes behind", replicas.length, maxLag);
+        }
+    }
+
+    /**
+     * Send a read to the primary or to a backup that has at least minSeq
+     *
+     * @param slot connection slot of the client session, for the primary
+     * @return false if not even the primary is available
+     */
+    public boolean sendRead(Message request, int slot, long minSeq) {
+        if (replicas.length > 0) {
+            long primarySeq = getPrimarySeq();
+            int turn = Math.floorMod(next.getAndIncrement(), replicas.length + 1);
+            // Turn 0 is the primary's, the others start looking at their own backup
+            for (int i = 0; turn > 0 && i < replicas.length; i++) {
+                ApplicationConnectionPool replica = replicas[(turn - 1 + i) % replicas.length];
+                if (isFresh(replica, primarySeq, minSeq) && replica.send(request, slot)) {
+                    replicaReads.incrementAndGet();
+                    return true;
+                }
+            }
+        }
+        primaryReads.incrementAndGet();
+        return primary.send(request, slot);
+    }
+
+    private boolean isFresh(ApplicationConnectionPool replica, long primarySeq, long minSeq) {
+        long seq = replica.getSeq();
+        return seq >= 0 && seq >= minSeq && primarySeq - seq <= maxLag && replica.getLiveConnections() > 0;
+    }
+
+    /**
+     * Newest seq the proxy knows of the primary: from its responses, its
+     * invalidations and the writes answered through the proxy
+     */
+    public long getPrimarySeq() {
+        return Math.max(Math.max(primary.getSeq(), invalidations.getLastSeq()), lastWriteSeq.get());
+    }
+
+    /**
+     * A write answered through this proxy, with the seq it was applied at
+     */
+    public void onWrite(long seq) {
+        lastWriteSeq.accumulateAndGet(seq, Math::max);
+    }
+
+    public long getLastWriteSeq() {
+        return lastWriteSeq.get();
+    }
+
+    public int getReplicaCount() {
+        return replicas.length;
+    }
+
+    public long getPrimaryReads() {
+        return primaryReads.get();
+    }
+
+    public long getReplicaReads() {
+        return replicaReads.get();
+    }
+
+    public void shutdown() {
+        for (ApplicationConnectionPool replica : replicas) {
+            replica.shutdown();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package main.server.proxy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * SEARCHes em andamento no servidor de aplicação, por código, compartilhadas
+ * por todos os handlers do proxy (single-flight).
+ *
+ * The first client that misses the cache for a code opens a flight and
+ * forwards its SEARCH; clients that miss the same code while the flight is
+ * open only join it. When the single response arrives, the flight is closed
+ * and every client gets the response with its own correlation id, so a
+ * popular work order costs the application server one SEARCH however many
+ * clients ask for it at once.
+ */
+public class SearchFlights {
+    private static final class Flight {
+        final List<PendingRequests.ResponseHandler> waiters = new ArrayList<>(2);
+    }
+
+    private final Map<Integer, Flight> flights = new ConcurrentHashMap<>();
+    private final AtomicLong started = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * Wait for the SEARCH of a code, opening its flight if none is open
+     *
+     * @return true if the caller opened the flight and must forward the
+     *         SEARCH, false if it joined one already forwarded
+     */
+    public boolean join(int code, PendingRequests.ResponseHandler waiter) {
+        boolean[] opened = new boolean[1];
+        // compute runs atomically per code, so no waiter can join a flight being closed
+        flights.compute(code, (key, flight) -> {
+            if (flight == null) {
+                flight = new Flight();
+                opened[0] = true;
+            }
+            flight.waiters.add(waiter);
+            return flight;
+        });
+        (opened[0] ? started : coalesced).incrementAndGet();
+        return opened[0];
+    }
+
+    /**
+     * Close the flight of a code
+     *
+     * @return the clients waiting for it, to receive the response
+     */
+    public List<PendingRequests.ResponseHandler> close(int code) {
+        Flight flight = flights.remove(code);
+        return flight != null ? flight.waiters : Collections.emptyList();
+    }
+
+    /**
+     * SEARCHes forwarded to the application server
+     */
+    public long getStarted() {
+        return started.get();
+    }
+
+    /**
+     * SEARCHes answered by a flight another client opened
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    public int size() {
+        return flights.size();
+    }
+}
@@ -0,0 +1,239 @@
+package main.server.proxy.cache;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import main.server.proxy.cache.policy.EvictionPolicy;
+
+/**
+ * Cache com política de expulsão configurável, sincronizada para acesso de
+ * múltiplas threads.
+ *
+ * Values are found by key in a hash index. Which key leaves when the cache is
+ * full is up to the {@link EvictionPolicy}, chosen with "cfwos.cache.policy"
+ * (one of {@link EvictionPolicy#NAMES}). The capacity works as in
+ * {@link CacheFIFO}: "cfwos.cache.maxEntries" entries and optionally
+ * "cfwos.cache.maxBytes" estimated bytes.
+ *
+ * With "cfwos.cache.traceFile" set, the key of every lookup is appended to
+ * that file, one per line, to replay later with test.CacheTraceReplay and
+ * compare the policies on real traffic.
+ *
+ * @param <K> tipo da chave
+ * @param <V> tipo do valor
+ */
+public class Cache<K, V> implements Closeable {
+    static final String POLICY_PROPERTY = "cfwos.cache.policy";
+    static final String MAX_ENTRIES_PROPERTY = "cfwos.cache.maxEntries";
+    static final String MAX_BYTES_PROPERTY = "cfwos.cache.maxBytes";
+    static final String DEFAULT_POLICY = "FIFO";
+    static final int DEFAULT_MAX_ENTRIES = 20;
+    static final long DEFAULT_MAX_BYTES = 0;
+
+    private final Function<V, K> keyOf;
+    private final EvictionPolicy<K> policy;
+    private final int maxEntries;
+    private final long maxBytes;
+    private final Map<K, Entry<V>> index = new HashMap<>();
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private KeyTrace trace;
+    private final Object lock = new Object();
+
+    private static final class Entry<V> {
+        final V value;
+        final long weight;
+
+        Entry(V value, long weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * Cria a cache com a política e a capacidade das propriedades do sistema
+     *
+     * @param keyOf extrai a chave de um valor
+     */
+    public Cache(Function<V, K> keyOf) {
+        this(keyOf, System.getProperty(POLICY_PROPERTY, DEFAULT_POLICY),
+                Integer.getInteger(MAX_ENTRIES_PROPERTY, DEFAULT_MAX_ENTRIES),
+                Long.getLong(MAX_BYTES_PROPERTY, DEFAULT_MAX_BYTES));
+        this.trace = KeyTrace.open();
+    }
+
+    public Cache(Function<V, K> keyOf, String policy, int maxEntries, long maxBytes) {
+        this(keyOf, EvictionPolicy.<K>create(policy, maxEntries), maxEntries, maxBytes);
+    }
+
+    /**
+     * @param maxEntries número máximo de itens
+     * @param maxBytes   tamanho estimado máximo dos itens, 0 para não limitar
+     */
+    public Cache(Function<V, K> keyOf, EvictionPolicy<K> policy, int maxEntries, long maxBytes) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("Cache capacity must be positive: " + maxEntries);
+        }
+        this.keyOf = keyOf;
+        this.policy = policy;
+        this.maxEntries = maxEntries;
+        this.maxBytes = Math.max(0, maxBytes);
+    }
+
+    /**
+     * Adiciona ou substitui um item, expulsando outros se a cache passar da
+     * capacidade. Com políticas de admissão o próprio item pode ser o
+     * expulso.
+     */
+    public void add(V value) {
+        if (value == null)
+            return;
+
+        K key = keyOf.apply(value);
+        Entry<V> entry = new Entry<>(value, CacheFIFO.estimateBytes(value));
+        synchronized (lock) {
+            Entry<V> existing = index.put(key, entry);
+            bytes += entry.weight;
+            if (existing != null) {
+                bytes -= existing.weight;
+                policy.onAccess(key);
+                return;
+            }
+
+            policy.onInsert(key);
+            while (index.size() > maxEntries || (maxBytes > 0 && bytes > maxBytes && index.size() > 1)) {
+                K victim = policy.evict();
+                if (victim == null) {
+                    break;
+                }
+                Entry<V> evicted = index.remove(victim);
+                if (evicted != null) {
+                    bytes -= evicted.weight;
+                    evictions++;
+                }
+            }
+        }
+    }
+
+    public void remove(V value) {
+        if (value != null) {
+            removeByKey(keyOf.apply(value));
+        }
+    }
+
+    public void removeByKey(K key) {
+        synchronized (lock) {
+            Entry<V> existing = index.remove(key);
+            if (existing != null) {
+                bytes -= existing.weight;
+                policy.onRemove(key);
+            }
+        }
+    }
+
+    /**
+     * Busca um valor pela chave, contando acerto ou falta
+     *
+     * @return null se a chave não está na cache
+     */
+    public V getByKey(K key) {
+        synchronized (lock) {
+            if (trace != null) {
+                trace.record(key);
+            }
+            Entry<V> entry = index.get(key);
+            if (entry == null) {
+                misses++;
+                policy.onMiss(key);
+                return null;
+            }
+            hits++;
+            policy.onAccess(key);
+            return entry.value;
+        }
+    }
+
+    /**
+     * Busca um valor sem contar como leitura, para operações que só precisam
+     * saber se a chave está na cache
+     */
+    public V peekByKey(K key) {
+        synchronized (lock) {
+            Entry<V> entry = index.get(key);
+            return entry != null ? entry.value : null;
+        }
+    }
+
+    public int getSize() {
+        synchronized (lock) {
+            return index.size();
+        }
+    }
+
+    public boolean isEmpty() {
+        synchronized (lock) {
+            return index.isEmpty();
+        }
+    }
+
+    public String getPolicyName() {
+        return policy.getName();
+    }
+
+    /**
+     * Gets metrics about the cache performance
+     */
+    public Map<String, Object> getMetrics() {
+        synchronized (lock) {
+            Map<String, Object> metrics = new HashMap<>();
+            metrics.put("policy", policy.getName());
+            metrics.put("size", index.size());
+            metrics.put("maxSize", maxEntries);
+            metrics.put("usagePercent", (index.size() * 100.0) / maxEntries);
+            metrics.put("bytes", bytes);
+            metrics.put("maxBytes", maxBytes);
+            metrics.put("hits", hits);
+            metrics.put("misses", misses);
+            metrics.put("evictions", evictions);
+            metrics.put("hitRatio", hits + misses == 0 ? 0.0 : hits / (double) (hits + misses));
+            return metrics;
+        }
+    }
+
+    public List<V> getAllValues() {
+        synchronized (lock) {
+            List<V> values = new ArrayList<>(index.size());
+            for (Entry<V> entry : index.values()) {
+                values.add(entry.value);
+            }
+            return values;
+        }
+    }
+
+    public void clear() {
+        synchronized (lock) {
+            index.clear();
+            policy.clear();
+            bytes = 0;
+        }
+    }
+
+    /**
+     * Grava o que falta do trace de chaves
+     */
+    @Override
+    public void close() {
+        synchronized (lock) {
+            if (trace != null) {
+                trace.close();
+                trace = null;
+            }
+        }
+    }
+}
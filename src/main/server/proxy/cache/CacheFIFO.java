@@ -1,166 +1,220 @@
 package main.server.proxy.cache;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import main.shared.models.WorkOrder;
-import main.shared.utils.list.LinkedList;
-import main.shared.utils.list.LinkedList.Node;
-
-import java.util.HashMap;
 
 /**
  * Implementação de cache utilizando política FIFO (First In, First Out)
  * com sincronização para acesso de múltiplas threads.
- * 
+ *
+ * Entries are found through a hash index keyed by the value itself (for a
+ * WorkOrder, its code, see {@link WorkOrder#equals}) and are linked in
+ * insertion order through their own prev/next fields, so get, add, remove
+ * and eviction are O(1) whatever the capacity.
+ *
+ * The capacity is a number of entries ("cfwos.cache.maxEntries") and,
+ * optionally, an estimate of the bytes the cached values take
+ * ("cfwos.cache.maxBytes", 0 for no limit). The oldest entries are evicted
+ * until both limits hold.
+ *
  * @param <V> O tipo de objeto armazenado na cache
  */
 public class CacheFIFO<V> {
-    private static final int MAX_SIZE = 20;
-    private final LinkedList<V> cache;
+    private static final String MAX_ENTRIES_PROPERTY = "cfwos.cache.maxEntries";
+    private static final String MAX_BYTES_PROPERTY = "cfwos.cache.maxBytes";
+    private static final int DEFAULT_MAX_ENTRIES = 20;
+    private static final long DEFAULT_MAX_BYTES = 0;
+    // Entries listed by getCacheContentsAsString, to keep the string short
+    private static final int MAX_LISTED_ENTRIES = 20;
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final Map<V, Entry<V>> index = new HashMap<>();
+    // Oldest entry first
+    private Entry<V> head;
+    private Entry<V> tail;
+    private long bytes;
     private final Object lock = new Object(); // Objeto para sincronização
 
+    private static final class Entry<V> {
+        final V value;
+        final long weight;
+        Entry<V> prev;
+        Entry<V> next;
+
+        Entry(V value, long weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
     /**
-     * Cria uma nova instância de cache FIFO vazia
+     * Cria uma nova instância de cache FIFO vazia, com a capacidade das
+     * propriedades do sistema
      */
     public CacheFIFO() {
-        cache = new LinkedList<>();
+        this(Integer.getInteger(MAX_ENTRIES_PROPERTY, DEFAULT_MAX_ENTRIES),
+                Long.getLong(MAX_BYTES_PROPERTY, DEFAULT_MAX_BYTES));
+    }
+
+    /**
+     * @param maxEntries número máximo de itens
+     * @param maxBytes   tamanho estimado máximo dos itens, 0 para não limitar
+     */
+    public CacheFIFO(int maxEntries, long maxBytes) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("Cache capacity must be positive: " + maxEntries);
+        }
+        this.maxEntries = maxEntries;
+        this.maxBytes = Math.max(0, maxBytes);
     }
 
     /**
      * Adiciona um item na cache, removendo o item mais antigo se necessário
-     * 
+     *
      * @param value O valor a ser adicionado
      */
     public void add(V value) {
         if (value == null)
             return;
 
+        Entry<V> entry = new Entry<>(value, estimateBytes(value));
         synchronized (lock) {
             // Se já existe o item na cache, remova-o primeiro para não haver duplicatas
-            V existing = get(value);
+            Entry<V> existing = index.remove(value);
             if (existing != null) {
-                cache.removeCrit(value);
-            }
-
-            // Se atingiu o tamanho máximo, remove o primeiro elemento (mais antigo)
-            if (cache.getSize() == MAX_SIZE) {
-                cache.removeFirst();
+                unlink(existing);
             }
 
             // Adiciona o novo valor no final da lista
-            cache.addLast(value);
+            index.put(value, entry);
+            linkLast(entry);
+
+            // Remove os itens mais antigos até caber na capacidade
+            while (head != entry && (index.size() > maxEntries || (maxBytes > 0 && bytes > maxBytes))) {
+                index.remove(head.value);
+                unlink(head);
+            }
         }
     }
 
     /**
      * Remove um valor específico da cache
-     * 
+     *
      * @param value O valor a ser removido
      */
     public void remove(V value) {
+        if (value == null)
+            return;
+
         synchronized (lock) {
-            cache.removeCrit(value);
+            Entry<V> existing = index.remove(value);
+            if (existing != null) {
+                unlink(existing);
+            }
         }
     }
 
     /**
      * Busca um valor na cache
-     * 
+     *
      * @param criteria O critério de busca (ou valor específico)
      * @return O valor encontrado ou null se não encontrado
      */
     public V get(V criteria) {
+        if (criteria == null)
+            return null;
+
         synchronized (lock) {
-            return cache.search(criteria);
+            Entry<V> entry = index.get(criteria);
+            return entry != null ? entry.value : null;
         }
     }
 
     /**
      * Busca um WorkOrder pelo código
-     * 
+     *
      * @param code O código do WorkOrder a ser buscado
      * @return O WorkOrder encontrado ou null
      */
     public V searchByCode(V code) {
-        synchronized (lock) {
-            if (cache.isEmpty()) {
-                return null;
-            }
-            return cache.search(code);
-        }
+        return get(code);
     }
 
-    /**
-     * Método auxiliar para busca não sincronizada (para uso interno)
-     */
-    // private V search(V criteria) {
-    // return cache.search(criteria);
-    // }
-
     /**
      * Exibe o conteúdo da cache no console
      */
     public void showCache() {
         synchronized (lock) {
-            cache.show();
+            for (Entry<V> entry = head; entry != null; entry = entry.next) {
+                System.out.println(entry.value);
+            }
         }
     }
 
     /**
      * Retorna o tamanho atual da cache
-     * 
+     *
      * @return Número de elementos na cache
      */
     public int getSize() {
         synchronized (lock) {
-            return cache.getSize();
+            return index.size();
         }
     }
 
     /**
      * Verifica se a cache está vazia
-     * 
+     *
      * @return true se vazia, false caso contrário
      */
     public boolean isEmpty() {
         synchronized (lock) {
-            return cache.isEmpty();
+            return index.isEmpty();
         }
     }
 
     /**
-     * Returns a string representation of the current cache contents
-     * 
-     * @return String containing all cache entries
+     * Returns a string representation of the current cache contents. Only the
+     * newest entries are listed.
+     *
+     * @return String containing the newest cache entries
      */
-    @SuppressWarnings({ "unchecked", "rawtypes" })
     public String getCacheContentsAsString() {
         synchronized (lock) {
             StringBuilder sb = new StringBuilder();
-            sb.append("\n===== CURRENT CACHE (Size: ").append(getSize()).append("/").append(MAX_SIZE)
+            sb.append("\n===== CURRENT CACHE (Size: ").append(index.size()).append("/").append(maxEntries)
                     .append(") =====\n");
 
-            if (isEmpty()) {
+            if (index.isEmpty()) {
                 sb.append("Cache is empty\n");
             } else {
-                // Use the LinkedList's internal structure to get all items
-                Node current = cache.getHead();
-                int index = 0;
+                // Walk back from the newest entry, then list them oldest first
+                int listed = Math.min(index.size(), MAX_LISTED_ENTRIES);
+                Entry<V> current = tail;
+                for (int i = 1; i < listed; i++) {
+                    current = current.prev;
+                }
+                if (listed < index.size()) {
+                    sb.append("... ").append(index.size() - listed).append(" older entries\n");
+                }
 
-                while (current != null) {
-                    V value = (V) current.getData();
+                int position = index.size() - listed;
+                for (; current != null; current = current.next) {
+                    V value = current.value;
                     if (value instanceof WorkOrder) {
                         WorkOrder wo = (WorkOrder) value;
                         sb.append(String.format("[%d] ID: %d | Name: %s | Description: %s\n",
-                                index++, wo.getCode(), wo.getName(),
+                                position++, wo.getCode(), wo.getName(),
                                 wo.getDescription().length() > 20 ? wo.getDescription().substring(0, 20) + "..."
                                         : wo.getDescription()));
                     } else {
-                        sb.append(String.format("[%d] %s\n", index++, value));
+                        sb.append(String.format("[%d] %s\n", position++, value));
                     }
-                    current = current.getNext();
                 }
             }
 
@@ -175,31 +229,74 @@ public class CacheFIFO<V> {
     public Map<String, Object> getMetrics() {
         synchronized (lock) {
             Map<String, Object> metrics = new HashMap<>();
-            metrics.put("size", cache.getSize());
-            metrics.put("maxSize", MAX_SIZE);
-            metrics.put("usagePercent", (cache.getSize() * 100.0) / MAX_SIZE);
+            metrics.put("size", index.size());
+            metrics.put("maxSize", maxEntries);
+            metrics.put("usagePercent", (index.size() * 100.0) / maxEntries);
+            metrics.put("bytes", bytes);
+            metrics.put("maxBytes", maxBytes);
             return metrics;
         }
     }
 
     /**
-     * Returns a list of all WorkOrders in the cache using the
-     * shared.utils.list.LinkedList
-     * 
+     * Returns a list of all WorkOrders in the cache, oldest first
+     *
      * @return List of WorkOrder objects
      */
     public List<WorkOrder> getAllWorkOrders() {
         synchronized (lock) {
-            List<WorkOrder> workOrders = new ArrayList<>();
-            Node current = cache.getHead();
-            while (current != null) {
-                V value = (V) current.getData();
-                if (value instanceof WorkOrder) {
-                    workOrders.add((WorkOrder) value);
+            List<WorkOrder> workOrders = new ArrayList<>(index.size());
+            for (Entry<V> entry = head; entry != null; entry = entry.next) {
+                if (entry.value instanceof WorkOrder) {
+                    workOrders.add((WorkOrder) entry.value);
                 }
-                current = current.getNext();
             }
             return workOrders;
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Estimativa do espaço ocupado por um valor na heap: objeto, campos e
+     * strings (2 bytes por caractere)
+     */
+    static long estimateBytes(Object value) {
+        if (value instanceof WorkOrder) {
+            WorkOrder wo = (WorkOrder) value;
+            return 96 + stringBytes(wo.getName()) + stringBytes(wo.getDescription())
+                    + stringBytes(wo.getTimestamp());
+        }
+        return 64;
+    }
+
+    private static long stringBytes(String value) {
+        return value == null ? 0 : 40 + 2L * value.length();
+    }
+
+    private void linkLast(Entry<V> entry) {
+        entry.prev = tail;
+        entry.next = null;
+        if (tail == null) {
+            head = entry;
+        } else {
+            tail.next = entry;
+        }
+        tail = entry;
+        bytes += entry.weight;
+    }
+
+    private void unlink(Entry<V> entry) {
+        if (entry.prev == null) {
+            head = entry.next;
+        } else {
+            entry.prev.next = entry.next;
+        }
+        if (entry.next == null) {
+            tail = entry.prev;
+        } else {
+            entry.next.prev = entry.prev;
+        }
+        entry.prev = null;
+        entry.next = null;
+        bytes -= entry.weight;
+    }
+}
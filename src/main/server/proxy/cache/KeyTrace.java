@@ -0,0 +1,78 @@
+package main.server.proxy.cache;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+
+import main.shared.log.Logger;
+
+/**
+ * Grava as chaves buscadas na cache, uma por linha, para o
+ * test.CacheTraceReplay.
+ *
+ * Only opened when "cfwos.cache.traceFile" is set. Writes are synchronized, so
+ * a cache that records its trace serializes its lookups on this writer.
+ */
+final class KeyTrace implements Closeable {
+    private static final Logger logger = Logger.getLogger();
+    static final String TRACE_PROPERTY = "cfwos.cache.traceFile";
+    private static final int FLUSH_RECORDS = 1000;
+
+    private BufferedWriter writer;
+    private int records;
+
+    private KeyTrace(BufferedWriter writer) {
+        this.writer = writer;
+    }
+
+    /**
+     * @return null se o trace não foi pedido ou o arquivo não abriu
+     */
+    static KeyTrace open() {
+        String traceFile = System.getProperty(TRACE_PROPERTY);
+        if (traceFile == null || traceFile.isEmpty()) {
+            return null;
+        }
+        try {
+            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(traceFile, true), StandardCharsets.UTF_8));
+            logger.info("Recording cache lookups to {}", traceFile);
+            return new KeyTrace(writer);
+        } catch (IOException e) {
+            logger.error("Could not open cache trace {}: {}", traceFile, e.getMessage());
+            return null;
+        }
+    }
+
+    synchronized void record(Object key) {
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.write(String.valueOf(key));
+            writer.newLine();
+            if (++records % FLUSH_RECORDS == 0) {
+                writer.flush();
+            }
+        } catch (IOException e) {
+            logger.error("Cache trace failed, no longer recording: {}", e.getMessage());
+            writer = null;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.close();
+        } catch (IOException e) {
+            logger.error("Error closing cache trace: {}", e.getMessage());
+        }
+        writer = null;
+    }
+}
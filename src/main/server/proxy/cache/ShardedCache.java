@@ -0,0 +1,736 @@
+package main.server.proxy.cache;
+
+import java.io.Closeable;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import main.server.proxy.cache.policy.EvictionPolicy;
+import main.shared.models.WorkOrder;
+
+/**
+ * Cache dividida em segmentos pelo hash da chave, cada um com seu índice, sua
+ * política de expulsão e seu lock, para as threads da proxy não disputarem
+ * um lock só.
+ *
+ * Hits never take a lock: the values are in a ConcurrentHashMap, and the hit
+ * is only noted in a small ring buffer of its segment. The eviction policy is
+ * not thread safe, so the noted hits are handed to it in batches, by whichever
+ * thread gets the segment lock: a write, or a hit that finds the buffer half
+ * full and the lock free. When the buffer is full, hits are not noted at all;
+ * the policy sees a sample of the hits, but no hit ever waits. Misses and
+ * writes lock their segment only, and a miss is followed by a request to the
+ * application server anyway.
+ *
+ * Each segment holds its share of "cfwos.cache.maxEntries" and
+ * "cfwos.cache.maxBytes", so which key leaves is decided per segment. The
+ * number of segments comes from "cfwos.cache.shards" (a power of two, by
+ * default 4 per processor), but a segment always holds at least
+ * {@value #MIN_SHARD_ENTRIES} entries, so a small cache has a single segment
+ * and evicts exactly like {@link Cache}.
+ *
+ * When the source of the values announces changes, {@link #invalidate} drops
+ * the key and remembers the sequence number of the change, and
+ * {@link #add(Object, long)} refuses values read before it, so a slow read
+ * can never put back what an invalidation took out. Each segment remembers
+ * its last {@value #MAX_TOMBSTONES} invalidations and refuses reads older
+ * than the ones it forgot.
+ *
+ * Entries may also expire: "cfwos.cache.ttlSeconds" (0 for never) gives the
+ * default time to live, and {@link #add(Object, long, long)} one per entry. A
+ * lookup never returns an expired entry; a {@link TimerWheel} per segment
+ * takes expired entries out of memory as time goes by, so expiry costs no
+ * thread and no scan. {@link #negative()} builds the cache of keys the source
+ * answered do not exist, with its own capacity and time to live.
+ *
+ * Every entry counts the hits the policy is told about, so
+ * {@link #getHotKeys(int)} can list the hottest keys to save, and
+ * {@link #preload} puts them back with their counts after a restart.
+ *
+ * @param <K> tipo da chave
+ * @param <V> tipo do valor
+ */
+public class ShardedCache<K, V> implements Closeable {
+    private static final String SHARDS_PROPERTY = "cfwos.cache.shards";
+    private static final int MIN_SHARD_ENTRIES = 64;
+    // Must be a power of two
+    private static final int READ_BUFFER_SIZE = 64;
+    private static final int READ_BUFFER_MASK = READ_BUFFER_SIZE - 1;
+    private static final int DRAIN_THRESHOLD = READ_BUFFER_SIZE / 2;
+    // Invalidations remembered per segment, older ones only raise the segment floor
+    private static final int MAX_TOMBSTONES = 1024;
+    private static final String TTL_PROPERTY = "cfwos.cache.ttlSeconds";
+    private static final long DEFAULT_TTL_SECONDS = 300;
+    private static final String NEGATIVE_MAX_ENTRIES_PROPERTY = "cfwos.cache.negativeMaxEntries";
+    private static final String NEGATIVE_TTL_PROPERTY = "cfwos.cache.negativeTtlSeconds";
+    private static final int DEFAULT_NEGATIVE_MAX_ENTRIES = 256;
+    private static final long DEFAULT_NEGATIVE_TTL_SECONDS = 30;
+    // A wheel turn lasts about one default time to live
+    private static final int WHEEL_BUCKETS = 64;
+    private static final long MIN_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long NO_TTL_TICK_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final Function<V, K> keyOf;
+    private final Segment<K, V>[] segments;
+    private final int shift;
+    private final String policyName;
+    private final int maxEntries;
+    private final long maxBytes;
+    private final long ttlNanos;
+    private volatile KeyTrace trace;
+
+    public static final class Page {
+        private final String content;
+        private final int total;
+
+        Page(String content, int total) {
+            this.content = content;
+            this.total = total;
+        }
+
+        public String getContent() {
+            return content;
+        }
+
+        public int getTotal() {
+            return total;
+        }
+    }
+
+    private static final class Entry<K, V> {
+        final V value;
+        final long weight;
+        // null para entradas que não expiram
+        final TimerWheel.Timer<K> timer;
+        // Hits drained to the policy, kept across replacements; guarded by the segment lock
+        int frequency;
+
+        Entry(V value, long weight, TimerWheel.Timer<K> timer, int frequency) {
+            this.value = value;
+            this.weight = weight;
+            this.timer = timer;
+            this.frequency = frequency;
+        }
+
+        boolean isExpired() {
+            return timer != null && timer.isExpired(System.nanoTime());
+        }
+    }
+
+    /**
+     * Cria a cache com a política, a capacidade, o número de segmentos e o
+     * tempo de vida das propriedades do sistema
+     *
+     * @param keyOf extrai a chave de um valor
+     */
+    public ShardedCache(Function<V, K> keyOf) {
+        this(keyOf, System.getProperty(Cache.POLICY_PROPERTY, Cache.DEFAULT_POLICY),
+                Integer.getInteger(Cache.MAX_ENTRIES_PROPERTY, Cache.DEFAULT_MAX_ENTRIES),
+                Long.getLong(Cache.MAX_BYTES_PROPERTY, Cache.DEFAULT_MAX_BYTES),
+                Integer.getInteger(SHARDS_PROPERTY, 4 * Runtime.getRuntime().availableProcessors()),
+                TimeUnit.SECONDS.toMillis(Long.getLong(TTL_PROPERTY, DEFAULT_TTL_SECONDS)));
+        this.trace = KeyTrace.open();
+    }
+
+    /**
+     * Cria a cache negativa: chaves que a fonte respondeu não existirem, com a
+     * política de "cfwos.cache.policy", até "cfwos.cache.negativeMaxEntries"
+     * chaves por "cfwos.cache.negativeTtlSeconds" segundos
+     */
+    public static <K> ShardedCache<K, K> negative() {
+        return new ShardedCache<>(Function.identity(),
+                System.getProperty(Cache.POLICY_PROPERTY, Cache.DEFAULT_POLICY),
+                Integer.getInteger(NEGATIVE_MAX_ENTRIES_PROPERTY, DEFAULT_NEGATIVE_MAX_ENTRIES), 0,
+                Integer.getInteger(SHARDS_PROPERTY, 4 * Runtime.getRuntime().availableProcessors()),
+                TimeUnit.SECONDS.toMillis(Long.getLong(NEGATIVE_TTL_PROPERTY, DEFAULT_NEGATIVE_TTL_SECONDS)));
+    }
+
+    /**
+     * Cria a cache sem tempo de vida
+     *
+     * @see #ShardedCache(Function, String, int, long, int, long)
+     */
+    public ShardedCache(Function<V, K> keyOf, String policy, int maxEntries, long maxBytes, int shards) {
+        this(keyOf, policy, maxEntries, maxBytes, shards, 0);
+    }
+
+    /**
+     * @param maxEntries número máximo de itens, somando os segmentos
+     * @param maxBytes   tamanho estimado máximo dos itens, 0 para não limitar
+     * @param shards     número de segmentos pedido, arredondado para potência
+     *                   de dois e limitado pelo tamanho mínimo de segmento
+     * @param ttlMillis  tempo de vida padrão das entradas, 0 para não expirar
+     */
+    @SuppressWarnings("unchecked")
+    public ShardedCache(Function<V, K> keyOf, String policy, int maxEntries, long maxBytes, int shards,
+            long ttlMillis) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("Cache capacity must be positive: " + maxEntries);
+        }
+        if (ttlMillis < 0) {
+            throw new IllegalArgumentException("Cache time to live cannot be negative: " + ttlMillis);
+        }
+        int count = Integer.highestOneBit(Math.max(1, Math.min(shards, maxEntries / MIN_SHARD_ENTRIES)));
+        this.keyOf = keyOf;
+        this.maxEntries = maxEntries;
+        this.maxBytes = Math.max(0, maxBytes);
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        long tickNanos = ttlNanos > 0 ? Math.max(MIN_TICK_NANOS, ttlNanos / WHEEL_BUCKETS) : NO_TTL_TICK_NANOS;
+        this.segments = (Segment<K, V>[]) new Segment<?, ?>[count];
+        this.shift = 32 - Integer.numberOfTrailingZeros(count);
+        for (int i = 0; i < count; i++) {
+            // The first segments take the remainder, so the capacities add up to maxEntries
+            int segmentEntries = maxEntries / count + (i < maxEntries % count ? 1 : 0);
+            segments[i] = new Segment<>(EvictionPolicy.<K>create(policy, segmentEntries), segmentEntries,
+                    this.maxBytes / count, tickNanos);
+        }
+        this.policyName = segments[0].policy.getName();
+    }
+
+    /**
+     * Adiciona ou substitui um item, expulsando outros do mesmo segmento se
+     * ele passar da capacidade
+     */
+    public void add(V value) {
+        add(value, Long.MAX_VALUE);
+    }
+
+    /**
+     * Adiciona um item lido da fonte quando ela estava na versão readSeq, a
+     * menos que uma invalidação mais nova já tenha chegado para a chave
+     *
+     * @return false se o item já estava velho e não entrou
+     */
+    public boolean add(V value, long readSeq) {
+        return add(value, readSeq, TimeUnit.NANOSECONDS.toMillis(ttlNanos));
+    }
+
+    /**
+     * Como {@link #add(Object, long)}, com tempo de vida próprio
+     *
+     * @param ttlMillis tempo de vida da entrada, 0 para não expirar
+     */
+    public boolean add(V value, long readSeq, long ttlMillis) {
+        return add(value, readSeq, ttlMillis, 0);
+    }
+
+    /**
+     * Põe de volta um item salvo com {@link #getHotKeys(int)}, com a
+     * frequência que ele tinha, relido da fonte na versão readSeq
+     */
+    public boolean preload(V value, long readSeq, int frequency) {
+        return add(value, readSeq, TimeUnit.NANOSECONDS.toMillis(ttlNanos), Math.max(0, frequency));
+    }
+
+    private boolean add(V value, long readSeq, long ttlMillis, int frequency) {
+        if (value == null)
+            return false;
+
+        K key = keyOf.apply(value);
+        TimerWheel.Timer<K> timer = ttlMillis > 0
+                ? new TimerWheel.Timer<>(key, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ttlMillis))
+                : null;
+        return segmentFor(key).add(key, new Entry<>(value, CacheFIFO.estimateBytes(value), timer, frequency),
+                readSeq);
+    }
+
+    public void remove(V value) {
+        if (value != null) {
+            removeByKey(keyOf.apply(value));
+        }
+    }
+
+    public void removeByKey(K key) {
+        segmentFor(key).remove(key);
+    }
+
+    /**
+     * A chave mudou na fonte na versão seq: sai da cache, e leituras feitas
+     * antes de seq não entram mais
+     */
+    public void invalidate(K key, long seq) {
+        segmentFor(key).invalidate(key, seq);
+    }
+
+    /**
+     * Tudo até a versão seq pode ter mudado: esvazia a cache, e leituras
+     * feitas antes de seq não entram mais
+     */
+    public void invalidateAll(long seq) {
+        for (Segment<K, V> segment : segments) {
+            segment.invalidateAll(seq);
+        }
+    }
+
+    /**
+     * Busca um valor pela chave, contando acerto ou falta, sem lock
+     *
+     * @return null se a chave não está na cache
+     */
+    public V getByKey(K key) {
+        KeyTrace trace = this.trace;
+        if (trace != null) {
+            trace.record(key);
+        }
+        return segmentFor(key).get(key);
+    }
+
+    /**
+     * Busca um valor sem contar como leitura, para operações que só precisam
+     * saber se a chave está na cache
+     */
+    public V peekByKey(K key) {
+        Entry<K, V> entry = segmentFor(key).map.get(key);
+        return entry != null && !entry.isExpired() ? entry.value : null;
+    }
+
+    public int getSize() {
+        int size = 0;
+        for (Segment<K, V> segment : segments) {
+            size += segment.map.size();
+        }
+        return size;
+    }
+
+    public boolean isEmpty() {
+        for (Segment<K, V> segment : segments) {
+            if (!segment.map.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public String getPolicyName() {
+        return policyName;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public int getShardCount() {
+        return segments.length;
+    }
+
+    /**
+     * Tempo de vida padrão das entradas em milissegundos, 0 se não expiram
+     */
+    public long getTtlMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(ttlNanos);
+    }
+
+    /**
+     * Versão do conteúdo: cresce a cada item adicionado, substituído ou
+     * removido. Two reads with the same version saw the same contents.
+     */
+    public long getVersion() {
+        long version = 0;
+        for (Segment<K, V> segment : segments) {
+            version += segment.version;
+        }
+        return version;
+    }
+
+    /**
+     * Uma página do conteúdo da cache, um item por linha, na ordem dos
+     * segmentos. Segments change independently, so pages read while the cache
+     * changes may repeat or skip items; compare {@link #getVersion()} before
+     * and after to know.
+     *
+     * @param offset itens a pular
+     * @param limit  número máximo de itens da página
+     */
+    public Page getContents(int offset, int limit) {
+        StringBuilder sb = new StringBuilder();
+        int position = 0;
+        int end = offset + limit;
+        outer: for (Segment<K, V> segment : segments) {
+            for (Entry<K, V> entry : segment.map.values()) {
+                if (position >= end) {
+                    break outer;
+                }
+                if (entry.isExpired()) {
+                    continue;
+                }
+                if (position++ < offset) {
+                    continue;
+                }
+                V value = entry.value;
+                if (value instanceof WorkOrder) {
+                    WorkOrder wo = (WorkOrder) value;
+                    sb.append(String.format("[%d] ID: %d | Name: %s | Description: %s\n",
+                            position - 1, wo.getCode(), wo.getName(),
+                            wo.getDescription().length() > 20 ? wo.getDescription().substring(0, 20) + "..."
+                                    : wo.getDescription()));
+                } else {
+                    sb.append(String.format("[%d] %s\n", position - 1, value));
+                }
+            }
+        }
+        return new Page(sb.toString(), getSize());
+    }
+
+    /**
+     * Gets metrics about the cache performance, summed over the segments
+     */
+    public Map<String, Object> getMetrics() {
+        int size = 0;
+        long bytes = 0;
+        long hits = 0;
+        long misses = 0;
+        long evictions = 0;
+        long expirations = 0;
+        for (Segment<K, V> segment : segments) {
+            size += segment.map.size();
+            bytes += segment.bytes;
+            hits += segment.hitCount.get();
+            misses += segment.misses;
+            evictions += segment.evictions;
+            expirations += segment.expirations;
+        }
+
+        Map<String, Object> metrics = new HashMap<>();
+        metrics.put("policy", policyName);
+        metrics.put("shards", segments.length);
+        metrics.put("size", size);
+        metrics.put("maxSize", maxEntries);
+        metrics.put("usagePercent", (size * 100.0) / maxEntries);
+        metrics.put("bytes", bytes);
+        metrics.put("maxBytes", maxBytes);
+        metrics.put("hits", hits);
+        metrics.put("misses", misses);
+        metrics.put("evictions", evictions);
+        metrics.put("expirations", expirations);
+        metrics.put("ttlMillis", getTtlMillis());
+        metrics.put("version", getVersion());
+        metrics.put("hitRatio", hits + misses == 0 ? 0.0 : hits / (double) (hits + misses));
+        return metrics;
+    }
+
+    /**
+     * As chaves mais acessadas, da mais quente para a mais fria
+     *
+     * @param limit número máximo de chaves
+     * @return chave e número de acertos de cada uma
+     */
+    public Map<K, Integer> getHotKeys(int limit) {
+        List<Map.Entry<K, Integer>> counts = new ArrayList<>(getSize());
+        for (Segment<K, V> segment : segments) {
+            segment.collectFrequencies(counts);
+        }
+        counts.sort((a, b) -> Integer.compare(b.getValue(), a.getValue()));
+
+        Map<K, Integer> hotKeys = new LinkedHashMap<>();
+        for (Map.Entry<K, Integer> count : counts) {
+            if (hotKeys.size() >= limit) {
+                break;
+            }
+            hotKeys.put(count.getKey(), count.getValue());
+        }
+        return hotKeys;
+    }
+
+    public List<V> getAllValues() {
+        List<V> values = new ArrayList<>(getSize());
+        for (Segment<K, V> segment : segments) {
+            for (Entry<K, V> entry : segment.map.values()) {
+                if (!entry.isExpired()) {
+                    values.add(entry.value);
+                }
+            }
+        }
+        return values;
+    }
+
+    public void clear() {
+        for (Segment<K, V> segment : segments) {
+            segment.clear();
+        }
+    }
+
+    /**
+     * Grava o que falta do trace de chaves
+     */
+    @Override
+    public void close() {
+        KeyTrace trace = this.trace;
+        this.trace = null;
+        if (trace != null) {
+            trace.close();
+        }
+    }
+
+    private Segment<K, V> segmentFor(K key) {
+        if (segments.length == 1) {
+            return segments[0];
+        }
+        // Sequential codes must spread over the segments, so take the high bits of a multiplicative hash
+        return segments[(key.hashCode() * 0x9e3779b9) >>> shift];
+    }
+
+    private static final class Segment<K, V> {
+        final ConcurrentHashMap<K, Entry<K, V>> map = new ConcurrentHashMap<>();
+        final EvictionPolicy<K> policy;
+        final int maxEntries;
+        final long maxBytes;
+        final ReentrantLock lock = new ReentrantLock();
+        // Written under the lock, read without it for the metrics
+        volatile long bytes;
+        volatile long version;
+        // Seq of the last invalidation of each key, oldest first, and the floor below which every read is stale
+        final LinkedHashMap<K, Long> tombstones = new LinkedHashMap<>();
+        long staleBefore = Long.MIN_VALUE;
+        volatile long misses;
+        volatile long evictions;
+        volatile long expirations;
+        // Deadlines of the entries that expire, and what to do when one passes
+        final TimerWheel<K> wheel;
+        final Consumer<TimerWheel.Timer<K>> expire = this::expire;
+
+        // Keys hit since the last drain, slot = hit number & mask. The hit number is also the hit count.
+        final AtomicReferenceArray<K> hits = new AtomicReferenceArray<>(READ_BUFFER_SIZE);
+        final AtomicLong hitCount = new AtomicLong();
+        volatile long hitsDrained;
+
+        Segment(EvictionPolicy<K> policy, int maxEntries, long maxBytes, long tickNanos) {
+            this.policy = policy;
+            this.maxEntries = maxEntries;
+            this.maxBytes = maxBytes;
+            this.wheel = new TimerWheel<>(tickNanos, WHEEL_BUCKETS, System.nanoTime());
+        }
+
+        V get(K key) {
+            Entry<K, V> entry = map.get(key);
+            if (entry != null && !entry.isExpired()) {
+                noteHit(key);
+                return entry.value;
+            }
+
+            lock.lock();
+            try {
+                drainHits();
+                if (entry != null) {
+                    // Expired before its bucket came around
+                    wheel.cancel(entry.timer);
+                    expire(entry.timer);
+                }
+                misses++;
+                policy.onMiss(key);
+            } finally {
+                lock.unlock();
+            }
+            return null;
+        }
+
+        boolean add(K key, Entry<K, V> entry, long readSeq) {
+            lock.lock();
+            try {
+                drainHits();
+                if (readSeq < staleBefore) {
+                    return false;
+                }
+                Long invalidated = tombstones.get(key);
+                if (invalidated != null && readSeq < invalidated) {
+                    return false;
+                }
+
+                if (entry.timer != null) {
+                    wheel.schedule(entry.timer);
+                }
+                Entry<K, V> existing = map.put(key, entry);
+                version++;
+                long newBytes = bytes + entry.weight;
+                if (existing != null) {
+                    bytes = newBytes - existing.weight;
+                    entry.frequency = Math.max(entry.frequency, existing.frequency);
+                    cancelTimer(existing);
+                    policy.onAccess(key);
+                    return true;
+                }
+                bytes = newBytes;
+
+                policy.onInsert(key);
+                while (map.size() > maxEntries || (maxBytes > 0 && bytes > maxBytes && map.size() > 1)) {
+                    K victim = policy.evict();
+                    if (victim == null) {
+                        break;
+                    }
+                    Entry<K, V> evicted = map.remove(victim);
+                    if (evicted != null) {
+                        bytes -= evicted.weight;
+                        cancelTimer(evicted);
+                        version++;
+                        evictions++;
+                    }
+                }
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void invalidate(K key, long seq) {
+            lock.lock();
+            try {
+                drainHits();
+                removeEntry(key);
+                if (seq <= staleBefore) {
+                    return;
+                }
+                Long previous = tombstones.remove(key);
+                tombstones.put(key, previous != null ? Math.max(previous, seq) : seq);
+                if (tombstones.size() > MAX_TOMBSTONES) {
+                    // Forget the oldest, raising the floor to cover it
+                    Iterator<Long> oldest = tombstones.values().iterator();
+                    staleBefore = Math.max(staleBefore, oldest.next());
+                    oldest.remove();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void invalidateAll(long seq) {
+            lock.lock();
+            try {
+                drainHits();
+                clearEntries();
+                if (seq > staleBefore) {
+                    staleBefore = seq;
+                    tombstones.clear();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void remove(K key) {
+            lock.lock();
+            try {
+                drainHits();
+                removeEntry(key);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void clear() {
+            lock.lock();
+            try {
+                drainHits();
+                clearEntries();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void collectFrequencies(List<Map.Entry<K, Integer>> counts) {
+            lock.lock();
+            try {
+                drainHits();
+                for (Map.Entry<K, Entry<K, V>> entry : map.entrySet()) {
+                    counts.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), entry.getValue().frequency));
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Called with the lock
+        private void removeEntry(K key) {
+            Entry<K, V> existing = map.remove(key);
+            if (existing != null) {
+                bytes -= existing.weight;
+                cancelTimer(existing);
+                version++;
+                policy.onRemove(key);
+            }
+        }
+
+        // Called with the lock
+        private void clearEntries() {
+            if (!map.isEmpty()) {
+                version++;
+            }
+            map.clear();
+            policy.clear();
+            wheel.clear();
+            bytes = 0;
+        }
+
+        private void cancelTimer(Entry<K, V> entry) {
+            if (entry.timer != null) {
+                wheel.cancel(entry.timer);
+            }
+        }
+
+        /**
+         * Tira da cache a entrada do timer vencido; chamado com o lock, com o
+         * timer já fora da roda
+         */
+        private void expire(TimerWheel.Timer<K> timer) {
+            Entry<K, V> entry = map.get(timer.key);
+            // Only the timer of the current entry is in the wheel, but the lookup that saw it may be late
+            if (entry == null || entry.timer != timer || !map.remove(timer.key, entry)) {
+                return;
+            }
+            bytes -= entry.weight;
+            version++;
+            expirations++;
+            policy.onRemove(timer.key);
+        }
+
+        private void noteHit(K key) {
+            long hit = hitCount.getAndIncrement();
+            long pending = hit - hitsDrained;
+            if (pending < READ_BUFFER_SIZE) {
+                hits.lazySet((int) hit & READ_BUFFER_MASK, key);
+            }
+            if (pending >= DRAIN_THRESHOLD && lock.tryLock()) {
+                try {
+                    drainHits();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        /**
+         * Passa os acertos anotados para a política e tira as entradas
+         * vencidas; chamado com o lock. Every write drains first, so the
+         * policy sees the hits before the changes that follow them.
+         */
+        private void drainHits() {
+            long end = hitCount.get();
+            for (long hit = Math.max(hitsDrained, end - READ_BUFFER_SIZE); hit < end; hit++) {
+                int slot = (int) hit & READ_BUFFER_MASK;
+                // A slot still null is a hit that was dropped or is not written yet
+                K key = hits.get(slot);
+                if (key != null) {
+                    hits.lazySet(slot, null);
+                    policy.onAccess(key);
+                    Entry<K, V> entry = map.get(key);
+                    if (entry != null && entry.frequency < Integer.MAX_VALUE) {
+                        entry.frequency++;
+                    }
+                }
+            }
+            hitsDrained = end;
+            if (wheel.size() > 0) {
+                wheel.advance(System.nanoTime(), expire);
+            }
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package main.server.proxy.cache;
+
+import java.util.function.Consumer;
+
+/**
+ * Roda de temporização (hashed timing wheel) com os prazos de expiração das
+ * entradas de um segmento da cache.
+ *
+ * Time is cut in ticks of a power of two nanoseconds. A timer goes in the
+ * bucket of the tick its deadline falls in, modulo the number of buckets, so
+ * scheduling and cancelling are O(1) however many entries there are.
+ * Advancing visits only the buckets of the ticks that went by; a timer more
+ * than one turn away stays in its bucket until its turn comes. Lookups check
+ * the deadline themselves, so the wheel only decides when expired entries
+ * leave memory, and its precision is one tick.
+ *
+ * Not thread safe, the segment calls it under its lock.
+ *
+ * @param <K> tipo da chave
+ */
+final class TimerWheel<K> {
+    static final class Timer<K> {
+        final K key;
+        // System.nanoTime() em que a entrada vence
+        final long deadline;
+        // Links in the bucket, null while not scheduled
+        Timer<K> prev;
+        Timer<K> next;
+
+        Timer(K key, long deadline) {
+            this.key = key;
+            this.deadline = deadline;
+        }
+
+        boolean isExpired(long now) {
+            return now - deadline >= 0;
+        }
+    }
+
+    private final Timer<K>[] buckets;
+    private final int mask;
+    private final int tickShift;
+    // Last tick whose bucket was visited
+    private long currentTick;
+    private int size;
+
+    /**
+     * @param tickNanos duração aproximada de um tick, arredondada para baixo
+     *                  para potência de dois
+     * @param buckets   número de baldes, potência de dois
+     */
+    @SuppressWarnings("unchecked")
+    TimerWheel(long tickNanos, int buckets, long now) {
+        if (Integer.bitCount(buckets) != 1) {
+            throw new IllegalArgumentException("Timer wheel buckets must be a power of two: " + buckets);
+        }
+        this.tickShift = 63 - Long.numberOfLeadingZeros(Math.max(1, tickNanos));
+        this.buckets = (Timer<K>[]) new Timer<?>[buckets];
+        this.mask = buckets - 1;
+        for (int i = 0; i < buckets; i++) {
+            Timer<K> sentinel = new Timer<>(null, 0);
+            sentinel.prev = sentinel;
+            sentinel.next = sentinel;
+            this.buckets[i] = sentinel;
+        }
+        this.currentTick = (now >> tickShift) - 1;
+    }
+
+    void schedule(Timer<K> timer) {
+        long tick = timer.deadline >> tickShift;
+        // Deadlines already passed go in the next bucket to be visited
+        if (tick - currentTick <= 0) {
+            tick = currentTick + 1;
+        }
+        Timer<K> sentinel = buckets[(int) tick & mask];
+        timer.prev = sentinel.prev;
+        timer.next = sentinel;
+        sentinel.prev.next = timer;
+        sentinel.prev = timer;
+        size++;
+    }
+
+    void cancel(Timer<K> timer) {
+        if (timer.next == null) {
+            return;
+        }
+        timer.prev.next = timer.next;
+        timer.next.prev = timer.prev;
+        timer.prev = null;
+        timer.next = null;
+        size--;
+    }
+
+    /**
+     * Visita os baldes dos ticks já terminados até now, tirando da roda e
+     * passando para expired os timers vencidos
+     */
+    void advance(long now, Consumer<Timer<K>> expired) {
+        long lastElapsed = (now >> tickShift) - 1;
+        if (lastElapsed - currentTick <= 0) {
+            return;
+        }
+        // After a pause longer than a turn, every bucket is visited once
+        long tick = Math.max(currentTick + 1, lastElapsed - mask);
+        for (; tick - lastElapsed <= 0; tick++) {
+            Timer<K> sentinel = buckets[(int) tick & mask];
+            Timer<K> timer = sentinel.next;
+            while (timer != sentinel) {
+                Timer<K> next = timer.next;
+                if (timer.isExpired(now)) {
+                    cancel(timer);
+                    expired.accept(timer);
+                }
+                timer = next;
+            }
+        }
+        currentTick = lastElapsed;
+    }
+
+    void clear() {
+        for (Timer<K> sentinel : buckets) {
+            Timer<K> timer = sentinel.next;
+            while (timer != sentinel) {
+                Timer<K> next = timer.next;
+                timer.prev = null;
+                timer.next = null;
+                timer = next;
+            }
+            sentinel.prev = sentinel;
+            sentinel.next = sentinel;
+        }
+        size = 0;
+    }
+
+    int size() {
+        return size;
+    }
+}
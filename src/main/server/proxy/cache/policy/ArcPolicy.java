@@ -0,0 +1,105 @@
+package main.server.proxy.cache.policy;
+
+/**
+ * Adaptive Replacement Cache (Megiddo e Modha): divide a cache entre chaves
+ * lidas uma vez (T1) e chaves lidas mais vezes (T2), e ajusta a divisão
+ * sozinha.
+ *
+ * B1 and B2 remember the keys recently evicted from T1 and T2, without their
+ * values. A key that comes back while in B1 means T1 was too small, so the
+ * target size p of T1 grows; one that comes back while in B2 shrinks it.
+ */
+public class ArcPolicy<K> implements EvictionPolicy<K> {
+    private final int capacity;
+    private final KeyDeque<K> t1 = new KeyDeque<>();
+    private final KeyDeque<K> t2 = new KeyDeque<>();
+    private final KeyDeque<K> b1 = new KeyDeque<>();
+    private final KeyDeque<K> b2 = new KeyDeque<>();
+    // Target size of T1
+    private int p;
+    // The last key inserted came back from B2
+    private boolean insertedFromB2;
+
+    public ArcPolicy(int capacity) {
+        this.capacity = Math.max(1, capacity);
+    }
+
+    @Override
+    public String getName() {
+        return "ARC";
+    }
+
+    @Override
+    public void onInsert(K key) {
+        insertedFromB2 = false;
+        if (b1.remove(key)) {
+            p = Math.min(capacity, p + Math.max(b2.size() / Math.max(1, b1.size()), 1));
+            t2.addLast(key);
+        } else if (b2.remove(key)) {
+            p = Math.max(0, p - Math.max(b1.size() / Math.max(1, b2.size()), 1));
+            t2.addLast(key);
+            insertedFromB2 = true;
+        } else {
+            t1.addLast(key);
+        }
+        trimGhosts();
+    }
+
+    @Override
+    public void onAccess(K key) {
+        if (t1.remove(key)) {
+            t2.addLast(key);
+        } else {
+            t2.moveToLast(key);
+        }
+    }
+
+    @Override
+    public void onRemove(K key) {
+        if (!t1.remove(key)) {
+            t2.remove(key);
+        }
+    }
+
+    @Override
+    public K evict() {
+        K victim;
+        if (!t1.isEmpty() && (t1.size() > p || (insertedFromB2 && t1.size() == p) || t2.isEmpty())) {
+            victim = t1.pollFirst();
+            b1.addLast(victim);
+        } else {
+            victim = t2.pollFirst();
+            if (victim == null) {
+                return null;
+            }
+            b2.addLast(victim);
+        }
+        trimGhosts();
+        return victim;
+    }
+
+    @Override
+    public void clear() {
+        t1.clear();
+        t2.clear();
+        b1.clear();
+        b2.clear();
+        p = 0;
+    }
+
+    // T1 + B1 hold at most capacity keys, all four lists at most twice the capacity
+    private void trimGhosts() {
+        while (t1.size() + b1.size() > capacity && !b1.isEmpty()) {
+            b1.pollFirst();
+        }
+        while (t1.size() + t2.size() + b1.size() + b2.size() > 2 * capacity) {
+            if (!b2.isEmpty()) {
+                b2.pollFirst();
+            } else if (!b1.isEmpty()) {
+                b1.pollFirst();
+            } else {
+                break;
+            }
+        }
+    }
+}
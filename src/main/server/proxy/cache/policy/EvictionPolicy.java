@@ -0,0 +1,75 @@
+package main.server.proxy.cache.policy;
+
+/**
+ * Política de expulsão de uma cache: decide qual chave sai quando a cache
+ * passa da capacidade.
+ *
+ * The cache keeps the values and calls the policy, under its own lock, for
+ * every event on a key. The policy only keeps what it needs to choose a
+ * victim, and {@link #evict()} always returns a key the cache holds.
+ *
+ * @param <K> tipo da chave (o código da ordem de serviço na proxy)
+ */
+public interface EvictionPolicy<K> {
+    String[] NAMES = { "FIFO", "LRU", "LFU", "SLRU", "ARC", "W-TINYLFU" };
+
+    /**
+     * Cria a política pelo nome, para uma cache de capacity itens
+     *
+     * @throws IllegalArgumentException se o nome não é conhecido
+     */
+    static <K> EvictionPolicy<K> create(String name, int capacity) {
+        switch (name.trim().toUpperCase().replace('_', '-')) {
+            case "FIFO":
+                return new FifoPolicy<>();
+            case "LRU":
+                return new LruPolicy<>();
+            case "LFU":
+                return new LfuPolicy<>();
+            case "SLRU":
+                return new SlruPolicy<>(capacity);
+            case "ARC":
+                return new ArcPolicy<>(capacity);
+            case "W-TINYLFU":
+            case "TINYLFU":
+                return new TinyLfuPolicy<>(capacity);
+            default:
+                throw new IllegalArgumentException("Unknown eviction policy: " + name);
+        }
+    }
+
+    String getName();
+
+    /**
+     * A key not in the cache was added
+     */
+    void onInsert(K key);
+
+    /**
+     * A key in the cache was read or replaced. A cache that hands over reads
+     * in batches may pass a key evicted in the meantime, which the policy
+     * must ignore.
+     */
+    void onAccess(K key);
+
+    /**
+     * A key not in the cache was looked up. Policies that count the
+     * frequency of keys before admitting them use it.
+     */
+    default void onMiss(K key) {
+    }
+
+    /**
+     * A key was removed from the cache, not by eviction
+     */
+    void onRemove(K key);
+
+    /**
+     * Choose a key in the cache to evict and forget it
+     *
+     * @return null if the policy holds no key
+     */
+    K evict();
+
+    void clear();
+}
@@ -0,0 +1,37 @@
+package main.server.proxy.cache.policy;
+
+/**
+ * Sai a chave inserida há mais tempo, leituras não mudam a ordem
+ */
+public class FifoPolicy<K> implements EvictionPolicy<K> {
+    private final KeyDeque<K> queue = new KeyDeque<>();
+
+    @Override
+    public String getName() {
+        return "FIFO";
+    }
+
+    @Override
+    public void onInsert(K key) {
+        queue.addLast(key);
+    }
+
+    @Override
+    public void onAccess(K key) {
+    }
+
+    @Override
+    public void onRemove(K key) {
+        queue.remove(key);
+    }
+
+    @Override
+    public K evict() {
+        return queue.pollFirst();
+    }
+
+    @Override
+    public void clear() {
+        queue.clear();
+    }
+}
@@ -0,0 +1,86 @@
+package main.server.proxy.cache.policy;
+
+import java.util.Arrays;
+
+/**
+ * Contagem aproximada de frequência das chaves (count-min sketch) com
+ * contadores de 4 bits, para o TinyLFU.
+ *
+ * Each key bumps one counter in each of 4 rows, and its frequency is the
+ * smallest of the 4, so collisions only ever make a count too high. After
+ * 10 increments per cache entry every counter is halved, so the counts follow
+ * what is popular now. The sketch takes one long (16 counters) per cache
+ * entry, rounded up to a power of two, whatever number of distinct keys it
+ * has seen.
+ */
+final class FrequencySketch {
+    private static final int ROWS = 4;
+    private static final int MAX_COUNT = 15;
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int[] SEEDS = { 0x97cb3127, 0xb6c1f7b5, 0x5ea23b6d, 0xd9d26a31 };
+
+    private final long[] table;
+    // Mask over all the 4-bit counters of the table
+    private final int counterMask;
+    private final int sampleSize;
+    private int additions;
+
+    FrequencySketch(int capacity) {
+        int longs = Integer.highestOneBit(Math.max(16, capacity) - 1) << 1;
+        this.table = new long[longs];
+        this.counterMask = longs * 16 - 1;
+        this.sampleSize = 10 * Math.max(16, capacity);
+    }
+
+    int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int frequency = MAX_COUNT;
+        for (int row = 0; row < ROWS; row++) {
+            int counter = index(hash, row);
+            int count = (int) ((table[counter >>> 4] >>> ((counter & 15) << 2)) & 0xf);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    void increment(Object key) {
+        int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int row = 0; row < ROWS; row++) {
+            int counter = index(hash, row);
+            int slot = counter >>> 4;
+            int shift = (counter & 15) << 2;
+            if (((table[slot] >>> shift) & 0xf) < MAX_COUNT) {
+                table[slot] += 1L << shift;
+                added = true;
+            }
+        }
+        if (added && ++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    void clear() {
+        Arrays.fill(table, 0L);
+        additions = 0;
+    }
+
+    // Halve every counter
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions /= 2;
+    }
+
+    private int index(int hash, int row) {
+        int h = (hash + SEEDS[row]) * SEEDS[row];
+        h ^= h >>> 16;
+        return h & counterMask;
+    }
+
+    private static int spread(int hash) {
+        int h = hash * 0x9e3779b9;
+        return h ^ (h >>> 15);
+    }
+}
@@ -0,0 +1,128 @@
+package main.server.proxy.cache.policy;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Fila de chaves com índice: chaves ligadas em ordem por nós próprios e
+ * achadas por hash, então inserir, remover qualquer chave e mover uma chave
+ * para o fim custam O(1). Base das políticas de expulsão.
+ *
+ * Not thread safe, the cache calls its policy under its own lock.
+ */
+final class KeyDeque<K> {
+    private static final class Node<K> {
+        final K key;
+        Node<K> prev;
+        Node<K> next;
+
+        Node(K key) {
+            this.key = key;
+        }
+    }
+
+    private final Map<K, Node<K>> nodes = new HashMap<>();
+    // First is the oldest or least recently used
+    private Node<K> head;
+    private Node<K> tail;
+
+    boolean contains(K key) {
+        return nodes.containsKey(key);
+    }
+
+    int size() {
+        return nodes.size();
+    }
+
+    boolean isEmpty() {
+        return nodes.isEmpty();
+    }
+
+    /**
+     * Add the key at the end, or move it there if it is already in
+     */
+    void addLast(K key) {
+        Node<K> node = nodes.get(key);
+        if (node == null) {
+            node = new Node<>(key);
+            nodes.put(key, node);
+        } else if (node == tail) {
+            return;
+        } else {
+            unlink(node);
+        }
+        linkLast(node);
+    }
+
+    /**
+     * Move the key to the end if it is in
+     *
+     * @return false if the key is not in
+     */
+    boolean moveToLast(K key) {
+        Node<K> node = nodes.get(key);
+        if (node == null) {
+            return false;
+        }
+        if (node != tail) {
+            unlink(node);
+            linkLast(node);
+        }
+        return true;
+    }
+
+    boolean remove(K key) {
+        Node<K> node = nodes.remove(key);
+        if (node == null) {
+            return false;
+        }
+        unlink(node);
+        return true;
+    }
+
+    K peekFirst() {
+        return head == null ? null : head.key;
+    }
+
+    K pollFirst() {
+        if (head == null) {
+            return null;
+        }
+        K key = head.key;
+        nodes.remove(key);
+        unlink(head);
+        return key;
+    }
+
+    void clear() {
+        nodes.clear();
+        head = null;
+        tail = null;
+    }
+
+    private void linkLast(Node<K> node) {
+        node.prev = tail;
+        node.next = null;
+        if (tail == null) {
+            head = node;
+        } else {
+            tail.next = node;
+        }
+        tail = node;
+    }
+
+    private void unlink(Node<K> node) {
+        if (node.prev == null) {
+            head = node.next;
+        } else {
+            node.prev.next = node.next;
+        }
+        if (node.next == null) {
+            tail = node.prev;
+        } else {
+            node.next.prev = node.prev;
+        }
+        node.prev = null;
+        node.next = null;
+    }
+}
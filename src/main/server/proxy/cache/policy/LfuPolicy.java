@@ -0,0 +1,91 @@
+package main.server.proxy.cache.policy;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Sai a chave lida menos vezes desde que entrou na cache (Least Frequently
+ * Used), a mais antiga entre as empatadas.
+ *
+ * Keys are kept in one queue per read count, so reads and evictions are O(1).
+ * Counts are lost when a key leaves the cache and never decay, so keys that
+ * were popular once can hold the cache for a long time.
+ */
+public class LfuPolicy<K> implements EvictionPolicy<K> {
+    private final Map<K, Integer> counts = new HashMap<>();
+    private final Map<Integer, KeyDeque<K>> byCount = new HashMap<>();
+    private int minCount;
+
+    @Override
+    public String getName() {
+        return "LFU";
+    }
+
+    @Override
+    public void onInsert(K key) {
+        counts.put(key, 1);
+        queue(1).addLast(key);
+        minCount = 1;
+    }
+
+    @Override
+    public void onAccess(K key) {
+        Integer count = counts.get(key);
+        if (count == null) {
+            return;
+        }
+        leave(key, count);
+        if (minCount == count && !byCount.containsKey(count)) {
+            minCount = count + 1;
+        }
+        counts.put(key, count + 1);
+        queue(count + 1).addLast(key);
+    }
+
+    @Override
+    public void onRemove(K key) {
+        Integer count = counts.remove(key);
+        if (count != null) {
+            leave(key, count);
+        }
+    }
+
+    @Override
+    public K evict() {
+        if (counts.isEmpty()) {
+            return null;
+        }
+        KeyDeque<K> queue = byCount.get(minCount);
+        if (queue == null) {
+            // The least read keys were removed, not evicted
+            minCount = Collections.min(byCount.keySet());
+            queue = byCount.get(minCount);
+        }
+        K victim = queue.pollFirst();
+        if (queue.isEmpty()) {
+            byCount.remove(minCount);
+        }
+        counts.remove(victim);
+        return victim;
+    }
+
+    @Override
+    public void clear() {
+        counts.clear();
+        byCount.clear();
+        minCount = 0;
+    }
+
+    private KeyDeque<K> queue(int count) {
+        return byCount.computeIfAbsent(count, c -> new KeyDeque<>());
+    }
+
+    private void leave(K key, int count) {
+        KeyDeque<K> queue = byCount.get(count);
+        queue.remove(key);
+        if (queue.isEmpty()) {
+            byCount.remove(count);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package main.server.proxy.cache.policy;
+
+/**
+ * Sai a chave lida há mais tempo (Least Recently Used)
+ */
+public class LruPolicy<K> implements EvictionPolicy<K> {
+    private final KeyDeque<K> queue = new KeyDeque<>();
+
+    @Override
+    public String getName() {
+        return "LRU";
+    }
+
+    @Override
+    public void onInsert(K key) {
+        queue.addLast(key);
+    }
+
+    @Override
+    public void onAccess(K key) {
+        queue.moveToLast(key);
+    }
+
+    @Override
+    public void onRemove(K key) {
+        queue.remove(key);
+    }
+
+    @Override
+    public K evict() {
+        return queue.pollFirst();
+    }
+
+    @Override
+    public void clear() {
+        queue.clear();
+    }
+}
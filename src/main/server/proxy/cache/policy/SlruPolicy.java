@@ -0,0 +1,64 @@
+package main.server.proxy.cache.policy;
+
+/**
+ * LRU segmentado: chaves novas entram no segmento de experiência
+ * (probation) e só passam ao segmento protegido quando são lidas de novo.
+ *
+ * A burst of keys read once only cycles through probation, so it cannot
+ * push the keys read more than once out of the cache. When the protected
+ * segment is full its least recently used key goes back to probation.
+ */
+public class SlruPolicy<K> implements EvictionPolicy<K> {
+    // Share of the capacity kept for keys read more than once
+    static final double PROTECTED_SHARE = 0.8;
+
+    private final int maxProtected;
+    private final KeyDeque<K> probation = new KeyDeque<>();
+    private final KeyDeque<K> protectedKeys = new KeyDeque<>();
+
+    public SlruPolicy(int capacity) {
+        this.maxProtected = Math.max(1, (int) (capacity * PROTECTED_SHARE));
+    }
+
+    @Override
+    public String getName() {
+        return "SLRU";
+    }
+
+    @Override
+    public void onInsert(K key) {
+        probation.addLast(key);
+    }
+
+    @Override
+    public void onAccess(K key) {
+        if (protectedKeys.moveToLast(key)) {
+            return;
+        }
+        if (probation.remove(key)) {
+            protectedKeys.addLast(key);
+            if (protectedKeys.size() > maxProtected) {
+                probation.addLast(protectedKeys.pollFirst());
+            }
+        }
+    }
+
+    @Override
+    public void onRemove(K key) {
+        if (!probation.remove(key)) {
+            protectedKeys.remove(key);
+        }
+    }
+
+    @Override
+    public K evict() {
+        K victim = probation.pollFirst();
+        return victim != null ? victim : protectedKeys.pollFirst();
+    }
+
+    @Override
+    public void clear() {
+        probation.clear();
+        protectedKeys.clear();
+    }
+}
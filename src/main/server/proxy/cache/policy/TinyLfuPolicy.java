@@ -0,0 +1,106 @@
+package main.server.proxy.cache.policy;
+
+/**
+ * W-TinyLFU (Einziger, Friedman e Manes): uma janela LRU pequena na frente
+ * de uma SLRU, e um filtro de admissão pela frequência.
+ *
+ * New keys enter the window, 1% of the capacity. The key pushed out of the
+ * window only enters the main SLRU if the {@link FrequencySketch} has seen it
+ * more often than the key the SLRU would evict for it, so one-off reads and
+ * scans never displace keys that are read all the time. The sketch counts
+ * misses as well as hits, so a key earns its place before it is cached.
+ */
+public class TinyLfuPolicy<K> implements EvictionPolicy<K> {
+    private static final double WINDOW_SHARE = 0.01;
+
+    private final int maxWindow;
+    private final int maxMain;
+    private final int maxProtected;
+    private final FrequencySketch sketch;
+    private final KeyDeque<K> window = new KeyDeque<>();
+    private final KeyDeque<K> probation = new KeyDeque<>();
+    private final KeyDeque<K> protectedKeys = new KeyDeque<>();
+
+    public TinyLfuPolicy(int capacity) {
+        int total = Math.max(2, capacity);
+        this.maxWindow = Math.max(1, (int) (total * WINDOW_SHARE));
+        this.maxMain = total - maxWindow;
+        this.maxProtected = Math.max(1, (int) (maxMain * SlruPolicy.PROTECTED_SHARE));
+        this.sketch = new FrequencySketch(total);
+    }
+
+    @Override
+    public String getName() {
+        return "W-TINYLFU";
+    }
+
+    @Override
+    public void onInsert(K key) {
+        // Counted by the miss that led to this insert
+        window.addLast(key);
+    }
+
+    @Override
+    public void onAccess(K key) {
+        sketch.increment(key);
+        if (window.moveToLast(key) || protectedKeys.moveToLast(key)) {
+            return;
+        }
+        if (probation.remove(key)) {
+            protectedKeys.addLast(key);
+            if (protectedKeys.size() > maxProtected) {
+                probation.addLast(protectedKeys.pollFirst());
+            }
+        }
+    }
+
+    @Override
+    public void onMiss(K key) {
+        sketch.increment(key);
+    }
+
+    @Override
+    public void onRemove(K key) {
+        if (!window.remove(key) && !probation.remove(key)) {
+            protectedKeys.remove(key);
+        }
+    }
+
+    @Override
+    public K evict() {
+        while (window.size() > maxWindow) {
+            K candidate = window.pollFirst();
+            if (probation.size() + protectedKeys.size() < maxMain) {
+                probation.addLast(candidate);
+                continue;
+            }
+
+            KeyDeque<K> victimQueue = probation.isEmpty() ? protectedKeys : probation;
+            K victim = victimQueue.peekFirst();
+            if (victim == null) {
+                return candidate;
+            }
+            // Admission: the more frequent of the two stays, ties keep the main one
+            if (sketch.frequency(candidate) > sketch.frequency(victim)) {
+                victimQueue.pollFirst();
+                probation.addLast(candidate);
+                return victim;
+            }
+            return candidate;
+        }
+
+        K victim = probation.pollFirst();
+        if (victim == null) {
+            victim = protectedKeys.pollFirst();
+        }
+        return victim != null ? victim : window.pollFirst();
+    }
+
+    @Override
+    public void clear() {
+        window.clear();
+        probation.clear();
+        protectedKeys.clear();
+        sketch.clear();
+    }
+}
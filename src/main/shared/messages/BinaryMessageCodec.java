@@ -0,0 +1,339 @@
+package main.shared.messages;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Compact binary codec for {@link Message}.
+ *
+ * Frame body layout:
+ * [type wire code: 1 byte][id: 2 x int64][timestamp: varlong seconds + varint
+ * nanos][correlation id: varlong][sender][recipient][payload]
+ *
+ * Payloads are tagged. DATA_REQUEST commands ("OP|field|field") and the
+ * string maps used by DATA_RESPONSE are encoded against a fixed dictionary of
+ * well-known operations, keys and values, so the common requests fit in a few
+ * bytes. Anything the codec does not know falls back to Java serialization
+ * of that single payload.
+ */
+public class BinaryMessageCodec implements MessageCodec {
+    public static final String NAME = "binary-v1";
+
+    // Payload tags
+    private static final int TAG_NULL = 0;
+    private static final int TAG_STRING = 1;
+    private static final int TAG_STRING_ARRAY = 2;
+    private static final int TAG_TRUE = 3;
+    private static final int TAG_FALSE = 4;
+    private static final int TAG_INT = 5;
+    private static final int TAG_LONG = 6;
+    private static final int TAG_STRING_MAP = 7;
+    private static final int TAG_COMMAND = 8;
+    private static final int TAG_SERIALIZED = 9;
+
+    // Command field markers
+    private static final int FIELD_STRING = 0;
+    private static final int FIELD_INT = 1;
+
+    // Dictionary string markers: 0 = null, 1 = literal follows, 2 + i = DICTIONARY[i]
+    private static final int DICT_NULL = 0;
+    private static final int DICT_LITERAL = 1;
+    private static final int DICT_OFFSET = 2;
+
+    /**
+     * Well-known operations, response keys and values. Append only: the index
+     * of each entry is part of the wire format.
+     */
+    private static final String[] DICTIONARY = {
+            // Operations
+            "ADD", "REMOVE", "UPDATE", "SEARCH", "STATS", "SHOW", "ADD20", "ADD60", "REVERSE",
+            // Response keys
+            "status", "message", "code", "name", "description", "timestamp", "size", "height",
+            "balanceCounter", "database_content", "cacheInfo", "source", "workOrders",
+            // Response values
+            "success", "error", "Work order found", "Work order not found",
+            "Work order added successfully", "Work order removed successfully",
+            "Work order updated successfully", "Database content in order",
+            "Database content in reverse order"
+    };
+
+    private static final Map<String, Integer> DICTIONARY_INDEX = new HashMap<>();
+
+    static {
+        for (int i = 0; i < DICTIONARY.length; i++) {
+            DICTIONARY_INDEX.put(DICTIONARY[i], i);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public void encode(Message message, DataOutputStream out) throws IOException {
+        out.writeByte(message.getType().getWireCode());
+
+        UUID id = message.getId();
+        out.writeLong(id.getMostSignificantBits());
+        out.writeLong(id.getLeastSignificantBits());
+
+        Instant timestamp = message.getTimestamp();
+        WireFormat.writeVarLong(out, timestamp.getEpochSecond());
+        WireFormat.writeVarInt(out, timestamp.getNano());
+        WireFormat.writeVarLong(out, message.getCorrelationId());
+
+        WireFormat.writeString(out, message.getSender());
+        WireFormat.writeString(out, message.getRecipient());
+
+        writePayload(out, message.getType(), message.getPayload());
+    }
+
+    @Override
+    public Message decode(DataInputStream in) throws IOException {
+        byte code = in.readByte();
+        MessageType type = MessageType.fromWireCode(code);
+        if (type == null) {
+            throw new StreamCorruptedException("Unknown message type code: " + code);
+        }
+
+        UUID id = new UUID(in.readLong(), in.readLong());
+        Instant timestamp = Instant.ofEpochSecond(WireFormat.readVarLong(in), WireFormat.readVarInt(in));
+        long correlationId = WireFormat.readVarLong(in);
+        String sender = WireFormat.readString(in);
+        String recipient = WireFormat.readString(in);
+        Object payload = readPayload(in);
+
+        return new Message(id, type, timestamp, sender, recipient, payload, correlationId);
+    }
+
+    private void writePayload(DataOutputStream out, MessageType type, Object payload) throws IOException {
+        if (payload == null) {
+            out.writeByte(TAG_NULL);
+        } else if (payload instanceof String) {
+            if (type == MessageType.DATA_REQUEST) {
+                out.writeByte(TAG_COMMAND);
+                writeCommand(out, (String) payload);
+            } else {
+                out.writeByte(TAG_STRING);
+                WireFormat.writeString(out, (String) payload);
+            }
+        } else if (payload instanceof String[]) {
+            String[] values = (String[]) payload;
+            out.writeByte(TAG_STRING_ARRAY);
+            WireFormat.writeVarInt(out, values.length);
+            for (String value : values) {
+                WireFormat.writeString(out, value);
+            }
+        } else if (payload instanceof Boolean) {
+            out.writeByte((Boolean) payload ? TAG_TRUE : TAG_FALSE);
+        } else if (payload instanceof Integer) {
+            out.writeByte(TAG_INT);
+            WireFormat.writeZigZagLong(out, (Integer) payload);
+        } else if (payload instanceof Long) {
+            out.writeByte(TAG_LONG);
+            WireFormat.writeZigZagLong(out, (Long) payload);
+        } else if (isStringMap(payload)) {
+            Map<?, ?> map = (Map<?, ?>) payload;
+            out.writeByte(TAG_STRING_MAP);
+            WireFormat.writeVarInt(out, map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                writeDictionaryString(out, (String) entry.getKey());
+                writeDictionaryString(out, (String) entry.getValue());
+            }
+        } else if (payload instanceof Serializable) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            try (ObjectOutputStream oos = new ObjectOutputStream(buffer)) {
+                oos.writeObject(payload);
+            }
+            out.writeByte(TAG_SERIALIZED);
+            WireFormat.writeVarInt(out, buffer.size());
+            buffer.writeTo(out);
+        } else {
+            throw new IOException("Payload is not serializable: " + payload.getClass().getName());
+        }
+    }
+
+    private Object readPayload(DataInputStream in) throws IOException {
+        int tag = in.readUnsignedByte();
+        switch (tag) {
+            case TAG_NULL:
+                return null;
+            case TAG_STRING:
+                return WireFormat.readString(in);
+            case TAG_STRING_ARRAY: {
+                int length = WireFormat.readVarInt(in);
+                checkLength(length);
+                String[] values = new String[length];
+                for (int i = 0; i < length; i++) {
+                    values[i] = WireFormat.readString(in);
+                }
+                return values;
+            }
+            case TAG_TRUE:
+                return Boolean.TRUE;
+            case TAG_FALSE:
+                return Boolean.FALSE;
+            case TAG_INT:
+                return (int) WireFormat.readZigZagLong(in);
+            case TAG_LONG:
+                return WireFormat.readZigZagLong(in);
+            case TAG_STRING_MAP: {
+                int size = WireFormat.readVarInt(in);
+                checkLength(size);
+                Map<String, String> map = new HashMap<>();
+                for (int i = 0; i < size; i++) {
+                    String key = readDictionaryString(in);
+                    map.put(key, readDictionaryString(in));
+                }
+                return map;
+            }
+            case TAG_COMMAND:
+                return readCommand(in);
+            case TAG_SERIALIZED: {
+                int length = WireFormat.readVarInt(in);
+                checkLength(length);
+                byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+                    return ois.readObject();
+                } catch (ClassNotFoundException e) {
+                    throw new IOException("Unknown payload class: " + e.getMessage(), e);
+                }
+            }
+            default:
+                throw new StreamCorruptedException("Unknown payload tag: " + tag);
+        }
+    }
+
+    /**
+     * DATA_REQUEST command "OP|f1|f2...": the operation goes through the
+     * dictionary and canonical integers (e.g. the work order code) as varints
+     */
+    private void writeCommand(DataOutputStream out, String command) throws IOException {
+        String[] parts = command.split("\\|", -1);
+        writeDictionaryString(out, parts[0]);
+        WireFormat.writeVarInt(out, parts.length - 1);
+        for (int i = 1; i < parts.length; i++) {
+            String field = parts[i];
+            if (isCanonicalInt(field)) {
+                out.writeByte(FIELD_INT);
+                WireFormat.writeZigZagLong(out, Integer.parseInt(field));
+            } else {
+                out.writeByte(FIELD_STRING);
+                WireFormat.writeString(out, field);
+            }
+        }
+    }
+
+    private String readCommand(DataInputStream in) throws IOException {
+        StringBuilder command = new StringBuilder(readDictionaryString(in));
+        int fields = WireFormat.readVarInt(in);
+        checkLength(fields);
+        for (int i = 0; i < fields; i++) {
+            command.append('|');
+            int marker = in.readUnsignedByte();
+            if (marker == FIELD_INT) {
+                command.append((int) WireFormat.readZigZagLong(in));
+            } else if (marker == FIELD_STRING) {
+                command.append(WireFormat.readString(in));
+            } else {
+                throw new StreamCorruptedException("Unknown command field marker: " + marker);
+            }
+        }
+        return command.toString();
+    }
+
+    private void writeDictionaryString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            WireFormat.writeVarInt(out, DICT_NULL);
+            return;
+        }
+        Integer index = DICTIONARY_INDEX.get(value);
+        if (index != null) {
+            WireFormat.writeVarInt(out, DICT_OFFSET + index);
+        } else {
+            WireFormat.writeVarInt(out, DICT_LITERAL);
+            WireFormat.writeString(out, value);
+        }
+    }
+
+    private String readDictionaryString(DataInputStream in) throws IOException {
+        int marker = WireFormat.readVarInt(in);
+        if (marker == DICT_NULL) {
+            return null;
+        }
+        if (marker == DICT_LITERAL) {
+            return WireFormat.readString(in);
+        }
+        int index = marker - DICT_OFFSET;
+        if (index < 0 || index >= DICTIONARY.length) {
+            throw new StreamCorruptedException("Unknown dictionary entry: " + index);
+        }
+        return DICTIONARY[index];
+    }
+
+    private static boolean isStringMap(Object payload) {
+        if (!(payload instanceof Map)) {
+            return false;
+        }
+        for (Map.Entry<?, ?> entry : ((Map<?, ?>) payload).entrySet()) {
+            if (!(entry.getKey() instanceof String)) {
+                return false;
+            }
+            if (entry.getValue() != null && !(entry.getValue() instanceof String)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * True if the field prints back exactly the same as Integer.toString
+     */
+    private static boolean isCanonicalInt(String field) {
+        int length = field.length();
+        if (length == 0 || length > 11) {
+            return false;
+        }
+        int start = field.charAt(0) == '-' ? 1 : 0;
+        if (start == length) {
+            return false;
+        }
+        if (field.charAt(start) == '0' && length > start + 1) {
+            return false;
+        }
+        if (start == 1 && length == 2 && field.charAt(1) == '0') {
+            return false;
+        }
+        for (int i = start; i < length; i++) {
+            char c = field.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        try {
+            Integer.parseInt(field);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static void checkLength(int length) throws StreamCorruptedException {
+        if (length < 0 || length > WireFormat.MAX_FRAME_SIZE) {
+            throw new StreamCorruptedException("Invalid length: " + length);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package main.shared.messages;
+
+import main.shared.log.Logger;
+
+/**
+ * Codec handshake shared by the transports. It is kept out of the message bus
+ * so handlers never see it.
+ *
+ * offer (connecting side) -> accept (other side, whose output then switches)
+ * -> switch (connecting side, whose output then switches)
+ *
+ * Every control message travels with the codec that was active before it,
+ * so the reader always knows where the new codec starts. They are all
+ * SERVER_INFO messages: only clients subscribe to that type and the offer
+ * goes to the side that accepted the connection, always a server, so a peer
+ * without the handshake drops the offer and both sides keep Java
+ * serialization.
+ */
+final class CodecNegotiator {
+    static final String CODEC_OFFER = "CODEC-OFFER|";
+    static final String CODEC_ACCEPT = "CODEC-ACCEPT|";
+    static final String CODEC_SWITCH = "CODEC-SWITCH|";
+    private static final String CODEC_SENDER = "MessageTransport";
+
+    /**
+     * What a transport must provide so the handshake can drive it
+     */
+    interface Endpoint {
+        /**
+         * Every message read after this call uses the given codec
+         */
+        void switchInput(MessageCodec codec);
+
+        /**
+         * Send the control message with the current codec, then use the given
+         * codec for everything written afterwards
+         */
+        void sendThenSwitchOutput(Message control, MessageCodec codec);
+
+        String describePeer();
+    }
+
+    private final Endpoint endpoint;
+    private final Logger logger;
+    private volatile MessageCodec negotiatedCodec;
+
+    CodecNegotiator(Endpoint endpoint, Logger logger) {
+        this.endpoint = endpoint;
+        this.logger = logger;
+    }
+
+    /**
+     * Offer message for the preferred codec, or null if Java serialization
+     * should be kept
+     */
+    static Message createOffer() {
+        MessageCodec preferred = MessageCodecs.preferred();
+        if (preferred == null) {
+            return null;
+        }
+        return new Message(MessageType.SERVER_INFO, CODEC_SENDER, CODEC_SENDER,
+                CODEC_OFFER + preferred.getName());
+    }
+
+    /**
+     * @return true if the message was part of the handshake and must not reach
+     *         the message bus
+     */
+    boolean handle(Message message) {
+        if (message.getType() != MessageType.SERVER_INFO || !(message.getPayload() instanceof String)) {
+            return false;
+        }
+
+        String payload = (String) message.getPayload();
+        if (payload.startsWith(CODEC_OFFER)) {
+            MessageCodec codec = null;
+            for (String name : payload.substring(CODEC_OFFER.length()).split(",")) {
+                codec = MessageCodecs.forName(name.trim());
+                if (codec != null) {
+                    break;
+                }
+            }
+            if (codec == null) {
+                logger.info("Peer offered unsupported codecs: {}", payload);
+                return true;
+            }
+            negotiatedCodec = codec;
+            endpoint.sendThenSwitchOutput(new Message(MessageType.SERVER_INFO, CODEC_SENDER, CODEC_SENDER,
+                    CODEC_ACCEPT + codec.getName()), codec);
+            return true;
+        }
+
+        if (payload.startsWith(CODEC_ACCEPT)) {
+            MessageCodec codec = MessageCodecs.forName(payload.substring(CODEC_ACCEPT.length()));
+            if (codec == null) {
+                logger.warning("Peer accepted an unknown codec: {}", payload);
+                return true;
+            }
+            // The peer writes with the new codec right after the accept
+            negotiatedCodec = codec;
+            endpoint.switchInput(codec);
+            endpoint.sendThenSwitchOutput(new Message(MessageType.SERVER_INFO, CODEC_SENDER, CODEC_SENDER,
+                    CODEC_SWITCH + codec.getName()), codec);
+            logger.info("Negotiated codec {} with {}", codec.getName(), endpoint.describePeer());
+            return true;
+        }
+
+        if (payload.startsWith(CODEC_SWITCH) && negotiatedCodec != null) {
+            endpoint.switchInput(negotiatedCodec);
+            logger.info("Negotiated codec {} with {}", negotiatedCodec.getName(), endpoint.describePeer());
+            return true;
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,245 @@
+package main.shared.messages;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import main.shared.log.Logger;
+
+/**
+ * Process-wide pool that runs the work of every {@link MessageBus}.
+ *
+ * Each bus gets its own {@link Lane}: tasks of a lane run one at a time and in
+ * submission order, so a connection sees its messages in the order they
+ * arrived, while the lanes of different connections share the same threads.
+ * A lane gives its thread back after a batch of tasks so a busy connection
+ * cannot starve the others.
+ *
+ * The pool size can be set with the "cfwos.dispatch.threads" system property
+ * (default: number of cores).
+ */
+public final class DispatchScheduler {
+    private static final String THREADS_PROPERTY = "cfwos.dispatch.threads";
+    private static final int BATCH_SIZE = 64;
+
+    private static DispatchScheduler shared;
+
+    private final ExecutorService pool;
+    private final int threadCount;
+    private final Logger logger;
+
+    // Metrics
+    private final AtomicInteger queuedTasks = new AtomicInteger();
+    private final AtomicInteger activeLanes = new AtomicInteger();
+    private final AtomicInteger openLanes = new AtomicInteger();
+
+    public DispatchScheduler(int threads, Logger logger) {
+        this.threadCount = threads;
+        this.logger = logger;
+
+        AtomicInteger threadIds = new AtomicInteger();
+        this.pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "message-dispatch-" + threadIds.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        logger.info("Dispatch scheduler started with {} threads", threads);
+    }
+
+    /**
+     * Scheduler shared by every message bus in the process
+     */
+    public static synchronized DispatchScheduler shared() {
+        if (shared == null) {
+            int threads = Integer.getInteger(THREADS_PROPERTY, Runtime.getRuntime().availableProcessors());
+            shared = new DispatchScheduler(Math.max(1, threads), Logger.getLogger("DispatchScheduler"));
+        }
+        return shared;
+    }
+
+    /**
+     * Create a new ordered lane on this scheduler
+     */
+    public Lane newLane(String name) {
+        openLanes.incrementAndGet();
+        return new Lane(name);
+    }
+
+    /**
+     * Tasks waiting to run, over all lanes
+     */
+    public int getQueueDepth() {
+        return queuedTasks.get();
+    }
+
+    /**
+     * Lanes that currently have work queued or running
+     */
+    public int getActiveLanes() {
+        return activeLanes.get();
+    }
+
+    /**
+     * Lanes created and not yet shut down
+     */
+    public int getOpenLanes() {
+        return openLanes.get();
+    }
+
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    @Override
+    public String toString() {
+        return "DispatchScheduler[threads=" + threadCount + ", openLanes=" + openLanes.get()
+                + ", activeLanes=" + activeLanes.get() + ", queueDepth=" + queuedTasks.get() + "]";
+    }
+
+    /**
+     * Serial executor on top of the shared pool
+     */
+    public final class Lane {
+        private final String name;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pending = new AtomicInteger();
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+        private final AtomicBoolean shutdown = new AtomicBoolean(false);
+        private volatile Thread runner;
+
+        private Lane(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Queue a task after every task already submitted to this lane
+         *
+         * @return false if the lane has been shut down and the task was dropped
+         */
+        public boolean execute(Runnable task) {
+            if (shutdown.get()) {
+                return false;
+            }
+
+            tasks.add(task);
+            pending.incrementAndGet();
+            queuedTasks.incrementAndGet();
+            schedule();
+            return true;
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                activeLanes.incrementAndGet();
+                try {
+                    pool.execute(this::drain);
+                } catch (RejectedExecutionException e) {
+                    activeLanes.decrementAndGet();
+                    scheduled.set(false);
+                    logger.error("Dispatch pool rejected lane {}", name);
+                }
+            }
+        }
+
+        private void drain() {
+            runner = Thread.currentThread();
+            int executed = 0;
+            Runnable task;
+            while (executed < BATCH_SIZE && (task = tasks.poll()) != null) {
+                queuedTasks.decrementAndGet();
+                executed++;
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    logger.error("Uncaught error in lane " + name, t);
+                } finally {
+                    pending.decrementAndGet();
+                }
+            }
+
+            runner = null;
+            if (!tasks.isEmpty()) {
+                // Batch exhausted, let other lanes run before continuing
+                pool.execute(this::drain);
+                return;
+            }
+
+            activeLanes.decrementAndGet();
+            scheduled.set(false);
+
+            // A task may have been queued after the last poll
+            if (!tasks.isEmpty()) {
+                schedule();
+            } else if (shutdown.get()) {
+                synchronized (this) {
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Tasks queued or running on this lane
+         */
+        public int getPending() {
+            return pending.get();
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Stop accepting tasks. Tasks already queued still run.
+         */
+        public void close() {
+            if (shutdown.compareAndSet(false, true)) {
+                openLanes.decrementAndGet();
+            }
+        }
+
+        public boolean isClosed() {
+            return shutdown.get();
+        }
+
+        /**
+         * Wait for the queued tasks of a closed lane to finish. Returns right
+         * away when called from a task of this lane, which would otherwise wait
+         * for itself.
+         *
+         * @return true if the lane drained before the timeout
+         */
+        public boolean awaitTermination(long timeoutMillis) throws InterruptedException {
+            if (Thread.currentThread() == runner) {
+                return pending.get() <= 1;
+            }
+
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            synchronized (this) {
+                while (pending.get() > 0) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    wait(Math.min(remaining, 100));
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Stop accepting tasks and drop the ones not started yet
+         */
+        public void shutdownNow() {
+            close();
+
+            while (tasks.poll() != null) {
+                queuedTasks.decrementAndGet();
+                pending.decrementAndGet();
+            }
+        }
+    }
+}
@@ -14,14 +14,36 @@ public class Message implements Serializable {
     private final String sender;
     private final String recipient;
     private final Object payload;
+    // Request id chosen by whoever sent the request, echoed back by the
+    // response. 0 means the message is not correlated
+    private final long correlationId;
 
     public Message(MessageType type, String sender, String recipient, Object payload) {
+        this(type, sender, recipient, payload, 0L);
+    }
+
+    public Message(MessageType type, String sender, String recipient, Object payload, long correlationId) {
         this.id = UUID.randomUUID();
         this.type = type;
         this.timestamp = Instant.now();
         this.sender = sender;
         this.recipient = recipient;
         this.payload = payload;
+        this.correlationId = correlationId;
+    }
+
+    /**
+     * Rebuild a message exactly as it was sent (used by wire codecs)
+     */
+    Message(UUID id, MessageType type, Instant timestamp, String sender, String recipient, Object payload,
+            long correlationId) {
+        this.id = id;
+        this.type = type;
+        this.timestamp = timestamp;
+        this.sender = sender;
+        this.recipient = recipient;
+        this.payload = payload;
+        this.correlationId = correlationId;
     }
 
     public UUID getId() {
@@ -48,11 +70,15 @@ public class Message implements Serializable {
         return payload;
     }
 
+    public long getCorrelationId() {
+        return correlationId;
+    }
+
     @Override
     public String toString() {
         String message = String.format(
-                "Message[id=%s, type='%s', timestamp='%s', from='%s', to='%s']", id, type,
-                timestamp, sender, recipient);
+                "Message[id=%s, type='%s', timestamp='%s', from='%s', to='%s', correlationId=%d]", id, type,
+                timestamp, sender, recipient, correlationId);
 
         return message;
     }
@@ -5,39 +5,43 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 
 import main.shared.log.Logger;
 
+/**
+ * Delivers messages to subscribers. All buses share the threads of a
+ * {@link DispatchScheduler}; each bus runs its work on its own ordered lane, so
+ * subscribers see the messages of a connection one at a time and in arrival
+ * order.
+ */
 public class MessageBus {
-    // Thread pool for message processing
-    private final ExecutorService messageProcessorPool;
+    // Ordered lane on the shared dispatch pool
+    private final DispatchScheduler.Lane lane;
     private final Logger logger;
     // Changed from String to MessageType
     private final Map<MessageType, List<Consumer<Message>>> subscribers = new HashMap<>();
     private String componentName;
-    private boolean shutdownRequested = false;
+    private volatile boolean shutdownRequested = false;
 
     public MessageBus(String componentName, Logger logger) {
-        this(componentName, logger, Runtime.getRuntime().availableProcessors());
+        this(componentName, logger, DispatchScheduler.shared());
     }
 
-    public MessageBus(String componentName, Logger logger, int threadPoolSize) {
+    public MessageBus(String componentName, Logger logger, DispatchScheduler scheduler) {
         this.logger = logger;
         this.componentName = componentName;
-        this.messageProcessorPool = Executors.newFixedThreadPool(threadPoolSize);
-        logger.info("MessageBus initialized for component: {} with {} threads",
-                componentName, threadPoolSize);
+        this.lane = scheduler.newLane(componentName);
+        logger.info("MessageBus initialized for component: {} on {}", componentName, scheduler);
     }
 
     /**
      * Subscribe to a message type
      */
     public void subscribe(MessageType type, Consumer<Message> handler) {
-        subscribers.computeIfAbsent(type, k -> new ArrayList<>()).add(handler);
+        synchronized (subscribers) {
+            subscribers.computeIfAbsent(type, k -> new ArrayList<>()).add(handler);
+        }
     }
 
     /**
@@ -69,15 +73,9 @@ public class MessageBus {
             return;
         }
 
-        messageProcessorPool.submit(() -> {
-            try {
-                logger.info("Processing outgoing message: {} from {} to {}",
-                        message.getType(), message.getSender(), message.getRecipient());
-                // No need to process outgoing messages
-            } catch (Exception e) {
-                logger.error("Error processing outgoing message", e);
-            }
-        });
+        // Outgoing messages are only logged, no need to go through the lane
+        logger.info("Processing outgoing message: {} from {} to {}",
+                message.getType(), message.getSender(), message.getRecipient());
     }
 
     /**
@@ -87,10 +85,13 @@ public class MessageBus {
         if (message == null || message.getType() == null)
             return;
 
-        List<Consumer<Message>> handlers = subscribers.get(message.getType());
-        if (handlers != null) {
+        List<Consumer<Message>> handlers;
+        synchronized (subscribers) {
+            handlers = new ArrayList<>(subscribers.getOrDefault(message.getType(), Collections.emptyList()));
+        }
+        if (!handlers.isEmpty()) {
             for (Consumer<Message> handler : handlers) {
-                messageProcessorPool.execute(() -> {
+                lane.execute(() -> {
                     try {
                         handler.accept(message);
                     } catch (Exception e) {
@@ -110,7 +111,7 @@ public class MessageBus {
             return;
         }
 
-        messageProcessorPool.submit(() -> {
+        boolean queued = lane.execute(() -> {
             try {
                 logger.info("Processing incoming message: {} from {} to {}",
                         message.getType(), message.getSender(), message.getRecipient());
@@ -119,6 +120,9 @@ public class MessageBus {
                 logger.error("Error processing incoming message", e);
             }
         });
+        if (!queued) {
+            logger.warning("MessageBus is shutting down, message discarded: {}", message);
+        }
     }
 
     private void notifySubscribers(Message message) {
@@ -145,20 +149,35 @@ public class MessageBus {
         return this.componentName = componentName;
     }
 
+    /**
+     * Messages queued or being handled by this bus
+     */
+    public int getPendingMessages() {
+        return lane.getPending();
+    }
+
+    /**
+     * Stop accepting messages without waiting. Messages already queued are
+     * still delivered. Safe to call from a subscriber or a transport thread.
+     */
+    public void close() {
+        shutdownRequested = true;
+        lane.close();
+    }
+
     /**
      * Shutdown the message bus gracefully
      */
     public void shutdown() {
-        shutdownRequested = true;
+        close();
 
         try {
-            logger.info("Shutting down MessageBus thread pool...");
-            messageProcessorPool.shutdown();
-            if (!messageProcessorPool.awaitTermination(5, TimeUnit.SECONDS)) {
-                logger.warning("MessageBus thread pool did not terminate in time, forcing shutdown");
-                messageProcessorPool.shutdownNow();
+            logger.info("Shutting down MessageBus lane...");
+            if (!lane.awaitTermination(5000)) {
+                logger.warning("MessageBus lane did not drain in time, discarding pending messages");
+                lane.shutdownNow();
             }
-            logger.info("MessageBus thread pool shut down successfully");
+            logger.info("MessageBus lane shut down successfully");
         } catch (InterruptedException e) {
             logger.error("MessageBus shutdown interrupted", e);
             Thread.currentThread().interrupt();
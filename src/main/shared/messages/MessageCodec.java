@@ -0,0 +1,28 @@
+package main.shared.messages;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Encodes a {@link Message} into the body of a length-prefixed frame and back.
+ *
+ * Framing (the varint length in front of each body) is done by the transport,
+ * so a codec only has to care about the bytes of a single message.
+ */
+public interface MessageCodec {
+    /**
+     * Name announced during codec negotiation (e.g. "binary-v1")
+     */
+    String getName();
+
+    /**
+     * Write the frame body for a message
+     */
+    void encode(Message message, DataOutputStream out) throws IOException;
+
+    /**
+     * Read one message from a frame body
+     */
+    Message decode(DataInputStream in) throws IOException;
+}
@@ -0,0 +1,53 @@
+package main.shared.messages;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Registry of the wire codecs a transport can negotiate.
+ *
+ * Every connection starts with Java serialization so that peers without codec
+ * support keep working. The side that opens the connection offers its
+ * preferred codec inside a SERVER_INFO message, which servers without codec
+ * support drop unread; if the other side knows the codec, both switch to
+ * length-prefixed frames. The preferred codec can be chosen with the
+ * "cfwos.codec" system property ("binary-v1" by default, "java" disables the
+ * offer).
+ */
+public final class MessageCodecs {
+    public static final String JAVA_SERIALIZATION = "java";
+    private static final String CODEC_PROPERTY = "cfwos.codec";
+
+    private static final Map<String, MessageCodec> codecs = new LinkedHashMap<>();
+
+    static {
+        register(new BinaryMessageCodec());
+    }
+
+    private MessageCodecs() {
+        throw new IllegalStateException("Utility class");
+    }
+
+    public static synchronized void register(MessageCodec codec) {
+        codecs.put(codec.getName(), codec);
+    }
+
+    /**
+     * Look up a codec by its negotiated name, or null if unsupported
+     */
+    public static synchronized MessageCodec forName(String name) {
+        return codecs.get(name);
+    }
+
+    /**
+     * Codec this process offers when it opens a connection, or null to stay on
+     * Java serialization
+     */
+    public static MessageCodec preferred() {
+        String name = System.getProperty(CODEC_PROPERTY, BinaryMessageCodec.NAME);
+        if (JAVA_SERIALIZATION.equalsIgnoreCase(name)) {
+            return null;
+        }
+        return forName(name);
+    }
+}
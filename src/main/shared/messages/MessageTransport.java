@@ -0,0 +1,32 @@
+package main.shared.messages;
+
+/**
+ * A connection that carries {@link Message}s to a peer and hands the ones it
+ * receives to a {@link MessageBus}.
+ */
+public interface MessageTransport {
+    /**
+     * Queue a message to be sent to the peer
+     */
+    void sendMessage(Message message);
+
+    /**
+     * Messages are delivered to the message bus as they arrive. Kept for
+     * backward compatibility, only reports whether the connection is alive.
+     */
+    boolean readMessage();
+
+    boolean isRunning();
+
+    void close();
+
+    /**
+     * Name of the codec currently used to read from the peer
+     */
+    String getCodecName();
+
+    /**
+     * Run a callback once, when the connection is closed by either side
+     */
+    void addCloseListener(Runnable listener);
+}
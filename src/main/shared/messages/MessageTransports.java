@@ -0,0 +1,54 @@
+package main.shared.messages;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+
+import main.shared.log.Logger;
+
+/**
+ * Picks the transport implementation for a connection.
+ *
+ * By default every connection uses the thread-per-connection
+ * {@link SocketMessageTransport}. Starting a server with
+ * "-Dcfwos.transport=nio" makes its listening socket channel-backed, and
+ * every connection it accepts is then served by the shared NIO event loops.
+ * Both implementations speak the same protocol.
+ */
+public final class MessageTransports {
+    public static final String TRANSPORT_PROPERTY = "cfwos.transport";
+    public static final String NIO = "nio";
+
+    private MessageTransports() {
+    }
+
+    public static boolean isNioEnabled() {
+        return NIO.equalsIgnoreCase(System.getProperty(TRANSPORT_PROPERTY, ""));
+    }
+
+    /**
+     * Listening socket for a server. Sockets it accepts carry a channel when
+     * NIO is enabled.
+     */
+    public static ServerSocket bind(int port) throws IOException {
+        if (!isNioEnabled()) {
+            return new ServerSocket(port);
+        }
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.bind(new InetSocketAddress(port));
+        return channel.socket();
+    }
+
+    /**
+     * Wrap a connected socket. Channel-backed sockets get a
+     * {@link NioMessageTransport}, everything else a {@link SocketMessageTransport}.
+     */
+    public static MessageTransport open(Socket socket, MessageBus messageBus, Logger logger, boolean isServer) {
+        if (socket.getChannel() != null) {
+            return new NioMessageTransport(socket.getChannel(), messageBus, logger, isServer);
+        }
+        return new SocketMessageTransport(socket, messageBus, logger, isServer);
+    }
+}
@@ -3,33 +3,72 @@ package main.shared.messages;
 /**
  * Defines all possible message types in the system.
  * Using enum ensures type safety and prevents inconsistent usage.
+ *
+ * Each type carries a stable one-byte wire code used by the binary codec.
+ * New types must take a new code instead of reusing or shifting existing ones.
  */
 public enum MessageType {
     // Client -> Server
-    AUTH_REQUEST,
-    START_REQUEST,
-    LOGOUT_REQUEST,
-    DATA_REQUEST,
-    RECONNECT,
+    AUTH_REQUEST(1),
+    START_REQUEST(2),
+    LOGOUT_REQUEST(3),
+    DATA_REQUEST(4),
+    RECONNECT(5),
 
     // Server -> Client
-    START_RESPONSE,
-    AUTH_RESPONSE,
-    LOGOUT_RESPONSE,
-    DATA_RESPONSE,
+    START_RESPONSE(6),
+    AUTH_RESPONSE(7),
+    LOGOUT_RESPONSE(8),
+    DATA_RESPONSE(9),
 
     // Server -> Server
-    PROXY_REGISTRATION_REQUEST,
-    PROXY_REGISTRATION_RESPONSE,
+    PROXY_REGISTRATION_REQUEST(10),
+    PROXY_REGISTRATION_RESPONSE(11),
     //HEARTBEAT_REQUEST,
     //HEARTBEAT_RESPONSE,
-    PING,
-    PONG,
+    PING(12),
+    PONG(13),
 
     // Shared
-    SERVER_INFO,
-    DISCONNECT,
-    ERROR;
+    SERVER_INFO(14),
+    DISCONNECT(15),
+    ERROR(16),
+
+    // Client -> Proxy, a page of the proxy cache
+    CACHE_INFO_REQUEST(17),
+    CACHE_INFO_RESPONSE(18),
+
+    // Proxy -> Application server, changed codes for the proxy caches
+    CACHE_SUBSCRIBE(19),
+    CACHE_INVALIDATE(20);
+
+    private static final MessageType[] BY_WIRE_CODE = new MessageType[256];
+
+    static {
+        for (MessageType type : values()) {
+            BY_WIRE_CODE[type.wireCode & 0xFF] = type;
+        }
+    }
+
+    private final byte wireCode;
+
+    MessageType(int wireCode) {
+        this.wireCode = (byte) wireCode;
+    }
+
+    /**
+     * Stable one-byte tag used on the wire by the binary codec
+     */
+    public byte getWireCode() {
+        return wireCode;
+    }
+
+    /**
+     * Resolve a wire tag back to its type, or null if unknown
+     */
+    public static MessageType fromWireCode(byte code) {
+        return BY_WIRE_CODE[code & 0xFF];
+    }
 
     /**
      * Get all message types
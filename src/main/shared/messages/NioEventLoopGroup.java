@@ -0,0 +1,151 @@
+package main.shared.messages;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import main.shared.log.Logger;
+
+/**
+ * Small fixed set of selector threads shared by every {@link NioMessageTransport}
+ * in the process. Connections are spread round-robin over the loops and all
+ * I/O of a connection happens on the loop it was assigned to.
+ *
+ * The number of loops can be set with the "cfwos.nio.threads" system property.
+ */
+public class NioEventLoopGroup {
+    private static final String THREADS_PROPERTY = "cfwos.nio.threads";
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private static NioEventLoopGroup shared;
+
+    private final EventLoop[] loops;
+    private final AtomicInteger next = new AtomicInteger();
+
+    public NioEventLoopGroup(int threads, Logger logger) {
+        this.loops = new EventLoop[threads];
+        for (int i = 0; i < threads; i++) {
+            loops[i] = new EventLoop("nio-event-loop-" + i, logger);
+            loops[i].start();
+        }
+        logger.info("NIO event loop group started with {} threads", threads);
+    }
+
+    /**
+     * Process-wide group used by the servers
+     */
+    public static synchronized NioEventLoopGroup shared() {
+        if (shared == null) {
+            int defaultThreads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+            int threads = Integer.getInteger(THREADS_PROPERTY, defaultThreads);
+            shared = new NioEventLoopGroup(Math.max(1, threads), Logger.getLogger("NioEventLoopGroup"));
+        }
+        return shared;
+    }
+
+    EventLoop next() {
+        return loops[Math.floorMod(next.getAndIncrement(), loops.length)];
+    }
+
+    public int getThreadCount() {
+        return loops.length;
+    }
+
+    /**
+     * Callback for a channel registered on a loop
+     */
+    interface Handler {
+        void onReadable(ByteBuffer readBuffer);
+
+        void onWritable();
+    }
+
+    /**
+     * One selector thread. Tasks submitted from other threads (registrations,
+     * interest changes, closes) run on the loop between selects.
+     */
+    static final class EventLoop extends Thread {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        private final Logger logger;
+
+        EventLoop(String name, Logger logger) {
+            super(name);
+            setDaemon(true);
+            this.logger = logger;
+            try {
+                this.selector = Selector.open();
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not open selector", e);
+            }
+        }
+
+        Selector selector() {
+            return selector;
+        }
+
+        boolean inLoop() {
+            return Thread.currentThread() == this;
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (!inLoop()) {
+                selector.wakeup();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (!isInterrupted()) {
+                try {
+                    // Tasks queued from the loop itself must not wait for I/O
+                    if (tasks.isEmpty()) {
+                        selector.select();
+                    } else {
+                        selector.selectNow();
+                    }
+                    runTasks();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Handler handler = (Handler) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                readBuffer.clear();
+                                handler.onReadable(readBuffer);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                handler.onWritable();
+                            }
+                        } catch (CancelledKeyException e) {
+                            // Connection was closed while processing, nothing left to do
+                        }
+                    }
+                } catch (Exception e) {
+                    logger.error("Unexpected error in NIO event loop", e);
+                }
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    logger.error("Error running NIO event loop task", e);
+                }
+            }
+        }
+    }
+}
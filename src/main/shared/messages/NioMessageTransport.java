@@ -0,0 +1,489 @@
+package main.shared.messages;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import main.shared.log.Logger;
+
+/**
+ * Non-blocking transport driven by a shared {@link NioEventLoopGroup}.
+ *
+ * It speaks exactly the same protocol as {@link SocketMessageTransport}, so
+ * either side of a connection can use either transport. Once the binary codec
+ * is negotiated all reads and writes happen on the event loop and the
+ * connection costs no thread of its own.
+ *
+ * Until then the peer is writing a Java serialization stream, which cannot be
+ * decoded incrementally. That prefix is decoded by a blocking
+ * ObjectInputStream on a shared decoder pool, fed by the event loop. For new
+ * peers this lasts one round trip; peers that never negotiate keep a decoder
+ * thread for the lifetime of the connection.
+ */
+public class NioMessageTransport implements MessageTransport, CodecNegotiator.Endpoint,
+        NioEventLoopGroup.Handler {
+
+    private static final AtomicInteger decoderIds = new AtomicInteger();
+    private static final ExecutorService legacyDecoders = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "nio-legacy-decoder-" + decoderIds.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final SocketChannel channel;
+    private final MessageBus messageBus;
+    private final Logger logger;
+    private final NioEventLoopGroup.EventLoop loop;
+    private volatile SelectionKey key;
+
+    private final AtomicBoolean running = new AtomicBoolean(true);
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private final List<Runnable> closeListeners = new CopyOnWriteArrayList<>();
+
+    // Inbound bytes not yet decoded
+    private final InboundBuffer inbound = new InboundBuffer();
+
+    // Encoded outbound messages, written by the event loop
+    private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean writeScheduled = new AtomicBoolean(false);
+
+    // Codec state. Output encoding is guarded by "this" so queue order matches send order
+    private final CodecNegotiator negotiator;
+    private volatile MessageCodec inputCodec;
+    private MessageCodec outputCodec;
+    private final ByteArrayOutputStream javaBuffer = new ByteArrayOutputStream(512);
+    private ObjectOutputStream javaOut;
+    private final ByteArrayOutputStream frameBuffer = new ByteArrayOutputStream(256);
+    private final DataOutputStream frameOut = new DataOutputStream(frameBuffer);
+
+    public NioMessageTransport(SocketChannel channel, MessageBus messageBus, Logger logger, boolean isServer) {
+        this(channel, messageBus, logger, isServer, NioEventLoopGroup.shared());
+    }
+
+    public NioMessageTransport(SocketChannel channel, MessageBus messageBus, Logger logger, boolean isServer,
+            NioEventLoopGroup group) {
+        this.channel = channel;
+        this.messageBus = messageBus;
+        this.logger = logger;
+        this.negotiator = new CodecNegotiator(this, logger);
+        this.loop = group.next();
+
+        try {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+
+            // Java serialization stream header, always written first
+            synchronized (this) {
+                javaOut = new ObjectOutputStream(javaBuffer);
+                javaOut.flush();
+                enqueue(javaBuffer.toByteArray());
+                javaBuffer.reset();
+            }
+        } catch (IOException e) {
+            logger.error("Failed to initialize NIO transport", e);
+            close();
+            return;
+        }
+
+        loop.execute(this::register);
+        legacyDecoders.submit(this::decodeJavaPrefix);
+
+        logger.info("NIO transport initialized: {}", channel.socket());
+
+        // The connecting side proposes a more compact codec
+        if (!isServer) {
+            Message offer = CodecNegotiator.createOffer();
+            if (offer != null) {
+                sendMessage(offer);
+            }
+        }
+    }
+
+    private void register() {
+        try {
+            key = channel.register(loop.selector(), SelectionKey.OP_READ, this);
+            if (!outbound.isEmpty()) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        } catch (IOException e) {
+            logger.error("Failed to register channel with event loop", e);
+            close();
+        }
+    }
+
+    @Override
+    public void onReadable(ByteBuffer readBuffer) {
+        try {
+            int read = channel.read(readBuffer);
+            if (read < 0) {
+                logger.info("Socket connection closed");
+                close();
+                return;
+            }
+            readBuffer.flip();
+            inbound.append(readBuffer);
+
+            if (inputCodec != null) {
+                drainFrames();
+            }
+        } catch (IOException e) {
+            if (running.get()) {
+                logger.info("Socket connection closed: {}", e.getMessage());
+            }
+            close();
+        }
+    }
+
+    /**
+     * Decode every complete frame currently buffered. Runs on the event loop.
+     */
+    private void drainFrames() {
+        MessageCodec codec = inputCodec;
+        try {
+            byte[] frame;
+            while (running.get() && (frame = inbound.pollFrame()) != null) {
+                Message message = codec.decode(new DataInputStream(new ByteArrayInputStream(frame)));
+                if (!negotiator.handle(message)) {
+                    messageBus.receive(message);
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Failed to decode frame: {}", e.getMessage());
+            close();
+        }
+    }
+
+    /**
+     * Blocking decoder for the Java serialization part of the stream. Ends as
+     * soon as the peer switches to a framed codec.
+     */
+    private void decodeJavaPrefix() {
+        try {
+            ObjectInputStream in = new ObjectInputStream(inbound);
+            while (running.get() && inputCodec == null) {
+                try {
+                    Object obj = in.readObject();
+                    if (obj instanceof Message) {
+                        Message message = (Message) obj;
+                        if (!negotiator.handle(message)) {
+                            messageBus.receive(message);
+                        }
+                    } else {
+                        logger.warning("Received non-message object: {}", obj.getClass().getName());
+                    }
+                } catch (ClassNotFoundException e) {
+                    logger.error("Error reading from socket: {}", e.getMessage());
+                }
+            }
+
+            // Frames may already be waiting behind the switch message
+            if (running.get()) {
+                loop.execute(this::drainFrames);
+            }
+        } catch (IOException e) {
+            if (running.get()) {
+                logger.info("Socket connection closed");
+            }
+            close();
+        } catch (Exception e) {
+            logger.error("Unexpected error in transport reader", e);
+            close();
+        }
+    }
+
+    @Override
+    public void onWritable() {
+        try {
+            ByteBuffer buffer;
+            while ((buffer = outbound.peek()) != null) {
+                channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    // Socket buffer is full, wait for the next writable event
+                    return;
+                }
+                outbound.poll();
+            }
+
+            writeScheduled.set(false);
+            if (!outbound.isEmpty() && writeScheduled.compareAndSet(false, true)) {
+                return; // More data arrived meanwhile, keep OP_WRITE
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        } catch (IOException e) {
+            logger.error("Failed to send message: {}", e.getMessage());
+            close();
+        }
+    }
+
+    private void enqueue(byte[] bytes) {
+        outbound.add(ByteBuffer.wrap(bytes));
+        if (writeScheduled.compareAndSet(false, true)) {
+            loop.execute(() -> {
+                SelectionKey k = key;
+                if (k != null && k.isValid()) {
+                    k.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+            });
+        }
+    }
+
+    /**
+     * Encode a message with the current output codec and queue its bytes
+     */
+    private synchronized void encodeAndQueue(Message message) throws IOException {
+        if (outputCodec != null) {
+            frameBuffer.reset();
+            outputCodec.encode(message, frameOut);
+            ByteArrayOutputStream framed = new ByteArrayOutputStream(frameBuffer.size() + 5);
+            DataOutputStream framedOut = new DataOutputStream(framed);
+            WireFormat.writeVarInt(framedOut, frameBuffer.size());
+            frameBuffer.writeTo(framedOut);
+            enqueue(framed.toByteArray());
+        } else {
+            javaOut.writeObject(message);
+            javaOut.flush();
+            enqueue(javaBuffer.toByteArray());
+            javaBuffer.reset();
+        }
+    }
+
+    @Override
+    public void sendMessage(Message message) {
+        if (!running.get()) {
+            logger.warning("Cannot send message - connection is closed");
+            return;
+        }
+
+        try {
+            encodeAndQueue(message);
+            messageBus.send(message);
+            logger.debug("Queued message for sending: {}", message.getPayload());
+        } catch (IOException e) {
+            logger.error("Failed to send message: {}", e.getMessage());
+            close();
+        }
+    }
+
+    @Override
+    public void switchInput(MessageCodec codec) {
+        inputCodec = codec;
+    }
+
+    @Override
+    public void sendThenSwitchOutput(Message control, MessageCodec codec) {
+        synchronized (this) {
+            try {
+                encodeAndQueue(control);
+                outputCodec = codec;
+                logger.info("Outgoing stream switched to codec {}", codec.getName());
+            } catch (IOException e) {
+                logger.error("Failed to send codec negotiation: {}", e.getMessage());
+                close();
+            }
+        }
+    }
+
+    @Override
+    public String describePeer() {
+        return String.valueOf(channel.socket().getRemoteSocketAddress());
+    }
+
+    @Override
+    public boolean readMessage() {
+        return isRunning();
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running.get() && channel.isOpen();
+    }
+
+    @Override
+    public String getCodecName() {
+        MessageCodec codec = inputCodec;
+        return codec != null ? codec.getName() : MessageCodecs.JAVA_SERIALIZATION;
+    }
+
+    /**
+     * Close this transport. Whatever is already queued gets one last
+     * non-blocking write attempt before the channel is closed.
+     */
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        running.set(false);
+        logger.info("Closing NIO transport");
+
+        inbound.close();
+        loop.execute(() -> {
+            try {
+                ByteBuffer buffer;
+                while ((buffer = outbound.poll()) != null && channel.isOpen()) {
+                    channel.write(buffer);
+                    if (buffer.hasRemaining()) {
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                // Peer is gone, nothing else to flush
+            }
+
+            try {
+                SelectionKey k = key;
+                if (k != null) {
+                    k.cancel();
+                }
+                channel.close();
+                logger.info("NIO transport closed successfully");
+            } catch (IOException e) {
+                logger.error("Error while closing transport: {}", e.getMessage());
+            }
+        });
+
+        for (Runnable listener : closeListeners) {
+            try {
+                listener.run();
+            } catch (Exception e) {
+                logger.error("Error in transport close listener", e);
+            }
+        }
+    }
+
+    @Override
+    public void addCloseListener(Runnable listener) {
+        closeListeners.add(listener);
+        if (closed.get() && closeListeners.remove(listener)) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Growable byte buffer filled by the event loop. It is read either as a
+     * blocking InputStream (Java serialization prefix) or frame by frame.
+     */
+    private static final class InboundBuffer extends InputStream {
+        private byte[] data = new byte[1024];
+        private int start;
+        private int end;
+        private boolean eof;
+
+        synchronized void append(ByteBuffer source) {
+            int length = source.remaining();
+            if (end + length > data.length) {
+                int live = end - start;
+                if (live + length > data.length) {
+                    byte[] bigger = new byte[Math.max(data.length * 2, live + length)];
+                    System.arraycopy(data, start, bigger, 0, live);
+                    data = bigger;
+                } else {
+                    System.arraycopy(data, start, data, 0, live);
+                }
+                start = 0;
+                end = live;
+            }
+            source.get(data, end, length);
+            end += length;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void close() {
+            eof = true;
+            notifyAll();
+        }
+
+        /**
+         * Next complete varint length-prefixed frame body, or null if more
+         * bytes are needed
+         */
+        synchronized byte[] pollFrame() throws IOException {
+            int length = 0;
+            int position = start;
+            for (int shift = 0;; shift += 7) {
+                if (position >= end) {
+                    return null;
+                }
+                if (shift >= 35) {
+                    throw new StreamCorruptedException("Malformed frame length");
+                }
+                int b = data[position++] & 0xFF;
+                length |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+            }
+            if (length < 0 || length > WireFormat.MAX_FRAME_SIZE) {
+                throw new StreamCorruptedException("Invalid frame length: " + length);
+            }
+            if (end - position < length) {
+                return null;
+            }
+            byte[] frame = new byte[length];
+            System.arraycopy(data, position, frame, 0, length);
+            start = position + length;
+            if (start == end) {
+                start = 0;
+                end = 0;
+            }
+            return frame;
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            if (!awaitData()) {
+                return -1;
+            }
+            return data[start++] & 0xFF;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!awaitData()) {
+                return -1;
+            }
+            int count = Math.min(len, end - start);
+            System.arraycopy(data, start, b, off, count);
+            start += count;
+            return count;
+        }
+
+        @Override
+        public synchronized int available() {
+            return end - start;
+        }
+
+        private boolean awaitData() throws IOException {
+            while (start == end && !eof) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for data");
+                }
+            }
+            return start < end;
+        }
+    }
+}
@@ -1,10 +1,19 @@
 package main.shared.messages;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
 import java.net.Socket;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -13,13 +22,24 @@ import java.util.concurrent.atomic.AtomicBoolean;
 
 import main.shared.log.Logger;
 
-public class SocketMessageTransport {
+public class SocketMessageTransport implements MessageTransport, CodecNegotiator.Endpoint {
     private final Socket socket;
     private final MessageBus messageBus;
     private final Logger logger;
     private ObjectOutputStream out;
     private ObjectInputStream in;
+    private DataOutputStream rawOut;
+    private DataInputStream rawIn;
     private final AtomicBoolean running = new AtomicBoolean(true);
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private final List<Runnable> closeListeners = new CopyOnWriteArrayList<>();
+
+    // Negotiated codecs, null while the connection is still on Java serialization
+    private final CodecNegotiator negotiator;
+    private volatile MessageCodec inputCodec;
+    private MessageCodec outputCodec; // confined to the writer thread
+    private volatile MessageCodec negotiatedCodec;
+    private volatile Message codecSwitchMessage;
 
     // Thread pools for network operations
     private final ExecutorService readerThread;
@@ -36,6 +56,7 @@ public class SocketMessageTransport {
         this.socket = socket;
         this.messageBus = messageBus;
         this.logger = logger;
+        this.negotiator = new CodecNegotiator(this, logger);
 
         // Create single-thread pools for reading and writing
         this.readerThread = Executors.newSingleThreadExecutor(r -> {
@@ -51,23 +72,24 @@ public class SocketMessageTransport {
         });
 
         // Initialize the streams based on client/server role
-        if (isServer) {
-            try {
-                this.out = new ObjectOutputStream(socket.getOutputStream());
+        try {
+            // The object streams sit on top of the raw streams so the connection
+            // can move to framed codecs once negotiation completes
+            this.rawOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            this.rawIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+            if (isServer) {
+                this.out = new ObjectOutputStream(rawOut);
+                out.flush();
+                this.in = new ObjectInputStream(rawIn);
+            } else {
+                this.in = new ObjectInputStream(rawIn);
+                this.out = new ObjectOutputStream(rawOut);
                 out.flush();
-                this.in = new ObjectInputStream(socket.getInputStream());
-            } catch (Exception e) {
-                logger.error("Failed to initialize streams", e);
-                close();
-            }
-        } else {
-            try {
-                this.in = new ObjectInputStream(socket.getInputStream());
-                this.out = new ObjectOutputStream(socket.getOutputStream());
-            } catch (Exception e) {
-                logger.error("Failed to initialize streams", e);
-                close();
             }
+        } catch (Exception e) {
+            logger.error("Failed to initialize streams", e);
+            close();
         }
 
         logger.info("Socket transport initialized: {}", socket);
@@ -75,6 +97,14 @@ public class SocketMessageTransport {
         // Start the reader and writer threads
         startReaderThread();
         startWriterThread();
+
+        // The connecting side proposes a more compact codec
+        if (!isServer) {
+            Message offer = CodecNegotiator.createOffer();
+            if (offer != null) {
+                sendMessage(offer);
+            }
+        }
     }
 
     /**
@@ -84,15 +114,11 @@ public class SocketMessageTransport {
         readerThread.submit(() -> {
             while (running.get() && !socket.isClosed()) {
                 try {
-                    Object obj = in.readObject();
+                    Message message = readNext();
 
-                    if (obj instanceof Message) {
+                    if (message != null && !negotiator.handle(message)) {
                         // Forward received message to the message bus
-                        Message message = (Message) obj;
                         messageBus.receive(message);
-                    } else {
-                        logger.warning("Received non-message object: {}",
-                                obj.getClass().getName());
                     }
                 } catch (IOException e) {
                     if (running.get()) {
@@ -110,26 +136,65 @@ public class SocketMessageTransport {
             }
 
             // Make sure we close everything if the reader exits
-            if (running.getAndSet(false)) {
-                close();
-            }
+            close();
         });
     }
 
+    /**
+     * Read the next message using whatever codec the peer is currently writing
+     */
+    private Message readNext() throws IOException, ClassNotFoundException {
+        MessageCodec codec = inputCodec;
+        if (codec != null) {
+            int length = WireFormat.readVarInt(rawIn);
+            if (length < 0 || length > WireFormat.MAX_FRAME_SIZE) {
+                throw new StreamCorruptedException("Invalid frame length: " + length);
+            }
+            byte[] frame = new byte[length];
+            rawIn.readFully(frame);
+            return codec.decode(new DataInputStream(new ByteArrayInputStream(frame)));
+        }
+
+        Object obj = in.readObject();
+        if (obj instanceof Message) {
+            return (Message) obj;
+        }
+        logger.warning("Received non-message object: {}", obj.getClass().getName());
+        return null;
+    }
+
     /**
      * Start a dedicated thread for writing to socket
      */
     private void startWriterThread() {
         writerThread.submit(() -> {
+            ByteArrayOutputStream frameBuffer = new ByteArrayOutputStream(256);
+            DataOutputStream frameOut = new DataOutputStream(frameBuffer);
+
             while (running.get() && !socket.isClosed()) {
                 try {
                     // Block until a message is available or interrupted
                     Message message = outgoingMessages.poll(500, TimeUnit.MILLISECONDS);
 
                     if (message != null) {
-                        out.writeObject(message);
-                        out.flush();
-                        messageBus.send(message);
+                        if (outputCodec != null) {
+                            frameBuffer.reset();
+                            outputCodec.encode(message, frameOut);
+                            WireFormat.writeVarInt(rawOut, frameBuffer.size());
+                            frameBuffer.writeTo(rawOut);
+                            rawOut.flush();
+                        } else {
+                            out.writeObject(message);
+                            out.flush();
+                        }
+
+                        if (message == codecSwitchMessage) {
+                            // Everything after the control message uses the negotiated codec
+                            outputCodec = negotiatedCodec;
+                            logger.info("Outgoing stream switched to codec {}", outputCodec.getName());
+                        } else {
+                            messageBus.send(message);
+                        }
                     }
                 } catch (IOException e) {
                     logger.error("Failed to send message: {}", e.getMessage());
@@ -150,18 +215,34 @@ public class SocketMessageTransport {
             }
 
             // Make sure we close everything if the writer exits
-            if (running.getAndSet(false)) {
-                close();
-            }
+            close();
         });
     }
 
+    @Override
+    public void switchInput(MessageCodec codec) {
+        inputCodec = codec;
+    }
+
+    @Override
+    public void sendThenSwitchOutput(Message control, MessageCodec codec) {
+        negotiatedCodec = codec;
+        codecSwitchMessage = control;
+        sendMessage(control);
+    }
+
+    @Override
+    public String describePeer() {
+        return String.valueOf(socket.getRemoteSocketAddress());
+    }
+
     /**
      * Read a message from the socket (now non-blocking)
      * This method is kept for backward compatibility
-     * 
+     *
      * @return true if connection is alive, false otherwise
      */
+    @Override
     public boolean readMessage() {
         return isRunning();
     }
@@ -169,6 +250,7 @@ public class SocketMessageTransport {
     /**
      * Send a message over this socket connection
      */
+    @Override
     public synchronized void sendMessage(Message message) {
         if (!running.get() || socket.isClosed()) {
             logger.warning("Cannot send message - connection is closed");
@@ -187,8 +269,10 @@ public class SocketMessageTransport {
     /**
      * Close this transport
      */
+    @Override
     public void close() {
-        if (running.getAndSet(false)) {
+        if (closed.compareAndSet(false, true)) {
+            running.set(false);
             logger.info("Closing socket transport");
 
             try {
@@ -211,13 +295,36 @@ public class SocketMessageTransport {
             } catch (IOException e) {
                 logger.error("Error while closing transport: {}", e.getMessage());
             }
+
+            for (Runnable listener : closeListeners) {
+                try {
+                    listener.run();
+                } catch (Exception e) {
+                    logger.error("Error in transport close listener", e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void addCloseListener(Runnable listener) {
+        closeListeners.add(listener);
+        if (closed.get() && closeListeners.remove(listener)) {
+            listener.run();
         }
     }
 
     /**
      * Check if the transport is running
      */
+    @Override
     public boolean isRunning() {
         return running.get() && !socket.isClosed();
     }
+
+    @Override
+    public String getCodecName() {
+        MessageCodec codec = inputCodec;
+        return codec != null ? codec.getName() : MessageCodecs.JAVA_SERIALIZATION;
+    }
 }
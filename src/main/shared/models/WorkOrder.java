@@ -1,16 +1,22 @@
 package main.shared.models;
 
+import java.io.Serializable;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 
-public class WorkOrder {
+/**
+ * Ordem de serviço. Serializable so the BINARY snapshot format can write it
+ * and the replication can send it over RMI.
+ */
+public class WorkOrder implements Serializable {
+    private static final long serialVersionUID = 1L;
+    // Shared, DateTimeFormatter is immutable and not serializable
+    private static final DateTimeFormatter formatter = DateTimeFormatter.ofPattern("dd-MM-yyyy HH:mm:ss");
+
     private int code;
     private String name;
     private String description;
     private String timestamp;
-    private DateTimeFormatter formatter = DateTimeFormatter.ofPattern("dd-MM-yyyy HH:mm:ss");
-
-    // LocalDateTime Formatter
 
     public WorkOrder(int code, String name, String description) {
         this.code = code;
@@ -70,10 +76,11 @@ public class WorkOrder {
         return code == workOrder.code;
     }
 
-    // @Override
-    // public int hashCode() {
-    // return Integer.hashCode(code);
-    // }
+    // Same identity as equals, work orders are looked up by code in hash maps
+    @Override
+    public int hashCode() {
+        return Integer.hashCode(code);
+    }
 
     @Override
     public String toString() {
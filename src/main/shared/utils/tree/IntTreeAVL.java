@@ -0,0 +1,582 @@
+package main.shared.utils.tree;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Árvore AVL especializada para chaves int.
+ *
+ * Same behaviour as {@link TreeAVL}, but the nodes live in parallel arrays
+ * indexed by node number instead of one object per node: keys are plain ints,
+ * so there is no Integer boxing and no Comparable call on the search path, and
+ * a node costs about 21 bytes instead of a Node plus an Integer. Searches are
+ * iterative. Slots of removed nodes are reused through a free list.
+ *
+ * Each node also keeps the size of its subtree, so rank, select and paging
+ * through the keys in order cost O(log n) instead of a walk of the tree.
+ */
+public class IntTreeAVL<V> {
+    private static final int NIL = -1;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private int[] keys;
+    private Object[] vals;
+    private int[] left;
+    private int[] right;
+    private byte[] heights;
+    private int[] counts;
+
+    private int root = NIL;
+    private int size;
+    // First slot never used yet, and head of the free slot list (linked by left[])
+    private int nextSlot;
+    private int freeList = NIL;
+    private int balanceCounter;
+
+    public IntTreeAVL() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public IntTreeAVL(int initialCapacity) {
+        int capacity = Math.max(1, initialCapacity);
+        keys = new int[capacity];
+        vals = new Object[capacity];
+        left = new int[capacity];
+        right = new int[capacity];
+        heights = new byte[capacity];
+        counts = new int[capacity];
+    }
+
+    /**
+     * Monta a árvore em O(n) a partir de chaves já ordenadas, sem rotações.
+     *
+     * Node i holds the i-th key, so an in-order walk reads the arrays in
+     * order. The result is perfectly balanced.
+     *
+     * @throws IllegalArgumentException if the keys are not strictly increasing
+     */
+    public static <V> IntTreeAVL<V> buildFromSorted(int[] keys, V[] vals, int n) {
+        for (int i = 1; i < n; i++) {
+            if (keys[i - 1] >= keys[i]) {
+                throw new IllegalArgumentException("Keys not strictly increasing at index " + i);
+            }
+        }
+
+        IntTreeAVL<V> tree = new IntTreeAVL<>(n);
+        System.arraycopy(keys, 0, tree.keys, 0, n);
+        System.arraycopy(vals, 0, tree.vals, 0, n);
+        tree.nextSlot = n;
+        tree.size = n;
+        tree.root = tree.buildBalanced(0, n - 1);
+        return tree;
+    }
+
+    private int buildBalanced(int lo, int hi) {
+        if (lo > hi) {
+            return NIL;
+        }
+        int mid = (lo + hi) >>> 1;
+        left[mid] = buildBalanced(lo, mid - 1);
+        right[mid] = buildBalanced(mid + 1, hi);
+        update(mid);
+        return mid;
+    }
+
+    public void Insert(int k, V v) {
+        root = Insert(root, k, v);
+    }
+
+    private int Insert(int tree, int k, V v) {
+        /*
+         * 1. Perform the normal binary insertion
+         */
+        if (tree == NIL) {
+            return newNode(k, v);
+        }
+
+        // The insertion may grow the arrays, so store the child only after the call
+        if (k < keys[tree]) {
+            int child = Insert(left[tree], k, v);
+            left[tree] = child;
+        } else if (k > keys[tree]) {
+            int child = Insert(right[tree], k, v);
+            right[tree] = child;
+        } else {
+            // key already exists
+            return tree;
+        }
+
+        /*
+         * 2. Update height and rebalance
+         */
+        return rebalance(tree);
+    }
+
+    public void Remove(int k) {
+        root = Remove(root, k);
+    }
+
+    private int Remove(int tree, int k) {
+        if (tree == NIL) {
+            return tree;
+        }
+
+        if (k < keys[tree]) {
+            left[tree] = Remove(left[tree], k);
+        } else if (k > keys[tree]) {
+            right[tree] = Remove(right[tree], k);
+        } else if (left[tree] == NIL || right[tree] == NIL) {
+            // No child or children in one side only
+            int child = left[tree] == NIL ? right[tree] : left[tree];
+            freeNode(tree);
+            tree = child;
+        } else {
+            // Node with two children, take the key and value of its successor
+            int successor = minKey(right[tree]);
+            keys[tree] = keys[successor];
+            vals[tree] = vals[successor];
+            right[tree] = Remove(right[tree], keys[tree]);
+        }
+
+        if (tree == NIL) {
+            return tree;
+        }
+
+        return rebalance(tree);
+    }
+
+    /**
+     * Busca iterativa
+     */
+    @SuppressWarnings("unchecked")
+    public V Search(int k) {
+        int node = root;
+        while (node != NIL) {
+            int key = keys[node];
+            if (k < key) {
+                node = left[node];
+            } else if (k > key) {
+                node = right[node];
+            } else {
+                return (V) vals[node];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Busca com limite de passos, para leituras otimistas feitas sem lock
+     * enquanto outra thread pode estar alterando a árvore.
+     *
+     * A concurrent write can link nodes in a cycle for a moment or replace
+     * the arrays, so the walk gives up after maxSteps and may also fail with
+     * an index out of bounds. The caller must discard the result unless it
+     * can prove no write happened meanwhile.
+     *
+     * @throws IllegalStateException if the search takes more than maxSteps
+     */
+    @SuppressWarnings("unchecked")
+    public V Search(int k, int maxSteps) {
+        int node = root;
+        for (int steps = 0; node != NIL; steps++) {
+            if (steps > maxSteps) {
+                throw new IllegalStateException("Search exceeded " + maxSteps + " steps");
+            }
+            int key = keys[node];
+            if (k < key) {
+                node = left[node];
+            } else if (k > key) {
+                node = right[node];
+            } else {
+                return (V) vals[node];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Troca o valor associado a uma chave existente sem alterar a estrutura
+     * da árvore
+     *
+     * @return false if the key is not in the tree
+     */
+    public boolean Replace(int k, V v) {
+        int node = root;
+        while (node != NIL) {
+            int key = keys[node];
+            if (k < key) {
+                node = left[node];
+            } else if (k > key) {
+                node = right[node];
+            } else {
+                vals[node] = v;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void Show() {
+        StringBuilder output = new StringBuilder();
+        appendInOrder(root, 0, new int[] { Integer.MAX_VALUE }, output, null);
+        System.out.print(output);
+    }
+
+    public void ShowReverse() {
+        StringBuilder output = new StringBuilder();
+        appendReverseOrder(root, 0, new int[] { Integer.MAX_VALUE }, output, null);
+        System.out.print(output);
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Posição da chave na ordem da árvore: quantas chaves são menores que k
+     */
+    public int rank(int k) {
+        int rank = 0;
+        int node = root;
+        while (node != NIL) {
+            int key = keys[node];
+            if (k < key) {
+                node = left[node];
+            } else if (k > key) {
+                rank += count(left[node]) + 1;
+                node = right[node];
+            } else {
+                return rank + count(left[node]);
+            }
+        }
+        return rank;
+    }
+
+    /**
+     * Valor na posição index da ordem da árvore (0 é a menor chave)
+     *
+     * @return null if index is out of range
+     */
+    @SuppressWarnings("unchecked")
+    public V select(int index) {
+        if (index < 0 || index >= size) {
+            return null;
+        }
+        int node = root;
+        while (node != NIL) {
+            int leftCount = count(left[node]);
+            if (index < leftCount) {
+                node = left[node];
+            } else if (index > leftCount) {
+                index -= leftCount + 1;
+                node = right[node];
+            } else {
+                return (V) vals[node];
+            }
+        }
+        return null;
+    }
+
+    public int getTreeHeight() {
+        return height(root);
+    }
+
+    public int getBalanceCounter() {
+        return balanceCounter;
+    }
+
+    public void resetBalanceCounter() {
+        balanceCounter = 0;
+    }
+
+    /**
+     * Retorna o conteúdo da árvore como uma string formatada (em ordem)
+     *
+     * @param formatter Função para formatar cada item ao percorrer a árvore
+     * @return String formatada com todo o conteúdo da árvore
+     */
+    public String getFormattedContent(ItemFormatter<V> formatter) {
+        return getFormattedContent(formatter, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Retorna uma página do conteúdo da árvore (em ordem), O(log n + limit)
+     *
+     * @param offset posição do primeiro item da página
+     * @param limit  número máximo de itens
+     */
+    public String getFormattedContent(ItemFormatter<V> formatter, int offset, int limit) {
+        StringBuilder output = new StringBuilder();
+        output.append("=== Tree Content ===\n");
+
+        if (root == NIL) {
+            output.append("Empty tree\n");
+        } else {
+            appendInOrder(root, Math.max(0, offset), new int[] { limit }, output, formatter);
+        }
+
+        output.append("=====================\n");
+        return output.toString();
+    }
+
+    /**
+     * Retorna o conteúdo da árvore como uma string formatada (em ordem reversa)
+     *
+     * @param formatter Função para formatar cada item ao percorrer a árvore
+     * @return String formatada com todo o conteúdo da árvore em ordem reversa
+     */
+    public String getFormattedContentReverse(ItemFormatter<V> formatter) {
+        return getFormattedContentReverse(formatter, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Retorna uma página do conteúdo da árvore em ordem reversa, O(log n + limit)
+     *
+     * @param offset posição do primeiro item da página, contada a partir da maior
+     *               chave
+     * @param limit  número máximo de itens
+     */
+    public String getFormattedContentReverse(ItemFormatter<V> formatter, int offset, int limit) {
+        StringBuilder output = new StringBuilder();
+        output.append("=== Tree Content (Reverse) ===\n");
+
+        if (root == NIL) {
+            output.append("Empty tree\n");
+        } else {
+            appendReverseOrder(root, Math.max(0, offset), new int[] { limit }, output, formatter);
+        }
+
+        output.append("==============================\n");
+        return output.toString();
+    }
+
+    /**
+     * Populate a map with all entries in the tree
+     */
+    @SuppressWarnings("unchecked")
+    public void populateMap(Map<Integer, V> map) {
+        int[] stack = new int[height(root) + 2];
+        int top = 0;
+        int node = root;
+        while (node != NIL || top > 0) {
+            while (node != NIL) {
+                stack[top++] = node;
+                node = left[node];
+            }
+            node = stack[--top];
+            map.put(keys[node], (V) vals[node]);
+            node = right[node];
+        }
+    }
+
+    /**
+     * Copia em ordem as entradas com chave >= fromKey, até o tamanho dos
+     * arrays, em O(log n + copiadas)
+     *
+     * @return quantas entradas foram copiadas
+     */
+    public int copyFrom(int fromKey, int[] keysOut, V[] valsOut) {
+        int max = Math.min(keysOut.length, valsOut.length);
+        int[] stack = new int[height(root) + 2];
+        int top = 0;
+
+        // The path to the first key >= fromKey, without the nodes that are smaller
+        int node = root;
+        while (node != NIL) {
+            if (keys[node] >= fromKey) {
+                stack[top++] = node;
+                node = left[node];
+            } else {
+                node = right[node];
+            }
+        }
+
+        int copied = 0;
+        while (top > 0 && copied < max) {
+            node = stack[--top];
+            keysOut[copied] = keys[node];
+            @SuppressWarnings("unchecked")
+            V val = (V) vals[node];
+            valsOut[copied++] = val;
+            node = right[node];
+            while (node != NIL) {
+                stack[top++] = node;
+                node = left[node];
+            }
+        }
+        return copied;
+    }
+
+    /**
+     * Adiciona nós em ordem ao StringBuilder fornecido, pulando os primeiros
+     * offset nós da subárvore e parando quando remaining[0] chega a zero. Sem
+     * formatter usa o formato "chave : valor" do Show.
+     */
+    private void appendInOrder(int node, int offset, int[] remaining, StringBuilder builder,
+            ItemFormatter<V> formatter) {
+        if (node == NIL || remaining[0] <= 0) {
+            return;
+        }
+        int leftCount = count(left[node]);
+        if (offset < leftCount) {
+            appendInOrder(left[node], offset, remaining, builder, formatter);
+        }
+        if (remaining[0] > 0 && offset <= leftCount) {
+            appendNode(node, builder, formatter);
+            remaining[0]--;
+        }
+        appendInOrder(right[node], Math.max(0, offset - leftCount - 1), remaining, builder, formatter);
+    }
+
+    /**
+     * Adiciona nós em ordem reversa ao StringBuilder fornecido, com o mesmo
+     * offset/remaining de appendInOrder
+     */
+    private void appendReverseOrder(int node, int offset, int[] remaining, StringBuilder builder,
+            ItemFormatter<V> formatter) {
+        if (node == NIL || remaining[0] <= 0) {
+            return;
+        }
+        int rightCount = count(right[node]);
+        if (offset < rightCount) {
+            appendReverseOrder(right[node], offset, remaining, builder, formatter);
+        }
+        if (remaining[0] > 0 && offset <= rightCount) {
+            appendNode(node, builder, formatter);
+            remaining[0]--;
+        }
+        appendReverseOrder(left[node], Math.max(0, offset - rightCount - 1), remaining, builder, formatter);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void appendNode(int node, StringBuilder builder, ItemFormatter<V> formatter) {
+        if (formatter == null) {
+            builder.append(keys[node]).append(" : ").append(vals[node]).append("\n");
+        } else {
+            builder.append(formatter.format((V) vals[node])).append("\n");
+        }
+    }
+
+    private int newNode(int k, V v) {
+        int node;
+        if (freeList != NIL) {
+            node = freeList;
+            freeList = left[node];
+        } else {
+            if (nextSlot == keys.length) {
+                grow();
+            }
+            node = nextSlot++;
+        }
+
+        keys[node] = k;
+        vals[node] = v;
+        left[node] = NIL;
+        right[node] = NIL;
+        heights[node] = 0;
+        counts[node] = 1;
+        size++;
+        return node;
+    }
+
+    private void freeNode(int node) {
+        // Drop the value reference so it can be collected
+        vals[node] = null;
+        left[node] = freeList;
+        freeList = node;
+        size--;
+    }
+
+    private void grow() {
+        int capacity = keys.length + Math.max(INITIAL_CAPACITY, keys.length >> 1);
+        keys = Arrays.copyOf(keys, capacity);
+        vals = Arrays.copyOf(vals, capacity);
+        left = Arrays.copyOf(left, capacity);
+        right = Arrays.copyOf(right, capacity);
+        heights = Arrays.copyOf(heights, capacity);
+        counts = Arrays.copyOf(counts, capacity);
+    }
+
+    private int rebalance(int tree) {
+        update(tree);
+
+        int balanceFactor = getBalance(tree);
+
+        /*
+         * Left Left Case - Rotação Direita Simples
+         * Right Right Case - Rotação Esquerda Simples
+         * Left Right Case - Rotação Dupla Direita
+         * Right Left Case - Rotação Dupla Esquerda
+         */
+        if (balanceFactor > 1) {
+            balanceCounter++;
+            if (getBalance(left[tree]) < 0) {
+                left[tree] = leftRotate(left[tree]);
+            }
+            return rightRotate(tree);
+        }
+
+        if (balanceFactor < -1) {
+            balanceCounter++;
+            if (getBalance(right[tree]) > 0) {
+                right[tree] = rightRotate(right[tree]);
+            }
+            return leftRotate(tree);
+        }
+
+        return tree;
+    }
+
+    private int height(int node) {
+        return node == NIL ? -1 : heights[node];
+    }
+
+    private int count(int node) {
+        return node == NIL ? 0 : counts[node];
+    }
+
+    private void update(int node) {
+        heights[node] = (byte) (1 + Math.max(height(left[node]), height(right[node])));
+        counts[node] = 1 + count(left[node]) + count(right[node]);
+    }
+
+    private int getBalance(int node) {
+        if (node == NIL) {
+            return 0;
+        }
+        return height(left[node]) - height(right[node]);
+    }
+
+    private int minKey(int node) {
+        while (left[node] != NIL) {
+            node = left[node];
+        }
+        return node;
+    }
+
+    private int rightRotate(int y) {
+        int x = left[y];
+        int z = right[x];
+
+        // Perform rotation
+        right[x] = y;
+        left[y] = z;
+
+        update(y);
+        update(x);
+        return x;
+    }
+
+    private int leftRotate(int x) {
+        int y = right[x];
+        int z = left[y];
+
+        // Perform rotation
+        left[y] = x;
+        right[x] = z;
+
+        update(x);
+        update(y);
+        return y;
+    }
+}
@@ -6,20 +6,24 @@ public class TreeAVL<K extends Comparable<K>, V> implements ITreeAVL<K, V> {
 
     private Node root;
     private int balanceCounter;
+    // Mantido em Insert/Remove, getSize() não percorre mais a árvore
+    private int size;
 
-    // private int size;
     // not a good approach to have inner class being public
     // think of something later. Still, it is what it is
     public class Node {
         K key;
         V val;
         int heightNode;
+        // Number of nodes in the subtree rooted here, for rank and select
+        int count;
         Node l, r;
 
         Node(K key, V val) {
             this.key = key;
             this.val = val;
             this.heightNode = 0;
+            this.count = 1;
             this.l = null;
             this.r = null;
         }
@@ -28,7 +32,7 @@ public class TreeAVL<K extends Comparable<K>, V> implements ITreeAVL<K, V> {
 
     public TreeAVL() {
         root = null;
-        // size = 0;
+        size = 0;
         balanceCounter = 0;
     }
 
@@ -43,6 +47,7 @@ public class TreeAVL<K extends Comparable<K>, V> implements ITreeAVL<K, V> {
          */
         if (tree == null) {
             // System.out.println("Node inserted: " + k + " : " + v);
+            size++;
             return new Node(k, v);
         }
 
@@ -57,9 +62,10 @@ public class TreeAVL<K extends Comparable<K>, V> implements ITreeAVL<K, V> {
         }
 
         /*
-         * 2. Update height of this ancestor node
+         * 2. Update height and subtree count of this ancestor node
          */
         tree.heightNode = 1 + max(height(tree.l), height(tree.r));
+        tree.count = 1 + count(tree.l) + count(tree.r);
 
         /*
          * 3. Get the balance factor of this ancestor node to check whether this node
@@ -138,6 +144,7 @@ public class TreeAVL<K extends Comparable<K>, V> implements ITreeAVL<K, V> {
 
             if (tree.l == null && tree.r == null) {
                 tree = null;
+                size--;
             }
 
             /*
@@ -154,6 +161,7 @@ public class TreeAVL<K extends Comparable<K>, V> implements ITreeAVL<K, V> {
                 Node temp = tree;
                 tree = temp.r;
                 temp = null;
+                size--;
             }
 
             /*
@@ -165,6 +173,7 @@ public class TreeAVL<K extends Comparable<K>, V> implements ITreeAVL<K, V> {
                 Node temp = tree;
                 tree = temp.l;
                 temp = null;
+                size--;
             }
 
             /*
@@ -185,9 +194,10 @@ public class TreeAVL<K extends Comparable<K>, V> implements ITreeAVL<K, V> {
         }
 
         /*
-         * 2. Update height of this ancestor node
+         * 2. Update height and subtree count of this ancestor node
          */
         tree.heightNode = 1 + max(height(tree.l), height(tree.r));
+        tree.count = 1 + count(tree.l) + count(tree.r);
 
         /*
          * 3. Get the balance factor of this ancestor node to check whether this node
@@ -244,6 +254,13 @@ public class TreeAVL<K extends Comparable<K>, V> implements ITreeAVL<K, V> {
         return tree.heightNode;
     }
 
+    int count(Node tree) {
+        if (tree == null) {
+            return 0;
+        }
+        return tree.count;
+    }
+
     int max(int a, int b) {
         return (a > b) ? a : b;
     }
@@ -276,9 +293,11 @@ public class TreeAVL<K extends Comparable<K>, V> implements ITreeAVL<K, V> {
         x.r = y;
         y.l = z;
 
-        // Update heights
+        // Update heights and subtree counts
         y.heightNode = max(height(y.l), height(y.r)) + 1;
         x.heightNode = max(height(x.l), height(x.r)) + 1;
+        y.count = 1 + count(y.l) + count(y.r);
+        x.count = 1 + count(x.l) + count(x.r);
 
         // Return new root
         return x;
@@ -292,9 +311,11 @@ public class TreeAVL<K extends Comparable<K>, V> implements ITreeAVL<K, V> {
         y.l = x;
         x.r = z;
 
-        // Update heights
+        // Update heights and subtree counts
         x.heightNode = max(height(x.l), height(x.r)) + 1;
         y.heightNode = max(height(y.l), height(y.r)) + 1;
+        x.count = 1 + count(x.l) + count(x.r);
+        y.count = 1 + count(y.l) + count(y.r);
 
         // Return new root
         return y;
@@ -347,14 +368,52 @@ public class TreeAVL<K extends Comparable<K>, V> implements ITreeAVL<K, V> {
 
     @Override
     public int getSize() {
-        return getSize(root);
+        return size;
     }
 
-    int getSize(Node tree) {
-        if (tree == null) {
-            return 0;
+    /**
+     * Posição da chave na ordem da árvore: quantas chaves são menores que k.
+     * O(log n) usando as contagens das subárvores.
+     */
+    public int rank(K k) {
+        int rank = 0;
+        Node node = root;
+        while (node != null) {
+            int cmp = k.compareTo(node.key);
+            if (cmp < 0) {
+                node = node.l;
+            } else if (cmp > 0) {
+                rank += count(node.l) + 1;
+                node = node.r;
+            } else {
+                return rank + count(node.l);
+            }
+        }
+        return rank;
+    }
+
+    /**
+     * Valor na posição index da ordem da árvore (0 é a menor chave)
+     *
+     * @return null if index is out of range
+     */
+    public V select(int index) {
+        if (index < 0 || index >= size) {
+            return null;
         }
-        return 1 + getSize(tree.l) + getSize(tree.r);
+        Node node = root;
+        while (node != null) {
+            int leftCount = count(node.l);
+            if (index < leftCount) {
+                node = node.l;
+            } else if (index > leftCount) {
+                index -= leftCount + 1;
+                node = node.r;
+            } else {
+                return node.val;
+            }
+        }
+        return null;
     }
 
     public int getTreeHeight() {
@@ -388,13 +447,24 @@ public class TreeAVL<K extends Comparable<K>, V> implements ITreeAVL<K, V> {
      * @return String formatada com todo o conteúdo da árvore
      */
     public String getFormattedContent(ItemFormatter<V> formatter) {
+        return getFormattedContent(formatter, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Retorna uma página do conteúdo da árvore (em ordem). As subárvores antes
+     * do offset são puladas pelas contagens, então o custo é O(log n + limit).
+     *
+     * @param offset posição do primeiro item da página
+     * @param limit  número máximo de itens
+     */
+    public String getFormattedContent(ItemFormatter<V> formatter, int offset, int limit) {
         StringBuilder output = new StringBuilder();
         output.append("=== Tree Content ===\n");
 
         if (root == null) {
             output.append("Empty tree\n");
         } else {
-            appendInOrder(root, output, formatter);
+            appendInOrder(root, Math.max(0, offset), new int[] { limit }, output, formatter);
         }
 
         output.append("=====================\n");
@@ -408,13 +478,24 @@ public class TreeAVL<K extends Comparable<K>, V> implements ITreeAVL<K, V> {
      * @return String formatada com todo o conteúdo da árvore em ordem reversa
      */
     public String getFormattedContentReverse(ItemFormatter<V> formatter) {
+        return getFormattedContentReverse(formatter, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Retorna uma página do conteúdo da árvore em ordem reversa, O(log n + limit)
+     *
+     * @param offset posição do primeiro item da página, contada a partir da maior
+     *               chave
+     * @param limit  número máximo de itens
+     */
+    public String getFormattedContentReverse(ItemFormatter<V> formatter, int offset, int limit) {
         StringBuilder output = new StringBuilder();
         output.append("=== Tree Content (Reverse) ===\n");
 
         if (root == null) {
             output.append("Empty tree\n");
         } else {
-            appendReverseOrder(root, output, formatter);
+            appendReverseOrder(root, Math.max(0, offset), new int[] { limit }, output, formatter);
         }
 
         output.append("==============================\n");
@@ -422,25 +503,43 @@ public class TreeAVL<K extends Comparable<K>, V> implements ITreeAVL<K, V> {
     }
 
     /**
-     * Adiciona nós em ordem ao StringBuilder fornecido
+     * Adiciona nós em ordem ao StringBuilder fornecido, pulando os primeiros
+     * offset nós da subárvore e parando quando remaining[0] chega a zero
      */
-    private void appendInOrder(Node node, StringBuilder builder, ItemFormatter<V> formatter) {
-        if (node != null) {
-            appendInOrder(node.l, builder, formatter);
+    private void appendInOrder(Node node, int offset, int[] remaining, StringBuilder builder,
+            ItemFormatter<V> formatter) {
+        if (node == null || remaining[0] <= 0) {
+            return;
+        }
+        int leftCount = count(node.l);
+        if (offset < leftCount) {
+            appendInOrder(node.l, offset, remaining, builder, formatter);
+        }
+        if (remaining[0] > 0 && offset <= leftCount) {
             builder.append(formatter.format(node.val)).append("\n");
-            appendInOrder(node.r, builder, formatter);
+            remaining[0]--;
         }
+        appendInOrder(node.r, Math.max(0, offset - leftCount - 1), remaining, builder, formatter);
     }
 
     /**
-     * Adiciona nós em ordem reversa ao StringBuilder fornecido
+     * Adiciona nós em ordem reversa ao StringBuilder fornecido, com o mesmo
+     * offset/remaining de appendInOrder
      */
-    private void appendReverseOrder(Node node, StringBuilder builder, ItemFormatter<V> formatter) {
-        if (node != null) {
-            appendReverseOrder(node.r, builder, formatter);
+    private void appendReverseOrder(Node node, int offset, int[] remaining, StringBuilder builder,
+            ItemFormatter<V> formatter) {
+        if (node == null || remaining[0] <= 0) {
+            return;
+        }
+        int rightCount = count(node.r);
+        if (offset < rightCount) {
+            appendReverseOrder(node.r, offset, remaining, builder, formatter);
+        }
+        if (remaining[0] > 0 && offset <= rightCount) {
             builder.append(formatter.format(node.val)).append("\n");
-            appendReverseOrder(node.l, builder, formatter);
+            remaining[0]--;
         }
+        appendReverseOrder(node.l, Math.max(0, offset - rightCount - 1), remaining, builder, formatter);
     }
 
     /**
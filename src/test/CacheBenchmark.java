@@ -0,0 +1,177 @@
+package test;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+
+import main.server.proxy.cache.Cache;
+import main.server.proxy.cache.CacheFIFO;
+import main.server.proxy.cache.ShardedCache;
+import main.shared.models.WorkOrder;
+
+/**
+ * Throughput of the proxy caches under concurrent lookups: the CacheFIFO
+ * under one monitor, the Cache with an eviction policy under one monitor, and
+ * the ShardedCache with lock-free reads.
+ *
+ * java test.CacheBenchmark [policy] [entries] [millis per round]
+ *
+ * Every cache is filled with the same work orders and then read by 1, 8 and
+ * 32 threads, first only hits (the read path the proxy takes for every
+ * SEARCH in cache) and then with one write in twenty, as UPDATEs and misses
+ * filled from the application server. The first round of each case only warms
+ * up the JIT; the result is the average of the other rounds, in million
+ * operations per second. Threads only scale with the processors the JVM has,
+ * so run on a machine with several.
+ */
+public class CacheBenchmark {
+    private static final int[] THREADS = { 1, 8, 32 };
+    private static final int ROUNDS = 4;
+    private static final int LOOKUPS_PER_THREAD = 1 << 16;
+
+    // Keeps the JIT from dropping the lookups
+    private static volatile long sink;
+
+    private interface Target {
+        WorkOrder get(int code);
+
+        void put(WorkOrder workOrder);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        String policy = args.length > 0 ? args[0] : "LRU";
+        int entries = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+        long roundMillis = args.length > 2 ? Long.parseLong(args[2]) : 1000;
+
+        WorkOrder[] workOrders = new WorkOrder[entries];
+        for (int i = 0; i < entries; i++) {
+            workOrders[i] = new WorkOrder(i, "Order " + i, "Benchmark", "01-01-2025 00:00:00");
+        }
+
+        System.out.println("=== Cache benchmark: " + entries + " entries, policy " + policy + ", "
+                + Runtime.getRuntime().availableProcessors() + " processors ===");
+        System.out.printf("%-28s %8s %14s %14s%n", "cache", "threads", "hits (Mops/s)", "95/5 (Mops/s)");
+
+        String[] names = { "CacheFIFO", "Cache " + policy, "ShardedCache " + policy };
+        for (int kind = 0; kind < names.length; kind++) {
+            for (int threads : THREADS) {
+                double reads = run(newTarget(kind, policy, entries, workOrders), workOrders, threads, roundMillis, 0);
+                double mixed = run(newTarget(kind, policy, entries, workOrders), workOrders, threads, roundMillis,
+                        20);
+                System.out.printf("%-28s %8d %14.2f %14.2f%n", names[kind], threads, reads, mixed);
+            }
+        }
+        System.out.println("(checksum " + sink + ")");
+    }
+
+    private static Target newTarget(int kind, String policy, int entries, WorkOrder[] workOrders) {
+        Target target;
+        if (kind == 0) {
+            CacheFIFO<WorkOrder> cache = new CacheFIFO<>(entries, 0);
+            // CacheFIFO looks up by an example work order with the same code
+            WorkOrder[] criteria = new WorkOrder[entries];
+            for (int i = 0; i < entries; i++) {
+                criteria[i] = new WorkOrder(i, "", "");
+            }
+            target = new Target() {
+                public WorkOrder get(int code) {
+                    return cache.get(criteria[code]);
+                }
+
+                public void put(WorkOrder workOrder) {
+                    cache.add(workOrder);
+                }
+            };
+        } else if (kind == 1) {
+            Cache<Integer, WorkOrder> cache = new Cache<>(WorkOrder::getCode, policy, entries, 0);
+            target = target(cache::getByKey, cache::add);
+        } else {
+            ShardedCache<Integer, WorkOrder> cache = new ShardedCache<>(WorkOrder::getCode, policy, entries, 0,
+                    4 * Runtime.getRuntime().availableProcessors());
+            target = target(cache::getByKey, cache::add);
+        }
+        for (WorkOrder workOrder : workOrders) {
+            target.put(workOrder);
+        }
+        return target;
+    }
+
+    private static Target target(IntFunction<WorkOrder> get, Consumer<WorkOrder> put) {
+        return new Target() {
+            public WorkOrder get(int code) {
+                return get.apply(code);
+            }
+
+            public void put(WorkOrder workOrder) {
+                put.accept(workOrder);
+            }
+        };
+    }
+
+    /**
+     * @param writeEvery uma escrita a cada writeEvery operações, 0 para só
+     *                   leituras
+     * @return milhões de operações por segundo, média sem o aquecimento
+     */
+    private static double run(Target target, WorkOrder[] workOrders, int threads, long roundMillis,
+            int writeEvery) throws InterruptedException {
+        double total = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            long[] operations = new long[threads];
+            CountDownLatch start = new CountDownLatch(1);
+            CountDownLatch done = new CountDownLatch(threads);
+            long[] deadline = new long[1];
+            for (int t = 0; t < threads; t++) {
+                final int id = t;
+                Thread worker = new Thread(() -> {
+                    Random random = new Random(id);
+                    int[] codes = new int[LOOKUPS_PER_THREAD];
+                    for (int i = 0; i < codes.length; i++) {
+                        codes[i] = random.nextInt(workOrders.length);
+                    }
+                    long count = 0;
+                    long found = 0;
+                    try {
+                        start.await();
+                        while (System.nanoTime() < deadline[0]) {
+                            // Check the clock every 1024 operations
+                            for (int i = 0; i < 1024; i++) {
+                                int code = codes[(int) (count & (LOOKUPS_PER_THREAD - 1))];
+                                if (writeEvery > 0 && count % writeEvery == 0) {
+                                    target.put(workOrders[code]);
+                                } else {
+                                    WorkOrder workOrder = target.get(code);
+                                    found += workOrder == null ? 0 : 1;
+                                }
+                                count++;
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    operations[id] = count;
+                    sink += found;
+                    done.countDown();
+                });
+                worker.setDaemon(true);
+                worker.start();
+            }
+
+            long begin = System.nanoTime();
+            deadline[0] = begin + roundMillis * 1_000_000L;
+            start.countDown();
+            done.await();
+            long elapsed = System.nanoTime() - begin;
+
+            long sum = 0;
+            for (long count : operations) {
+                sum += count;
+            }
+            if (round > 0) {
+                total += sum / (elapsed / 1e3);
+            }
+        }
+        return total / (ROUNDS - 1);
+    }
+}
@@ -0,0 +1,108 @@
+package test;
+
+import main.server.proxy.cache.ShardedCache;
+import main.shared.models.WorkOrder;
+
+/**
+ * Checks the seq guard of the proxy cache against slow reads.
+ *
+ * java test.CacheInvalidationCheck
+ *
+ * A value read before the invalidation of its key must not enter the cache,
+ * neither while the segment remembers the invalidation nor after it forgot
+ * it for newer ones and raised its floor instead; "invalidate all" raises the
+ * floor for every key. Exits with status 1 on the first wrong answer.
+ */
+public class CacheInvalidationCheck {
+    // Invalidations a segment remembers before it raises its floor, as in ShardedCache
+    private static final int MAX_TOMBSTONES = 1024;
+
+    public static void main(String[] args) {
+        checkSeqGuard();
+        checkTombstoneFloor();
+        checkInvalidateAll();
+        System.out.println("All cache invalidation checks passed");
+    }
+
+    private static void checkSeqGuard() {
+        try (ShardedCache<Integer, WorkOrder> cache = newCache()) {
+            check(cache.add(workOrder(1, "first"), 5), "a read with no invalidation is cached");
+
+            cache.invalidate(1, 10);
+            check(cache.peekByKey(1) == null, "the invalidation drops the key");
+            check(!cache.add(workOrder(1, "stale"), 9), "a read before the invalidation is refused");
+            check(cache.add(workOrder(1, "fresh"), 10), "a read at the invalidation's seq is cached");
+            check("fresh".equals(cache.peekByKey(1).getName()), "the fresh read is the one cached");
+
+            // Invalidations may arrive out of order, the newest one counts
+            cache.invalidate(1, 20);
+            cache.invalidate(1, 15);
+            check(!cache.add(workOrder(1, "stale"), 17), "an older invalidation does not lower the guard");
+            check(cache.add(workOrder(2, "other"), 0), "another key is not guarded");
+        }
+        System.out.println("seq guard: ok");
+    }
+
+    private static void checkTombstoneFloor() {
+        try (ShardedCache<Integer, WorkOrder> cache = newCache()) {
+            // Key k invalidated at seq k + 1, one more than the segment remembers
+            for (int key = 0; key <= MAX_TOMBSTONES; key++) {
+                cache.invalidate(key, key + 1);
+            }
+            // Key 0 was forgotten, its seq is now the floor of the whole segment
+            check(!cache.add(workOrder(0, "stale"), 0), "a forgotten invalidation still refuses older reads");
+            check(!cache.add(workOrder(5000, "stale"), 0), "the floor refuses older reads of any key");
+            check(cache.add(workOrder(5000, "fresh"), 1), "the floor accepts reads at its seq");
+            check(!cache.add(workOrder(MAX_TOMBSTONES, "stale"), MAX_TOMBSTONES),
+                    "remembered invalidations above the floor still count");
+            check(cache.add(workOrder(MAX_TOMBSTONES, "fresh"), MAX_TOMBSTONES + 1),
+                    "reads after a remembered invalidation are cached");
+
+            // The floor keeps rising as more invalidations are forgotten
+            for (int key = 0; key < 10; key++) {
+                cache.invalidate(10000 + key, 2000 + key);
+            }
+            check(!cache.add(workOrder(5001, "stale"), 10), "the floor rises with each forgotten invalidation");
+            check(cache.add(workOrder(5001, "fresh"), 11), "the raised floor accepts reads at its seq");
+        }
+        System.out.println("tombstone floor: ok");
+    }
+
+    private static void checkInvalidateAll() {
+        try (ShardedCache<Integer, WorkOrder> cache = newCache()) {
+            cache.add(workOrder(1, "first"), 1);
+            cache.add(workOrder(2, "second"), 1);
+            cache.invalidate(3, 200);
+
+            cache.invalidateAll(100);
+            check(cache.getSize() == 0, "invalidate all empties the cache");
+            check(!cache.add(workOrder(1, "stale"), 99), "invalidate all refuses older reads of every key");
+            check(cache.add(workOrder(1, "fresh"), 100), "invalidate all accepts reads at its seq");
+            // Invalidations up to the floor are covered by it, newer ones still count
+            cache.invalidate(2, 50);
+            check(cache.add(workOrder(2, "fresh"), 100), "an invalidation below the floor is ignored");
+            cache.invalidate(2, 150);
+            check(!cache.add(workOrder(2, "stale"), 120), "an invalidation above the floor still counts");
+
+            cache.invalidateAll(50);
+            check(!cache.add(workOrder(4, "stale"), 60), "an older invalidate all does not lower the floor");
+        }
+        System.out.println("invalidate all: ok");
+    }
+
+    // A single segment, so the tombstone limit applies to every key used here
+    private static ShardedCache<Integer, WorkOrder> newCache() {
+        return new ShardedCache<>(WorkOrder::getCode, "LRU", 64, 0, 1);
+    }
+
+    private static WorkOrder workOrder(int code, String name) {
+        return new WorkOrder(code, name, "Cache invalidation check", "01-01-2025 00:00:00");
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            System.out.println("FAILED: " + message);
+            System.exit(1);
+        }
+    }
+}
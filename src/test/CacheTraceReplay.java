@@ -0,0 +1,170 @@
+package test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Function;
+
+import main.server.proxy.cache.Cache;
+import main.server.proxy.cache.policy.EvictionPolicy;
+
+/**
+ * Replays streams of SEARCH keys against every eviction policy of the proxy
+ * cache and prints the hit ratio of each one.
+ *
+ * java test.CacheTraceReplay [capacity] [trace files...]
+ *
+ * A trace has one work order code per line, as the proxy records them with
+ * -Dcfwos.cache.traceFile=... Each lookup that misses adds the key, as the
+ * proxy does when the application server answers. Without trace files it
+ * replays synthetic traces: a Zipf distribution, the same with scans of keys
+ * read once, a hot set that moves, and a loop a bit larger than the cache.
+ */
+public class CacheTraceReplay {
+    private static final int SYNTHETIC_KEYS = 100_000;
+    private static final int SYNTHETIC_LOOKUPS = 1_000_000;
+
+    public static void main(String[] args) throws IOException {
+        int capacity = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+
+        Map<String, int[]> traces = new LinkedHashMap<>();
+        if (args.length > 1) {
+            for (int i = 1; i < args.length; i++) {
+                traces.put(Paths.get(args[i]).getFileName().toString(), readTrace(args[i]));
+            }
+        } else {
+            Random random = new Random(42);
+            traces.put("zipf-0.99", zipf(random, 0.99, SYNTHETIC_KEYS, SYNTHETIC_LOOKUPS));
+            traces.put("zipf+scans", withScans(random, zipf(random, 0.99, SYNTHETIC_KEYS, SYNTHETIC_LOOKUPS),
+                    capacity * 2));
+            traces.put("moving-hotspot", movingHotspot(random, capacity, SYNTHETIC_LOOKUPS));
+            traces.put("loop", loop(capacity + capacity / 5, SYNTHETIC_LOOKUPS));
+        }
+
+        System.out.println("=== Cache trace replay: capacity " + capacity + " entries ===");
+        System.out.printf("%-16s %10s", "trace", "lookups");
+        for (String policy : EvictionPolicy.NAMES) {
+            System.out.printf(" %10s", policy);
+        }
+        System.out.println();
+
+        for (Map.Entry<String, int[]> trace : traces.entrySet()) {
+            System.out.printf("%-16s %10d", trace.getKey(), trace.getValue().length);
+            String best = null;
+            double bestRatio = -1;
+            for (String policy : EvictionPolicy.NAMES) {
+                double ratio = replay(policy, capacity, trace.getValue());
+                if (ratio > bestRatio) {
+                    bestRatio = ratio;
+                    best = policy;
+                }
+                System.out.printf(" %9.2f%%", ratio * 100);
+            }
+            System.out.println("   best: " + best);
+        }
+    }
+
+    private static double replay(String policy, int capacity, int[] trace) {
+        Cache<Integer, Integer> cache = new Cache<>(Function.identity(), policy, capacity, 0);
+        long hits = 0;
+        for (int key : trace) {
+            if (cache.getByKey(key) != null) {
+                hits++;
+            } else {
+                cache.add(key);
+            }
+        }
+        if (cache.getSize() > capacity) {
+            throw new IllegalStateException(policy + " holds " + cache.getSize() + " entries");
+        }
+        return hits / (double) trace.length;
+    }
+
+    private static int[] readTrace(String file) throws IOException {
+        List<String> lines = Files.readAllLines(Paths.get(file), StandardCharsets.UTF_8);
+        List<Integer> keys = new ArrayList<>(lines.size());
+        for (String line : lines) {
+            line = line.trim();
+            if (!line.isEmpty()) {
+                keys.add(Integer.parseInt(line));
+            }
+        }
+        int[] trace = new int[keys.size()];
+        for (int i = 0; i < trace.length; i++) {
+            trace[i] = keys.get(i);
+        }
+        return trace;
+    }
+
+    private static int[] zipf(Random random, double exponent, int keys, int lookups) {
+        double[] cumulative = new double[keys];
+        double total = 0;
+        for (int rank = 0; rank < keys; rank++) {
+            total += 1 / Math.pow(rank + 1, exponent);
+            cumulative[rank] = total;
+        }
+
+        int[] trace = new int[lookups];
+        for (int i = 0; i < lookups; i++) {
+            double target = random.nextDouble() * total;
+            int low = 0;
+            int high = keys - 1;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (cumulative[mid] < target) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            trace[i] = low;
+        }
+        return trace;
+    }
+
+    // Every 50000 lookups, a run of keys read only once
+    private static int[] withScans(Random random, int[] base, int scanLength) {
+        List<Integer> keys = new ArrayList<>(base.length * 2);
+        int nextScanKey = 10_000_000;
+        for (int i = 0; i < base.length; i++) {
+            keys.add(base[i]);
+            if (i % 50_000 == 49_999) {
+                for (int j = 0; j < scanLength; j++) {
+                    keys.add(nextScanKey++);
+                }
+            }
+        }
+        int[] trace = new int[keys.size()];
+        for (int i = 0; i < trace.length; i++) {
+            trace[i] = keys.get(i);
+        }
+        return trace;
+    }
+
+    // 90% of the lookups go to a hot set half the cache size, which moves every 100000 lookups
+    private static int[] movingHotspot(Random random, int capacity, int lookups) {
+        int hotSize = Math.max(1, capacity / 2);
+        int[] trace = new int[lookups];
+        for (int i = 0; i < lookups; i++) {
+            int phase = i / 100_000;
+            trace[i] = random.nextInt(10) < 9
+                    ? 1_000_000 + phase * hotSize + random.nextInt(hotSize)
+                    : random.nextInt(SYNTHETIC_KEYS);
+        }
+        return trace;
+    }
+
+    private static int[] loop(int keys, int lookups) {
+        int[] trace = new int[lookups];
+        for (int i = 0; i < lookups; i++) {
+            trace[i] = i % keys;
+        }
+        return trace;
+    }
+}
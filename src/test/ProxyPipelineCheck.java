@@ -0,0 +1,244 @@
+package test;
+
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import main.shared.log.Logger;
+import main.shared.messages.Message;
+import main.shared.messages.MessageBus;
+import main.shared.messages.MessageTransport;
+import main.shared.messages.MessageTransports;
+import main.shared.messages.MessageType;
+import main.shared.utils.TypeUtil;
+
+/**
+ * Checks the answers of pipelined requests against a running proxy.
+ *
+ * Start the application, localization and proxy servers first, then run:
+ * java test.ProxyPipelineCheck [host] [port] [rounds]
+ *
+ * One session pipelines ADDs and SEARCHes without waiting, and every
+ * response must carry the id of its own request. Then, each round, a second
+ * session keeps SEARCHes for a code in flight while the first one pipelines
+ * a write and a SEARCH for the same code: the SEARCH must see the write (an
+ * ADD is found, an UPDATE shows the new name, a REMOVE leaves it not found),
+ * even though another session's SEARCH for the code is on its way. Last,
+ * UPDATEs of a cached work order that the server rejects must leave it as
+ * it was. Exits with status 1 if any response is wrong or a request gets
+ * more than one.
+ */
+public class ProxyPipelineCheck {
+    private static final Logger logger = Logger.getLogger();
+    private static final int PIPELINED_ADDS = 50;
+    private static final int PIPELINED_SEARCHES = 200;
+    private static final int READER_SEARCHES = 5;
+    private static final String NOT_FOUND = "Work order not found";
+
+    public static void main(String[] args) throws Exception {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 22220;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        int codeBase = 900000 + (int) (System.currentTimeMillis() % 50000) * 2;
+
+        List<String> failures = new ArrayList<>();
+        Session writer = new Session(host, port, "PipelineWriter");
+        Session reader = new Session(host, port, "PipelineReader");
+        try {
+            checkPipelined(writer, codeBase, failures);
+            checkReadsAfterWrites(writer, reader, codeBase + PIPELINED_ADDS, rounds, failures);
+            checkRejectedUpdates(writer, codeBase + PIPELINED_ADDS + rounds, failures);
+        } finally {
+            writer.close();
+            reader.close();
+        }
+        for (Session session : new Session[] { writer, reader }) {
+            if (session.unexpected.get() > 0) {
+                failures.add(session.clientId + " got " + session.unexpected.get() + " unexpected responses");
+            }
+        }
+
+        System.out.println("\n=== Proxy pipeline check ===");
+        for (String failure : failures) {
+            System.out.println("FAILED: " + failure);
+        }
+        System.out.println(failures.isEmpty() ? "All checks passed" : failures.size() + " failures");
+        System.exit(failures.isEmpty() ? 0 : 1);
+    }
+
+    private static void checkPipelined(Session session, int codeBase, List<String> failures) throws Exception {
+        List<CompletableFuture<Map<String, String>>> adds = new ArrayList<>();
+        for (int i = 0; i < PIPELINED_ADDS; i++) {
+            adds.add(session.send("ADD|" + (codeBase + i) + "|Pipelined " + i + "|Pipeline check"));
+        }
+        List<CompletableFuture<Map<String, String>>> searches = new ArrayList<>();
+        for (int i = 0; i < PIPELINED_SEARCHES; i++) {
+            searches.add(session.send("SEARCH|" + (codeBase + i % PIPELINED_ADDS)));
+        }
+
+        for (int i = 0; i < PIPELINED_ADDS; i++) {
+            Map<String, String> response = session.await(adds.get(i));
+            if (!"success".equals(response.get("status"))) {
+                failures.add("pipelined ADD " + (codeBase + i) + ": " + response);
+            }
+        }
+        int matched = 0;
+        for (int i = 0; i < PIPELINED_SEARCHES; i++) {
+            int code = codeBase + i % PIPELINED_ADDS;
+            Map<String, String> response = session.await(searches.get(i));
+            if (String.valueOf(code).equals(response.get("code"))
+                    && ("Pipelined " + (i % PIPELINED_ADDS)).equals(response.get("name"))) {
+                matched++;
+            } else {
+                failures.add("pipelined SEARCH " + code + ": " + response);
+            }
+        }
+        logger.info("Pipelined SEARCHes matched: {}/{}", matched, PIPELINED_SEARCHES);
+    }
+
+    /**
+     * A write followed right away by a SEARCH of the same session, while the
+     * other session has SEARCHes for the code in flight
+     */
+    private static void checkReadsAfterWrites(Session writer, Session reader, int codeBase, int rounds,
+            List<String> failures) throws Exception {
+        for (int round = 0; round < rounds; round++) {
+            int code = codeBase + round;
+            readAfterWrite(writer, reader, code, "ADD|" + code + "|Added " + round + "|Pipeline check",
+                    "Added " + round, failures);
+            readAfterWrite(writer, reader, code,
+                    "UPDATE|" + code + "|Updated " + round + "|Pipeline check|01-01-2025 00:00:00",
+                    "Updated " + round, failures);
+            readAfterWrite(writer, reader, code, "REMOVE|" + code, null, failures);
+        }
+        logger.info("Reads after writes checked for {} codes", rounds);
+    }
+
+    /**
+     * UPDATEs of a cached work order that the application server rejects
+     * get one answer each and leave the cached work order as it was
+     */
+    private static void checkRejectedUpdates(Session session, int code, List<String> failures) throws Exception {
+        session.await(session.send("ADD|" + code + "|Original|Pipeline check"));
+        session.await(session.send("SEARCH|" + code));
+        String[] updates = { "UPDATE|" + code, "UPDATE|" + code + "|Changed",
+                "UPDATE|" + code + "|Changed|Without timestamp" };
+        for (String update : updates) {
+            Map<String, String> response = session.await(session.send(update));
+            if ("success".equals(response.get("status"))) {
+                failures.add(update + " was accepted: " + response);
+            }
+        }
+        Map<String, String> search = session.await(session.send("SEARCH|" + code));
+        if (!"Original".equals(search.get("name"))) {
+            failures.add("SEARCH after rejected UPDATEs " + code + ": " + search);
+        }
+        // A second answer to any request would arrive by now
+        Thread.sleep(500);
+    }
+
+    /**
+     * @param name expected name of the work order after the write, or null
+     *             if it must not be found
+     */
+    private static void readAfterWrite(Session writer, Session reader, int code, String write, String name,
+            List<String> failures) throws Exception {
+        List<CompletableFuture<Map<String, String>>> pending = readerSearches(reader, code);
+        CompletableFuture<Map<String, String>> written = writer.send(write);
+        Map<String, String> search = writer.await(writer.send("SEARCH|" + code));
+        String label = "SEARCH after " + write.substring(0, write.indexOf('|')) + " " + code;
+
+        Map<String, String> writeResponse = writer.await(written);
+        if (!"success".equals(writeResponse.get("status"))) {
+            failures.add(write + ": " + writeResponse);
+        } else if (name != null
+                ? !"success".equals(search.get("status")) || !name.equals(search.get("name"))
+                : !"error".equals(search.get("status")) || !NOT_FOUND.equals(search.get("message"))) {
+            failures.add(label + ": " + search);
+        }
+        awaitAll(reader, pending);
+    }
+
+    private static List<CompletableFuture<Map<String, String>>> readerSearches(Session reader, int code) {
+        List<CompletableFuture<Map<String, String>>> pending = new ArrayList<>();
+        for (int i = 0; i < READER_SEARCHES; i++) {
+            pending.add(reader.send("SEARCH|" + code));
+        }
+        return pending;
+    }
+
+    private static void awaitAll(Session session, List<CompletableFuture<Map<String, String>>> pending)
+            throws Exception {
+        for (CompletableFuture<Map<String, String>> response : pending) {
+            session.await(response);
+        }
+    }
+
+    /**
+     * Authenticated client connection that matches responses to requests by
+     * correlation id
+     */
+    private static final class Session {
+        private final String clientId;
+        private final MessageBus bus;
+        private final MessageTransport transport;
+        private final AtomicLong requestIds = new AtomicLong();
+        private final Map<Long, CompletableFuture<Map<String, String>>> responses = new ConcurrentHashMap<>();
+        // Responses to no request, or a second one to the same request
+        private final AtomicInteger unexpected = new AtomicInteger();
+
+        Session(String host, int port, String clientId) throws Exception {
+            this.clientId = clientId;
+            this.bus = new MessageBus(clientId, logger);
+            CountDownLatch authenticated = new CountDownLatch(1);
+            bus.subscribe(MessageType.AUTH_RESPONSE, message -> authenticated.countDown());
+            bus.subscribe(MessageType.DATA_RESPONSE, message -> {
+                Optional<Map<String, String>> payload = TypeUtil.safeCastToMap(message.getPayload(),
+                        String.class, String.class);
+                complete(message.getCorrelationId(), payload.orElse(Map.of("status", "invalid response")));
+            });
+            bus.subscribe(MessageType.ERROR, message -> complete(message.getCorrelationId(),
+                    Map.of("status", "error", "message", String.valueOf(message.getPayload()))));
+
+            this.transport = MessageTransports.open(new Socket(host, port), bus, logger, false);
+            transport.sendMessage(new Message(MessageType.AUTH_REQUEST, clientId, "Server",
+                    new String[] { "admin", "admin123" }));
+            if (!authenticated.await(10, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("No AUTH_RESPONSE from proxy for " + clientId);
+            }
+        }
+
+        CompletableFuture<Map<String, String>> send(String payload) {
+            long requestId = requestIds.incrementAndGet();
+            CompletableFuture<Map<String, String>> response = new CompletableFuture<>();
+            responses.put(requestId, response);
+            transport.sendMessage(new Message(MessageType.DATA_REQUEST, clientId, "Server", payload, requestId));
+            return response;
+        }
+
+        Map<String, String> await(CompletableFuture<Map<String, String>> response) throws Exception {
+            return response.get(10, TimeUnit.SECONDS);
+        }
+
+        private void complete(long requestId, Map<String, String> payload) {
+            CompletableFuture<Map<String, String>> response = responses.remove(requestId);
+            if (response == null || !response.complete(payload)) {
+                unexpected.incrementAndGet();
+                logger.error("{}: unexpected response for request {}: {}", clientId, requestId, payload);
+            }
+        }
+
+        void close() {
+            transport.close();
+            bus.close();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package test;
+
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import main.shared.log.Logger;
+import main.shared.messages.Message;
+import main.shared.messages.MessageBus;
+import main.shared.messages.MessageTransport;
+import main.shared.messages.MessageTransports;
+import main.shared.messages.MessageType;
+
+/**
+ * Multi-client throughput test against a running proxy.
+ *
+ * Start the application, localization and proxy servers first, then run:
+ * java test.ProxyThroughputTest [host] [port] [requestsPerClient]
+ *
+ * Each client logs in, adds a few work orders and then pipelines SEARCH
+ * requests with a bounded window of requests in flight. The run is repeated
+ * with 1, 2, 4, ... clients up to twice the number of cores; with no lock
+ * shared between sessions the throughput should grow close to linearly until
+ * the cores are saturated.
+ */
+public class ProxyThroughputTest {
+    private static final Logger logger = Logger.getLogger();
+    private static final int WORK_ORDERS_PER_CLIENT = 20;
+    private static final int WINDOW = 32;
+
+    public static void main(String[] args) throws Exception {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 22220;
+        int requestsPerClient = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+        int maxClients = Runtime.getRuntime().availableProcessors() * 2;
+
+        logger.info("=== Proxy throughput test against {}:{} ===", host, port);
+
+        // Warm up connections, JIT and the application server
+        runClients(host, port, 1, requestsPerClient / 4, 0);
+
+        List<String> report = new ArrayList<>();
+        double baseline = 0;
+        for (int clients = 1; clients <= maxClients; clients *= 2) {
+            double throughput = runClients(host, port, clients, requestsPerClient, clients * 100000);
+            if (baseline == 0) {
+                baseline = throughput;
+            }
+            report.add(String.format("%3d clients: %10.0f req/s  speedup %5.2fx", clients, throughput,
+                    throughput / baseline));
+        }
+
+        System.out.println("\n=== Proxy throughput ===");
+        for (String line : report) {
+            System.out.println(line);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * @return completed requests per second over all clients
+     */
+    private static double runClients(String host, int port, int clients, int requestsPerClient, int codeBase)
+            throws Exception {
+        CountDownLatch ready = new CountDownLatch(clients);
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(clients);
+        AtomicLong completed = new AtomicLong();
+        AtomicInteger errors = new AtomicInteger();
+
+        for (int i = 0; i < clients; i++) {
+            final int firstCode = codeBase + i * WORK_ORDERS_PER_CLIENT;
+            new Thread(() -> {
+                try {
+                    runClient(host, port, firstCode, requestsPerClient, ready, start, completed, errors);
+                } catch (Exception e) {
+                    logger.error("Client error", e);
+                    errors.incrementAndGet();
+                } finally {
+                    done.countDown();
+                }
+            }, "throughput-client-" + i).start();
+        }
+
+        ready.await(30, TimeUnit.SECONDS);
+        long startTime = System.nanoTime();
+        start.countDown();
+        if (!done.await(120, TimeUnit.SECONDS)) {
+            logger.error("Throughput run with {} clients timed out", clients);
+        }
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+
+        double throughput = completed.get() / seconds;
+        logger.info("{} clients: {} requests in {} s ({} req/s), {} errors",
+                clients, completed.get(), String.format("%.2f", seconds), String.format("%.0f", throughput),
+                errors.get());
+        return throughput;
+    }
+
+    private static void runClient(String host, int port, int firstCode, int requests, CountDownLatch ready,
+            CountDownLatch start, AtomicLong completed, AtomicInteger errors) throws Exception {
+        Socket socket = new Socket(host, port);
+        MessageBus bus = new MessageBus("Throughput-" + firstCode, logger);
+        Semaphore window = new Semaphore(WINDOW);
+        CountDownLatch authenticated = new CountDownLatch(1);
+
+        bus.subscribe(MessageType.AUTH_RESPONSE, message -> authenticated.countDown());
+        bus.subscribe(MessageType.DATA_RESPONSE, message -> {
+            completed.incrementAndGet();
+            window.release();
+        });
+        bus.subscribe(MessageType.ERROR, message -> {
+            errors.incrementAndGet();
+            window.release();
+        });
+
+        MessageTransport transport = MessageTransports.open(socket, bus, logger, false);
+        try {
+            String clientId = "Throughput-" + firstCode;
+            transport.sendMessage(new Message(MessageType.AUTH_REQUEST, clientId, "Server",
+                    new String[] { "admin", "admin123" }));
+            if (!authenticated.await(10, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("No AUTH_RESPONSE from proxy");
+            }
+
+            long requestId = 0;
+            for (int i = 0; i < WORK_ORDERS_PER_CLIENT; i++) {
+                window.acquire();
+                transport.sendMessage(new Message(MessageType.DATA_REQUEST, clientId, "Server",
+                        "ADD|" + (firstCode + i) + "|Throughput " + i + "|Throughput test", ++requestId));
+            }
+            window.acquire(WINDOW);
+            window.release(WINDOW);
+            completed.addAndGet(-WORK_ORDERS_PER_CLIENT);
+
+            ready.countDown();
+            start.await();
+
+            for (int i = 0; i < requests; i++) {
+                window.acquire();
+                transport.sendMessage(new Message(MessageType.DATA_REQUEST, clientId, "Server",
+                        "SEARCH|" + (firstCode + i % WORK_ORDERS_PER_CLIENT), ++requestId));
+            }
+            window.acquire(WINDOW);
+        } finally {
+            transport.close();
+            bus.close();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package test;
+
+import java.util.Random;
+
+import main.shared.models.WorkOrder;
+import main.shared.utils.tree.IntTreeAVL;
+import main.shared.utils.tree.TreeAVL;
+
+/**
+ * Compares the generic TreeAVL with IntTreeAVL for the work order store.
+ *
+ * java test.TreeBenchmark [workOrders] [rounds]
+ *
+ * For each tree it measures the heap taken by the tree itself (the same
+ * WorkOrder objects are shared by both), the time to insert every work order
+ * in random order and the average latency of random SEARCHes. The first round
+ * only warms up the JIT. Run with a heap large enough for both trees, e.g.
+ * -Xmx2g for the default one million work orders.
+ */
+public class TreeBenchmark {
+    private static final int LOOKUPS = 5_000_000;
+
+    // Keeps the JIT from dropping the lookups
+    private static long sink;
+
+    public static void main(String[] args) {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        int[] codes = shuffledCodes(size, new Random(42));
+        int[] lookups = new int[LOOKUPS];
+        Random random = new Random(7);
+        for (int i = 0; i < LOOKUPS; i++) {
+            // Three of four lookups hit, like the SEARCH traffic of the clients
+            lookups[i] = random.nextInt(4) == 0 ? size + random.nextInt(size) : codes[random.nextInt(size)];
+        }
+        WorkOrder[] workOrders = new WorkOrder[size];
+        for (int i = 0; i < size; i++) {
+            workOrders[i] = new WorkOrder(codes[i], "Order " + codes[i], "Benchmark", "01-01-2025 00:00:00");
+        }
+
+        System.out.println("=== Tree benchmark: " + size + " work orders, " + LOOKUPS + " lookups per round ===");
+
+        double[] genericInsert = new double[rounds];
+        double[] genericSearch = new double[rounds];
+        double[] intInsert = new double[rounds];
+        double[] intSearch = new double[rounds];
+        long genericHeap = 0;
+        long intHeap = 0;
+
+        for (int round = 0; round < rounds; round++) {
+            long before = usedHeap();
+            long start = System.nanoTime();
+            TreeAVL<Integer, WorkOrder> generic = new TreeAVL<>();
+            for (int i = 0; i < size; i++) {
+                generic.Insert(codes[i], workOrders[i]);
+            }
+            genericInsert[round] = (System.nanoTime() - start) / 1e6;
+            genericHeap = usedHeap() - before;
+
+            start = System.nanoTime();
+            for (int code : lookups) {
+                WorkOrder found = generic.Search(code);
+                sink += found == null ? 0 : found.getCode();
+            }
+            genericSearch[round] = (System.nanoTime() - start) / (double) LOOKUPS;
+            generic = null;
+
+            before = usedHeap();
+            start = System.nanoTime();
+            IntTreeAVL<WorkOrder> specialized = new IntTreeAVL<>();
+            for (int i = 0; i < size; i++) {
+                specialized.Insert(codes[i], workOrders[i]);
+            }
+            intInsert[round] = (System.nanoTime() - start) / 1e6;
+            intHeap = usedHeap() - before;
+
+            start = System.nanoTime();
+            for (int code : lookups) {
+                WorkOrder found = specialized.Search(code);
+                sink += found == null ? 0 : found.getCode();
+            }
+            intSearch[round] = (System.nanoTime() - start) / (double) LOOKUPS;
+            specialized = null;
+
+            System.out.printf("round %d%s: TreeAVL insert %.0f ms, search %.1f ns | IntTreeAVL insert %.0f ms, search %.1f ns%n",
+                    round, round == 0 ? " (warm-up)" : "", genericInsert[round], genericSearch[round],
+                    intInsert[round], intSearch[round]);
+        }
+
+        System.out.println("\n=== Results (average without warm-up) ===");
+        System.out.printf("%-12s %12s %14s %14s%n", "tree", "heap (MB)", "insert (ms)", "search (ns)");
+        System.out.printf("%-12s %12.1f %14.0f %14.1f%n", "TreeAVL", genericHeap / 1e6,
+                average(genericInsert), average(genericSearch));
+        System.out.printf("%-12s %12.1f %14.0f %14.1f%n", "IntTreeAVL", intHeap / 1e6,
+                average(intInsert), average(intSearch));
+        System.out.printf("IntTreeAVL: %.1fx less heap, %.2fx faster search%n",
+                genericHeap / (double) Math.max(1, intHeap), average(genericSearch) / average(intSearch));
+        System.out.println("(checksum " + sink + ")");
+    }
+
+    private static int[] shuffledCodes(int size, Random random) {
+        int[] codes = new int[size];
+        for (int i = 0; i < size; i++) {
+            codes[i] = i;
+        }
+        for (int i = size - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int tmp = codes[i];
+            codes[i] = codes[j];
+            codes[j] = tmp;
+        }
+        return codes;
+    }
+
+    private static double average(double[] values) {
+        if (values.length == 1) {
+            return values[0];
+        }
+        double total = 0;
+        for (int i = 1; i < values.length; i++) {
+            total += values[i];
+        }
+        return total / (values.length - 1);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
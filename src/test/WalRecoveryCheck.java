@@ -0,0 +1,204 @@
+package test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import main.server.application.database.Database;
+import main.server.application.database.WriteAheadLog;
+import main.shared.models.WorkOrder;
+
+/**
+ * Checks the crash recovery of the application server's write-ahead log.
+ *
+ * java test.WalRecoveryCheck
+ *
+ * Writes changes through a WriteAheadLog, takes a snapshot halfway and cuts
+ * the log up to it, then recovers copies of the log into fresh databases:
+ * as written, with a torn record at the end and with a corrupted checksum in
+ * the last record. Each recovered database must match the changes that are
+ * whole in the log, replayed on top of the snapshot. Exits with status 1 on
+ * the first mismatch.
+ */
+public class WalRecoveryCheck {
+    private static final int CHANGES = 400;
+    private static final int SNAPSHOT_SEQ = 200;
+    // Updated before the snapshot and never again, the snapshot holds another value
+    private static final int MARKER_CODE = 8;
+
+    public static void main(String[] args) throws IOException {
+        Path dir = Files.createTempDirectory("wal-check");
+        Path log = dir.resolve("work_orders.wal");
+        try {
+            run(dir, log);
+            System.out.println("All write-ahead log checks passed");
+        } finally {
+            for (Path file : Files.list(dir).toArray(Path[]::new)) {
+                Files.delete(file);
+            }
+            Files.delete(dir);
+        }
+    }
+
+    private static void run(Path dir, Path log) throws IOException {
+        Database database = new Database();
+        WriteAheadLog wal = new WriteAheadLog(log, 0);
+        wal.recover(database, 0);
+        database.addListener(wal);
+        wal.start();
+
+        // Expected content after each seq
+        List<Map<Integer, String>> states = new ArrayList<>();
+        Map<Integer, String> model = new TreeMap<>();
+        states.add(new TreeMap<>(model));
+        Database.Chunk snapshot = null;
+        for (int i = 1; i <= CHANGES; i++) {
+            applyChange(database, model, i);
+            states.add(new TreeMap<>(model));
+            // One batch per change, so the log can be cut right at the snapshot
+            wal.sync();
+            if (i == SNAPSHOT_SEQ) {
+                snapshot = database.readChunk(Integer.MIN_VALUE, CHANGES);
+                check(snapshot.getSeq() == SNAPSHOT_SEQ, "snapshot taken at seq " + snapshot.getSeq());
+            }
+        }
+        check(database.getSequence() == CHANGES, "seq after the writes is " + database.getSequence());
+
+        // A snapshot that differs from the log on a code changed before it
+        WorkOrder[] snapshotOrders = snapshot.getWorkOrders().clone();
+        int marker = Arrays.binarySearch(snapshot.getCodes(), MARKER_CODE);
+        check(marker >= 0, "marker work order missing from the snapshot");
+        snapshotOrders[marker] = new WorkOrder(MARKER_CODE, "snapshot", "marker", "01-01-2025 00:00:00");
+        Map<Integer, String> markerState = new TreeMap<>();
+        markerState.put(MARKER_CODE, "snapshot|marker");
+
+        long sizeBefore = wal.getSizeBytes();
+        wal.truncate(SNAPSHOT_SEQ);
+        long sizeAfter = wal.getSizeBytes();
+        check(sizeAfter > 0 && sizeAfter < sizeBefore, "truncate kept " + sizeAfter + " of " + sizeBefore + " bytes");
+        wal.close();
+        byte[] intact = Files.readAllBytes(log);
+
+        // Recovery from the snapshot replays only the records after it
+        expect(recover(dir, intact, snapshot.getCodes(), snapshotOrders), CHANGES,
+                withMarker(states.get(CHANGES), markerState), "intact log");
+
+        // A record cut short by a crash is dropped, the ones before it are kept
+        byte[] torn = Arrays.copyOf(intact, intact.length + 11);
+        System.arraycopy(intact, intact.length - lastRecordLength(intact), torn, intact.length, 11);
+        expect(recover(dir, torn, snapshot.getCodes(), snapshotOrders), CHANGES,
+                withMarker(states.get(CHANGES), markerState), "torn tail");
+
+        // A record whose checksum does not match ends the replay before it
+        byte[] corrupt = intact.clone();
+        corrupt[corrupt.length - 1] ^= 0x5A;
+        expect(recover(dir, corrupt, snapshot.getCodes(), snapshotOrders), CHANGES - 1,
+                withMarker(states.get(CHANGES - 1), markerState), "checksum mismatch");
+
+        // The bad tail is cut, so changes appended after recovery replay too
+        Path file = dir.resolve("append.wal");
+        Files.write(file, corrupt);
+        Database first = load(snapshot.getCodes(), snapshotOrders);
+        WriteAheadLog reopened = new WriteAheadLog(file, 0);
+        reopened.recover(first, SNAPSHOT_SEQ);
+        first.addListener(reopened);
+        reopened.start();
+        first.addWorkOrder(new WorkOrder(CHANGES * 10, "after", "recovery", "01-01-2025 00:00:00"));
+        reopened.close();
+        Map<Integer, String> appended = withMarker(states.get(CHANGES - 1), markerState);
+        appended.put(CHANGES * 10, "after|recovery");
+        Database second = load(snapshot.getCodes(), snapshotOrders);
+        WriteAheadLog again = new WriteAheadLog(file, 0);
+        long lastSeq = again.recover(second, SNAPSHOT_SEQ);
+        again.close();
+        check(lastSeq == CHANGES, "append after recovery: last seq " + lastSeq);
+        check(contentOf(second).equals(appended), "append after recovery: content differs");
+        System.out.println("append after recovery: ok");
+    }
+
+    /**
+     * Change i of the sequence, one change per seq: code (i - 1) / 3 is
+     * added, then updated, then removed if it is odd or updated again if it
+     * is even
+     */
+    private static void applyChange(Database database, Map<Integer, String> model, int i) {
+        int code = (i - 1) / 3;
+        int step = (i - 1) % 3;
+        String name = "Order " + code + "." + i;
+        boolean applied;
+        if (step == 0) {
+            applied = database.addWorkOrder(new WorkOrder(code, name, "added", "01-01-2025 00:00:00"));
+            model.put(code, name + "|added");
+        } else if (step == 2 && code % 2 == 1) {
+            applied = database.removeWorkOrder(code);
+            model.remove(code);
+        } else {
+            applied = database.updateWorkOrder(code, name, "updated", "01-01-2025 00:00:00");
+            model.put(code, name + "|updated");
+        }
+        check(applied, "change " + i + " was not applied");
+    }
+
+    private static Database recover(Path dir, byte[] logBytes, int[] codes, WorkOrder[] workOrders)
+            throws IOException {
+        Path file = dir.resolve("recover.wal");
+        Files.write(file, logBytes);
+        Database database = load(codes, workOrders);
+        try (WriteAheadLog wal = new WriteAheadLog(file, 0)) {
+            wal.recover(database, SNAPSHOT_SEQ);
+        }
+        return database;
+    }
+
+    private static Database load(int[] codes, WorkOrder[] workOrders) {
+        Database database = new Database();
+        database.loadSorted(codes, workOrders, codes.length, SNAPSHOT_SEQ);
+        return database;
+    }
+
+    private static void expect(Database database, long seq, Map<Integer, String> expected, String label) {
+        check(database.getSequence() == seq, label + ": seq " + database.getSequence() + ", expected " + seq);
+        check(contentOf(database).equals(expected), label + ": content differs");
+        System.out.println(label + ": ok");
+    }
+
+    private static Map<Integer, String> withMarker(Map<Integer, String> state, Map<Integer, String> marker) {
+        Map<Integer, String> result = new TreeMap<>(state);
+        result.putAll(marker);
+        return result;
+    }
+
+    private static Map<Integer, String> contentOf(Database database) {
+        Database.Chunk chunk = database.readChunk(Integer.MIN_VALUE, CHANGES * 2);
+        Map<Integer, String> content = new TreeMap<>();
+        for (WorkOrder workOrder : chunk.getWorkOrders()) {
+            content.put(workOrder.getCode(), workOrder.getName() + "|" + workOrder.getDescription());
+        }
+        return content;
+    }
+
+    // Size of the last [length][crc32][body] record, found by walking the log
+    private static int lastRecordLength(byte[] log) throws IOException {
+        int position = 0;
+        int last = 0;
+        while (position < log.length) {
+            int length = ((log[position] & 0xFF) << 24) | ((log[position + 1] & 0xFF) << 16)
+                    | ((log[position + 2] & 0xFF) << 8) | (log[position + 3] & 0xFF);
+            last = 8 + length;
+            position += last;
+        }
+        return last;
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            System.out.println("FAILED: " + message);
+            System.exit(1);
+        }
+    }
+}